@@ -0,0 +1,60 @@
+#include "drafter.h"
+
+#include <algorithm>
+
+#include "common.h"
+#include "log.h"
+#include "speculative.h"
+
+ModelDrafter::ModelDrafter(llama_context* ctx_dft, float p_min)
+    : ctx_dft_(ctx_dft),
+      spec_(common_speculative_init(ctx_dft)),
+      p_min_(p_min) {
+}
+
+ModelDrafter::~ModelDrafter() {
+    common_speculative_free(spec_);
+}
+
+std::vector<llama_token> ModelDrafter::draft(const std::vector<llama_token>& history,
+                                             llama_token id_last, int n_max) {
+    if (n_max <= 0) return {};
+
+    common_speculative_params params;
+    params.n_draft = n_max;
+    params.n_reuse = (int)llama_n_ctx(ctx_dft_) - n_max;
+    params.p_min   = p_min_;
+
+    return common_speculative_gen_draft(spec_, params, history, id_last);
+}
+
+LookupDrafter::LookupDrafter(int ngram_max)
+    : ngram_max_(std::max(LLAMA_NGRAM_MIN, std::min(LLAMA_NGRAM_MAX, ngram_max))) {
+}
+
+std::vector<llama_token> LookupDrafter::draft(const std::vector<llama_token>& history,
+                                              llama_token id_last, int n_max) {
+    // 前回の inp_（= 前回の history + id_last）は今回の history の先頭部分になる。
+    // 生成ループが history を追記しかしない前提で、末尾だけ見て食い違えば作り直す
+    if (inp_.size() > history.size() || (!inp_.empty() && inp_.back() != history[inp_.size() - 1])) {
+        inp_.clear();
+        nc_context_.clear();
+    }
+    const size_t n_cached = inp_.size();
+    inp_.insert(inp_.end(), history.begin() + n_cached, history.end());
+    inp_.push_back(id_last);
+    common_ngram_cache_update(nc_context_, LLAMA_NGRAM_MIN, ngram_max_, inp_, (int)(inp_.size() - n_cached), false);
+
+    if (n_max <= 0) return {};
+
+    std::vector<llama_token> out = { id_last };
+    // common_ngram_cache_draft は候補トークンごとに LOG() で stdout に書くので、この呼び出しの間だけ黙らせる。
+    // 閾値はプロセス共通なので、他の common のログ（speculative / sampling）はそのまま残す
+    const int thold = common_log_verbosity_thold;
+    common_log_set_verbosity_thold(-1);
+    common_ngram_cache_draft(inp_, out, n_max, LLAMA_NGRAM_MIN, ngram_max_,
+                             nc_context_, nc_dynamic_, nc_static_);
+    common_log_set_verbosity_thold(thold);
+    out.erase(out.begin());
+    return out;
+}
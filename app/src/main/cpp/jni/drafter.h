@@ -0,0 +1,62 @@
+#pragma once
+
+#include <vector>
+
+#include "llama.h"
+#include "ngram-cache.h"
+
+struct common_speculative;
+
+// 投機的デコード用の下書き（draft）生成器。
+// generate ループは [id_last, draft...] をまとめて target model で 1 回 decode し、
+// target のサンプラーが draft と同じトークンを選んだ分だけ受理する。
+class Drafter {
+public:
+    virtual ~Drafter() = default;
+
+    // history : target の KV に入っているトークン列（プロンプト + 受理済み出力、id_last は含まない）
+    // id_last : 直前にサンプルした、まだ decode していないトークン
+    // n_max   : 返してよい最大トークン数
+    virtual std::vector<llama_token> draft(const std::vector<llama_token>& history,
+                                           llama_token id_last, int n_max) = 0;
+
+    virtual const char* name() const = 0;
+};
+
+// 小さな draft model で下書きする（examples/speculative-simple と同じ手順）。
+// ctx_dft は呼び出し側が所有し、Drafter より長く生存させること。
+class ModelDrafter : public Drafter {
+public:
+    ModelDrafter(llama_context* ctx_dft, float p_min);
+    ~ModelDrafter() override;
+
+    std::vector<llama_token> draft(const std::vector<llama_token>& history,
+                                   llama_token id_last, int n_max) override;
+
+    const char* name() const override { return "draft"; }
+
+private:
+    llama_context*      ctx_dft_;
+    common_speculative* spec_;
+    float               p_min_;
+};
+
+// プロンプト + 生成済みトークンの n-gram から続きを引く prompt-lookup 下書き（examples/lookup と同じ手順）。
+// 2 つ目のモデルは不要。要約・書き換えのようにプロンプトの語句をそのまま写す出力で効く。
+// ngram_max は照合に使う最長 n-gram（1..LLAMA_NGRAM_MAX）。短い n-gram から順にフォールバックする。
+class LookupDrafter : public Drafter {
+public:
+    explicit LookupDrafter(int ngram_max);
+
+    std::vector<llama_token> draft(const std::vector<llama_token>& history,
+                                   llama_token id_last, int n_max) override;
+
+    const char* name() const override { return "lookup"; }
+
+private:
+    int                      ngram_max_;
+    std::vector<llama_token> inp_;          // n-gram cache に反映済みのトークン列（history + id_last）
+    common_ngram_cache       nc_context_;   // 今回のプロンプト + 出力から作る cache
+    common_ngram_cache       nc_dynamic_;   // examples/lookup の過去生成分 cache（未使用、空のまま）
+    common_ngram_cache       nc_static_;    // examples/lookup のコーパス cache（未使用、空のまま）
+};
@@ -0,0 +1,136 @@
+#include "grammar.h"
+
+#include <cmath>
+#include <exception>
+#include <functional>
+#include <vector>
+
+#include <nlohmann/json.hpp>
+
+#include "json-schema-to-grammar.h"
+
+std::string json_schema_to_gbnf(const std::string& schema, std::string& error) {
+    try {
+        return json_schema_to_grammar(nlohmann::ordered_json::parse(schema), true);
+    } catch (const std::exception& e) {
+        error = std::string("invalid JSON schema: ") + e.what();
+        return "";
+    }
+}
+
+std::string GrammarCache::acquire(const llama_vocab* vocab, const std::string& kind, const std::string& text,
+                                  llama_sampler*& out, bool& cache_hit) {
+    out = nullptr;
+    cache_hit = false;
+
+    if (vocab != vocab_) {
+        clear();
+        vocab_ = vocab;
+    }
+
+    const size_t key = std::hash<std::string>()(kind + '\n' + text);
+    auto it = entries_.find(key);
+    if (it != entries_.end() && it->second.kind == kind && it->second.text == text) {
+        out = llama_sampler_clone(it->second.proto);
+        cache_hit = true;
+        return "";
+    }
+
+    std::string gbnf = text;
+    if (kind == "json_schema") {
+        std::string err;
+        gbnf = json_schema_to_gbnf(text, err);
+        if (!err.empty()) return err;
+    } else if (kind != "gbnf") {
+        return "unknown grammar kind: " + kind;
+    }
+
+    llama_sampler* proto = llama_sampler_init_grammar(vocab, gbnf.c_str(), "root");
+    if (!proto) {
+        return "failed to parse grammar";
+    }
+
+    // 上限を超えたら全部捨てる（要求ごとに使う制約は数種類しかない前提）
+    if (it != entries_.end()) {
+        llama_sampler_free(it->second.proto);
+        entries_.erase(it);
+    } else if (entries_.size() >= MAX_ENTRIES) {
+        clear();
+        vocab_ = vocab;
+    }
+    entries_[key] = Entry{ kind, text, proto };
+
+    out = llama_sampler_clone(proto);
+    return "";
+}
+
+std::shared_ptr<const std::vector<llama_token>> GrammarCache::continuations(const llama_vocab* vocab) {
+    if (vocab != vocab_) {
+        clear();
+        vocab_ = vocab;
+    }
+    if (continuations_) return continuations_;
+
+    auto tokens = std::make_shared<std::vector<llama_token>>();
+    const int n_vocab = llama_vocab_n_tokens(vocab);
+    char buf[256];
+    for (llama_token id = 0; id < n_vocab; ++id) {
+        if (llama_vocab_is_eog(vocab, id)) continue;
+        const int n = llama_token_to_piece(vocab, id, buf, sizeof(buf), 0, true);
+        // 256 バイトを超えるピースは空白だけではない扱い
+        bool blank = n >= 0;
+        for (int k = 0; blank && k < n; ++k) {
+            const char c = buf[k];
+            blank = c == ' ' || c == '\t' || c == '\n' || c == '\r';
+        }
+        if (!blank) tokens->push_back(id);
+    }
+    continuations_ = tokens;
+    return continuations_;
+}
+
+void GrammarCache::clear() {
+    for (auto& kv : entries_) {
+        llama_sampler_free(kv.second.proto);
+    }
+    entries_.clear();
+    continuations_.reset();
+    vocab_ = nullptr;
+}
+
+bool grammar_is_complete(llama_sampler* grammar, const llama_vocab* vocab, GrammarCompletion& gc) {
+    // 1. EOS を出せる（= 受理状態の stack がある）か
+    llama_token eos = llama_vocab_eos(vocab);
+    if (eos == LLAMA_TOKEN_NULL) eos = llama_vocab_eot(vocab);
+    if (eos == LLAMA_TOKEN_NULL) return false;
+
+    llama_token_data eos_data = { eos, 0.0f, 0.0f };
+    llama_token_data_array eos_arr = { &eos_data, 1, -1, false };
+    llama_sampler_apply(grammar, &eos_arr);
+    if (std::isinf(eos_data.logit)) return false;
+
+    // 2. 前回続けられたトークンがまだ使えれば続ける
+    if (gc.witness != LLAMA_TOKEN_NULL) {
+        llama_token_data w = { gc.witness, 0.0f, 0.0f };
+        llama_token_data_array w_arr = { &w, 1, -1, false };
+        llama_sampler_apply(grammar, &w_arr);
+        if (!std::isinf(w.logit)) return false;
+    }
+
+    // 3. 空白以外を続けられるトークンが残っていないか（"[0-9]+" のように受理後も伸びる文法は続ける）
+    if (!gc.tokens) return false;
+    gc.cand.clear();
+    gc.cand.reserve(gc.tokens->size());
+    for (llama_token id : *gc.tokens) gc.cand.push_back({ id, 0.0f, 0.0f });
+    llama_token_data_array arr = { gc.cand.data(), gc.cand.size(), -1, false };
+    llama_sampler_apply(grammar, &arr);
+
+    for (size_t i = 0; i < arr.size; ++i) {
+        if (!std::isinf(arr.data[i].logit)) {
+            gc.witness = arr.data[i].id;
+            return false;
+        }
+    }
+    gc.witness = LLAMA_TOKEN_NULL;
+    return true;
+}
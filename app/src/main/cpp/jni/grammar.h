@@ -0,0 +1,60 @@
+#pragma once
+
+#include <cstddef>
+#include <memory>
+#include <string>
+#include <unordered_map>
+#include <vector>
+
+#include "llama.h"
+
+// 出力制約（GBNF / JSON schema）から作った grammar sampler のキャッシュ。
+// GBNF のパース（JSON schema は GBNF への変換も）は要求ごとにやると重いので、
+// 制約テキストのハッシュをキーにコンパイル済みの sampler を持ち、要求ごとには clone だけ渡す。
+class GrammarCache {
+public:
+    static const size_t MAX_ENTRIES = 16;
+
+    ~GrammarCache() { clear(); }
+
+    // kind は "gbnf" または "json_schema"。成功時は out に呼び出し側が所有する sampler を返し、
+    // 空文字列を返す。失敗時はエラーメッセージ。cache_hit はパースを省けたかどうか
+    std::string acquire(const llama_vocab* vocab, const std::string& kind, const std::string& text,
+                        llama_sampler*& out, bool& cache_hit);
+
+    // EOG でも空白だけでもないトークン（grammar_is_complete が「まだ続けられるか」を調べる候補）。
+    // 語彙全体の detokenize は重いので語彙ごとに 1 回だけ作り、要求は shared_ptr で持つ
+    std::shared_ptr<const std::vector<llama_token>> continuations(const llama_vocab* vocab);
+
+    // モデルを解放・差し替える前に呼ぶ（sampler は vocab を参照している）
+    void clear();
+
+    size_t size() const { return entries_.size(); }
+
+private:
+    struct Entry {
+        std::string    kind;
+        std::string    text;
+        llama_sampler* proto;
+    };
+
+    const llama_vocab* vocab_ = nullptr;
+    std::unordered_map<size_t, Entry> entries_;
+    std::shared_ptr<const std::vector<llama_token>> continuations_;
+};
+
+// grammar_is_complete の作業領域。要求（スロット）ごとに 1 つ持つ
+struct GrammarCompletion {
+    std::shared_ptr<const std::vector<llama_token>> tokens;   // GrammarCache::continuations
+    std::vector<llama_token_data> cand;
+    // 前回の判定で続けられたトークン。"[0-9]+" のように受理後も伸びる文法では次もたいてい続けられるので、
+    // 先にこれ 1 つだけ試して候補全体の判定を省く
+    llama_token witness = LLAMA_TOKEN_NULL;
+};
+
+// JSON schema を GBNF に変換する（common/json-schema-to-grammar）。失敗時は error を設定して空文字列
+std::string json_schema_to_gbnf(const std::string& schema, std::string& error);
+
+// grammar が受理状態にあり、空白以外に続けられるトークンが無ければ true。
+// JSON なら閉じ括弧を出した直後に true になり、EOS を待たずに生成を止められる
+bool grammar_is_complete(llama_sampler* grammar, const llama_vocab* vocab, GrammarCompletion& gc);
@@ -2,6 +2,12 @@
 #include <string>
 #include <vector>
 #include <mutex>
+#include <shared_mutex>
+#include <condition_variable>
+#include <thread>
+#include <deque>
+#include <map>
+#include <atomic>
 #include <fstream>
 #include <chrono>
 #include <ctime>
@@ -9,21 +15,43 @@
 #include <iomanip>
 #include <cerrno>
 #include <cstring>
+#include <cstdlib>
+#include <cstdio>
 #include <cctype>
+#include <cmath>
+#include <random>
+#include <memory>
+#include <algorithm>
 
-#include <android/log.h>
-#define LOG_TAG "LLAMA_JNI"
-#define LOGI(...) __android_log_print(ANDROID_LOG_INFO,  LOG_TAG, __VA_ARGS__)
-#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
+#include "platform.h"
 
 #include "llama.h"
 #include "ggml-backend.h"
 #include "ggml-backend-impl.h"   // ★ これが必要
 #include "ggml-cpu.h"
+#include "common.h"
+#include "speculative.h"
+#include <sched.h>
+#include <unistd.h>
+#include <sys/resource.h>
+#include <sys/syscall.h>
+#if defined(__aarch64__) && defined(__linux__)
+#include <sys/auxv.h>
+#endif
+#ifdef LLAMA_JNI_HAVE_CURL
 #include <curl/curl.h>
+#endif
+
+#include "synthetic_model.h"
+#include "drafter.h"
+#include "lookahead.h"
+#include "grammar.h"
 
 // ---------------- グローバル ----------------
 static std::mutex g_mutex;
+// g_model の寿命を守る読み書きロック。トークン数えは vocab しか触らないので、生成中ずっと握られる g_mutex ではなく
+// これの共有ロックだけで並列に走らせる。g_model を差し替える側は g_mutex に加えて排他ロックを取る
+static std::shared_mutex g_model_rw;
 static llama_model   *g_model = nullptr;
 static llama_context *g_ctx   = nullptr;
 static JavaVM *g_jvm = nullptr;
@@ -32,14 +60,29 @@ static JavaVM *g_jvm = nullptr;
 static std::mutex g_log_mutex;
 static std::string g_log_path;
 static std::ofstream g_log_ofs;
+// ログがこのサイズを超えたら ollama.log → ollama.log.1 → … と回し、古い世代は g_log_keep 個だけ残す（0 以下で回さない）
+static long long g_log_max_bytes = 4LL << 20;
+static int       g_log_keep      = 3;
 
 // 設定
 static int   g_n_ctx      = 2048;
 static int   g_n_threads  = 2;
 static int   g_n_batch    = 16;
+static ggml_type g_type_k = GGML_TYPE_F16;   // KV キャッシュの型（量子化すると同じ RAM でより長い context が持てる）
+static ggml_type g_type_v = GGML_TYPE_F16;
+static bool  g_flash_attn = false;
+// setContextParameters の値。読み込み済みの context とずれないよう、次の init() でまとめて上の g_* に移す
+static int       g_next_n_ctx      = 2048;
+static int       g_next_n_threads  = 2;
+static int       g_next_n_batch    = 16;
+static ggml_type g_next_type_k     = GGML_TYPE_F16;
+static ggml_type g_next_type_v     = GGML_TYPE_F16;
+static bool      g_next_flash_attn = false;
 static float g_temp       = 0.7f;
 static float g_top_p      = 0.9f;
 static int   g_top_k      = 40;
+static int   g_max_tokens = 1024;                 // generate() 1 回で出す最大トークン数
+static uint32_t g_seed    = LLAMA_DEFAULT_SEED;   // サンプラーの乱数シード（LLAMA_DEFAULT_SEED は毎回ランダム）
 
 // DRY sequence breakers default - MUST match Java ConfigurationManager.Configuration.DEFAULT_DRY_SEQUENCE_BREAKERS
 static const char* DEFAULT_DRY_SEQUENCE_BREAKERS = "\\n,:,\",*";
@@ -71,6 +114,64 @@ static int   g_dry_allowed_length   = 2;
 static int   g_dry_penalty_last_n   = -1;
 static std::string g_dry_sequence_breakers = DEFAULT_DRY_SEQUENCE_BREAKERS;
 
+// デコード方式: "plain"（1 トークンずつ）、"draft"（draft model による投機的デコード）、
+// "lookup"（プロンプト + 履歴の n-gram による投機的デコード）、"lookahead"（Jacobi 反復による lookahead デコード）
+static std::string g_decoding_mode = "plain";
+
+// 投機的デコード（draft model）
+static std::string    g_draft_model_path;
+static int            g_spec_draft_max = 16;
+static int            g_spec_draft_min = 0;
+static float          g_spec_p_min     = 0.75f;
+static llama_model   *g_draft_model    = nullptr;
+static llama_context *g_draft_ctx      = nullptr;
+
+// prompt-lookup デコード（n-gram）
+static int g_lookup_ngram_max = 3;
+static int g_lookup_draft_max = 10;
+
+// lookahead デコード（W = 窓幅, N = n-gram 長, G = 1 ステップの最大検証候補数）
+static int g_lookahead_w = 8;
+static int g_lookahead_n = 4;
+static int g_lookahead_g = 8;
+
+// コンテキストシフト: 有効なら KV が埋まったとき ctx_limit で止めず、先頭 n_keep トークン
+// （-1 ならプロンプト全体）を残して続く n_discard トークン（0 なら残りの半分）を捨て、後ろを前に詰める
+static bool g_ctx_shift     = false;
+static int  g_ctx_n_keep    = -1;
+static int  g_ctx_n_discard = 0;
+
+// generate() のプロンプトの毎回同じ先頭部分（chat template の system 部分など、setPromptPrefix）。
+// トークン列はその prefix で始まる最初の generate で作り、モデルを読み直したら作り直す
+struct PromptPrefixCache {
+    std::string prefix;                 // setPromptPrefix で渡された文字列
+    bool built = false;
+    std::string text;                   // prefix のうちトークン列をキャッシュした部分（最後の特殊トークンまで）
+    std::vector<llama_token> tokens;
+    bool rstrip = false;                // 最後の特殊トークンが直後の空白を食う
+};
+static PromptPrefixCache g_prompt_prefix;
+
+// KV の再利用（setPromptCacheReuse）: 前回のプロンプトと先頭が一致する分は KV を消さずに残し、続きだけ prefill する。
+// g_kv_tokens は seq 0 の位置 0.. に入っていて中身を信用できるトークン列（context を作り直したら空にする）
+static bool g_kv_reuse = false;
+static std::vector<llama_token> g_kv_tokens;
+
+// 出力制約: kind は ""（制約なし）、"gbnf" または "json_schema"
+static std::string  g_grammar_kind;
+static std::string  g_grammar_text;
+static GrammarCache g_grammar_cache;
+
+// 埋め込み用 context（embed() の初回に作る）。1 回の decode に最大 g_embd_n_batch トークン / LLAMA_MAX_SEQ 本を詰める。
+// 詰めた seq は同じ KV に並ぶので attention は n_batch に対して 2 乗で増える。重みの読み出しを
+// 十分まとめつつそれを抑える値として 512 を既定にする
+static llama_context *g_embd_ctx      = nullptr;
+static std::string    g_embd_pooling  = "auto";   // "auto"（モデル既定、無ければ mean）、"mean"、"cls"、"last"
+static int            g_embd_n_batch  = 512;
+
+// plain デコード 1 ステップの平均時間（ms/token, EMA）。投機的デコードの speedup の基準
+static double g_plain_ms_per_token = 0.0;
+
 // ---------------- ログユーティリティ ----------------
 static std::string current_time_str() {
     using namespace std::chrono;
@@ -83,6 +184,32 @@ static std::string current_time_str() {
     return ss.str();
 }
 
+// g_log_mutex を持った状態で呼ぶ。今のファイルが上限を超えていれば世代をずらして空のファイルを開き直す。
+// 追記モードなので tellp() は実ファイルの末尾で、Java 側で空にされた場合もそのまま正しい大きさになる
+static void rotate_log_if_needed_locked() {
+    if (g_log_max_bytes <= 0 || !g_log_ofs.is_open()) return;
+    const std::streamoff size = g_log_ofs.tellp();
+    if (size < 0 || size < g_log_max_bytes) return;
+
+    g_log_ofs.close();
+    const int keep = std::max(0, g_log_keep);
+    std::remove((g_log_path + "." + std::to_string(keep)).c_str());
+    for (int i = keep - 1; i >= 1; --i) {
+        std::rename((g_log_path + "." + std::to_string(i)).c_str(),
+                    (g_log_path + "." + std::to_string(i + 1)).c_str());
+    }
+    if (keep > 0) {
+        std::rename(g_log_path.c_str(), (g_log_path + ".1").c_str());
+    } else {
+        std::remove(g_log_path.c_str());
+    }
+    g_log_ofs.clear();
+    g_log_ofs.open(g_log_path, std::ios::app | std::ios::binary);
+    if (g_log_ofs) {
+        g_log_ofs << current_time_str() << " [JNI] Log rotated at " << size << " bytes" << std::endl;
+    }
+}
+
 static void log_to_file(const std::string& msg) {
     std::lock_guard<std::mutex> lock(g_log_mutex);
     if (g_log_path.empty()) return;
@@ -92,6 +219,7 @@ static void log_to_file(const std::string& msg) {
     if (!g_log_ofs) return;
     g_log_ofs << current_time_str() << " [JNI] " << msg << std::endl;
     g_log_ofs.flush();
+    rotate_log_if_needed_locked();
 }
 
 // ---------------- llama.cpp ログコールバック ----------------
@@ -103,11 +231,55 @@ static void llama_log_callback(enum ggml_log_level level, const char * text, voi
 }
 
 // ---------------- 既存ユーティリティ ----------------
+// GetStringUTFChars は modified UTF-8（サロゲートペアを 3 バイト×2 に分ける）を返すので、
+// 絵文字などがトークナイザに正しく渡らない。UTF-16 から標準の UTF-8 に自前で変換する。
+// 対になっていないサロゲートは Java の String.getBytes(UTF_8) と同じく '?' にする
 static std::string jstring_to_std(JNIEnv *env, jstring jstr) {
     if (!jstr) return "";
-    const char *chars = env->GetStringUTFChars(jstr, nullptr);
-    std::string result(chars ? chars : "");
-    env->ReleaseStringUTFChars(jstr, chars);
+    jsize len = env->GetStringLength(jstr);
+    std::vector<jchar> u16(len);
+    if (len > 0) env->GetStringRegion(jstr, 0, len, u16.data());
+    std::string result;
+    result.reserve((size_t)len * 3);
+    for (jsize i = 0; i < len; ++i) {
+        uint32_t c = u16[i];
+        if (c >= 0xD800 && c <= 0xDBFF && i + 1 < len && u16[i + 1] >= 0xDC00 && u16[i + 1] <= 0xDFFF) {
+            c = 0x10000 + ((c - 0xD800) << 10) + (u16[++i] - 0xDC00);
+        } else if (c >= 0xD800 && c <= 0xDFFF) {
+            c = '?';
+        }
+        if (c < 0x80) {
+            result += (char)c;
+        } else if (c < 0x800) {
+            result += (char)(0xC0 | (c >> 6));
+            result += (char)(0x80 | (c & 0x3F));
+        } else if (c < 0x10000) {
+            result += (char)(0xE0 | (c >> 12));
+            result += (char)(0x80 | ((c >> 6) & 0x3F));
+            result += (char)(0x80 | (c & 0x3F));
+        } else {
+            result += (char)(0xF0 | (c >> 18));
+            result += (char)(0x80 | ((c >> 12) & 0x3F));
+            result += (char)(0x80 | ((c >> 6) & 0x3F));
+            result += (char)(0x80 | (c & 0x3F));
+        }
+    }
+    return result;
+}
+
+// NewStringUTF は不正な UTF-8（トークン境界で切れた多バイト文字など）で落ちるので、
+// byte[] 経由で new String(bytes, "UTF-8") に変換させる（不正なバイトは U+FFFD になる）
+static jstring utf8_to_jstring(JNIEnv *env, const std::string& s) {
+    jbyteArray bytes = env->NewByteArray((jsize)s.size());
+    if (!bytes) return nullptr;
+    env->SetByteArrayRegion(bytes, 0, (jsize)s.size(), (const jbyte*)s.data());
+    jclass strClass = env->FindClass("java/lang/String");
+    jmethodID ctor = env->GetMethodID(strClass, "<init>", "([BLjava/lang/String;)V");
+    jstring charset = env->NewStringUTF("UTF-8");
+    jstring result = (jstring)env->NewObject(strClass, ctor, bytes, charset);
+    env->DeleteLocalRef(charset);
+    env->DeleteLocalRef(bytes);
+    env->DeleteLocalRef(strClass);
     return result;
 }
 
@@ -138,6 +310,7 @@ static std::string process_escape_sequences(const std::string& input) {
 }
 
 // ---------------- download() 用 ----------------
+#ifdef LLAMA_JNI_HAVE_CURL
 static size_t write_data(void* ptr, size_t size, size_t nmemb, void* userdata) {
     std::ofstream* ofs = reinterpret_cast<std::ofstream*>(userdata);
     ofs->write(reinterpret_cast<const char*>(ptr), size * nmemb);
@@ -164,7 +337,7 @@ static int xferinfo(void* p, curl_off_t dltotal, curl_off_t dlnow, curl_off_t, c
     JNIEnv* env = nullptr;
     bool attached = false;
     if (g_jvm->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6) != JNI_OK) {
-        if (g_jvm->AttachCurrentThread(&env, nullptr) != JNI_OK) {
+        if (platform_attach_current_thread(g_jvm, &env) != JNI_OK) {
             return 0;
         }
         attached = true;
@@ -184,23 +357,60 @@ static int xferinfo(void* p, curl_off_t dltotal, curl_off_t dlnow, curl_off_t, c
     if (attached) g_jvm->DetachCurrentThread();
     return 0;
 }
+#endif // LLAMA_JNI_HAVE_CURL
 
 // ---------------- 解放 ----------------
-static void llama_jni_free() {
-    std::lock_guard<std::mutex> lock(g_mutex);
+static void slots_shutdown(const char* why);
+static void release_threadpools();
 
-    log_to_file("llama_jni_free: freeing resources (explicit)");
+static void free_draft_model() {
+    if (g_draft_ctx) {
+        llama_free(g_draft_ctx);
+        g_draft_ctx = nullptr;
+    }
+    if (g_draft_model) {
+        llama_model_free(g_draft_model);
+        g_draft_model = nullptr;
+        log_to_file("Draft model freed");
+    }
+}
+
+static void free_embd_context() {
+    if (g_embd_ctx) {
+        llama_free(g_embd_ctx);
+        g_embd_ctx = nullptr;
+        log_to_file("Embedding context freed");
+    }
+}
+
+// モデルとそれに付いているものをすべて捨てる（バックエンドとログはそのまま）。g_mutex を持って呼ぶ
+static void free_model_resources() {
+    free_draft_model();
+    free_embd_context();
+    slots_shutdown("model unloaded");
+    g_grammar_cache.clear();
+    g_prompt_prefix.built = false;
+    g_kv_tokens.clear();
 
     if (g_ctx) {
         llama_free(g_ctx);
         g_ctx = nullptr;
         log_to_file("Context freed");
     }
+    release_threadpools();
     if (g_model) {
+        std::unique_lock<std::shared_mutex> wlock(g_model_rw);
         llama_model_free(g_model);
         g_model = nullptr;
         log_to_file("Model freed");
     }
+}
+
+static void llama_jni_free() {
+    std::lock_guard<std::mutex> lock(g_mutex);
+
+    log_to_file("llama_jni_free: freeing resources (explicit)");
+    free_model_resources();
 
     llama_backend_free();
     log_to_file("Backend freed");
@@ -231,6 +441,8 @@ Java_com_example_ollama_LlamaNative_setLogPath(
             if (g_log_ofs) {
                 g_log_ofs << current_time_str() << " [JNI] Log opened: " << g_log_path << std::endl;
                 g_log_ofs.flush();
+                // 上限を入れる前から伸び続けていたログもここで回す
+                rotate_log_if_needed_locked();
             } else {
                 LOGE("Failed to open log file: %s", g_log_path.c_str());
             }
@@ -238,6 +450,17 @@ Java_com_example_ollama_LlamaNative_setLogPath(
     }
 }
 
+// ---------------- JNI: setLogRotation ----------------
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_example_ollama_LlamaNative_setLogRotation(
+        JNIEnv *, jobject, jlong maxBytes, jint keepFiles) {
+    std::lock_guard<std::mutex> lock(g_log_mutex);
+    g_log_max_bytes = maxBytes;
+    g_log_keep      = std::max(0, (int)keepFiles);
+    rotate_log_if_needed_locked();
+}
+
 // ---------------- JNI: download ----------------
 extern "C"
 JNIEXPORT jstring JNICALL
@@ -257,6 +480,11 @@ Java_com_example_ollama_LlamaNative_download(
         }
     }
 
+#ifndef LLAMA_JNI_HAVE_CURL
+    (void)thiz; (void)jurl; (void)jpath;
+    log_to_file("download: not supported (built without libcurl)");
+    return env->NewStringUTF("download not supported");
+#else
     const char* url  = env->GetStringUTFChars(jurl,  nullptr);
     const char* path = env->GetStringUTFChars(jpath, nullptr);
 
@@ -356,6 +584,514 @@ Java_com_example_ollama_LlamaNative_download(
 
     log_to_file("download: ok");
     return env->NewStringUTF("ok");
+#endif // LLAMA_JNI_HAVE_CURL
+}
+
+// ---------------- CPU バックエンド選択 ----------------
+// LLAMA_JNI_CPU_VARIANTS（CMake が優先度順の tag 一覧を定義）があるときは
+// libggml-cpu-<tag>.so を順に読み込み、ggml_backend_score() が 0 でない最初のものを使う。
+// 無いときは llama_jni に静的リンクされた ggml-cpu を登録する。
+// どちらも一度だけ行う（ggml はバックエンドをアンロードできない）。
+static bool        g_cpu_backend_ready = false;
+static std::string g_cpu_variant;
+static std::vector<std::string> g_cpu_variants_rejected;
+
+static std::string register_cpu_backend() {
+    if (g_cpu_backend_ready) return "";
+
+#ifdef LLAMA_JNI_CPU_VARIANTS
+    g_cpu_variants_rejected.clear();
+    std::stringstream tags(LLAMA_JNI_CPU_VARIANTS);
+    std::string tag;
+    while (std::getline(tags, tag, ',')) {
+        const std::string lib = "libggml-cpu-" + tag + ".so";
+        if (ggml_backend_load(lib.c_str())) {
+            g_cpu_variant = tag;
+            g_cpu_backend_ready = true;
+            log_to_file("init: CPU backend variant selected: " + lib);
+            return "";
+        }
+        g_cpu_variants_rejected.push_back(tag);
+        log_to_file("init: CPU backend variant not usable: " + lib);
+    }
+    return "no usable CPU backend variant (tried " + std::string(LLAMA_JNI_CPU_VARIANTS) + ")";
+#else
+    // ★ CPU backend をレジストリ経由で登録
+    ggml_backend_reg_t cpu_reg = ggml_backend_cpu_reg();
+    if (!cpu_reg) {
+        log_to_file("init: CPU backend_reg() returned null");
+        return "CPU backend unavailable";
+    }
+    ggml_backend_register(cpu_reg);
+    g_cpu_variant = "builtin";
+    g_cpu_backend_ready = true;
+    log_to_file("init: CPU backend registered via reg");
+    return "";
+#endif
+}
+
+// 実行中の CPU が持つ機能（HWCAP）。variant の選択結果と突き合わせるために返す
+static void append_hwcaps_json(std::ostringstream& ss) {
+    ss << "{";
+#if defined(__aarch64__) && defined(__linux__)
+    const unsigned long hwcap  = getauxval(AT_HWCAP);
+    const unsigned long hwcap2 = getauxval(AT_HWCAP2);
+    ss << "\"dotprod\":" << ((hwcap  & HWCAP_ASIMDDP)    ? "true" : "false")
+       << ",\"fp16\":"   << ((hwcap  & HWCAP_FPHP)       ? "true" : "false")
+       << ",\"sve\":"    << ((hwcap  & HWCAP_SVE)        ? "true" : "false")
+       << ",\"sve2\":"   << ((hwcap2 & (1UL << 1))       ? "true" : "false")   // HWCAP2_SVE2
+       << ",\"i8mm\":"   << ((hwcap2 & (1UL << 13))      ? "true" : "false")   // HWCAP2_I8MM
+       << ",\"sme\":"    << ((hwcap2 & (1UL << 23))      ? "true" : "false");  // HWCAP2_SME
+#endif
+    ss << "}";
+}
+
+// {"variant":..., "dynamic":..., "rejected":[...], "features":{...}, "hwcaps":{...}}
+static std::string cpu_backend_info_json() {
+    std::ostringstream ss;
+    ss << "{\"variant\":\"" << (g_cpu_backend_ready ? g_cpu_variant : "") << "\"";
+#ifdef LLAMA_JNI_CPU_VARIANTS
+    ss << ",\"dynamic\":true";
+#else
+    ss << ",\"dynamic\":false";
+#endif
+
+    ss << ",\"rejected\":[";
+    for (size_t i = 0; i < g_cpu_variants_rejected.size(); ++i) {
+        if (i) ss << ",";
+        ss << "\"" << g_cpu_variants_rejected[i] << "\"";
+    }
+    ss << "]";
+
+    // 選ばれた ggml-cpu がコンパイル時に有効にしている命令セット
+    ss << ",\"features\":{";
+    ggml_backend_reg_t reg = g_cpu_backend_ready ? ggml_backend_reg_by_name("CPU") : nullptr;
+    auto get_features = reg
+        ? (ggml_backend_get_features_t) ggml_backend_reg_get_proc_address(reg, "ggml_backend_get_features")
+        : nullptr;
+    if (get_features) {
+        bool first = true;
+        for (ggml_backend_feature* f = get_features(reg); f->name; ++f) {
+            if (!first) ss << ",";
+            first = false;
+            ss << "\"" << f->name << "\":\"" << f->value << "\"";
+        }
+    }
+    ss << "}";
+
+    ss << ",\"hwcaps\":";
+    append_hwcaps_json(ss);
+    ss << "}";
+    return ss.str();
+}
+
+// ---------------- スレッドプール ----------------
+// prefill（2 トークン以上の batch）用と decode 用に ggml threadpool を 1 つずつ作って context に付ける
+// （llama_attach_threadpool）。ワーカーは llama_decode ごとに作り直さずに使い回し、載せる CPU と優先度は作るときに決める。
+// 既定の CPU は /sys/devices/system/cpu の cpu_capacity（無ければ cpuinfo_max_freq）が大きいクラスタから順に、
+// スレッド数に届くまで取ったもの（big.LITTLE の LITTLE を外す）。全コアが同じならどこにも縛らない。
+// ggml 自身の affinity・優先度の設定は __gnu_linux__ 向けにしかビルドされず Android（bionic）では何もしないので、
+// affinity と nice を設定した一時スレッドでプールを作り、ワーカーにそれを継承させる。
+// ワーカー 0 は llama_decode を呼んだスレッドなので、そちらは PoolPlacement で生成の間だけ合わせる
+struct PoolConfig {
+    std::string cpus;       // "" = 性能コアを自動で選ぶ、"all" = 縛らない、"0-3,6" = CPU 番号の一覧
+    int         poll = 50;  // ggml の polling レベル 0-100（仕事が終わってから寝るまで回る長さ、0 = すぐ寝る）
+};
+
+static bool       g_tp_enabled  = true;
+static int        g_tp_priority = 0;   // -1 低 / 0 そのまま / 1 高め / 2 高（nice 10 / 継承 / -5 / -10）
+static PoolConfig g_tp_decode_cfg;
+static PoolConfig g_tp_batch_cfg;
+
+struct ThreadPool {
+    ggml_threadpool* tp = nullptr;
+    std::vector<int> cpus;   // 実際に載せる CPU（空 = 縛らない）
+    int poll = 0;
+};
+
+struct ThreadPools {
+    ThreadPool decode;
+    ThreadPool batch;
+    int n_threads = 0;
+    int priority  = 0;
+};
+
+static ThreadPools g_pools;        // g_ctx・lookahead・draft・埋め込み用（g_mutex の下で使う）
+static ThreadPools g_slots_pools;  // 並列スロット用（エンジンスレッドは g_mutex 無しで g_ctx と同時に回るので別に持つ）
+
+struct CpuCore {
+    int  id;
+    long capacity;   // cpu_capacity か cpuinfo_max_freq (kHz)。読めなければ -1
+};
+
+// "0-3,6" を CPU 番号の一覧にする
+static bool parse_cpu_list(const std::string& s, std::vector<int>& out) {
+    out.clear();
+    std::stringstream ss(s);
+    std::string part;
+    while (std::getline(ss, part, ',')) {
+        part.erase(std::remove_if(part.begin(), part.end(), [](unsigned char c) { return std::isspace(c); }), part.end());
+        if (part.empty()) continue;
+        int lo = 0, hi = 0;
+        char dash = 0, extra = 0;
+        const int n = std::sscanf(part.c_str(), "%d%c%d%c", &lo, &dash, &hi, &extra);
+        if (n == 1) hi = lo;
+        else if (n != 3 || dash != '-') return false;
+        if (lo < 0 || hi < lo || hi >= CPU_SETSIZE) return false;
+        for (int c = lo; c <= hi; ++c) out.push_back(c);
+    }
+    std::sort(out.begin(), out.end());
+    out.erase(std::unique(out.begin(), out.end()), out.end());
+    return !out.empty();
+}
+
+static long read_sys_long(const std::string& path) {
+    std::ifstream f(path);
+    long v = -1;
+    return (f >> v) ? v : -1;
+}
+
+static const std::vector<CpuCore>& cpu_cores() {
+    static const std::vector<CpuCore> cores = [] {
+        std::vector<int> ids;
+        std::ifstream f("/sys/devices/system/cpu/possible");
+        std::string line;
+        if (!(f && std::getline(f, line) && parse_cpu_list(line, ids))) {
+            ids.clear();
+            for (int i = 0; i < (int)std::max(1u, std::thread::hardware_concurrency()); ++i) ids.push_back(i);
+        }
+        std::vector<CpuCore> v;
+        for (int id : ids) {
+            const std::string dir = "/sys/devices/system/cpu/cpu" + std::to_string(id);
+            long cap = read_sys_long(dir + "/cpu_capacity");
+            if (cap < 0) cap = read_sys_long(dir + "/cpufreq/cpuinfo_max_freq");
+            v.push_back({ id, cap });
+        }
+        return v;
+    }();
+    return cores;
+}
+
+// 速いクラスタから順に n_threads 個以上になるまで取る。結局全コアになるときは空（縛らない）
+static std::vector<int> performance_cpus(int n_threads) {
+    std::vector<CpuCore> cores = cpu_cores();
+    std::stable_sort(cores.begin(), cores.end(), [](const CpuCore& a, const CpuCore& b) { return a.capacity > b.capacity; });
+    std::vector<int> out;
+    for (size_t i = 0; i < cores.size() && (int)out.size() < n_threads; ) {
+        size_t j = i;
+        while (j < cores.size() && cores[j].capacity == cores[i].capacity) out.push_back(cores[j++].id);
+        i = j;
+    }
+    if (out.size() >= cores.size()) out.clear();
+    std::sort(out.begin(), out.end());
+    return out;
+}
+
+static std::vector<int> resolve_pool_cpus(const std::string& spec, int n_threads) {
+    if (spec.empty()) return performance_cpus(n_threads);
+    std::vector<int> cpus;
+    if (spec == "all" || !parse_cpu_list(spec, cpus)) cpus.clear();
+    return cpus;
+}
+
+static int priority_nice(int priority) {
+    return priority < 0 ? 10 : priority == 1 ? -5 : priority >= 2 ? -10 : 0;
+}
+
+static pid_t current_tid() {
+    return (pid_t)syscall(SYS_gettid);
+}
+
+// 呼んだスレッドを cpus（空なら触らない）に載せ、priority が 0 以外なら nice を変える。0 か最初に失敗した errno を返す
+static int place_current_thread(const std::vector<int>& cpus, int priority) {
+    int err = 0;
+    if (!cpus.empty()) {
+        cpu_set_t set;
+        CPU_ZERO(&set);
+        for (int c : cpus) CPU_SET(c, &set);
+        if (sched_setaffinity(0, sizeof(set), &set) != 0) err = errno;
+    }
+    if (priority != 0 && setpriority(PRIO_PROCESS, (id_t)current_tid(), priority_nice(priority)) != 0 && !err) {
+        err = errno;
+    }
+    return err;
+}
+
+// llama_decode を呼ぶスレッドはプールのワーカー 0 になるので、生成の間だけ decode と prefill の CPU の和と同じ nice に載せ、
+// 抜けるときに元へ戻す（Java 側のスレッドを縛ったままにしない）。戻せなかったときは黙ってそのまま
+class PoolPlacement {
+public:
+    explicit PoolPlacement(const ThreadPools& p) {
+        if (!p.decode.tp) return;
+        std::vector<int> cpus;
+        if (!p.decode.cpus.empty() && !p.batch.cpus.empty()) {
+            std::set_union(p.decode.cpus.begin(), p.decode.cpus.end(), p.batch.cpus.begin(), p.batch.cpus.end(),
+                           std::back_inserter(cpus));
+        }
+        if (!cpus.empty()) {
+            CPU_ZERO(&saved_cpus_);
+            restore_cpus_ = sched_getaffinity(0, sizeof(saved_cpus_), &saved_cpus_) == 0;
+        }
+        if (p.priority != 0) {
+            errno = 0;
+            saved_nice_   = getpriority(PRIO_PROCESS, (id_t)current_tid());
+            restore_nice_ = errno == 0;
+        }
+        place_current_thread(cpus, p.priority);
+    }
+
+    ~PoolPlacement() {
+        if (restore_cpus_) sched_setaffinity(0, sizeof(saved_cpus_), &saved_cpus_);
+        if (restore_nice_) setpriority(PRIO_PROCESS, (id_t)current_tid(), saved_nice_);
+    }
+
+    PoolPlacement(const PoolPlacement&) = delete;
+    PoolPlacement& operator=(const PoolPlacement&) = delete;
+
+private:
+    cpu_set_t saved_cpus_;
+    bool      restore_cpus_ = false;
+    int       saved_nice_   = 0;
+    bool      restore_nice_ = false;
+};
+
+// ggml_threadpool_new/free は CPU バックエンドのもの。variant を動的に読むときはレジストリから引く
+static void* cpu_backend_proc(const char* name) {
+    ggml_backend_reg_t reg = g_cpu_backend_ready ? ggml_backend_reg_by_name("CPU") : nullptr;
+    return reg ? ggml_backend_reg_get_proc_address(reg, name) : nullptr;
+}
+
+static ggml_threadpool* new_threadpool(int n_threads, const std::vector<int>& cpus, int priority, int poll,
+                                       int& place_err) {
+    typedef ggml_threadpool* (*threadpool_new_t)(ggml_threadpool_params*);
+    auto tp_new = (threadpool_new_t) cpu_backend_proc("ggml_threadpool_new");
+    place_err = 0;
+    if (!tp_new) return nullptr;
+
+    // cpumask・prio は ggml に渡さない（Android では効かないので、継承させる方に揃える）
+    ggml_threadpool_params tpp = ggml_threadpool_params_default(n_threads);
+    tpp.poll = (uint32_t)poll;
+    ggml_threadpool* tp = nullptr;
+    std::thread([&] {
+        place_err = place_current_thread(cpus, priority);
+        tp = tp_new(&tpp);
+    }).join();
+    return tp;
+}
+
+static void free_threadpools(ThreadPools& p) {
+    typedef void (*threadpool_free_t)(ggml_threadpool*);
+    auto tp_free = (threadpool_free_t) cpu_backend_proc("ggml_threadpool_free");
+    for (ThreadPool* t : { &p.decode, &p.batch }) {
+        if (t->tp && tp_free) tp_free(t->tp);
+        *t = ThreadPool();
+    }
+    p.n_threads = 0;
+}
+
+// n_threads 本ずつのプールを今の設定で作り直す。作れなければ空のまま（llama.cpp 既定のスレッド処理に戻る）。
+// プールを付けた context は先に外しておくこと
+static void create_threadpools(ThreadPools& p, int n_threads, const char* who) {
+    free_threadpools(p);
+    if (!g_tp_enabled) return;
+
+    p.n_threads = n_threads;
+    p.priority  = g_tp_priority;
+    const std::pair<ThreadPool*, const PoolConfig*> pools[] = { { &p.decode, &g_tp_decode_cfg },
+                                                                { &p.batch,  &g_tp_batch_cfg } };
+    std::ostringstream ss;
+    ss << who << ": threadpools n_threads=" << n_threads << " priority=" << p.priority;
+    for (const auto& it : pools) {
+        ThreadPool& t = *it.first;
+        t.cpus = resolve_pool_cpus(it.second->cpus, n_threads);
+        t.poll = it.second->poll;
+        int place_err = 0;
+        t.tp = new_threadpool(n_threads, t.cpus, p.priority, t.poll, place_err);
+        if (!t.tp) {
+            free_threadpools(p);
+            log_to_file(std::string(who) + ": ggml_threadpool_new unavailable, using the default threading");
+            return;
+        }
+        ss << (&t == &p.decode ? " decode" : " prefill") << "={cpus=";
+        if (t.cpus.empty()) ss << "all";
+        for (size_t i = 0; i < t.cpus.size(); ++i) ss << (i ? "," : "") << t.cpus[i];
+        ss << " poll=" << t.poll;
+        if (place_err) ss << " placement failed: " << std::strerror(place_err);
+        ss << "}";
+        if (!t.cpus.empty() && (int)t.cpus.size() < n_threads) ss << " (more threads than cpus)";
+    }
+    log_to_file(ss.str());
+}
+
+static void attach_threadpools(llama_context* ctx, const ThreadPools& p) {
+    if (ctx && p.decode.tp) llama_attach_threadpool(ctx, p.decode.tp, p.batch.tp);
+}
+
+// g_pools を付けた context をすべて外してから捨てる
+static void release_threadpools() {
+    for (llama_context* ctx : { g_ctx, g_draft_ctx, g_embd_ctx }) {
+        if (ctx) llama_detach_threadpool(ctx);
+    }
+    if (g_pools.decode.tp) log_to_file("Threadpools freed");
+    free_threadpools(g_pools);
+}
+
+static void append_pool_json(std::ostringstream& ss, const ThreadPool& t) {
+    ss << "{\"active\":" << (t.tp ? "true" : "false") << ",\"cpus\":[";
+    for (size_t i = 0; i < t.cpus.size(); ++i) ss << (i ? "," : "") << t.cpus[i];
+    ss << "],\"poll\":" << t.poll << "}";
+}
+
+// {"enabled", "priority", "threads", "cores":[{"cpu","capacity"}], "performance":[...],
+//  "decode":{"active","cpus","poll"}, "prefill":{...}, "parallel":{...}}。cpus が空 = 縛っていない
+static std::string threadpool_info_json() {
+    std::ostringstream ss;
+    ss << "{\"enabled\":" << (g_tp_enabled ? "true" : "false")
+       << ",\"priority\":" << g_tp_priority
+       << ",\"threads\":" << g_pools.n_threads
+       << ",\"cores\":[";
+    const auto& cores = cpu_cores();
+    for (size_t i = 0; i < cores.size(); ++i) {
+        ss << (i ? "," : "") << "{\"cpu\":" << cores[i].id << ",\"capacity\":" << cores[i].capacity << "}";
+    }
+    ss << "],\"performance\":[";
+    const std::vector<int> perf = performance_cpus(g_pools.n_threads > 0 ? g_pools.n_threads : g_n_threads);
+    for (size_t i = 0; i < perf.size(); ++i) ss << (i ? "," : "") << perf[i];
+    ss << "],\"decode\":";
+    append_pool_json(ss, g_pools.decode);
+    ss << ",\"prefill\":";
+    append_pool_json(ss, g_pools.batch);
+    ss << ",\"parallel\":{\"decode\":";
+    append_pool_json(ss, g_slots_pools.decode);
+    ss << ",\"prefill\":";
+    append_pool_json(ss, g_slots_pools.batch);
+    ss << "}}";
+    return ss.str();
+}
+
+// 生成用 context（本体・lookahead 用の作り直し・draft）に KV の型と flash attention を載せる
+static void apply_kv_params(llama_context_params& cparams) {
+    cparams.type_k     = g_type_k;
+    cparams.type_v     = g_type_v;
+    cparams.flash_attn = g_flash_attn;
+}
+
+// init() と作り直しで使う g_ctx の設定
+static llama_context_params main_context_params() {
+    llama_context_params cparams = llama_context_default_params();
+    cparams.no_perf         = false;
+    cparams.n_ctx           = g_n_ctx;
+    cparams.n_threads       = g_n_threads;
+    cparams.n_batch         = g_n_batch;
+    cparams.n_threads_batch = g_n_threads;
+    apply_kv_params(cparams);
+    return cparams;
+}
+
+static int64_t model_meta_int(const llama_model* model, const std::string& key, int64_t def) {
+    char buf[64];
+    if (llama_model_meta_val_str(model, key.c_str(), buf, sizeof(buf)) < 0) return def;
+    char* end = nullptr;
+    long long v = std::strtoll(buf, &end, 10);
+    return end != buf ? (int64_t)v : def;
+}
+
+// head ごとの K / V の次元。<arch>.attention.key_length / value_length、無ければ n_embd / n_head
+static void model_head_dims(const llama_model* model, int64_t& head_k, int64_t& head_v) {
+    const int n_head = llama_model_n_head(model);
+    const int64_t def = n_head > 0 ? llama_model_n_embd(model) / n_head : 0;
+    char arch[64] = {0};
+    llama_model_meta_val_str(model, "general.architecture", arch, sizeof(arch));
+    head_k = model_meta_int(model, std::string(arch) + ".attention.key_length",   def);
+    head_v = model_meta_int(model, std::string(arch) + ".attention.value_length", def);
+}
+
+// KV キャッシュの K+V 全層分のバイト数。llama.cpp の公開 API には無いので shape から見積もる
+static size_t kv_cache_bytes(const llama_model* model, uint32_t n_ctx, ggml_type type_k, ggml_type type_v) {
+    int64_t head_k = 0, head_v = 0;
+    model_head_dims(model, head_k, head_v);
+    const int n_head_kv = llama_model_n_head_kv(model);
+    if (head_k <= 0 || n_head_kv <= 0) return 0;
+
+    // ggml_row_size はブロック境界で割り切れないと assert するので自分で割る
+    auto bytes = [](ggml_type type, int64_t n) {
+        return (size_t)(ggml_type_size(type) * n / ggml_blck_size(type));
+    };
+    const size_t per_layer = bytes(type_k, head_k * n_head_kv * n_ctx) + bytes(type_v, head_v * n_head_kv * n_ctx);
+    return per_layer * (size_t)llama_model_n_layer(model);
+}
+
+// 量子化 KV は head の次元がブロック（q8_0 / q4_0 は 32）で割り切れないと llama.cpp の中で assert するので、
+// context を作る前に確かめてエラーを返す
+static std::string check_kv_types(const llama_model* model, ggml_type type_k, ggml_type type_v) {
+    int64_t head_k = 0, head_v = 0;
+    model_head_dims(model, head_k, head_v);
+    const ggml_type types[2] = { type_k, type_v };
+    const int64_t   dims[2]  = { head_k, head_v };
+    for (int i = 0; i < 2; ++i) {
+        if (dims[i] > 0 && dims[i] % ggml_blck_size(types[i]) != 0) {
+            std::ostringstream ss;
+            ss << "KV cache type " << ggml_type_name(types[i]) << " needs a head size divisible by "
+               << ggml_blck_size(types[i]) << " (model has " << dims[i] << ")";
+            return ss.str();
+        }
+    }
+    return "";
+}
+
+// "f16" / "q8_0" / "q4_0"（f32 も可）。それ以外は GGML_TYPE_COUNT
+static ggml_type kv_type_from_name(const std::string& name) {
+    if (name == "f16")  return GGML_TYPE_F16;
+    if (name == "q8_0") return GGML_TYPE_Q8_0;
+    if (name == "q4_0") return GGML_TYPE_Q4_0;
+    if (name == "f32")  return GGML_TYPE_F32;
+    return GGML_TYPE_COUNT;
+}
+
+// ---------------- JNI: setContextParameters ----------------
+// context の長さ・スレッド数・バッチと KV の型・flash attention。次の init() から効く。"ok" かエラーメッセージを返す
+extern "C"
+JNIEXPORT jstring JNICALL
+Java_com_example_ollama_LlamaNative_setContextParameters(
+        JNIEnv *env, jobject,
+        jint nCtx, jint nThreads, jint nBatch, jstring jTypeK, jstring jTypeV, jboolean flashAttn
+) {
+    const std::string type_k_name = jstring_to_std(env, jTypeK);
+    const std::string type_v_name = jstring_to_std(env, jTypeV);
+    const ggml_type type_k = kv_type_from_name(type_k_name);
+    const ggml_type type_v = kv_type_from_name(type_v_name);
+
+    std::string err;
+    if (nCtx < 128) {
+        err = "n_ctx must be at least 128";
+    } else if (nThreads < 1 || nBatch < 1) {
+        err = "n_threads and n_batch must be positive";
+    } else if (type_k == GGML_TYPE_COUNT) {
+        err = "unknown KV cache type: " + type_k_name;
+    } else if (type_v == GGML_TYPE_COUNT) {
+        err = "unknown KV cache type: " + type_v_name;
+    } else if (ggml_is_quantized(type_v) && !flashAttn) {
+        // llama_init_from_model が null を返すだけなので先に弾く
+        err = "quantized V cache requires flash attention";
+    }
+    if (!err.empty()) {
+        log_to_file("setContextParameters: " + err);
+        return env->NewStringUTF(err.c_str());
+    }
+
+    std::lock_guard<std::mutex> lock(g_mutex);
+    g_next_n_ctx      = nCtx;
+    g_next_n_threads  = nThreads;
+    g_next_n_batch    = nBatch;
+    g_next_type_k     = type_k;
+    g_next_type_v     = type_v;
+    g_next_flash_attn = flashAttn;
+
+    std::ostringstream ss;
+    ss << "setContextParameters: n_ctx=" << nCtx << " n_threads=" << nThreads << " n_batch=" << nBatch
+       << " type_k=" << type_k_name << " type_v=" << type_v_name << " flash_attn=" << (flashAttn ? 1 : 0);
+    log_to_file(ss.str());
+    return env->NewStringUTF("ok");
 }
 
 // ---------------- JNI: init ----------------
@@ -374,6 +1110,8 @@ Java_com_example_ollama_LlamaNative_init(
     log_to_file("init: llama_log_callback registered");
 
     std::string model_path = jstring_to_std(env, jModelPath);
+    // 並列スロットの context は古いモデルを指しているので捨てる
+    slots_shutdown("model reloaded");
 
     {
         std::ostringstream ss;
@@ -434,21 +1172,24 @@ Java_com_example_ollama_LlamaNative_init(
     llama_backend_init();
     log_to_file("init: backend init");
 
-    // ★ CPU backend をレジストリ経由で登録
-    ggml_backend_reg_t cpu_reg = ggml_backend_cpu_reg();
-    if (cpu_reg) {
-        ggml_backend_register(cpu_reg);
-        log_to_file("init: CPU backend registered via reg");
-    } else {
-        log_to_file("init: CPU backend_reg() returned null");
+    {
+        std::string err = register_cpu_backend();
+        if (!err.empty()) {
+            log_to_file("init: " + err);
+            return env->NewStringUTF(err.c_str());
+        }
     }
-    
+
     llama_model_params mparams = llama_model_default_params();
 
     {
         using namespace std::chrono;
         auto t0 = high_resolution_clock::now();
-        g_model = llama_model_load_from_file(model_path.c_str(), mparams);
+        llama_model* model = llama_model_load_from_file(model_path.c_str(), mparams);
+        {
+            std::unique_lock<std::shared_mutex> wlock(g_model_rw);
+            g_model = model;
+        }
         auto t1 = high_resolution_clock::now();
         auto ms = duration_cast<milliseconds>(t1 - t0).count();
 
@@ -464,11 +1205,26 @@ Java_com_example_ollama_LlamaNative_init(
         }
     }
 
-    llama_context_params cparams = llama_context_default_params();
-    cparams.n_ctx           = g_n_ctx;
-    cparams.n_threads       = g_n_threads;
-    cparams.n_batch         = g_n_batch;
-    cparams.n_threads_batch = g_n_threads;
+    g_n_ctx      = g_next_n_ctx;
+    g_n_threads  = g_next_n_threads;
+    g_n_batch    = g_next_n_batch;
+    g_type_k     = g_next_type_k;
+    g_type_v     = g_next_type_v;
+    g_flash_attn = g_next_flash_attn;
+
+    {
+        std::string err = check_kv_types(g_model, g_type_k, g_type_v);
+        if (!err.empty()) {
+            log_to_file("init: " + err);
+            return env->NewStringUTF(err.c_str());
+        }
+    }
+
+    llama_context_params cparams = main_context_params();
+
+    // free() を挟まずに init() し直したときは前のプールを付けた context が残っているので、外してから作り直す
+    release_threadpools();
+    create_threadpools(g_pools, g_n_threads, "init");
 
     {
         using namespace std::chrono;
@@ -484,11 +1240,19 @@ Java_com_example_ollama_LlamaNative_init(
             log_to_file(ss.str());
             return env->NewStringUTF("failed to create context");
         } else {
-            ss << "init: context created successfully in " << ms << " ms";
+            attach_threadpools(g_ctx, g_pools);
+            ss << "init: context created successfully in " << ms << " ms"
+               << " n_ctx=" << llama_n_ctx(g_ctx) << " n_batch=" << g_n_batch << " n_threads=" << g_n_threads
+               << " type_k=" << ggml_type_name(g_type_k) << " type_v=" << ggml_type_name(g_type_v)
+               << " flash_attn=" << (g_flash_attn ? 1 : 0)
+               << " kv_bytes=" << kv_cache_bytes(g_model, llama_n_ctx(g_ctx), g_type_k, g_type_v);
             log_to_file(ss.str());
         }
     }
 
+    g_plain_ms_per_token = 0.0;
+    g_prompt_prefix.built = false;
+    g_kv_tokens.clear();
     log_to_file("init: context created");
 
     return env->NewStringUTF("ok");
@@ -562,91 +1326,267 @@ Java_com_example_ollama_LlamaNative_setParameters(
     }
 }
 
-// ---------------- JNI: generate ----------------
+// ---------------- JNI: setSampling ----------------
+// 温度 / top-p / top-k、generate() 1 回の最大トークン数と乱数シード（負ならリクエストごとにランダム）
 extern "C"
-JNIEXPORT jstring JNICALL
-Java_com_example_ollama_LlamaNative_generate(
-        JNIEnv *env, jobject,
-        jstring jPrompt
+JNIEXPORT void JNICALL
+Java_com_example_ollama_LlamaNative_setSampling(
+        JNIEnv *, jobject,
+        jfloat temp, jfloat topP, jint topK, jint maxTokens, jint seed
 ) {
     std::lock_guard<std::mutex> lock(g_mutex);
+    g_temp       = std::max(0.0f, (float)temp);
+    g_top_p      = topP;
+    g_top_k      = topK;
+    g_max_tokens = maxTokens > 0 ? maxTokens : 1024;
+    g_seed       = seed < 0 ? LLAMA_DEFAULT_SEED : (uint32_t)seed;
 
-    if (!g_ctx || !g_model) {
-        log_to_file("generate: not initialized");
-        return env->NewStringUTF("not initialized");
-    }
-
-    std::string prompt = jstring_to_std(env, jPrompt);
-    {
-        std::ostringstream ss;
-        ss << "generate: prompt_len=" << prompt.size();
-        log_to_file(ss.str());
-    }
-    {
-        std::ostringstream ss;
-        ss << "generate: prompt=\n" << prompt;
-        log_to_file(ss.str());
-    }
-    const int max_tokens = 1024;
+    std::ostringstream ss;
+    ss << "setSampling: temp=" << g_temp << " top_p=" << g_top_p << " top_k=" << g_top_k
+       << " max_tokens=" << g_max_tokens << " seed=" << (seed < 0 ? -1 : (long long)g_seed);
+    log_to_file(ss.str());
+}
 
-    llama_memory_t mem = llama_get_memory(g_ctx);
-    llama_memory_seq_rm(mem, -1, 0, -1);
-    log_to_file("generate: kv cache cleared");
+// ---------------- JNI: setPromptCacheReuse ----------------
+// 有効にすると generate() は前回のプロンプトと共通の先頭トークンの KV を残し、続きだけ prefill する
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_example_ollama_LlamaNative_setPromptCacheReuse(
+        JNIEnv *, jobject,
+        jboolean enabled
+) {
+    std::lock_guard<std::mutex> lock(g_mutex);
+    g_kv_reuse = enabled == JNI_TRUE;
+    if (!g_kv_reuse) g_kv_tokens.clear();
+    log_to_file(std::string("setPromptCacheReuse: ") + (g_kv_reuse ? "on" : "off"));
+}
 
-    std::vector<llama_token> tokens;
-    tokens.resize(g_n_ctx);
+static bool is_decoding_mode(const std::string& mode) {
+    return mode == "plain" || mode == "draft" || mode == "lookup" || mode == "lookahead";
+}
 
-    const llama_vocab * vocab = llama_model_get_vocab(g_model);
-    
-    int32_t n_tokens = llama_tokenize(
-            vocab,
-            prompt.c_str(),
-            (int)prompt.size(),
-            tokens.data(),
-            (int)tokens.size(),
-            false,
-            true
-    );
+// ---------------- JNI: setDecodingMode ----------------
+// "plain"、"draft"、"lookup" または "lookahead"
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_example_ollama_LlamaNative_setDecodingMode(
+        JNIEnv *env, jobject,
+        jstring jMode
+) {
+    std::string mode = jstring_to_std(env, jMode);
 
-    if (n_tokens <= 0) {
-        log_to_file("generate: tokenize failed");
-        return env->NewStringUTF("tokenize failed");
+    std::lock_guard<std::mutex> lock(g_mutex);
+    if (!is_decoding_mode(mode)) {
+        log_to_file("setDecodingMode: unknown mode \"" + mode + "\", using plain");
+        mode = "plain";
     }
+    g_decoding_mode = mode;
+    log_to_file("setDecodingMode: " + mode);
+}
 
-    {
-        std::ostringstream ss;
-        ss << "generate: n_tokens=" << n_tokens;
-        log_to_file(ss.str());
+// ---------------- JNI: setDraftModel ----------------
+// draft モードで使う小さな GGUF と下書き長。モデル自体は次の draft モードの generate で読み込む
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_example_ollama_LlamaNative_setDraftModel(
+        JNIEnv *env, jobject,
+        jstring jPath, jint nDraftMax, jint nDraftMin, jfloat pMin
+) {
+    std::string path = jstring_to_std(env, jPath);
+
+    std::lock_guard<std::mutex> lock(g_mutex);
+    if (path != g_draft_model_path) {
+        free_draft_model();
+        g_draft_model_path = path;
     }
+    g_spec_draft_max = std::max(1, (int)nDraftMax);
+    g_spec_draft_min = std::max(0, (int)nDraftMin);
+    g_spec_p_min     = pMin;
 
-    tokens.resize(n_tokens);
+    std::ostringstream ss;
+    ss << "setDraftModel: path=" << g_draft_model_path
+       << " n_draft_max=" << g_spec_draft_max
+       << " n_draft_min=" << g_spec_draft_min
+       << " p_min=" << g_spec_p_min;
+    log_to_file(ss.str());
+}
 
-    std::string output;
-    output.reserve(max_tokens * 4);
+// ---------------- JNI: setLookupParameters ----------------
+// lookup モードの照合 n-gram 長（1..4）と 1 ステップの最大下書き長
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_example_ollama_LlamaNative_setLookupParameters(
+        JNIEnv *, jobject,
+        jint ngramSize, jint nDraftMax
+) {
+    std::lock_guard<std::mutex> lock(g_mutex);
+    g_lookup_ngram_max = std::max(LLAMA_NGRAM_MIN, std::min(LLAMA_NGRAM_MAX, (int)ngramSize));
+    g_lookup_draft_max = std::max(1, (int)nDraftMax);
 
-    {
-        llama_batch batch = llama_batch_get_one(tokens.data(), n_tokens);
-        if (llama_decode(g_ctx, batch) != 0) {
-            log_to_file("generate: decode failed (prompt)");
-            return env->NewStringUTF("decode failed (prompt)");
-        }
-        
-        log_to_file("generate: prompt processed with batch decode");
-    }
+    std::ostringstream ss;
+    ss << "setLookupParameters: ngram_max=" << g_lookup_ngram_max
+       << " n_draft_max=" << g_lookup_draft_max;
+    log_to_file(ss.str());
+}
+
+// ---------------- JNI: setLookaheadParameters ----------------
+// lookahead モードの窓幅 W、n-gram 長 N、検証候補数 G（W + G + 1 <= 64 に収める）
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_example_ollama_LlamaNative_setLookaheadParameters(
+        JNIEnv *, jobject,
+        jint window, jint ngramSize, jint maxCandidates
+) {
+    int w = window, n = ngramSize, g = maxCandidates;
+    LookaheadDecoder::clamp_params(w, n, g);
+
+    std::lock_guard<std::mutex> lock(g_mutex);
+    g_lookahead_w = w;
+    g_lookahead_n = n;
+    g_lookahead_g = g;
+
+    std::ostringstream ss;
+    ss << "setLookaheadParameters: W=" << w << " N=" << n << " G=" << g
+       << " batch=" << LookaheadDecoder::batch_size(w, n, g)
+       << " n_seq=" << LookaheadDecoder::n_seq(w, g);
+    log_to_file(ss.str());
+}
+
+// ---------------- JNI: setContextShift ----------------
+// KV が埋まったときの動作。enabled=false なら従来どおり ctx_limit で止める
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_example_ollama_LlamaNative_setContextShift(
+        JNIEnv *, jobject,
+        jboolean enabled, jint nKeep, jint nDiscard
+) {
+    std::lock_guard<std::mutex> lock(g_mutex);
+    g_ctx_shift     = enabled;
+    g_ctx_n_keep    = nKeep < 0 ? -1 : nKeep;
+    g_ctx_n_discard = nDiscard < 0 ? 0 : nDiscard;
+
+    std::ostringstream ss;
+    ss << "setContextShift: enabled=" << (g_ctx_shift ? 1 : 0)
+       << " n_keep=" << g_ctx_n_keep << " n_discard=" << g_ctx_n_discard;
+    log_to_file(ss.str());
+}
+
+// ---------------- JNI: setGrammar ----------------
+// 出力を GBNF grammar または JSON schema で制約する（どちらか一方、両方空なら解除）。
+// モデルがロード済みならここでコンパイルしてキャッシュに載せ、"ok" かエラーメッセージを返す
+extern "C"
+JNIEXPORT jstring JNICALL
+Java_com_example_ollama_LlamaNative_setGrammar(
+        JNIEnv *env, jobject,
+        jstring jGrammar, jstring jJsonSchema
+) {
+    std::string grammar = jstring_to_std(env, jGrammar);
+    std::string schema  = jstring_to_std(env, jJsonSchema);
+
+    std::lock_guard<std::mutex> lock(g_mutex);
+
+    if (!grammar.empty() && !schema.empty()) {
+        log_to_file("setGrammar: both grammar and JSON schema given");
+        return env->NewStringUTF("set either a grammar or a JSON schema, not both");
+    }
+
+    g_grammar_kind = !grammar.empty() ? "gbnf" : !schema.empty() ? "json_schema" : "";
+    g_grammar_text = !grammar.empty() ? grammar : schema;
+
+    std::string result = "ok";
+    if (!g_grammar_kind.empty() && g_model) {
+        llama_sampler* smpl = nullptr;
+        bool cached = false;
+        std::string err = g_grammar_cache.acquire(llama_model_get_vocab(g_model), g_grammar_kind, g_grammar_text,
+                                                  smpl, cached);
+        if (smpl) llama_sampler_free(smpl);
+        if (!err.empty()) {
+            // 壊れた制約を次の generate まで持ち越さない
+            g_grammar_kind.clear();
+            g_grammar_text.clear();
+            result = err;
+        }
+    }
+
+    std::ostringstream ss;
+    ss << "setGrammar: kind=" << (g_grammar_kind.empty() ? "none" : g_grammar_kind)
+       << " len=" << g_grammar_text.size() << " cache=" << g_grammar_cache.size() << " result=" << result;
+    log_to_file(ss.str());
+    return env->NewStringUTF(result.c_str());
+}
+
+// ---------------- generate 共通処理 ----------------
+using steady_clock_t = std::chrono::steady_clock;
+
+static double elapsed_ms(steady_clock_t::time_point t0, steady_clock_t::time_point t1) {
+    return std::chrono::duration<double, std::milli>(t1 - t0).count();
+}
+
+// Per-request statistics, mirrored into com.example.ollama.GenerationStats
+struct GenerateStats {
+    double queue_wait_ms   = 0.0;
+    double tokenize_ms     = 0.0;
+    int    prompt_tokens   = 0;
+    int    prompt_cached_tokens = 0;   // setPromptPrefix のキャッシュから取ったトークン数
+    int    prompt_reused_tokens = 0;   // 前回の KV をそのまま使い prefill しなかったトークン数
+    double prefill_ms      = 0.0;
+    int    prefill_chunks  = 0;
+    double ttft_ms         = 0.0;
+    int    gen_tokens      = 0;
+    double decode_ms       = 0.0;
+    double sampler_ms      = 0.0;
+    int    sampled_tokens  = 0;
+    double total_ms        = 0.0;
+    std::string stop_reason;
+
+    // 投機的デコード
+    std::string decoding_mode = "plain";
+    int    decode_steps    = 0;     // 生成中の target model の decode 回数
+    int    drafted_tokens  = 0;
+    int    accepted_tokens = 0;
+    double draft_ms        = 0.0;
+    double speedup         = 0.0;   // plain デコードの ms/token 実測値との比（不明なら 0）
+
+    // コンテキストシフト
+    int    ctx_shifts      = 0;
+    int    ctx_discarded   = 0;     // シフトで KV から捨てたトークン数の合計
+
+    // 出力制約
+    std::string grammar    = "none";
+    double grammar_ms      = 0.0;   // grammar sampler の取得（パース or キャッシュからの clone）
+    bool   grammar_cached  = false;
+
+    // 並列スロット（submitParallel）
+    int    slot            = -1;
+    double batched_seqs    = 0.0;   // このリクエストが decode された各ステップの同時 seq 数の平均
+
+    // 実行時の負荷制限（setRuntimeLimits）
+    double paced_ms        = 0.0;   // ペーシングで待った時間の合計
+    int    threads         = 0;     // 最後の decode ステップのスレッド数
+};
+
+// Build sampler chain based on parameters (caller owns the returned chain)
+// grammar は先頭に入れ、chain が所有する（nullptr なら制約なし）
+static llama_sampler * build_sampler_chain(const llama_vocab * vocab, llama_sampler * grammar) {
+    const int n_vocab = llama_vocab_n_tokens(vocab);
 
-    const int n_vocab = llama_vocab_n_tokens(vocab);
-    
-    // Build sampler chain based on parameters
     auto sparams = llama_sampler_chain_default_params();
+    sparams.no_perf = false;
     llama_sampler * smpl = llama_sampler_chain_init(sparams);
-    
+
+    // 0. Add grammar (if set) so that every later stage only sees allowed tokens
+    if (grammar) {
+        llama_sampler_chain_add(smpl, grammar);
+        log_to_file("generate: added grammar sampler");
+    }
+
     // 1. Add penalties sampler (if enabled)
     if (g_penalty_last_n > 0 && (g_penalty_repeat != 1.0f || g_penalty_freq != 0.0f || g_penalty_present != 0.0f)) {
         llama_sampler_chain_add(smpl, llama_sampler_init_penalties(
             g_penalty_last_n, g_penalty_repeat, g_penalty_freq, g_penalty_present));
         log_to_file("generate: added penalties sampler");
     }
-    
+
     // 2. Add DRY sampler (if enabled)
     if (g_dry_multiplier > 0.0f) {
         // Parse comma-separated sequence breakers with escape sequence support
@@ -654,7 +1594,7 @@ Java_com_example_ollama_LlamaNative_generate(
         // We need to convert them to actual characters (one character: newline)
         std::vector<std::string> breaker_strings;
         std::vector<const char*> breaker_ptrs;
-        
+
         std::string temp = g_dry_sequence_breakers;
         size_t pos = 0;
         while ((pos = temp.find(',')) != std::string::npos) {
@@ -668,61 +1608,61 @@ Java_com_example_ollama_LlamaNative_generate(
         if (!temp.empty()) {
             breaker_strings.push_back(process_escape_sequences(temp));
         }
-        
+
         // Convert to const char* array
         for (const auto& s : breaker_strings) {
             breaker_ptrs.push_back(s.c_str());
         }
-        
+
         if (!breaker_ptrs.empty()) {
             llama_sampler_chain_add(smpl, llama_sampler_init_dry(
-                vocab, g_n_ctx, g_dry_multiplier, g_dry_base, 
-                g_dry_allowed_length, g_dry_penalty_last_n, 
+                vocab, g_n_ctx, g_dry_multiplier, g_dry_base,
+                g_dry_allowed_length, g_dry_penalty_last_n,
                 breaker_ptrs.data(), breaker_ptrs.size()));
-            
+
             std::ostringstream ss;
             ss << "generate: added DRY sampler with " << breaker_ptrs.size() << " breakers";
             log_to_file(ss.str());
         }
     }
-    
+
     // 3. Add top-n-sigma (if enabled)
     if (g_top_n_sigma > 0.0f) {
         llama_sampler_chain_add(smpl, llama_sampler_init_top_n_sigma(g_top_n_sigma));
         log_to_file("generate: added top-n-sigma sampler");
     }
-    
+
     // 4. Add top-k (if enabled)
     if (g_top_k > 0) {
         llama_sampler_chain_add(smpl, llama_sampler_init_top_k(g_top_k));
         log_to_file("generate: added top-k sampler");
     }
-    
+
     // 5. Add typical-p (if enabled)
     if (g_typical_p < 1.0f) {
         llama_sampler_chain_add(smpl, llama_sampler_init_typical(g_typical_p, 1));
         log_to_file("generate: added typical-p sampler");
     }
-    
+
     // 6. Add top-p (if enabled)
     if (g_top_p < 1.0f) {
         llama_sampler_chain_add(smpl, llama_sampler_init_top_p(g_top_p, 1));
         log_to_file("generate: added top-p sampler");
     }
-    
+
     // 7. Add min-p (if enabled)
     if (g_min_p > 0.0f) {
         llama_sampler_chain_add(smpl, llama_sampler_init_min_p(g_min_p, 1));
         log_to_file("generate: added min-p sampler");
     }
-    
+
     // 8. Add XTC (if enabled)
     if (g_xtc_probability > 0.0f) {
         llama_sampler_chain_add(smpl, llama_sampler_init_xtc(
-            g_xtc_probability, g_xtc_threshold, 1, LLAMA_DEFAULT_SEED));
+            g_xtc_probability, g_xtc_threshold, 1, g_seed));
         log_to_file("generate: added XTC sampler");
     }
-    
+
     // 9. Add temperature sampler
     if (g_dynatemp_range > 0.0f) {
         llama_sampler_chain_add(smpl, llama_sampler_init_temp_ext(
@@ -732,72 +1672,655 @@ Java_com_example_ollama_LlamaNative_generate(
         llama_sampler_chain_add(smpl, llama_sampler_init_temp(g_temp));
         log_to_file("generate: added temperature sampler");
     }
-    
+
     // 10. Add mirostat or distribution sampler
     if (g_mirostat == 1) {
         llama_sampler_chain_add(smpl, llama_sampler_init_mirostat(
-            n_vocab, LLAMA_DEFAULT_SEED, g_mirostat_tau, g_mirostat_eta, 100));
+            n_vocab, g_seed, g_mirostat_tau, g_mirostat_eta, 100));
         log_to_file("generate: added mirostat v1 sampler");
     } else if (g_mirostat == 2) {
         llama_sampler_chain_add(smpl, llama_sampler_init_mirostat_v2(
-            LLAMA_DEFAULT_SEED, g_mirostat_tau, g_mirostat_eta));
+            g_seed, g_mirostat_tau, g_mirostat_eta));
         log_to_file("generate: added mirostat v2 sampler");
     } else {
-        llama_sampler_chain_add(smpl, llama_sampler_init_dist(LLAMA_DEFAULT_SEED));
+        llama_sampler_chain_add(smpl, llama_sampler_init_dist(g_seed));
         log_to_file("generate: added distribution sampler");
     }
 
+    return smpl;
+}
+
+// draft model は最初に必要になったとき（draft モードの generate）に読み込む
+static std::string ensure_draft_context() {
+    if (g_draft_ctx) return "";
+    if (g_draft_model_path.empty()) return "draft model not configured";
+
+    auto t0 = steady_clock_t::now();
+    llama_model_params mparams = llama_model_default_params();
+    g_draft_model = llama_model_load_from_file(g_draft_model_path.c_str(), mparams);
+    if (!g_draft_model) {
+        return "failed to load draft model: " + g_draft_model_path;
+    }
+
+    // common_speculative はプロンプト全体を 1 バッチで draft context に流すので n_batch = n_ctx
+    llama_context_params cparams = llama_context_default_params();
+    cparams.no_perf         = false;
+    cparams.n_ctx           = g_n_ctx;
+    cparams.n_batch         = g_n_ctx;
+    cparams.n_threads       = g_n_threads;
+    cparams.n_threads_batch = g_n_threads;
+    apply_kv_params(cparams);
+
+    g_draft_ctx = llama_init_from_model(g_draft_model, cparams);
+    if (!g_draft_ctx) {
+        free_draft_model();
+        return "failed to create draft context";
+    }
+    attach_threadpools(g_draft_ctx, g_pools);
+
+    std::ostringstream ss;
+    ss << "generate: draft model loaded in " << elapsed_ms(t0, steady_clock_t::now())
+       << " ms path=" << g_draft_model_path;
+    log_to_file(ss.str());
+    return "";
+}
+
+// g_ctx を作り直す（メモリ解放で捨てた・縮めたあと）。g_n_ctx の長さで、KV の再利用と prefix のトークン列は捨てる。
+// g_mutex を持って呼ぶ
+static std::string ensure_main_context() {
+    if (g_ctx) return "";
+    if (!g_model) return "not initialized";
+
+    auto t0 = steady_clock_t::now();
+    g_ctx = llama_init_from_model(g_model, main_context_params());
+    if (!g_ctx) return "failed to create context";
+    attach_threadpools(g_ctx, g_pools);
+    g_prompt_prefix.built = false;
+    g_kv_tokens.clear();
+
+    std::ostringstream ss;
+    ss << "context recreated in " << elapsed_ms(t0, steady_clock_t::now()) << " ms n_ctx=" << llama_n_ctx(g_ctx)
+       << " kv_bytes=" << kv_cache_bytes(g_model, llama_n_ctx(g_ctx), g_type_k, g_type_v);
+    log_to_file(ss.str());
+    return "";
+}
+
+// lookahead は 1 回の decode に W + G + 1 個の seq と数十トークンを積むので、
+// 足りなければ同じ設定で n_seq_max / n_batch を広げた context に作り直す（KV は generate 冒頭で消すので失うものはない）
+static std::string ensure_lookahead_context() {
+    const int n_seq   = LookaheadDecoder::n_seq(g_lookahead_w, g_lookahead_g);
+    const int n_batch = LookaheadDecoder::batch_size(g_lookahead_w, g_lookahead_n, g_lookahead_g);
+    if ((int)llama_n_seq_max(g_ctx) >= n_seq && (int)llama_n_batch(g_ctx) >= n_batch) return "";
+
+    auto t0 = steady_clock_t::now();
+    llama_context_params cparams = llama_context_default_params();
+    cparams.no_perf         = false;
+    cparams.n_ctx           = g_n_ctx;
+    cparams.n_threads       = g_n_threads;
+    cparams.n_batch         = std::max(g_n_batch, n_batch);
+    cparams.n_threads_batch = g_n_threads;
+    cparams.n_seq_max       = (uint32_t)n_seq;
+    apply_kv_params(cparams);
+
+    llama_context* ctx = llama_init_from_model(g_model, cparams);
+    if (!ctx) return "failed to create lookahead context";
+    llama_free(g_ctx);
+    g_ctx = ctx;
+    attach_threadpools(g_ctx, g_pools);
+    g_kv_tokens.clear();
+
+    std::ostringstream ss;
+    ss << "generate: context recreated for lookahead in " << elapsed_ms(t0, steady_clock_t::now())
+       << " ms n_seq_max=" << n_seq << " n_batch=" << cparams.n_batch;
+    log_to_file(ss.str());
+    return "";
+}
+
+// g_decoding_mode に応じた Drafter を作る（plain なら nullptr のまま）
+static std::string make_drafter(std::unique_ptr<Drafter>& out) {
+    if (g_decoding_mode == "lookup") {
+        out.reset(new LookupDrafter(g_lookup_ngram_max));
+    } else if (g_decoding_mode == "draft") {
+        std::string err = ensure_draft_context();
+        if (!err.empty()) return err;
+        if (!common_speculative_are_compatible(g_ctx, g_draft_ctx)) {
+            return "draft model vocabulary is not compatible with the target model";
+        }
+        out.reset(new ModelDrafter(g_draft_ctx, g_spec_p_min));
+    }
+    return "";
+}
+
+// g_mutex を保持した状態で呼ぶこと。
+// 戻り値は生成テキスト、またはエラー時はエラーメッセージ（st.stop_reason == "error"）
+// KV の [n_keep, n_keep + n_discard) を捨て、[n_keep + n_discard, n_past) を n_discard だけ前に詰める。
+// 位置をずらしたセルの RoPE は次の decode で llama.cpp が回し直す。seq 0 以外（lookahead の窓と候補）は
+// セルを共有していて二重にずれるので先に消す。呼び出し側で seq 0 から複製し直すこと
+static void shift_context(llama_context* ctx, int n_keep, int n_discard, llama_pos n_past) {
+    llama_memory_t mem = llama_get_memory(ctx);
+    const int n_seq = (int)llama_n_seq_max(ctx);
+    for (int s = 1; s < n_seq; ++s) {
+        llama_memory_seq_rm(mem, s, -1, -1);
+    }
+    llama_memory_seq_rm(mem, 0, n_keep, n_keep + n_discard);
+    // KV セルの位置集合は std::set で、seq_add はセル順に 1 つずつ動かす。移動先にまだ動かしていない
+    // セルがあると重複した位置が集合から消え、pos_max が壊れて次の decode が失敗する。
+    // 一度 n_past だけ上（空いている範囲）に逃がしてから詰める。RoPE のずれは合計 -n_discard になる
+    llama_memory_seq_add(mem, 0, n_keep + n_discard, n_past, n_past);
+    llama_memory_seq_add(mem, 0, n_keep + n_discard + n_past, 2 * n_past, -(n_past + n_discard));
+}
+
+static std::vector<llama_token> tokenize_all(const llama_vocab* vocab, const char* text, size_t len) {
+    std::vector<llama_token> out(len + 8);
+    int32_t n = llama_tokenize(vocab, text, (int32_t)len, out.data(), (int32_t)out.size(), false, true);
+    if (n < 0) {
+        out.resize(-n);
+        n = llama_tokenize(vocab, text, (int32_t)len, out.data(), (int32_t)out.size(), false, true);
+    }
+    out.resize(std::max(0, (int)n));
+    return out;
+}
+
+// g_prompt_prefix.prefix を generate() と同じ条件でトークン化し、最後の特殊トークン（control / user-defined）までを残す。
+// llama_tokenize は特殊トークンで区切った断片を別々に変換するので、その直後で切れば「キャッシュ + 残りを変換」と
+// 「全体を変換」は同じ列になる。rstrip 属性のトークン（phi-3 の <|user|> など）は直後の空白を食うので、
+// 切れ目を空白の後ろに置く。念のため一度だけ突き合わせ、
+// 合わなければキャッシュしない（特殊トークンの無い手書きテンプレートも同じく毎回全体を変換する）
+static void build_prompt_prefix(const llama_vocab* vocab) {
+    PromptPrefixCache& c = g_prompt_prefix;
+    c.built = true;
+    c.text.clear();
+    c.tokens.clear();
+    c.rstrip = false;
+
+    const std::vector<llama_token> all = tokenize_all(vocab, c.prefix.data(), c.prefix.size());
+    int last = -1;
+    std::string piece;
+    for (int i = (int)all.size() - 1; i >= 0 && last < 0; --i) {
+        if (!(llama_vocab_get_attr(vocab, all[i]) & (LLAMA_TOKEN_ATTR_CONTROL | LLAMA_TOKEN_ATTR_USER_DEFINED))) continue;
+        char buf[256];
+        const int n = llama_token_to_piece(vocab, all[i], buf, sizeof(buf), 0, true);
+        if (n <= 0) continue;
+        piece.assign(buf, n);
+        // 空白の並びのトークン（gpt-neox など）はユーザー入力側の空白とつながって別のトークンになりうる
+        if (std::all_of(piece.begin(), piece.end(), [](char ch) { return isspace((unsigned char)ch) != 0; })) continue;
+        last = i;
+    }
+    const bool rstrip = last >= 0 && (llama_vocab_get_attr(vocab, all[last]) & LLAMA_TOKEN_ATTR_RSTRIP);
+
+    size_t cut = last >= 0 ? c.prefix.rfind(piece) : std::string::npos;
+    if (cut != std::string::npos) {
+        cut += piece.size();
+        // llama_tokenize と同じ isspace で飛ばす
+        while (rstrip && cut < c.prefix.size() && isspace(c.prefix[cut])) cut++;
+    }
+    if (cut != std::string::npos) {
+        const std::vector<llama_token> head(all.begin(), all.begin() + last + 1);
+        std::vector<llama_token> joined = tokenize_all(vocab, c.prefix.data(), cut);
+        const std::vector<llama_token> rest = tokenize_all(vocab, c.prefix.data() + cut, c.prefix.size() - cut);
+        const bool head_ok = joined == head;
+        joined.insert(joined.end(), rest.begin(), rest.end());
+        if (head_ok && joined == all) {
+            c.text   = c.prefix.substr(0, cut);
+            c.tokens = head;
+            c.rstrip = rstrip;
+        }
+    }
+
+    std::ostringstream ss;
+    ss << "generate: prompt prefix " << all.size() << " tokens, cached " << c.tokens.size()
+       << " (" << c.text.size() << " of " << c.prefix.size() << " bytes)";
+    log_to_file(ss.str());
+}
+
+// prefill の進捗を Java の LlamaNative.onPrefillProgress(done, total) に返す先（generate 系の呼び出しスレッドの env）
+struct PrefillProgress {
+    JNIEnv*   env    = nullptr;
+    jobject   thiz   = nullptr;
+    jmethodID method = nullptr;
+};
+
+static PrefillProgress make_prefill_progress(JNIEnv* env, jobject thiz) {
+    PrefillProgress p;
+    jclass cls = env->GetObjectClass(thiz);
+    if (cls) {
+        p.env    = env;
+        p.thiz   = thiz;
+        p.method = env->GetMethodID(cls, "onPrefillProgress", "(II)V");
+        if (env->ExceptionCheck()) {
+            env->ExceptionClear();
+            p.method = nullptr;
+        }
+    }
+    return p;
+}
+
+// generateStreaming の出力コールバック onToken(String)。UTF-8 として完結した部分だけを渡し、
+// 多バイト文字の途中で切れた末尾は次のトークンまで pending に持ち越す
+struct TokenStream {
+    JNIEnv*     env    = nullptr;
+    jobject     thiz   = nullptr;
+    jmethodID   method = nullptr;
+    std::string pending;
+};
+
+static TokenStream make_token_stream(JNIEnv* env, jobject thiz) {
+    TokenStream s;
+    jclass cls = env->GetObjectClass(thiz);
+    if (cls) {
+        s.env    = env;
+        s.thiz   = thiz;
+        s.method = env->GetMethodID(cls, "onToken", "(Ljava/lang/String;)Z");
+        if (env->ExceptionCheck()) {
+            env->ExceptionClear();
+            s.method = nullptr;
+        }
+    }
+    return s;
+}
+
+// s の先頭から、末尾で切れている多バイト文字を除いた長さ
+static size_t utf8_complete_prefix(const std::string& s) {
+    const size_t n = s.size();
+    for (size_t k = 1; k <= 3 && k <= n; ++k) {
+        const unsigned char c = (unsigned char)s[n - k];
+        if ((c & 0xC0) == 0x80) continue;   // 継続バイト
+        const size_t len = (c & 0xE0) == 0xC0 ? 2 : (c & 0xF0) == 0xE0 ? 3 : (c & 0xF8) == 0xF0 ? 4 : 1;
+        return len > k ? n - k : n;
+    }
+    return n;
+}
+
+// text を pending に足して完結した部分を onToken に渡す（flush なら残りも全部）。
+// 中止（false が返った / 例外）なら false
+static bool stream_text(TokenStream& s, const std::string& text, bool flush) {
+    if (!s.method) return true;
+    s.pending += text;
+    const size_t n = flush ? s.pending.size() : utf8_complete_prefix(s.pending);
+    if (n == 0) return true;
+    jstring js = utf8_to_jstring(s.env, s.pending.substr(0, n));
+    s.pending.erase(0, n);
+    const jboolean keep = s.env->CallBooleanMethod(s.thiz, s.method, js);
+    if (js) s.env->DeleteLocalRef(js);
+    if (s.env->ExceptionCheck()) {
+        s.env->ExceptionClear();
+        log_to_file("generate: onToken threw, stopping");
+        return false;
+    }
+    return keep == JNI_TRUE;
+}
+
+// ---------------- 実行時の負荷制限（InferenceGovernor） ----------------
+// スレッド数・prefill の 1 チャンクのトークン数・1 トークンの最短間隔を、生成中でも decode ステップの合間に変える。
+// 0 は制限なし（setContextParameters の値のまま）。context を作り直さないので KV はそのまま残る。
+// Java 側の InferenceGovernor が端末の温度・電池の状態から決めて setRuntimeLimits で渡す
+static std::atomic<int>    g_rt_threads{0};
+static std::atomic<int>    g_rt_batch{0};
+static std::atomic<int>    g_rt_min_token_us{0};
+static std::atomic<double> g_rt_token_ms{0.0};   // 直近の生成 1 トークンあたりの ms（EWMA、ペーシングの待ちは除く）
+static std::atomic<double> g_rt_paced_ms{0.0};   // ペーシングで待った時間の累計
+
+static int rt_threads(int base) {
+    const int lim = g_rt_threads.load();
+    return lim > 0 ? std::min(lim, base) : base;
+}
+
+static int rt_batch(int base) {
+    const int lim = g_rt_batch.load();
+    return lim > 0 ? std::min(lim, base) : base;
+}
+
+// 次の decode のスレッド数を制限に合わせる（変わったときだけ threadpool を作り直させる）
+static int rt_apply_threads(llama_context* ctx, int base) {
+    const int n = rt_threads(base);
+    if (llama_n_threads(ctx) != n) {
+        llama_set_n_threads(ctx, n, n);
+        std::ostringstream ss;
+        ss << "runtime: n_threads=" << n << " (configured " << base << ")";
+        log_to_file(ss.str());
+    }
+    return n;
+}
+
+// t0 から始まった n_tok トークン分のステップが最短間隔より早く終わっていたら残りを待つ。待った ms を返す
+static double rt_pace(steady_clock_t::time_point t0, int n_tok) {
+    if (n_tok <= 0) return 0.0;
+    const double step_ms = elapsed_ms(t0, steady_clock_t::now());
+    const double per_tok = step_ms / n_tok;
+    const double prev    = g_rt_token_ms.load();
+    g_rt_token_ms.store(prev > 0.0 ? 0.9 * prev + 0.1 * per_tok : per_tok);
+
+    const double wait_ms = g_rt_min_token_us.load() / 1000.0 * n_tok - step_ms;
+    if (wait_ms <= 0.0) return 0.0;
+    std::this_thread::sleep_for(std::chrono::microseconds((int64_t)(wait_ms * 1000.0)));
+    g_rt_paced_ms.store(g_rt_paced_ms.load() + wait_ms);
+    return wait_ms;
+}
+
+// ---------------- JNI: setRuntimeLimits ----------------
+// スレッド数・prefill チャンク・1 トークンの最短間隔 (ms) の上限。0 以下は制限なし。g_mutex は取らない
+// （生成中に呼ばれて次の decode ステップから効く）
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_example_ollama_LlamaNative_setRuntimeLimits(
+        JNIEnv *, jobject,
+        jint nThreads, jint nBatch, jfloat minTokenMs
+) {
+    const int threads = std::max(0, (int)nThreads);
+    const int batch   = std::max(0, (int)nBatch);
+    const int min_us  = minTokenMs > 0.0f ? (int)(minTokenMs * 1000.0f) : 0;
+    if (threads == g_rt_threads.load() && batch == g_rt_batch.load() && min_us == g_rt_min_token_us.load()) return;
+    g_rt_threads.store(threads);
+    g_rt_batch.store(batch);
+    g_rt_min_token_us.store(min_us);
+
+    std::ostringstream ss;
+    ss << "setRuntimeLimits: threads=" << threads << " batch=" << batch << " min_token_ms=" << min_us / 1000.0;
+    log_to_file(ss.str());
+}
+
+// ---------------- JNI: getRuntimeLimits ----------------
+// 今の上限と直近の実測を JSON で返す: {"threads", "batch", "min_token_ms", "token_ms", "paced_ms"}
+extern "C"
+JNIEXPORT jstring JNICALL
+Java_com_example_ollama_LlamaNative_getRuntimeLimits(
+        JNIEnv *env, jobject
+) {
+    std::ostringstream ss;
+    ss << "{\"threads\":" << g_rt_threads.load()
+       << ",\"batch\":" << g_rt_batch.load()
+       << ",\"min_token_ms\":" << g_rt_min_token_us.load() / 1000.0
+       << ",\"token_ms\":" << g_rt_token_ms.load()
+       << ",\"paced_ms\":" << g_rt_paced_ms.load() << "}";
+    return env->NewStringUTF(ss.str().c_str());
+}
+
+// プロンプトの n_start 以降を context の n_batch トークンずつ seq 0 に流す（n_start より前は KV に残っている分）。
+// llama_decode は n_batch を超える batch を assert で落とすので長いプロンプトはここで分ける
+// （さらに n_ubatch ごとの分割は llama_decode がやる）。
+// logits は最後のトークンだけ要求し、1 チャンクごとに進捗を返す。g_mutex を握ったまま Java を呼ぶので
+// コールバックから generate 系を呼んではいけない
+static bool prefill_prompt(llama_context* ctx, const std::vector<llama_token>& tokens, int n_start,
+                           const PrefillProgress* progress, int& n_chunks) {
+    const int n_tokens = (int)tokens.size();
+    const int n_batch  = (int)llama_n_batch(ctx);
+    llama_batch batch = llama_batch_init(n_batch, 0, 1);
+    bool ok = true;
+    n_chunks = 0;
+    for (int done = n_start; done < n_tokens; ) {
+        // 負荷制限はチャンクごとに読み直す（長いプロンプトの途中で絞られても次のチャンクから効く）
+        rt_apply_threads(ctx, g_n_threads);
+        const int n = std::min(rt_batch(n_batch), n_tokens - done);
+        common_batch_clear(batch);
+        for (int i = 0; i < n; ++i) {
+            common_batch_add(batch, tokens[done + i], done + i, { 0 }, done + i == n_tokens - 1);
+        }
+        if (llama_decode(ctx, batch) != 0) {
+            ok = false;
+            break;
+        }
+        done += n;
+        ++n_chunks;
+        if (progress && progress->method) {
+            progress->env->CallVoidMethod(progress->thiz, progress->method, (jint)done, (jint)n_tokens);
+            if (progress->env->ExceptionCheck()) progress->env->ExceptionClear();
+        }
+    }
+    llama_batch_free(batch);
+    return ok;
+}
+
+static std::string run_generate(const std::string& prompt, steady_clock_t::time_point t_call, GenerateStats& st,
+                                int max_tokens = 1024, const PrefillProgress* progress = nullptr,
+                                TokenStream* stream = nullptr) {
+    auto finish = [&](const char* reason) {
+        st.stop_reason = reason;
+        st.total_ms = elapsed_ms(t_call, steady_clock_t::now());
+    };
+
+    if (!g_model) {
+        log_to_file("generate: not initialized");
+        finish("error");
+        return "not initialized";
+    }
+    {
+        // shedMemory で捨てた context はここで作り直す
+        std::string err = ensure_main_context();
+        if (!err.empty()) {
+            log_to_file("generate: " + err);
+            finish("error");
+            return err;
+        }
+    }
+    PoolPlacement placement(g_pools);
+
+    {
+        std::ostringstream ss;
+        ss << "generate: prompt_len=" << prompt.size();
+        log_to_file(ss.str());
+    }
+    {
+        std::ostringstream ss;
+        ss << "generate: prompt=\n" << prompt;
+        log_to_file(ss.str());
+    }
+    const bool use_lookahead = g_decoding_mode == "lookahead";
+    if (use_lookahead) {
+        std::string err = ensure_lookahead_context();
+        if (!err.empty()) {
+            log_to_file("generate: " + err);
+            finish("error");
+            return err;
+        }
+    }
+
+    llama_memory_t mem = llama_get_memory(g_ctx);
+    llama_perf_context_reset(g_ctx);
+
+    std::vector<llama_token> tokens;
+    tokens.resize(g_n_ctx);
+
+    const llama_vocab * vocab = llama_model_get_vocab(g_model);
+
+    auto t_tok0 = steady_clock_t::now();
+    // setPromptPrefix の先頭部分はキャッシュしたトークン列を使い、残りだけ変換する
+    size_t n_cached = 0;
+    size_t skip     = 0;
+    if (!g_prompt_prefix.prefix.empty() && prompt.compare(0, g_prompt_prefix.prefix.size(), g_prompt_prefix.prefix) == 0) {
+        if (!g_prompt_prefix.built) build_prompt_prefix(vocab);
+        const size_t n_text = g_prompt_prefix.text.size();
+        // rstrip の空白がキャッシュ部分の外まで続くときは、空白の並びに特殊トークンを持つ語彙（gpt-neox など）で
+        // 切り方が変わりうるので全体を変換する
+        const bool ws_run = g_prompt_prefix.rstrip && n_text < prompt.size() && isspace(prompt[n_text]);
+        if (g_prompt_prefix.tokens.size() < tokens.size() && !ws_run) {
+            n_cached = g_prompt_prefix.tokens.size();
+            skip     = n_text;
+            std::copy(g_prompt_prefix.tokens.begin(), g_prompt_prefix.tokens.end(), tokens.begin());
+        }
+    }
+    int32_t n_tokens = llama_tokenize(
+            vocab,
+            prompt.c_str() + skip,
+            (int)(prompt.size() - skip),
+            tokens.data() + n_cached,
+            (int)(tokens.size() - n_cached),
+            false,
+            true
+    );
+    // 足りないときの負の値も含めてキャッシュ分を足す
+    n_tokens = n_tokens < 0 ? n_tokens - (int32_t)n_cached : n_tokens + (int32_t)n_cached;
+    st.tokenize_ms = elapsed_ms(t_tok0, steady_clock_t::now());
+    st.prompt_cached_tokens = (int)n_cached;
+
+    if (n_tokens < 0 || n_tokens >= g_n_ctx - 32) {
+        // 足りないときは必要なトークン数が負で返る
+        std::ostringstream ss;
+        ss << "prompt too long: " << (n_tokens < 0 ? -n_tokens : n_tokens) << " tokens (context " << g_n_ctx << ")";
+        log_to_file("generate: " + ss.str());
+        finish("error");
+        return ss.str();
+    }
+    if (n_tokens == 0) {
+        log_to_file("generate: tokenize failed");
+        finish("error");
+        return "tokenize failed";
+    }
+
+    {
+        std::ostringstream ss;
+        ss << "generate: n_tokens=" << n_tokens;
+        log_to_file(ss.str());
+    }
+
+    tokens.resize(n_tokens);
+    st.prompt_tokens = n_tokens;
+
+    // 前回のプロンプトと一致する先頭は KV に残す。最後のトークンは logits が要るので必ず decode し直す。
+    // lookahead は他の seq にもプロンプトを写すので毎回全部消す
+    int n_reuse = 0;
+    if (g_kv_reuse && !use_lookahead) {
+        const int n_max = std::min((int)g_kv_tokens.size(), n_tokens - 1);
+        while (n_reuse < n_max && g_kv_tokens[n_reuse] == tokens[n_reuse]) n_reuse++;
+    }
+    g_kv_tokens.clear();
+    if (n_reuse > 0 && !llama_memory_seq_rm(mem, -1, n_reuse, -1)) {
+        // 途中から消せない memory（recurrent など）
+        n_reuse = 0;
+    }
+    if (n_reuse == 0) {
+        llama_memory_seq_rm(mem, -1, 0, -1);
+        log_to_file("generate: kv cache cleared");
+    } else {
+        std::ostringstream ss;
+        ss << "generate: reusing " << n_reuse << " of " << n_tokens << " prompt tokens from the kv cache";
+        log_to_file(ss.str());
+    }
+    st.prompt_reused_tokens = n_reuse;
+
+    std::string output;
+    output.reserve(max_tokens * 4);
+
+    {
+        auto t_pp0 = steady_clock_t::now();
+        if (!prefill_prompt(g_ctx, tokens, n_reuse, progress, st.prefill_chunks)) {
+            log_to_file("generate: decode failed (prompt)");
+            finish("error");
+            return "decode failed (prompt)";
+        }
+        // 以降の生成で上書きされないのはプロンプトの位置だけ。シフトしたら n_keep までに縮める
+        if (g_kv_reuse && !use_lookahead) g_kv_tokens = tokens;
+        // logits are read lazily; synchronize so prefill time is not attributed to the first sample
+        llama_synchronize(g_ctx);
+        st.prefill_ms = elapsed_ms(t_pp0, steady_clock_t::now());
+
+        std::ostringstream ss;
+        ss << "generate: prompt processed in " << st.prefill_chunks << " batches of up to "
+           << llama_n_batch(g_ctx) << " tokens";
+        log_to_file(ss.str());
+    }
+
+    llama_sampler * grammar = nullptr;
+    GrammarCompletion grammar_gc;
+    if (!g_grammar_kind.empty()) {
+        auto t_g0 = steady_clock_t::now();
+        std::string err = g_grammar_cache.acquire(vocab, g_grammar_kind, g_grammar_text, grammar, st.grammar_cached);
+        if (err.empty()) grammar_gc.tokens = g_grammar_cache.continuations(vocab);
+        st.grammar_ms = elapsed_ms(t_g0, steady_clock_t::now());
+        if (!err.empty()) {
+            log_to_file("generate: " + err);
+            finish("error");
+            return err;
+        }
+        st.grammar = g_grammar_kind;
+
+        std::ostringstream ss;
+        ss << "generate: grammar " << g_grammar_kind << (st.grammar_cached ? " (cached)" : " (compiled)")
+           << " in " << st.grammar_ms << " ms";
+        log_to_file(ss.str());
+    }
+
+    llama_sampler * smpl = build_sampler_chain(vocab, grammar);
+
     log_to_file("generate: sampler chain initialized");
 
+    std::unique_ptr<Drafter> drafter;
+    {
+        std::string err = make_drafter(drafter);
+        if (!err.empty()) {
+            log_to_file("generate: " + err);
+            llama_sampler_free(smpl);
+            finish("error");
+            return err;
+        }
+    }
+    std::unique_ptr<LookaheadDecoder> lookahead;
+    if (use_lookahead) {
+        lookahead.reset(new LookaheadDecoder(g_lookahead_w, g_lookahead_n, g_lookahead_g, vocab));
+        lookahead->begin(g_ctx);
+    }
+    st.decoding_mode = drafter ? drafter->name() : lookahead ? "lookahead" : "plain";
+
 // detokenize 用にトークン列を保持
     std::vector<llama_token> out_tokens;
     out_tokens.reserve(max_tokens);
 
     std::string prev_text;   // ★ 差分抽出用
+    std::vector<char> detok_buf(4096);
 
-    for (int i = 0; i < max_tokens; ++i) {
-        // Get logits for the last token (index -1 means last position)
-        const llama_token id = llama_sampler_sample(smpl, g_ctx, -1);
+    const char* stop_reason = "max_tokens";
 
-        // Accept the token
-        llama_sampler_accept(smpl, id);
+    // シフトできない memory（recurrent など）では従来どおり ctx_limit で止める
+    const bool ctx_shift = g_ctx_shift && llama_memory_can_shift(mem);
+    if (g_ctx_shift && !ctx_shift) {
+        log_to_file("generate: context shift requested but the memory cannot shift; stopping at ctx limit instead");
+    }
 
+    // 1 トークンを出力に反映する。生成を止めるときは stop_reason を設定して true を返す
+    auto emit = [&](llama_token id) -> bool {
         // check eos
         if (llama_vocab_is_eog(vocab, id)) {
             log_to_file("generate: reached EOS");
-            break;
+            stop_reason = "eos";
+            return true;
         }
 
         // ★ 生成トークンを累積
         out_tokens.push_back(id);
+        const int i = (int)out_tokens.size() - 1;
 
-        // ★ ctx の残量チェック（安全マージン 32）
-        if ((int)out_tokens.size() >= g_n_ctx - 32) {
+        // ★ ctx の残量チェック（プロンプト分も含めて安全マージン 32）。シフト時は decode 前に詰める
+        if (!ctx_shift && n_tokens + (int)out_tokens.size() >= g_n_ctx - 32) {
             log_to_file("generate: reached ctx safety limit, stopping early");
-            break;
+            stop_reason = "ctx_limit";
+            return true;
+        }
+        // ★ 累積トークン列を detokenize して全文を得る（足りなければ必要な長さが負で返る）
+        int n_chars = llama_detokenize(vocab, out_tokens.data(), (int)out_tokens.size(),
+                                       detok_buf.data(), (int)detok_buf.size(), true, false);
+        if (n_chars < 0) {
+            detok_buf.resize((size_t)-n_chars * 2);
+            n_chars = llama_detokenize(vocab, out_tokens.data(), (int)out_tokens.size(),
+                                       detok_buf.data(), (int)detok_buf.size(), true, false);
         }
-        // ★ 累積トークン列を detokenize して全文を得る
-        char buf[4096];
-        int n_chars = llama_detokenize(
-                vocab,
-                out_tokens.data(),
-                (int)out_tokens.size(),
-                buf,
-                sizeof(buf),
-                true,
-                false
-        );
 
         if (n_chars > 0) {
-            std::string full(buf, n_chars);
+            std::string full(detok_buf.data(), n_chars);
 
             // ★ 前回との差分だけを output に追加（スペースも含めて正しく復元）
+            std::string delta;
             if (full.size() > prev_text.size()) {
-                output += full.substr(prev_text.size());
+                delta = full.substr(prev_text.size());
+                output += delta;
             }
 
             prev_text = full;
 
+            if (stream && !delta.empty() && !stream_text(*stream, delta, false)) {
+                log_to_file("generate: cancelled by onToken");
+                stop_reason = "cancelled";
+                return true;
+            }
+
             {
                 std::ostringstream ss;
                 ss << "generate: output token id=" << (int)id
@@ -813,28 +2336,1691 @@ Java_com_example_ollama_LlamaNative_generate(
             log_to_file(ss.str());
         }
 
-        // feed token into model for next step using batch API
-        llama_token id_mut = id; // llama_batch_get_one expects non-const pointer
-        llama_batch batch = llama_batch_get_one(&id_mut, 1);
-        if (llama_decode(g_ctx, batch) != 0) {
-            log_to_file("generate: decode failed (generation)");
-            llama_sampler_free(smpl);
-            return env->NewStringUTF("decode failed (generation)");
+        if ((int)out_tokens.size() >= max_tokens) {
+            stop_reason = "max_tokens";
+            return true;
         }
-    }
+        return false;
+    };
+
+    auto t_gen0 = steady_clock_t::now();
+
+    // 最初のトークンは prefill の logits からサンプルする（llama_sampler_sample は accept も行う）
+    llama_token id_last = llama_sampler_sample(smpl, g_ctx, -1);
+    st.ttft_ms = elapsed_ms(t_call, steady_clock_t::now());
+    bool done = emit(id_last);
+
+    // 制約付き生成は構造が閉じた時点で止める（EOS や max_tokens まで待たない）
+    auto grammar_done = [&]() -> bool {
+        if (!grammar || !grammar_is_complete(grammar, vocab, grammar_gc)) return false;
+        log_to_file("generate: grammar complete");
+        stop_reason = "grammar";
+        return true;
+    };
+    if (!done) done = grammar_done();
+
+    // target の KV に入っているトークン列（Drafter に渡す）。id_last は含まない
+    std::vector<llama_token> history(tokens);
+    llama_pos n_past = n_tokens;
+
+    const int n_batch_max = (int)llama_n_batch(g_ctx);
+    llama_batch batch = llama_batch_init(n_batch_max, 0, 1);
+    std::vector<llama_token> draft;
+    std::vector<llama_token> ids;
+    const bool lookup    = g_decoding_mode == "lookup";
+    const int  draft_max = lookup ? g_lookup_draft_max : g_spec_draft_max;
+    const int  draft_min = lookup ? 0 : g_spec_draft_min;
+
+    const int n_ctx_kv = (int)llama_n_ctx(g_ctx);
+    // 残す先頭部分。プロンプト（system prefix を含む）より長くは取らない
+    const int n_keep = g_ctx_n_keep < 0 ? n_tokens : std::min(g_ctx_n_keep, n_tokens);
+
+    while (!done) {
+        auto t_iter0 = steady_clock_t::now();
+        st.threads = rt_apply_threads(g_ctx, g_n_threads);
+
+        if (ctx_shift) {
+            // 今回の decode で KV に置く最大トークン数
+            const int n_step = lookahead ? lookahead->batch_size()
+                             : drafter   ? 1 + std::max(0, std::min(draft_max, n_batch_max - 1))
+                             : 1;
+            if (n_past + n_step >= n_ctx_kv) {
+                const int n_left  = (int)n_past - n_keep;
+                const int n_need  = (int)n_past + n_step - n_ctx_kv + 1;
+                int n_discard = g_ctx_n_discard > 0 ? g_ctx_n_discard : n_left / 2;
+                n_discard = std::min(std::max(n_discard, n_need), n_left);
+                if (n_discard < n_need) {
+                    // n_keep が大きすぎて空きを作れない
+                    log_to_file("generate: context shift cannot free enough space, stopping");
+                    stop_reason = "ctx_limit";
+                    break;
+                }
+
+                shift_context(g_ctx, n_keep, n_discard, n_past);
+                if (g_kv_tokens.size() > (size_t)n_keep) g_kv_tokens.resize(n_keep);
+                if (lookahead) lookahead->begin(g_ctx);
+                history.erase(history.begin() + n_keep, history.begin() + n_keep + n_discard);
+                n_past -= n_discard;
+                st.ctx_shifts++;
+                st.ctx_discarded += n_discard;
 
-    // Free the sampler chain
+                std::ostringstream ss;
+                ss << "generate: context shift n_keep=" << n_keep << " n_discard=" << n_discard
+                   << " n_past=" << n_past;
+                log_to_file(ss.str());
+            }
+        }
+
+        if (lookahead && n_past + lookahead->batch_size() < (llama_pos)n_ctx_kv) {
+            // lookahead: [id_last, 検証候補, Jacobi 窓] を 1 回の decode で評価し、受理分を ids に受け取る
+            if (!lookahead->step(g_ctx, smpl, id_last, n_past, max_tokens - (int)out_tokens.size(), ids)) {
+                log_to_file("generate: decode failed (lookahead)");
+                llama_batch_free(batch);
+                llama_sampler_free(smpl);
+                finish("error");
+                return "decode failed (lookahead)";
+            }
+            history.push_back(id_last);
+            history.insert(history.end(), ids.begin(), ids.end() - 1);
+            n_past += (llama_pos)ids.size();
+            st.decode_steps++;
+            if (lookahead->last_candidates() > 0) {
+                st.drafted_tokens  += lookahead->last_candidates();
+                st.accepted_tokens += (int)ids.size() - 1;
+            }
+        } else {
+            // 1. 下書き
+            draft.clear();
+            if (drafter) {
+                const int n_max = std::min({
+                    draft_max,
+                    n_batch_max - 1,
+                    max_tokens - (int)out_tokens.size() - 1,
+                    n_ctx_kv - (int)n_past - 2 });
+                if (n_max > 0) {
+                    auto t_d0 = steady_clock_t::now();
+                    draft = drafter->draft(history, id_last, n_max);
+                    st.draft_ms += elapsed_ms(t_d0, steady_clock_t::now());
+                    if ((int)draft.size() > n_max) draft.resize(n_max);
+                    // 短すぎる下書きは検証コストに見合わない
+                    if ((int)draft.size() < draft_min) draft.clear();
+                }
+            }
+
+            // 2. [id_last, draft...] を 1 回の decode で評価
+            auto t_step0 = steady_clock_t::now();
+            common_batch_clear(batch);
+            common_batch_add(batch, id_last, n_past, { 0 }, true);
+            for (size_t i = 0; i < draft.size(); ++i) {
+                common_batch_add(batch, draft[i], n_past + 1 + (llama_pos)i, { 0 }, true);
+            }
+            if (llama_decode(g_ctx, batch) != 0) {
+                log_to_file("generate: decode failed (generation)");
+                llama_batch_free(batch);
+                llama_sampler_free(smpl);
+                finish("error");
+                return "decode failed (generation)";
+            }
+            history.push_back(id_last);
+            n_past++;
+            st.decode_steps++;
+
+            // 3. 検証: target のサンプラーが draft と同じトークンを選ぶ限り、次の位置の logits で続ける
+            ids.clear();
+            for (size_t i = 0; i <= draft.size(); ++i) {
+                const llama_token id = llama_sampler_sample(smpl, g_ctx, (int)i);
+                ids.push_back(id);
+                if (i == draft.size() || id != draft[i]) break;
+            }
+            const int n_accepted = (int)ids.size() - 1;
+
+            if (!draft.empty()) {
+                st.drafted_tokens  += (int)draft.size();
+                st.accepted_tokens += n_accepted;
+
+                // 受理された draft だけ KV に残す
+                history.insert(history.end(), draft.begin(), draft.begin() + n_accepted);
+                n_past += n_accepted;
+                llama_memory_seq_rm(mem, 0, n_past, -1);
+
+                std::ostringstream ss;
+                ss << "generate: " << st.decoding_mode << " accepted " << n_accepted << "/" << draft.size();
+                log_to_file(ss.str());
+            } else {
+                const double step_ms = elapsed_ms(t_step0, steady_clock_t::now());
+                g_plain_ms_per_token = g_plain_ms_per_token > 0.0
+                        ? 0.9 * g_plain_ms_per_token + 0.1 * step_ms
+                        : step_ms;
+            }
+        }
+
+        // ペーシング: 負荷制限の最短間隔より速く出たトークンは待ってから出す
+        st.paced_ms += rt_pace(t_iter0, (int)ids.size());
+
+        // 4. 出力
+        for (llama_token id : ids) {
+            if (emit(id)) {
+                done = true;
+                break;
+            }
+        }
+        id_last = ids.back();
+        if (!done) done = grammar_done();
+    }
+
+    llama_batch_free(batch);
+    if (stream) stream_text(*stream, "", true);
+
+    st.decode_ms  = elapsed_ms(t_gen0, steady_clock_t::now());
+    st.gen_tokens = (int)out_tokens.size();
+    if ((drafter || lookahead) && g_plain_ms_per_token > 0.0 && st.decode_ms > 0.0) {
+        st.speedup = g_plain_ms_per_token * st.gen_tokens / st.decode_ms;
+    }
+
+    {
+        const llama_perf_sampler_data sp = llama_perf_sampler(smpl);
+        st.sampler_ms     = sp.t_sample_ms;
+        st.sampled_tokens = sp.n_sample;
+
+        const llama_perf_context_data cp = llama_perf_context(g_ctx);
+        std::ostringstream ss;
+        ss << "generate: perf p_eval=" << cp.n_p_eval << " tok/" << cp.t_p_eval_ms << " ms"
+           << " eval=" << cp.n_eval << " tok/" << cp.t_eval_ms << " ms"
+           << " sample=" << sp.n_sample << "/" << sp.t_sample_ms << " ms";
+        log_to_file(ss.str());
+    }
+
+    // Free the sampler chain
     llama_sampler_free(smpl);
 
+    finish(stop_reason);
+
     {
         std::ostringstream ss;
-        ss << "generate: finished, output_len=" << output.size();
+        ss << "generate: finished, output_len=" << output.size()
+           << " stop=" << st.stop_reason
+           << " ttft_ms=" << st.ttft_ms
+           << " total_ms=" << st.total_ms;
         log_to_file(ss.str());
     }
 
+    return output;
+}
+
+// GenerateStats から Java の GenerationResult を組み立てる
+static void set_double_field(JNIEnv* env, jobject obj, jclass cls, const char* name, double v) {
+    jfieldID fid = env->GetFieldID(cls, name, "D");
+    if (fid) env->SetDoubleField(obj, fid, (jdouble)v);
+}
+
+static void set_int_field(JNIEnv* env, jobject obj, jclass cls, const char* name, int v) {
+    jfieldID fid = env->GetFieldID(cls, name, "I");
+    if (fid) env->SetIntField(obj, fid, (jint)v);
+}
+
+static void set_bool_field(JNIEnv* env, jobject obj, jclass cls, const char* name, bool v) {
+    jfieldID fid = env->GetFieldID(cls, name, "Z");
+    if (fid) env->SetBooleanField(obj, fid, v ? JNI_TRUE : JNI_FALSE);
+}
+
+static void set_string_field(JNIEnv* env, jobject obj, jclass cls, const char* name, const std::string& v) {
+    jfieldID fid = env->GetFieldID(cls, name, "Ljava/lang/String;");
+    if (!fid) return;
+    jstring js = env->NewStringUTF(v.c_str());
+    env->SetObjectField(obj, fid, js);
+    env->DeleteLocalRef(js);
+}
+
+static jobject make_generation_result(JNIEnv* env, const std::string& text, const GenerateStats& st) {
+    jclass stats_cls  = env->FindClass("com/example/ollama/GenerationStats");
+    jclass result_cls = env->FindClass("com/example/ollama/GenerationResult");
+    if (!stats_cls || !result_cls) {
+        log_to_file("generate: GenerationStats/GenerationResult class not found");
+        return nullptr;
+    }
+
+    jmethodID stats_ctor  = env->GetMethodID(stats_cls, "<init>", "()V");
+    jmethodID result_ctor = env->GetMethodID(result_cls, "<init>",
+            "(Ljava/lang/String;Lcom/example/ollama/GenerationStats;Ljava/lang/String;)V");
+    if (!stats_ctor || !result_ctor) return nullptr;
+
+    jobject jstats = env->NewObject(stats_cls, stats_ctor);
+    if (!jstats) return nullptr;
+
+    set_double_field(env, jstats, stats_cls, "queueWaitMs", st.queue_wait_ms);
+    set_double_field(env, jstats, stats_cls, "tokenizeMs",  st.tokenize_ms);
+    set_int_field   (env, jstats, stats_cls, "promptTokens", st.prompt_tokens);
+    set_int_field   (env, jstats, stats_cls, "promptCachedTokens", st.prompt_cached_tokens);
+    set_int_field   (env, jstats, stats_cls, "promptReusedTokens", st.prompt_reused_tokens);
+    set_double_field(env, jstats, stats_cls, "prefillMs",   st.prefill_ms);
+    set_double_field(env, jstats, stats_cls, "prefillTokensPerSec",
+            st.prefill_ms > 0.0 ? (st.prompt_tokens - st.prompt_reused_tokens) * 1000.0 / st.prefill_ms : 0.0);
+    set_int_field   (env, jstats, stats_cls, "prefillBatches", st.prefill_chunks);
+    set_double_field(env, jstats, stats_cls, "ttftMs",      st.ttft_ms);
+    set_int_field   (env, jstats, stats_cls, "generatedTokens", st.gen_tokens);
+    set_double_field(env, jstats, stats_cls, "decodeMs",    st.decode_ms);
+    set_double_field(env, jstats, stats_cls, "decodeTokensPerSec",
+            st.decode_ms > 0.0 ? st.gen_tokens * 1000.0 / st.decode_ms : 0.0);
+    set_double_field(env, jstats, stats_cls, "samplerMs",   st.sampler_ms);
+    set_int_field   (env, jstats, stats_cls, "sampledTokens", st.sampled_tokens);
+    set_double_field(env, jstats, stats_cls, "totalMs",     st.total_ms);
+
+    set_string_field(env, jstats, stats_cls, "decodingMode", st.decoding_mode);
+    set_int_field   (env, jstats, stats_cls, "decodeSteps",    st.decode_steps);
+    set_int_field   (env, jstats, stats_cls, "draftedTokens",  st.drafted_tokens);
+    set_int_field   (env, jstats, stats_cls, "acceptedTokens", st.accepted_tokens);
+    set_double_field(env, jstats, stats_cls, "acceptRate",
+            st.drafted_tokens > 0 ? (double)st.accepted_tokens / st.drafted_tokens : 0.0);
+    set_double_field(env, jstats, stats_cls, "draftMs",     st.draft_ms);
+    set_double_field(env, jstats, stats_cls, "speedup",     st.speedup);
+    set_string_field(env, jstats, stats_cls, "grammar",     st.grammar);
+    set_double_field(env, jstats, stats_cls, "grammarMs",   st.grammar_ms);
+    set_bool_field  (env, jstats, stats_cls, "grammarCached", st.grammar_cached);
+    set_int_field   (env, jstats, stats_cls, "contextShifts",   st.ctx_shifts);
+    set_int_field   (env, jstats, stats_cls, "discardedTokens", st.ctx_discarded);
+    set_int_field   (env, jstats, stats_cls, "slot",            st.slot);
+    set_double_field(env, jstats, stats_cls, "batchedSequences", st.batched_seqs);
+    set_double_field(env, jstats, stats_cls, "pacingMs",        st.paced_ms);
+    set_int_field   (env, jstats, stats_cls, "threads",         st.threads);
+
+    jstring jtext   = env->NewStringUTF(text.c_str());
+    jstring jreason = env->NewStringUTF(st.stop_reason.c_str());
+    return env->NewObject(result_cls, result_ctor, jtext, jstats, jreason);
+}
+
+// ---------------- JNI: generate ----------------
+extern "C"
+JNIEXPORT jstring JNICALL
+Java_com_example_ollama_LlamaNative_generate(
+        JNIEnv *env, jobject thiz,
+        jstring jPrompt
+) {
+    auto t_call = steady_clock_t::now();
+    std::string prompt = jstring_to_std(env, jPrompt);
+    const PrefillProgress progress = make_prefill_progress(env, thiz);
+
+    std::lock_guard<std::mutex> lock(g_mutex);
+
+    GenerateStats st;
+    st.queue_wait_ms = elapsed_ms(t_call, steady_clock_t::now());
+    std::string output = run_generate(prompt, t_call, st, g_max_tokens, &progress);
     return env->NewStringUTF(output.c_str());
 }
 
+// ---------------- JNI: generateWithStats ----------------
+extern "C"
+JNIEXPORT jobject JNICALL
+Java_com_example_ollama_LlamaNative_generateWithStats(
+        JNIEnv *env, jobject thiz,
+        jstring jPrompt
+) {
+    auto t_call = steady_clock_t::now();
+    std::string prompt = jstring_to_std(env, jPrompt);
+    const PrefillProgress progress = make_prefill_progress(env, thiz);
+
+    std::lock_guard<std::mutex> lock(g_mutex);
+
+    GenerateStats st;
+    st.queue_wait_ms = elapsed_ms(t_call, steady_clock_t::now());
+    std::string output = run_generate(prompt, t_call, st, g_max_tokens, &progress);
+    return make_generation_result(env, output, st);
+}
+
+// ---------------- JNI: generateStreaming ----------------
+// generateWithStats と同じ生成をしながら、出力を onToken(String) で少しずつ渡す。
+// onToken が false を返したら stop_reason "cancelled" で止める
+extern "C"
+JNIEXPORT jobject JNICALL
+Java_com_example_ollama_LlamaNative_generateStreaming(
+        JNIEnv *env, jobject thiz,
+        jstring jPrompt
+) {
+    auto t_call = steady_clock_t::now();
+    std::string prompt = jstring_to_std(env, jPrompt);
+    const PrefillProgress progress = make_prefill_progress(env, thiz);
+    TokenStream stream = make_token_stream(env, thiz);
+
+    std::lock_guard<std::mutex> lock(g_mutex);
+
+    GenerateStats st;
+    st.queue_wait_ms = elapsed_ms(t_call, steady_clock_t::now());
+    std::string output = run_generate(prompt, t_call, st, g_max_tokens, &progress, &stream);
+    return make_generation_result(env, output, st);
+}
+
+// ---------------- 並列スロット（continuous batching） ----------------
+// llama.cpp の server と同じ方式。submitParallel で受けた要求を n_slots 本の seq（スロット）に割り当て、
+// エンジンスレッドが 1 ステップごとに「生成中の全スロットの次の 1 トークン」と「prefill 中のプロンプトの続き」を
+// n_batch に収まるだけ 1 つの llama_batch に詰めて decode する。長いプロンプトが来ても 1 ステップに入るのは
+// n_batch の残りだけなので、生成中の要求は毎ステップ 1 トークンずつ進む。
+// g_ctx とは別の context（n_ctx = スロット数 × スロット長）を使い、g_mutex はパラメータを写し取る submit の間だけ
+// 握る。スロットは終わった要求のトークン列を KV に残し、次の要求は先頭の一致が最も長い空きスロットに入る
+
+struct SlotRequest {
+    uint64_t id = 0;
+    std::vector<llama_token> prompt;
+    llama_sampler* smpl    = nullptr;   // grammar を含む chain。終わったときに解放する
+    llama_sampler* grammar = nullptr;   // smpl の中の grammar（完結判定用、smpl が所有）
+    GrammarCompletion completion;
+    int  max_tokens = 0;
+    steady_clock_t::time_point t_submit;
+    GenerateStats st;
+    // ここから下は g_slots_mutex で守る
+    std::string pending;   // まだ onToken に渡していない出力
+    std::string output;    // 出力全体（error ならエラーメッセージ）
+    bool done   = false;
+    bool cancel = false;   // awaitParallel の onToken が false を返した
+};
+
+struct Slot {
+    int seq = 0;
+    std::shared_ptr<SlotRequest> req;   // nullptr なら空き
+    std::vector<llama_token> cache;     // この seq の KV に入っているトークン列
+    size_t      n_prompt_done = 0;      // KV に入ったプロンプトのトークン数
+    bool        has_next = false;       // next はサンプル済みでまだ decode していない
+    llama_token next = 0;
+    int         i_batch = -1;           // 今のステップで logits を受け取る batch 内の位置
+    std::vector<llama_token> out;
+    std::string prev_text;
+    std::string delta;                  // 今のステップで増えた出力
+    const char* stop = nullptr;         // 終了理由（nullptr なら続行）
+    std::string error;
+    bool        first = false;          // 最初のトークンをサンプル済み
+    uint64_t    admitted = 0;           // 受け付け順（prefill はこの順に詰める）
+    steady_clock_t::time_point t_admit, t_first;
+    double      batched_sum   = 0.0;
+    int         batched_steps = 0;
+    double      paced_ms      = 0.0;
+};
+
+static std::mutex              g_slots_mutex;
+static std::condition_variable g_slots_cv;         // エンジン・awaitParallel・slots_shutdown をまとめて起こす
+static llama_context*          g_slots_ctx = nullptr;
+static std::vector<Slot>       g_slots;
+static std::deque<std::shared_ptr<SlotRequest>>         g_slots_queue;
+static std::map<uint64_t, std::shared_ptr<SlotRequest>> g_slots_requests;   // submit から await まで
+static uint64_t g_slots_next_id  = 1;
+static uint64_t g_slots_admitted = 0;
+static bool     g_slots_stepping = false;   // エンジンがロックの外で decode / サンプル中
+static bool     g_slots_thread   = false;   // エンジンスレッドが動いている
+static int      g_slots_n        = 4;
+static int      g_slots_n_ctx    = 0;       // スロット 1 本のトークン数（0 = g_n_ctx）
+static int      g_slots_n_threads = 0;      // g_slots_ctx を作ったときのスレッド数（負荷制限の上限）
+
+static int slot_ctx_size() {
+    return g_slots_n_ctx > 0 ? g_slots_n_ctx : g_n_ctx;
+}
+
+// g_mutex と g_slots_mutex を持って呼ぶ
+static std::string ensure_slots_context() {
+    if (g_slots_ctx) return "";
+    const int n_ctx_slot = slot_ctx_size();
+
+    auto t0 = steady_clock_t::now();
+    llama_context_params cparams = llama_context_default_params();
+    cparams.no_perf         = false;
+    cparams.n_ctx           = (uint32_t)(n_ctx_slot * g_slots_n);
+    // 全スロットが生成中でも 1 ステップの batch に収まるように
+    cparams.n_batch         = (uint32_t)std::max(g_n_batch, g_slots_n);
+    cparams.n_seq_max       = (uint32_t)g_slots_n;
+    cparams.n_threads       = g_n_threads;
+    cparams.n_threads_batch = g_n_threads;
+    apply_kv_params(cparams);
+
+    g_slots_n_threads = g_n_threads;
+    g_slots_ctx = llama_init_from_model(g_model, cparams);
+    if (!g_slots_ctx) return "failed to create the parallel context";
+    create_threadpools(g_slots_pools, g_slots_n_threads, "parallel");
+    attach_threadpools(g_slots_ctx, g_slots_pools);
+    g_slots.assign(g_slots_n, Slot());
+    for (int i = 0; i < g_slots_n; ++i) g_slots[i].seq = i;
+
+    std::ostringstream ss;
+    ss << "parallel: context created in " << elapsed_ms(t0, steady_clock_t::now()) << " ms slots=" << g_slots_n
+       << " n_ctx_slot=" << n_ctx_slot << " n_batch=" << llama_n_batch(g_slots_ctx)
+       << " kv_bytes=" << kv_cache_bytes(g_model, llama_n_ctx(g_slots_ctx), g_type_k, g_type_v);
+    log_to_file(ss.str());
+    return "";
+}
+
+// g_slots_mutex を持って呼ぶ。r を終わらせて awaitParallel を起こせる状態にする
+static void slot_request_done(SlotRequest& r, const char* reason) {
+    if (r.smpl) {
+        const llama_perf_sampler_data sp = llama_perf_sampler(r.smpl);
+        r.st.sampler_ms     = sp.t_sample_ms;
+        r.st.sampled_tokens = sp.n_sample;
+        llama_sampler_free(r.smpl);
+        r.smpl = nullptr;
+    }
+    r.st.stop_reason = reason;
+    r.st.total_ms = elapsed_ms(r.t_submit, steady_clock_t::now());
+    r.done = true;
+}
+
+// g_slots_mutex を持って呼ぶ。スロットの要求を終えて空きにする（KV と cache は次の要求のために残す）
+static void slot_release(Slot& s, const char* reason) {
+    SlotRequest& r = *s.req;
+    r.st.slot         = s.seq;
+    r.st.gen_tokens   = (int)s.out.size();
+    r.st.decode_steps = s.batched_steps;
+    r.st.batched_seqs = s.batched_steps > 0 ? s.batched_sum / s.batched_steps : 0.0;
+    r.st.paced_ms     = s.paced_ms;
+    r.st.threads      = llama_n_threads(g_slots_ctx);
+    if (s.first) r.st.decode_ms = elapsed_ms(s.t_first, steady_clock_t::now());
+    if (!s.error.empty()) r.output = s.error;
+    slot_request_done(r, reason);
+
+    std::ostringstream ss;
+    ss << "parallel: request " << r.id << " slot " << s.seq << " finished stop=" << reason
+       << " prompt=" << r.st.prompt_tokens << " reused=" << r.st.prompt_reused_tokens
+       << " gen=" << r.st.gen_tokens << " seqs/decode=" << r.st.batched_seqs
+       << " ttft_ms=" << r.st.ttft_ms << " total_ms=" << r.st.total_ms;
+    log_to_file(ss.str());
+    s.req.reset();
+}
+
+// g_mutex を持って呼ぶ（init / free / setParallelSlots）。実行中と順番待ちの要求を error で終わらせ、context を捨てる
+static void slots_shutdown(const char* why) {
+    std::unique_lock<std::mutex> lock(g_slots_mutex);
+    g_slots_cv.wait(lock, [] { return !g_slots_stepping; });
+    int n_failed = 0;
+    for (Slot& s : g_slots) {
+        if (!s.req) continue;
+        s.error = why;
+        slot_release(s, "error");
+        n_failed++;
+    }
+    for (auto& r : g_slots_queue) {
+        r->output = why;
+        slot_request_done(*r, "error");
+        n_failed++;
+    }
+    g_slots_queue.clear();
+    g_slots.clear();
+    if (g_slots_ctx) {
+        llama_free(g_slots_ctx);
+        g_slots_ctx = nullptr;
+        free_threadpools(g_slots_pools);
+        std::ostringstream ss;
+        ss << "parallel: context freed (" << why << "), " << n_failed << " requests failed";
+        log_to_file(ss.str());
+    }
+    g_slots_cv.notify_all();
+}
+
+// g_slots_mutex を持って呼ぶ。順番待ちの要求を、先頭の一致が最も長い空きスロットに入れる。
+// 一致した分は KV に残して prefill しない（最後のプロンプトトークンは logits のため必ず decode する）
+static void slots_admit() {
+    llama_memory_t mem = llama_get_memory(g_slots_ctx);
+    while (!g_slots_queue.empty()) {
+        std::shared_ptr<SlotRequest> r = g_slots_queue.front();
+        if (r->cancel) {
+            g_slots_queue.pop_front();
+            slot_request_done(*r, "cancelled");
+            continue;
+        }
+        Slot* best = nullptr;
+        size_t n_best = 0;
+        for (Slot& s : g_slots) {
+            if (s.req) continue;
+            const size_t n_max = std::min(s.cache.size(), r->prompt.size() - 1);
+            size_t n = 0;
+            while (n < n_max && s.cache[n] == r->prompt[n]) n++;
+            if (!best || n > n_best) {
+                best   = &s;
+                n_best = n;
+            }
+        }
+        if (!best) break;
+        g_slots_queue.pop_front();
+
+        Slot& s = *best;
+        if (n_best > 0 && !llama_memory_seq_rm(mem, s.seq, (llama_pos)n_best, -1)) n_best = 0;
+        if (n_best == 0) llama_memory_seq_rm(mem, s.seq, -1, -1);
+        s.cache.resize(n_best);
+        s.req           = r;
+        s.n_prompt_done = n_best;
+        s.has_next      = false;
+        s.i_batch       = -1;
+        s.out.clear();
+        s.prev_text.clear();
+        s.delta.clear();
+        s.stop          = nullptr;
+        s.error.clear();
+        s.first         = false;
+        s.admitted      = ++g_slots_admitted;
+        s.t_admit       = steady_clock_t::now();
+        s.batched_sum   = 0.0;
+        s.batched_steps = 0;
+        s.paced_ms      = 0.0;
+        r->st.queue_wait_ms        = elapsed_ms(r->t_submit, s.t_admit);
+        r->st.prompt_reused_tokens = (int)n_best;
+
+        std::ostringstream ss;
+        ss << "parallel: request " << r->id << " -> slot " << s.seq << " prompt=" << r->prompt.size()
+           << " reused=" << n_best << " queue_ms=" << r->st.queue_wait_ms;
+        log_to_file(ss.str());
+    }
+}
+
+// サンプルした 1 トークンをスロットの出力に反映する。止めるときは s.stop を設定する
+static void slot_emit(Slot& s, llama_token id, const llama_vocab* vocab, std::vector<char>& detok) {
+    SlotRequest& r = *s.req;
+    if (llama_vocab_is_eog(vocab, id)) {
+        s.stop = "eos";
+        return;
+    }
+    s.out.push_back(id);
+
+    // generate() と同じく累積列を detokenize して差分を取る（先頭の空白の扱いがトークン単体と違うため）
+    int n_chars = llama_detokenize(vocab, s.out.data(), (int)s.out.size(), detok.data(), (int)detok.size(), true, false);
+    if (n_chars < 0) {
+        detok.resize((size_t)-n_chars * 2);
+        n_chars = llama_detokenize(vocab, s.out.data(), (int)s.out.size(), detok.data(), (int)detok.size(), true, false);
+    }
+    if (n_chars > 0) {
+        std::string full(detok.data(), n_chars);
+        if (full.size() > s.prev_text.size()) s.delta += full.substr(s.prev_text.size());
+        s.prev_text.swap(full);
+    }
+
+    if ((int)s.out.size() >= r.max_tokens) {
+        s.stop = "max_tokens";
+    } else if (r.grammar && grammar_is_complete(r.grammar, vocab, r.completion)) {
+        s.stop = "grammar";
+    } else if ((int)s.cache.size() + 1 >= slot_ctx_size()) {
+        // スロットは KV を他の seq と分け合うので、自分の長さを超えて伸ばさない
+        s.stop = "ctx_limit";
+    } else {
+        s.next     = id;
+        s.has_next = true;
+    }
+}
+
+// 1 ステップ: batch を組んで decode し、logits を受け取ったスロットをサンプルする。
+// エンジンスレッドがロックの外で呼ぶ（g_slots_stepping の間はスロットを触るのはここだけ）
+static void slots_step(llama_batch& batch, std::vector<char>& detok) {
+    const auto t_step0 = steady_clock_t::now();
+    const llama_vocab* vocab = llama_model_get_vocab(g_model);
+    rt_apply_threads(g_slots_ctx, g_slots_n_threads);
+    // 負荷制限で絞るのは prefill の枠だけ（生成中のスロットのトークンは batch の容量まで必ず入れる）
+    const int cap     = (int)llama_n_batch(g_slots_ctx);
+    const int n_batch = rt_batch(cap);
+    common_batch_clear(batch);
+
+    // 1. 生成中のスロットは次のトークンを 1 つずつ
+    std::vector<Slot*> gen;
+    std::vector<Slot*> prefill;
+    for (Slot& s : g_slots) {
+        s.i_batch = -1;
+        if (!s.req || s.stop) continue;
+        if (s.has_next) {
+            // 入りきらないスロットは has_next のまま次のステップを待つ
+            if (batch.n_tokens >= cap) continue;
+            s.i_batch = batch.n_tokens;
+            common_batch_add(batch, s.next, (llama_pos)s.cache.size(), { s.seq }, true);
+            gen.push_back(&s);
+        } else if (s.n_prompt_done < s.req->prompt.size()) {
+            prefill.push_back(&s);
+        }
+    }
+
+    // 2. 残りの枠に prefill 中のプロンプトを受け付け順に詰める。logits はプロンプトの最後のトークンだけ
+    std::sort(prefill.begin(), prefill.end(), [](const Slot* a, const Slot* b) { return a->admitted < b->admitted; });
+    std::vector<std::pair<Slot*, int>> chunks;
+    for (Slot* s : prefill) {
+        const int room = n_batch - batch.n_tokens;
+        if (room <= 0) break;
+        const std::vector<llama_token>& p = s->req->prompt;
+        const int n = std::min(room, (int)(p.size() - s->n_prompt_done));
+        for (int k = 0; k < n; ++k) {
+            const size_t i = s->n_prompt_done + k;
+            const bool last = i + 1 == p.size();
+            if (last) s->i_batch = batch.n_tokens;
+            common_batch_add(batch, p[i], (llama_pos)i, { s->seq }, last);
+        }
+        chunks.push_back({ s, n });
+    }
+    if (batch.n_tokens == 0) return;
+
+    if (llama_decode(g_slots_ctx, batch) != 0) {
+        std::ostringstream ss;
+        ss << "parallel: decode failed, batch=" << batch.n_tokens << " tokens, " << gen.size() + chunks.size() << " seqs";
+        log_to_file(ss.str());
+        llama_memory_t mem = llama_get_memory(g_slots_ctx);
+        for (Slot* s : gen) {
+            s->stop  = "error";
+            s->error = "decode failed (parallel)";
+        }
+        for (auto& c : chunks) {
+            c.first->stop  = "error";
+            c.first->error = "decode failed (parallel)";
+        }
+        // 途中まで入ったかもしれない KV は次に使うとき消す
+        for (Slot* s : gen) { llama_memory_seq_rm(mem, s->seq, -1, -1); s->cache.clear(); }
+        for (auto& c : chunks) { llama_memory_seq_rm(mem, c.first->seq, -1, -1); c.first->cache.clear(); }
+        return;
+    }
+
+    // KV に入った分を記録する
+    const auto t_now = steady_clock_t::now();
+    for (Slot* s : gen) {
+        s->cache.push_back(s->next);
+        s->has_next = false;
+    }
+    for (auto& c : chunks) {
+        Slot& s = *c.first;
+        const std::vector<llama_token>& p = s.req->prompt;
+        s.cache.insert(s.cache.end(), p.begin() + s.n_prompt_done, p.begin() + s.n_prompt_done + c.second);
+        s.n_prompt_done += c.second;
+        s.req->st.prefill_chunks++;
+        if (s.n_prompt_done == p.size()) s.req->st.prefill_ms = elapsed_ms(s.t_admit, t_now);
+    }
+
+    // 3. logits を受け取ったスロットの次のトークン
+    const int n_seqs = (int)(gen.size() + chunks.size());
+    for (Slot& s : g_slots) {
+        if (s.i_batch < 0 || !s.req || s.stop) continue;
+        const llama_token id = llama_sampler_sample(s.req->smpl, g_slots_ctx, s.i_batch);
+        if (!s.first) {
+            s.first   = true;
+            s.t_first = steady_clock_t::now();
+            s.req->st.ttft_ms = elapsed_ms(s.req->t_submit, s.t_first);
+        }
+        s.batched_sum += n_seqs;
+        s.batched_steps++;
+        slot_emit(s, id, vocab, detok);
+    }
+
+    // ペーシング: 生成中のスロットはどれもこのステップで 1 トークン進む
+    if (!gen.empty()) {
+        const double waited = rt_pace(t_step0, 1);
+        for (Slot* s : gen) s->paced_ms += waited;
+    }
+}
+
+// g_slots_mutex を持って呼ぶ。ステップの出力を要求に渡し、終わったスロットを空ける
+static void slots_publish() {
+    for (Slot& s : g_slots) {
+        if (!s.req) continue;
+        SlotRequest& r = *s.req;
+        if (!s.delta.empty()) {
+            r.pending += s.delta;
+            r.output  += s.delta;
+            s.delta.clear();
+        }
+        if (!s.stop && r.cancel) s.stop = "cancelled";
+        if (s.stop) slot_release(s, s.stop);
+    }
+}
+
+static bool slots_have_work() {
+    if (!g_slots_ctx) return false;
+    if (!g_slots_queue.empty()) return true;
+    for (const Slot& s : g_slots) {
+        if (s.req) return true;
+    }
+    return false;
+}
+
+// エンジンスレッド。Java は呼ばないので JNIEnv は要らない。
+// 仕事が無くなったら終わる（プロセス終了時に静的な g_slots_cv を待ったまま残らないように）。次の submitParallel が起こし直す
+static void slots_loop() {
+    llama_batch batch = llama_batch_init(1, 0, 1);
+    int batch_cap = 1;
+    std::vector<char> detok(4096);
+    std::unique_lock<std::mutex> lock(g_slots_mutex);
+    PoolPlacement placement(g_slots_pools);
+    while (slots_have_work()) {
+        slots_admit();
+        const int cap = (int)llama_n_batch(g_slots_ctx);
+        if (cap != batch_cap) {
+            llama_batch_free(batch);
+            batch = llama_batch_init(cap, 0, 1);
+            batch_cap = cap;
+        }
+        g_slots_stepping = true;
+        lock.unlock();
+        slots_step(batch, detok);
+        lock.lock();
+        g_slots_stepping = false;
+        slots_publish();
+        g_slots_cv.notify_all();
+    }
+    g_slots_thread = false;
+    lock.unlock();
+    llama_batch_free(batch);
+}
+
+// ---------------- JNI: setParallelSlots ----------------
+// スロット数（1-64）とスロット 1 本のトークン数（0 = setContextParameters の nCtx）。KV は両者の積だけ確保する
+extern "C"
+JNIEXPORT jstring JNICALL
+Java_com_example_ollama_LlamaNative_setParallelSlots(
+        JNIEnv *env, jobject,
+        jint nSlots, jint nCtxPerSlot
+) {
+    std::lock_guard<std::mutex> lock(g_mutex);
+    const int n_slots = std::max(1, std::min(64, (int)nSlots));
+    const int n_ctx   = std::max(0, (int)nCtxPerSlot);
+    {
+        std::lock_guard<std::mutex> slock(g_slots_mutex);
+        if (!g_slots_queue.empty() || std::any_of(g_slots.begin(), g_slots.end(), [](const Slot& s) { return (bool)s.req; })) {
+            log_to_file("setParallelSlots: requests are running");
+            return env->NewStringUTF("parallel requests are running");
+        }
+    }
+    if (n_slots != g_slots_n || n_ctx != g_slots_n_ctx) slots_shutdown("parallel slots reconfigured");
+    g_slots_n     = n_slots;
+    g_slots_n_ctx = n_ctx;
+
+    std::ostringstream ss;
+    ss << "setParallelSlots: slots=" << n_slots << " n_ctx_slot=" << (n_ctx > 0 ? n_ctx : g_n_ctx);
+    log_to_file(ss.str());
+    return env->NewStringUTF("ok");
+}
+
+// ---------------- JNI: submitParallel ----------------
+// 今のサンプリング設定・最大トークン数・grammar を写し取って要求を並列スロットの待ち行列に入れ、id を返す。
+// 失敗（モデル無し、長すぎるプロンプトなど）も id を返し、awaitParallel が stop_reason "error" で返す
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_example_ollama_LlamaNative_submitParallel(
+        JNIEnv *env, jobject,
+        jstring jPrompt
+) {
+    auto r = std::make_shared<SlotRequest>();
+    r->t_submit = steady_clock_t::now();
+    const std::string prompt = jstring_to_std(env, jPrompt);
+
+    std::lock_guard<std::mutex> lock(g_mutex);
+    std::string err;
+    const llama_vocab* vocab = g_model ? llama_model_get_vocab(g_model) : nullptr;
+    if (!vocab) {
+        err = "not initialized";
+    } else {
+        auto t0 = steady_clock_t::now();
+        r->prompt = tokenize_all(vocab, prompt.data(), prompt.size());
+        r->st.tokenize_ms   = elapsed_ms(t0, steady_clock_t::now());
+        r->st.prompt_tokens = (int)r->prompt.size();
+        if (r->prompt.empty()) {
+            err = "tokenize failed";
+        } else if ((int)r->prompt.size() >= slot_ctx_size() - 32) {
+            std::ostringstream ss;
+            ss << "prompt too long: " << r->prompt.size() << " tokens (slot context " << slot_ctx_size() << ")";
+            err = ss.str();
+        }
+    }
+    if (err.empty() && !g_grammar_kind.empty()) {
+        auto t_g0 = steady_clock_t::now();
+        err = g_grammar_cache.acquire(vocab, g_grammar_kind, g_grammar_text, r->grammar, r->st.grammar_cached);
+        if (err.empty()) r->completion.tokens = g_grammar_cache.continuations(vocab);
+        r->st.grammar_ms = elapsed_ms(t_g0, steady_clock_t::now());
+        r->st.grammar    = g_grammar_kind;
+    }
+    if (err.empty()) {
+        r->smpl       = build_sampler_chain(vocab, r->grammar);
+        r->max_tokens = g_max_tokens;
+    }
+
+    std::lock_guard<std::mutex> slock(g_slots_mutex);
+    if (err.empty()) err = ensure_slots_context();
+    r->id = g_slots_next_id++;
+    g_slots_requests[r->id] = r;
+    if (!err.empty()) {
+        if (!r->smpl && r->grammar) llama_sampler_free(r->grammar);
+        r->output = err;
+        slot_request_done(*r, "error");
+        log_to_file("parallel: submit failed: " + err);
+        return (jlong)r->id;
+    }
+    g_slots_queue.push_back(r);
+    if (!g_slots_thread) {
+        std::thread(slots_loop).detach();
+        g_slots_thread = true;
+    }
+    g_slots_cv.notify_all();
+    return (jlong)r->id;
+}
+
+// ---------------- JNI: awaitParallel ----------------
+// submitParallel の要求 id が終わるまで待ち、その間の出力を呼び出しスレッドで onToken(String) に渡す。
+// onToken が false を返したら次のステップでスロットを空けて stop_reason "cancelled" で返す
+extern "C"
+JNIEXPORT jobject JNICALL
+Java_com_example_ollama_LlamaNative_awaitParallel(
+        JNIEnv *env, jobject thiz,
+        jlong id
+) {
+    TokenStream stream = make_token_stream(env, thiz);
+    std::unique_lock<std::mutex> lock(g_slots_mutex);
+    auto it = g_slots_requests.find((uint64_t)id);
+    if (it == g_slots_requests.end()) {
+        lock.unlock();
+        GenerateStats st;
+        st.stop_reason = "error";
+        return make_generation_result(env, "unknown parallel request", st);
+    }
+    std::shared_ptr<SlotRequest> r = it->second;
+    bool streaming = true;
+    for (;;) {
+        g_slots_cv.wait(lock, [&] { return r->done || !r->pending.empty(); });
+        std::string piece;
+        piece.swap(r->pending);
+        const bool done = r->done;
+        if (!piece.empty() && streaming) {
+            lock.unlock();
+            const bool keep = stream_text(stream, piece, false);
+            lock.lock();
+            if (!keep) {
+                streaming = false;
+                r->cancel = true;
+                g_slots_cv.notify_all();
+            }
+        }
+        if (done) break;
+    }
+    g_slots_requests.erase(r->id);
+    const GenerateStats st = r->st;
+    const std::string output = r->output;
+    lock.unlock();
+
+    if (streaming && st.stop_reason != "error") stream_text(stream, "", true);
+    return make_generation_result(env, output, st);
+}
+
+// ---------------- ベンチマーク (llama-bench 相当) ----------------
+// examples/llama.android の bench_model と同じ手順：
+//   pp: n_prompt 個のランダムトークンを seq 0 に n_batch 単位で投入
+//   tg: n_gen ステップ、各ステップで n_parallel 個（seq ごとに 1 トークン）を投入
+static bool bench_prompt(llama_context* ctx, llama_batch& batch, int n_prompt, int n_batch, int n_vocab, std::mt19937& rng) {
+    std::uniform_int_distribution<int> tok(0, n_vocab - 1);
+    for (int done = 0; done < n_prompt; ) {
+        const int n = std::min(n_batch, n_prompt - done);
+        common_batch_clear(batch);
+        for (int i = 0; i < n; ++i) {
+            common_batch_add(batch, tok(rng), done + i, { 0 }, done + i == n_prompt - 1);
+        }
+        if (llama_decode(ctx, batch) != 0) return false;
+        done += n;
+    }
+    llama_synchronize(ctx);
+    return true;
+}
+
+static bool bench_gen(llama_context* ctx, llama_batch& batch, int n_gen, int n_parallel, int n_vocab, std::mt19937& rng) {
+    std::uniform_int_distribution<int> tok(0, n_vocab - 1);
+    for (int i = 0; i < n_gen; ++i) {
+        common_batch_clear(batch);
+        for (int j = 0; j < n_parallel; ++j) {
+            common_batch_add(batch, tok(rng), i, { j }, true);
+        }
+        if (llama_decode(ctx, batch) != 0) return false;
+        llama_synchronize(ctx);
+    }
+    return true;
+}
+
+// ---------------- JNI: benchModel ----------------
+// 戻り値: [pp_ms x nReps, tg_ms x nReps]。失敗時は null
+extern "C"
+JNIEXPORT jdoubleArray JNICALL
+Java_com_example_ollama_LlamaNative_benchModel(
+        JNIEnv *env, jobject,
+        jint nPrompt, jint nGen, jint nParallel, jint nBatch, jint nThreads, jint nReps
+) {
+    std::lock_guard<std::mutex> lock(g_mutex);
+
+    if (!g_model) {
+        log_to_file("bench: model not loaded");
+        return nullptr;
+    }
+    if (nPrompt < 0 || nGen < 0 || nParallel < 1 || nBatch < 1 || nThreads < 1 || nReps < 1) {
+        log_to_file("bench: invalid arguments");
+        return nullptr;
+    }
+
+    {
+        std::ostringstream ss;
+        ss << "bench: pp=" << nPrompt << " tg=" << nGen << " pl=" << nParallel
+           << " n_batch=" << nBatch << " n_threads=" << nThreads << " reps=" << nReps;
+        log_to_file(ss.str());
+    }
+
+    llama_context_params cparams = llama_context_default_params();
+    cparams.n_ctx           = (uint32_t)std::max(std::max(nPrompt, nGen * nParallel), 16) + 16;
+    cparams.n_batch         = (uint32_t)std::max(nBatch, (int)nParallel);
+    cparams.n_ubatch        = cparams.n_batch;
+    cparams.n_seq_max       = (uint32_t)nParallel;
+    cparams.n_threads       = nThreads;
+    cparams.n_threads_batch = nThreads;
+
+    llama_context* ctx = llama_init_from_model(g_model, cparams);
+    if (!ctx) {
+        log_to_file("bench: failed to create context");
+        return nullptr;
+    }
+
+    const llama_vocab* vocab = llama_model_get_vocab(g_model);
+    const int n_vocab = llama_vocab_n_tokens(vocab);
+    llama_memory_t mem = llama_get_memory(ctx);
+    llama_batch batch = llama_batch_init((int)cparams.n_batch, 0, nParallel);
+    std::mt19937 rng(42);
+
+    std::vector<double> samples((size_t)nReps * 2, 0.0);
+    bool ok = true;
+
+    // warmup
+    if (nPrompt > 0) ok = bench_prompt(ctx, batch, std::min((int)nPrompt, (int)cparams.n_batch), nBatch, n_vocab, rng);
+    llama_memory_clear(mem, false);
+    if (ok && nGen > 0) ok = bench_gen(ctx, batch, 1, nParallel, n_vocab, rng);
+    llama_memory_clear(mem, false);
+
+    for (int r = 0; ok && r < nReps; ++r) {
+        if (nPrompt > 0) {
+            auto t0 = steady_clock_t::now();
+            ok = bench_prompt(ctx, batch, nPrompt, nBatch, n_vocab, rng);
+            samples[r] = elapsed_ms(t0, steady_clock_t::now());
+            llama_memory_clear(mem, false);
+        }
+        if (ok && nGen > 0) {
+            auto t0 = steady_clock_t::now();
+            ok = bench_gen(ctx, batch, nGen, nParallel, n_vocab, rng);
+            samples[nReps + r] = elapsed_ms(t0, steady_clock_t::now());
+            llama_memory_clear(mem, false);
+        }
+    }
+
+    llama_batch_free(batch);
+    llama_free(ctx);
+
+    if (!ok) {
+        log_to_file("bench: decode failed");
+        return nullptr;
+    }
+
+    {
+        std::ostringstream ss;
+        ss << "bench: done samples_ms=";
+        for (double v : samples) ss << ' ' << v;
+        log_to_file(ss.str());
+    }
+
+    jdoubleArray out = env->NewDoubleArray((jsize)samples.size());
+    if (out) env->SetDoubleArrayRegion(out, 0, (jsize)samples.size(), samples.data());
+    return out;
+}
+
+// ---------------- JNI: benchDecoding ----------------
+// 同じプロンプトを mode で nReps 回 generate し、1 回ごとに [decode_ms, 生成トークン数, decode 回数] を返す。
+// サンプラー設定は現在のもの。デコード方式は終わったら元に戻す
+extern "C"
+JNIEXPORT jdoubleArray JNICALL
+Java_com_example_ollama_LlamaNative_benchDecoding(
+        JNIEnv *env, jobject,
+        jstring jPrompt, jstring jMode, jint nGen, jint nReps
+) {
+    std::string prompt = jstring_to_std(env, jPrompt);
+    std::string mode   = jstring_to_std(env, jMode);
+
+    std::lock_guard<std::mutex> lock(g_mutex);
+
+    if (!g_model) {
+        log_to_file("bench: model not loaded");
+        return nullptr;
+    }
+    if (!is_decoding_mode(mode) || nGen < 1 || nReps < 1) {
+        log_to_file("bench: invalid arguments");
+        return nullptr;
+    }
+
+    {
+        std::ostringstream ss;
+        ss << "bench: decoding mode=" << mode << " n_gen=" << nGen << " reps=" << nReps;
+        log_to_file(ss.str());
+    }
+
+    const std::string saved_mode = g_decoding_mode;
+    g_decoding_mode = mode;
+
+    std::vector<double> samples((size_t)nReps * 3, 0.0);
+    bool ok = true;
+
+    // warmup（lookahead の context 作り直しや draft model の読み込みもここで済ませる）
+    {
+        GenerateStats st;
+        run_generate(prompt, steady_clock_t::now(), st, std::min((int)nGen, 8));
+        ok = st.stop_reason != "error";
+    }
+    for (int r = 0; ok && r < nReps; ++r) {
+        GenerateStats st;
+        run_generate(prompt, steady_clock_t::now(), st, nGen);
+        ok = st.stop_reason != "error";
+        samples[r * 3 + 0] = st.decode_ms;
+        samples[r * 3 + 1] = st.gen_tokens;
+        samples[r * 3 + 2] = st.decode_steps;
+    }
+
+    g_decoding_mode = saved_mode;
+
+    if (!ok) {
+        log_to_file("bench: generate failed");
+        return nullptr;
+    }
+
+    jdoubleArray out = env->NewDoubleArray((jsize)samples.size());
+    if (out) env->SetDoubleArrayRegion(out, 0, (jsize)samples.size(), samples.data());
+    return out;
+}
+
+// ---------------- 埋め込み ----------------
+static const int EMBD_MAX_SEQ = 64;   // llama-cparams.h の LLAMA_MAX_SEQ
+
+static std::string ensure_embd_context() {
+    if (g_embd_ctx) return "";
+
+    llama_context_params cparams = llama_context_default_params();
+    cparams.embeddings      = true;
+    cparams.n_ctx           = (uint32_t)g_embd_n_batch;
+    // pooling は seq 単位で 1 つの ubatch に収まっている必要がある
+    cparams.n_batch         = (uint32_t)g_embd_n_batch;
+    cparams.n_ubatch        = (uint32_t)g_embd_n_batch;
+    cparams.n_seq_max       = EMBD_MAX_SEQ;
+    cparams.n_threads       = g_n_threads;
+    cparams.n_threads_batch = g_n_threads;
+    cparams.pooling_type    = g_embd_pooling == "mean" ? LLAMA_POOLING_TYPE_MEAN
+                            : g_embd_pooling == "cls"  ? LLAMA_POOLING_TYPE_CLS
+                            : g_embd_pooling == "last" ? LLAMA_POOLING_TYPE_LAST
+                            : LLAMA_POOLING_TYPE_UNSPECIFIED;
+
+    auto t0 = steady_clock_t::now();
+    g_embd_ctx = llama_init_from_model(g_model, cparams);
+    if (g_embd_ctx && llama_pooling_type(g_embd_ctx) == LLAMA_POOLING_TYPE_NONE) {
+        // 生成用モデルは pooling を持たないので mean にする
+        llama_free(g_embd_ctx);
+        cparams.pooling_type = LLAMA_POOLING_TYPE_MEAN;
+        g_embd_ctx = llama_init_from_model(g_model, cparams);
+    }
+    if (!g_embd_ctx) return "failed to create embedding context";
+    attach_threadpools(g_embd_ctx, g_pools);
+    if (llama_pooling_type(g_embd_ctx) == LLAMA_POOLING_TYPE_RANK) {
+        free_embd_context();
+        return "rank pooling (reranker) models are not supported by embed";
+    }
+
+    std::ostringstream ss;
+    ss << "embed: context created in " << elapsed_ms(t0, steady_clock_t::now())
+       << " ms pooling=" << (int)llama_pooling_type(g_embd_ctx) << " n_batch=" << g_embd_n_batch;
+    log_to_file(ss.str());
+    return "";
+}
+
+// ---------------- JNI: setEmbeddingParameters ----------------
+// pooling: "auto", "mean", "cls", "last"。nBatch は 1 回の decode に詰める最大トークン数（1 テキストの上限も兼ねる）
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_example_ollama_LlamaNative_setEmbeddingParameters(
+        JNIEnv *env, jobject,
+        jstring jPooling, jint nBatch
+) {
+    std::string pooling = jstring_to_std(env, jPooling);
+
+    std::lock_guard<std::mutex> lock(g_mutex);
+    if (pooling != "auto" && pooling != "mean" && pooling != "cls" && pooling != "last") {
+        log_to_file("setEmbeddingParameters: unknown pooling \"" + pooling + "\", using auto");
+        pooling = "auto";
+    }
+    const int n_batch = std::max(64, (int)nBatch);
+    if (pooling != g_embd_pooling || n_batch != g_embd_n_batch) {
+        free_embd_context();
+    }
+    g_embd_pooling = pooling;
+    g_embd_n_batch = n_batch;
+
+    std::ostringstream ss;
+    ss << "setEmbeddingParameters: pooling=" << pooling << " n_batch=" << n_batch;
+    log_to_file(ss.str());
+}
+
+// ---------------- JNI: getEmbeddingSize ----------------
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_example_ollama_LlamaNative_getEmbeddingSize(
+        JNIEnv *, jobject
+) {
+    std::lock_guard<std::mutex> lock(g_mutex);
+    return g_model ? llama_model_n_embd(g_model) : 0;
+}
+
+// ---------------- JNI: embedInto ----------------
+// texts を L2 正規化した埋め込みにして out（direct buffer、native byte order）へ texts.length * n_embd 個の float で書く。
+// 複数テキストを別 seq として 1 つの llama_batch に詰め、n_batch トークンか 64 本に達するまで 1 回の decode で処理する
+extern "C"
+JNIEXPORT jstring JNICALL
+Java_com_example_ollama_LlamaNative_embedInto(
+        JNIEnv *env, jobject,
+        jobjectArray jTexts, jobject jOut
+) {
+    const int n_texts = jTexts ? env->GetArrayLength(jTexts) : 0;
+    std::vector<std::string> texts(n_texts);
+    for (int i = 0; i < n_texts; ++i) {
+        jstring js = (jstring)env->GetObjectArrayElement(jTexts, i);
+        texts[i] = jstring_to_std(env, js);
+        if (js) env->DeleteLocalRef(js);
+    }
+
+    float* out = jOut ? (float*)env->GetDirectBufferAddress(jOut) : nullptr;
+    const jlong out_bytes = jOut ? env->GetDirectBufferCapacity(jOut) : -1;
+
+    std::lock_guard<std::mutex> lock(g_mutex);
+
+    if (!g_model) {
+        log_to_file("embed: not initialized");
+        return env->NewStringUTF("not initialized");
+    }
+    const int n_embd = llama_model_n_embd(g_model);
+    if (!out || out_bytes < (jlong)n_texts * n_embd * (jlong)sizeof(float)) {
+        log_to_file("embed: output buffer is not direct or too small");
+        return env->NewStringUTF("output must be a direct buffer of texts.length * embeddingSize floats");
+    }
+    if (n_texts == 0) return env->NewStringUTF("ok");
+
+    {
+        std::string err = ensure_embd_context();
+        if (!err.empty()) {
+            log_to_file("embed: " + err);
+            return env->NewStringUTF(err.c_str());
+        }
+    }
+    PoolPlacement placement(g_pools);
+
+    auto t0 = steady_clock_t::now();
+    const llama_vocab* vocab = llama_model_get_vocab(g_model);
+    llama_memory_t mem = llama_get_memory(g_embd_ctx);
+    llama_batch batch = llama_batch_init(g_embd_n_batch, 0, 1);
+
+    int n_decode = 0;
+    int n_tokens_total = 0;
+    int n_truncated = 0;
+    std::string err;
+
+    // batch に入っている texts の範囲 [first, next)
+    auto flush = [&](int first, int next) -> bool {
+        if (mem) llama_memory_clear(mem, true);
+        if (llama_decode(g_embd_ctx, batch) != 0) return false;
+        for (int i = first; i < next; ++i) {
+            const float* e = llama_get_embeddings_seq(g_embd_ctx, i - first);
+            if (!e) return false;
+            common_embd_normalize(e, out + (size_t)i * n_embd, n_embd, 2);
+        }
+        n_decode++;
+        common_batch_clear(batch);
+        return true;
+    };
+
+    int first = 0;
+    for (int i = 0; i < n_texts && err.empty(); ++i) {
+        std::vector<llama_token> toks = common_tokenize(vocab, texts[i], true, true);
+        if (toks.empty()) {
+            // BOS を付けないモデルの空文字列。seq にトークンが無いと埋め込みが取れない
+            llama_token t = llama_vocab_eos(vocab);
+            toks.push_back(t == LLAMA_TOKEN_NULL ? 0 : t);
+        }
+        if ((int)toks.size() > g_embd_n_batch) {
+            toks.resize(g_embd_n_batch);
+            n_truncated++;
+        }
+        if (batch.n_tokens + (int)toks.size() > g_embd_n_batch || i - first >= EMBD_MAX_SEQ) {
+            if (!flush(first, i)) err = "decode failed (embedding)";
+            first = i;
+        }
+        for (size_t k = 0; k < toks.size(); ++k) {
+            common_batch_add(batch, toks[k], (llama_pos)k, { i - first }, true);
+        }
+        n_tokens_total += (int)toks.size();
+    }
+    if (err.empty() && batch.n_tokens > 0 && !flush(first, n_texts)) {
+        err = "decode failed (embedding)";
+    }
+
+    llama_batch_free(batch);
+    if (mem) llama_memory_clear(mem, true);
+
+    const double ms = elapsed_ms(t0, steady_clock_t::now());
+    std::ostringstream ss;
+    ss << "embed: texts=" << n_texts << " tokens=" << n_tokens_total << " decodes=" << n_decode
+       << " truncated=" << n_truncated << " " << ms << " ms ("
+       << (ms > 0 ? n_texts * 1000.0 / ms : 0.0) << " texts/s)";
+    if (!err.empty()) ss << " error=" << err;
+    log_to_file(ss.str());
+
+    return env->NewStringUTF(err.empty() ? "ok" : err.c_str());
+}
+
+// ---------------- トークナイズ ----------------
+// tokenize / detokenize / countTokens は vocab しか触らないので g_model_rw の共有ロックだけで動く。
+// 生成や埋め込みの最中でも待たされず、複数スレッドから並列に呼べる
+
+// ---------------- JNI: getChatTemplate ----------------
+// モデルに埋め込まれた chat template（tokenizer.chat_template）。無い・未ロードなら null
+extern "C"
+JNIEXPORT jstring JNICALL
+Java_com_example_ollama_LlamaNative_getChatTemplate(
+        JNIEnv *env, jobject
+) {
+    std::shared_lock<std::shared_mutex> rlock(g_model_rw);
+    if (!g_model) return nullptr;
+    const char* tmpl = llama_model_chat_template(g_model, nullptr);
+    return tmpl ? utf8_to_jstring(env, tmpl) : nullptr;
+}
+
+// msgs を template で整形して assistant の開始まで付ける。llama.cpp が知らない形式なら null
+static jstring render_chat(JNIEnv* env, const std::string& tmpl, const std::vector<llama_chat_message>& msgs,
+                           size_t text_bytes, const char* who) {
+    std::vector<char> buf(2 * text_bytes + 256);
+    int32_t n = llama_chat_apply_template(tmpl.c_str(), msgs.data(), msgs.size(), true, buf.data(), (int32_t)buf.size());
+    if (n > (int32_t)buf.size()) {
+        buf.resize(n);
+        n = llama_chat_apply_template(tmpl.c_str(), msgs.data(), msgs.size(), true, buf.data(), (int32_t)buf.size());
+    }
+    if (n < 0) {
+        log_to_file(std::string(who) + ": unsupported template");
+        return nullptr;
+    }
+    return utf8_to_jstring(env, std::string(buf.data(), n));
+}
+
+// ---------------- JNI: applyChatTemplate ----------------
+// system（空なら省く）と user の 2 メッセージを template で整形し、assistant の開始まで付けて返す。
+// template は Jinja 文字列（getChatTemplate）か "chatml" などの組み込み名。llama.cpp が知らない形式なら null。
+// モデルを使わないので未ロードでも呼べる
+extern "C"
+JNIEXPORT jstring JNICALL
+Java_com_example_ollama_LlamaNative_applyChatTemplate(
+        JNIEnv *env, jobject,
+        jstring jTemplate, jstring jSystem, jstring jUser
+) {
+    const std::string tmpl   = jstring_to_std(env, jTemplate);
+    const std::string system = jstring_to_std(env, jSystem);
+    const std::string user   = jstring_to_std(env, jUser);
+    if (tmpl.empty()) return nullptr;
+
+    std::vector<llama_chat_message> msgs;
+    if (!system.empty()) msgs.push_back({ "system", system.c_str() });
+    msgs.push_back({ "user", user.c_str() });
+    return render_chat(env, tmpl, msgs, system.size() + user.size(), "applyChatTemplate");
+}
+
+// ---------------- JNI: applyChatMessages ----------------
+// roles[i] / contents[i] の会話全体を template で整形し、assistant の開始まで付けて返す（applyChatTemplate の複数メッセージ版）
+extern "C"
+JNIEXPORT jstring JNICALL
+Java_com_example_ollama_LlamaNative_applyChatMessages(
+        JNIEnv *env, jobject,
+        jstring jTemplate, jobjectArray jRoles, jobjectArray jContents
+) {
+    const std::string tmpl = jstring_to_std(env, jTemplate);
+    if (tmpl.empty() || !jRoles || !jContents) return nullptr;
+    const jsize n = env->GetArrayLength(jRoles);
+    if (env->GetArrayLength(jContents) != n) return nullptr;
+
+    std::vector<std::string> roles(n), contents(n);
+    size_t total = 0;
+    for (jsize i = 0; i < n; ++i) {
+        jstring r = (jstring)env->GetObjectArrayElement(jRoles, i);
+        jstring c = (jstring)env->GetObjectArrayElement(jContents, i);
+        roles[i]    = jstring_to_std(env, r);
+        contents[i] = jstring_to_std(env, c);
+        if (r) env->DeleteLocalRef(r);
+        if (c) env->DeleteLocalRef(c);
+        total += roles[i].size() + contents[i].size();
+    }
+    std::vector<llama_chat_message> msgs;
+    for (jsize i = 0; i < n; ++i) msgs.push_back({ roles[i].c_str(), contents[i].c_str() });
+    return render_chat(env, tmpl, msgs, total, "applyChatMessages");
+}
+
+// ---------------- JNI: setPromptPrefix ----------------
+// generate() に渡すプロンプトのうち毎回同じ先頭部分。トークン列をキャッシュし、これで始まるプロンプトは残りだけ変換する
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_example_ollama_LlamaNative_setPromptPrefix(
+        JNIEnv *env, jobject,
+        jstring jPrefix
+) {
+    std::string prefix = jstring_to_std(env, jPrefix);
+
+    std::lock_guard<std::mutex> lock(g_mutex);
+    if (prefix == g_prompt_prefix.prefix) return;
+    g_prompt_prefix.prefix = prefix;
+    g_prompt_prefix.built  = false;
+
+    std::ostringstream ss;
+    ss << "setPromptPrefix: " << prefix.size() << " bytes";
+    log_to_file(ss.str());
+}
+
+// ---------------- JNI: countTokens ----------------
+// addSpecial: BOS などを付ける。parseSpecial: テキスト中の "<|im_start|>" などを special トークンとして読む
+// （generate() は addSpecial = false, parseSpecial = true で数える）。未初期化なら -1
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_example_ollama_LlamaNative_countTokens(
+        JNIEnv *env, jobject,
+        jstring jText, jboolean addSpecial, jboolean parseSpecial
+) {
+    std::string text = jstring_to_std(env, jText);
+
+    std::shared_lock<std::shared_mutex> rlock(g_model_rw);
+    if (!g_model) return -1;
+
+    // 出力先なしで呼ぶと必要なトークン数が負で返る
+    const llama_vocab* vocab = llama_model_get_vocab(g_model);
+    return -llama_tokenize(vocab, text.data(), (int32_t)text.size(), nullptr, 0, addSpecial, parseSpecial);
+}
+
+// ---------------- JNI: tokenize ----------------
+// out（direct IntBuffer、native byte order）の先頭からトークン id を書き、個数を返す。
+// 容量が足りなければ何も書かずに -(必要な個数) を返す。未初期化なら RuntimeException
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_example_ollama_LlamaNative_tokenize(
+        JNIEnv *env, jobject,
+        jstring jText, jboolean addSpecial, jboolean parseSpecial, jobject jOut
+) {
+    std::string text = jstring_to_std(env, jText);
+    llama_token* out = jOut ? (llama_token*)env->GetDirectBufferAddress(jOut) : nullptr;
+    const jlong capacity = jOut ? env->GetDirectBufferCapacity(jOut) : -1;
+    if (!out || capacity < 0) {
+        throw_java_exception(env, "tokenize: out must be a direct IntBuffer");
+        return 0;
+    }
+
+    std::shared_lock<std::shared_mutex> rlock(g_model_rw);
+    if (!g_model) {
+        throw_java_exception(env, "not initialized");
+        return 0;
+    }
+
+    const llama_vocab* vocab = llama_model_get_vocab(g_model);
+    return llama_tokenize(vocab, text.data(), (int32_t)text.size(), out,
+                          (int32_t)std::min<jlong>(capacity, INT32_MAX), addSpecial, parseSpecial);
+}
+
+// ---------------- JNI: detokenize ----------------
+// tokens（direct IntBuffer）の先頭 count 個を文字列に戻す。unparseSpecial なら special トークンも文字列にする。
+// 途中で切れた UTF-8 は U+FFFD に置き換える
+extern "C"
+JNIEXPORT jstring JNICALL
+Java_com_example_ollama_LlamaNative_detokenize(
+        JNIEnv *env, jobject,
+        jobject jTokens, jint count, jboolean unparseSpecial
+) {
+    const llama_token* tokens = jTokens ? (const llama_token*)env->GetDirectBufferAddress(jTokens) : nullptr;
+    const jlong capacity = jTokens ? env->GetDirectBufferCapacity(jTokens) : -1;
+    if (!tokens || count < 0 || capacity < count) {
+        throw_java_exception(env, "detokenize: tokens must be a direct IntBuffer holding count ids");
+        return nullptr;
+    }
+
+    std::string text;
+    {
+        std::shared_lock<std::shared_mutex> rlock(g_model_rw);
+        if (!g_model) {
+            throw_java_exception(env, "not initialized");
+            return nullptr;
+        }
+        const llama_vocab* vocab = llama_model_get_vocab(g_model);
+        const int n_vocab = llama_vocab_n_tokens(vocab);
+        for (jint i = 0; i < count; ++i) {
+            if (tokens[i] < 0 || tokens[i] >= n_vocab) {
+                throw_java_exception(env, "detokenize: token id out of range");
+                return nullptr;
+            }
+        }
+
+        text.resize(std::max(16, count * 8));
+        int n = llama_detokenize(vocab, tokens, count, &text[0], (int32_t)text.size(), false, unparseSpecial);
+        if (n < 0) {
+            text.resize(-n);
+            n = llama_detokenize(vocab, tokens, count, &text[0], (int32_t)text.size(), false, unparseSpecial);
+        }
+        text.resize(std::max(0, n));
+    }
+    return utf8_to_jstring(env, text);
+}
+
+// ---------------- JNI: getContextSize ----------------
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_example_ollama_LlamaNative_getContextSize(
+        JNIEnv *, jobject
+) {
+    return g_n_ctx;
+}
+
+// ---------------- JNI: getModelInfo ----------------
+// ロード済みモデルの概要を JSON 文字列で返す（未ロード時は "{}"）
+extern "C"
+JNIEXPORT jstring JNICALL
+Java_com_example_ollama_LlamaNative_getModelInfo(
+        JNIEnv *env, jobject
+) {
+    std::lock_guard<std::mutex> lock(g_mutex);
+    if (!g_model) return env->NewStringUTF("{}");
+
+    char desc[256];
+    llama_model_desc(g_model, desc, sizeof(desc));
+    const llama_vocab* vocab = llama_model_get_vocab(g_model);
+
+    std::ostringstream ss;
+    ss << "{\"desc\":\"" << desc << "\""
+       << ",\"size\":" << llama_model_size(g_model)
+       << ",\"n_params\":" << llama_model_n_params(g_model)
+       << ",\"n_embd\":" << llama_model_n_embd(g_model)
+       << ",\"n_layer\":" << llama_model_n_layer(g_model)
+       << ",\"n_ctx_train\":" << llama_model_n_ctx_train(g_model)
+       << ",\"n_vocab\":" << llama_vocab_n_tokens(vocab)
+       << ",\"n_ctx\":" << (g_ctx ? (int)llama_n_ctx(g_ctx) : 0)
+       << ",\"kv_type_k\":\"" << ggml_type_name(g_type_k) << "\""
+       << ",\"kv_type_v\":\"" << ggml_type_name(g_type_v) << "\""
+       << ",\"flash_attn\":" << (g_flash_attn ? "true" : "false")
+       << ",\"kv_bytes\":" << (g_ctx ? kv_cache_bytes(g_model, llama_n_ctx(g_ctx), g_type_k, g_type_v) : 0)
+       << ",\"cpu_variant\":\"" << g_cpu_variant << "\""
+       << "}";
+    return env->NewStringUTF(ss.str().c_str());
+}
+
+// ---------------- JNI: getCpuBackendInfo ----------------
+// 選択された ggml-cpu variant と CPU 機能を JSON 文字列で返す（init() 前は variant が空）
+extern "C"
+JNIEXPORT jstring JNICALL
+Java_com_example_ollama_LlamaNative_getCpuBackendInfo(
+        JNIEnv *env, jobject
+) {
+    std::lock_guard<std::mutex> lock(g_mutex);
+    return env->NewStringUTF(cpu_backend_info_json().c_str());
+}
+
+// ---------------- JNI: setThreadPoolParameters ----------------
+// decode / prefill 用スレッドプールの CPU（"" = 性能コア、"all" = 縛らない、"0-3,6"）、優先度（-1..2）、polling（0-100）。
+// 次の init()（並列スロットは次に context を作るとき）から効く。enabled = false で llama.cpp 既定のスレッド処理に戻す
+extern "C"
+JNIEXPORT jstring JNICALL
+Java_com_example_ollama_LlamaNative_setThreadPoolParameters(
+        JNIEnv *env, jobject,
+        jboolean enabled, jstring jDecodeCpus, jstring jPrefillCpus, jint priority, jint decodePoll, jint prefillPoll
+) {
+    const std::string decode_cpus  = jstring_to_std(env, jDecodeCpus);
+    const std::string prefill_cpus = jstring_to_std(env, jPrefillCpus);
+
+    std::vector<int> cpus;
+    for (const std::string* spec : { &decode_cpus, &prefill_cpus }) {
+        if (!spec->empty() && *spec != "all" && !parse_cpu_list(*spec, cpus)) {
+            return env->NewStringUTF(("invalid CPU list: " + *spec).c_str());
+        }
+    }
+    if (priority < -1 || priority > 2) return env->NewStringUTF("priority must be -1 (low) to 2 (high)");
+    if (decodePoll < 0 || decodePoll > 100 || prefillPoll < 0 || prefillPoll > 100) {
+        return env->NewStringUTF("poll must be 0-100");
+    }
+
+    std::lock_guard<std::mutex> lock(g_mutex);
+    g_tp_enabled         = enabled;
+    g_tp_priority        = priority;
+    g_tp_decode_cfg.cpus = decode_cpus;
+    g_tp_decode_cfg.poll = decodePoll;
+    g_tp_batch_cfg.cpus  = prefill_cpus;
+    g_tp_batch_cfg.poll  = prefillPoll;
+
+    std::ostringstream ss;
+    ss << "setThreadPoolParameters: enabled=" << (enabled ? 1 : 0) << " decode_cpus=\"" << decode_cpus
+       << "\" prefill_cpus=\"" << prefill_cpus << "\" priority=" << priority
+       << " poll=" << decodePoll << "/" << prefillPoll;
+    log_to_file(ss.str());
+    return env->NewStringUTF("ok");
+}
+
+// ---------------- JNI: getThreadPoolInfo ----------------
+// 検出した CPU と今のスレッドプールを JSON 文字列で返す（threadpool_info_json）
+extern "C"
+JNIEXPORT jstring JNICALL
+Java_com_example_ollama_LlamaNative_getThreadPoolInfo(
+        JNIEnv *env, jobject
+) {
+    std::lock_guard<std::mutex> lock(g_mutex);
+    return env->NewStringUTF(threadpool_info_json().c_str());
+}
+
+// ---------------- JNI: createSyntheticModel ----------------
+extern "C"
+JNIEXPORT jstring JNICALL
+Java_com_example_ollama_LlamaNative_createSyntheticModel(
+        JNIEnv *env, jobject,
+        jstring jPath, jint nEmbd, jint nLayer, jstring jWeightType
+) {
+    SyntheticModelParams params;
+    params.n_embd      = nEmbd;
+    params.n_layer     = nLayer;
+    params.weight_type = jstring_to_std(env, jWeightType);
+
+    std::string path = jstring_to_std(env, jPath);
+    std::string err = write_synthetic_model(path, params);
+    {
+        std::ostringstream ss;
+        ss << "createSyntheticModel: path=" << path << " n_embd=" << nEmbd
+           << " n_layer=" << nLayer << " type=" << params.weight_type
+           << " result=" << (err.empty() ? "ok" : err);
+        log_to_file(ss.str());
+    }
+    return env->NewStringUTF(err.empty() ? "ok" : err.c_str());
+}
+
+// ---------------- メモリ解放（onTrimMemory） ----------------
+// 段階ごとに捨てるもの（前の段階の分も含む）:
+//   1 キャッシュ: prompt prefix のトークン列、grammar のキャッシュ、KV の再利用、埋め込み context、空いている並列スロットの context
+//   2 context を縮める: draft model と、g_ctx を半分の長さで作り直す（SHED_MIN_CTX まで。次の init() で設定の長さに戻る）
+//   3 context を捨てる: g_ctx（次の generate で g_n_ctx の長さに作り直す）
+//   4 モデルを捨てる: free() と同じ（使うには init() し直す）
+// 捨てたものはどれも必要になったときに作り直されるので、生成の結果は変わらず次の 1 回が遅くなるだけ
+static const int SHED_MIN_CTX = 512;
+
+// g_mutex を持って呼ぶ。{"stage", "released":[...], "freed_bytes", "n_ctx", "model_loaded"} を返す
+static std::string shed_memory(int stage) {
+    std::vector<std::string> released;
+    size_t freed = 0;
+    auto ctx_kv_bytes = [](llama_context* ctx) {
+        return ctx ? kv_cache_bytes(g_model, llama_n_ctx(ctx), g_type_k, g_type_v) : (size_t)0;
+    };
+
+    if (stage >= 1) {
+        if (!g_prompt_prefix.tokens.empty()) {
+            g_prompt_prefix.built = false;
+            std::vector<llama_token>().swap(g_prompt_prefix.tokens);
+            released.push_back("prompt_prefix");
+        }
+        if (g_grammar_cache.size() > 0) {
+            g_grammar_cache.clear();
+            released.push_back("grammar_cache");
+        }
+        if (!g_kv_tokens.empty()) {
+            g_kv_tokens.clear();
+            released.push_back("kv_reuse");
+        }
+        if (g_embd_ctx) {
+            free_embd_context();
+            released.push_back("embedding_context");
+        }
+        bool slots_idle;
+        {
+            std::lock_guard<std::mutex> slock(g_slots_mutex);
+            slots_idle = g_slots_queue.empty()
+                && std::none_of(g_slots.begin(), g_slots.end(), [](const Slot& s) { return (bool)s.req; });
+        }
+        if (g_slots_ctx && slots_idle) {
+            freed += ctx_kv_bytes(g_slots_ctx);
+            slots_shutdown("memory trimmed");
+            released.push_back("parallel_context");
+        }
+    }
+    if (stage >= 2 && g_draft_model) {
+        freed += llama_model_size(g_draft_model) + ctx_kv_bytes(g_draft_ctx);
+        free_draft_model();
+        released.push_back("draft_model");
+    }
+    if (stage == 2 && g_ctx && (int)llama_n_ctx(g_ctx) > SHED_MIN_CTX) {
+        const size_t before = ctx_kv_bytes(g_ctx);
+        llama_free(g_ctx);
+        g_ctx   = nullptr;
+        g_n_ctx = std::max(SHED_MIN_CTX, g_n_ctx / 2);
+        std::string err = ensure_main_context();
+        if (err.empty()) {
+            freed += before - std::min(before, ctx_kv_bytes(g_ctx));
+            released.push_back("context_shrunk");
+        } else {
+            // 縮めても作れないときは捨てたままにする（次の generate でもう一度試す）
+            freed += before;
+            released.push_back("context");
+            log_to_file("shedMemory: " + err);
+        }
+    }
+    if (stage >= 3 && g_ctx) {
+        freed += ctx_kv_bytes(g_ctx);
+        llama_free(g_ctx);
+        g_ctx = nullptr;
+        g_prompt_prefix.built = false;
+        g_kv_tokens.clear();
+        released.push_back("context");
+    }
+    if (stage >= 4 && g_model) {
+        freed += llama_model_size(g_model);
+        free_model_resources();
+        released.push_back("model");
+    }
+
+    std::ostringstream ss;
+    ss << "{\"stage\":" << stage << ",\"released\":[";
+    for (size_t i = 0; i < released.size(); ++i) ss << (i ? "," : "") << "\"" << released[i] << "\"";
+    ss << "],\"freed_bytes\":" << freed
+       << ",\"n_ctx\":" << (g_ctx ? (int)llama_n_ctx(g_ctx) : 0)
+       << ",\"model_loaded\":" << (g_model ? "true" : "false") << "}";
+    return ss.str();
+}
+
+// ---------------- JNI: shedMemory ----------------
+// stage 1-4 まで（shed_memory の表）の資源を捨て、結果を JSON で返す。実行中の生成が終わるまで待つ
+extern "C"
+JNIEXPORT jstring JNICALL
+Java_com_example_ollama_LlamaNative_shedMemory(
+        JNIEnv *env, jobject,
+        jint stage
+) {
+    std::lock_guard<std::mutex> lock(g_mutex);
+    const std::string json = shed_memory(std::max(1, std::min(4, (int)stage)));
+    log_to_file("shedMemory: " + json);
+    return env->NewStringUTF(json.c_str());
+}
+
 // ---------------- JNI: free ----------------
 extern "C"
 JNIEXPORT void JNICALL
@@ -0,0 +1,178 @@
+#include <jni.h>
+
+#include <string>
+#include <vector>
+
+#include "vector_index.h"
+
+// com.example.ollama.VectorIndex の native 側。Java オブジェクトの long handle に VectorIndex* を持つ。
+// 同じオブジェクトへの呼び出しは Java 側で synchronized にしてあるので、ここでは handle の寿命だけ扱う
+
+static jfieldID handle_field(JNIEnv *env, jobject thiz) {
+    jclass cls = env->GetObjectClass(thiz);
+    jfieldID fid = env->GetFieldID(cls, "handle", "J");
+    env->DeleteLocalRef(cls);
+    return fid;
+}
+
+static VectorIndex* get_index(JNIEnv *env, jobject thiz) {
+    return reinterpret_cast<VectorIndex*>(env->GetLongField(thiz, handle_field(env, thiz)));
+}
+
+static VectorIndex* get_or_create_index(JNIEnv *env, jobject thiz) {
+    VectorIndex* index = get_index(env, thiz);
+    if (!index) {
+        index = new VectorIndex();
+        env->SetLongField(thiz, handle_field(env, thiz), reinterpret_cast<jlong>(index));
+    }
+    return index;
+}
+
+static std::string jstring_to_std_vi(JNIEnv *env, jstring jstr) {
+    if (!jstr) return std::string();
+    const char* chars = env->GetStringUTFChars(jstr, nullptr);
+    std::string s(chars ? chars : "");
+    if (chars) env->ReleaseStringUTFChars(jstr, chars);
+    return s;
+}
+
+static jstring result_string(JNIEnv *env, const std::string& err) {
+    return env->NewStringUTF(err.empty() ? "ok" : err.c_str());
+}
+
+// ---------------- JNI: VectorIndex.nativeCreate ----------------
+extern "C"
+JNIEXPORT jstring JNICALL
+Java_com_example_ollama_VectorIndex_nativeCreate(
+        JNIEnv *env, jobject thiz,
+        jstring jPath, jint dim, jstring jQuant
+) {
+    const std::string quant = jstring_to_std_vi(env, jQuant);
+    VectorIndex::Quant q;
+    if (quant == "int8") {
+        q = VectorIndex::QUANT_INT8;
+    } else if (quant == "binary") {
+        q = VectorIndex::QUANT_BINARY;
+    } else {
+        return env->NewStringUTF(("unknown quantization: " + quant).c_str());
+    }
+    return result_string(env, get_or_create_index(env, thiz)->create(jstring_to_std_vi(env, jPath), (int)dim, q));
+}
+
+// ---------------- JNI: VectorIndex.nativeOpen ----------------
+extern "C"
+JNIEXPORT jstring JNICALL
+Java_com_example_ollama_VectorIndex_nativeOpen(
+        JNIEnv *env, jobject thiz,
+        jstring jPath
+) {
+    return result_string(env, get_or_create_index(env, thiz)->open(jstring_to_std_vi(env, jPath)));
+}
+
+// ---------------- JNI: VectorIndex.nativeAdd ----------------
+// vectors は direct FloatBuffer。offset（float 単位）から count 本を読む
+extern "C"
+JNIEXPORT jstring JNICALL
+Java_com_example_ollama_VectorIndex_nativeAdd(
+        JNIEnv *env, jobject thiz,
+        jobject jVectors, jint offset, jint count
+) {
+    VectorIndex* index = get_index(env, thiz);
+    if (!index) return env->NewStringUTF("vector index is not open");
+
+    const float* data = jVectors ? (const float*)env->GetDirectBufferAddress(jVectors) : nullptr;
+    const jlong capacity = jVectors ? env->GetDirectBufferCapacity(jVectors) : -1;
+    if (!data || offset < 0 || count < 0
+            || capacity < (jlong)offset + (jlong)count * index->dim()) {
+        return env->NewStringUTF("vectors must be a direct FloatBuffer holding count * dim floats");
+    }
+    return result_string(env, index->add(data + offset, (size_t)count));
+}
+
+// ---------------- JNI: VectorIndex.nativeBuildHnsw ----------------
+extern "C"
+JNIEXPORT jstring JNICALL
+Java_com_example_ollama_VectorIndex_nativeBuildHnsw(
+        JNIEnv *env, jobject thiz,
+        jint m, jint efConstruction
+) {
+    VectorIndex* index = get_index(env, thiz);
+    if (!index) return env->NewStringUTF("vector index is not open");
+    return result_string(env, index->build_hnsw((int)m, (int)efConstruction));
+}
+
+// ---------------- JNI: VectorIndex.search ----------------
+// 上位 k 件の id / score を ids / scores に書き、件数を返す（未オープンや引数不正は -1）
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_example_ollama_VectorIndex_search(
+        JNIEnv *env, jobject thiz,
+        jfloatArray jQuery, jint k, jint ef, jintArray jIds, jfloatArray jScores
+) {
+    VectorIndex* index = get_index(env, thiz);
+    if (!index || !jQuery || !jIds || !jScores) return -1;
+    if (env->GetArrayLength(jQuery) < index->dim()
+            || env->GetArrayLength(jIds) < k || env->GetArrayLength(jScores) < k) {
+        return -1;
+    }
+
+    // 検索は数 ms なので critical のまま回す（クエリのコピーを避ける）
+    std::vector<VectorIndex::Hit> hits;
+    {
+        float* query = (float*)env->GetPrimitiveArrayCritical(jQuery, nullptr);
+        if (!query) return -1;
+        hits = index->search(query, (int)k, (int)ef);
+        env->ReleasePrimitiveArrayCritical(jQuery, query, JNI_ABORT);
+    }
+
+    std::vector<jint> ids(hits.size());
+    std::vector<jfloat> scores(hits.size());
+    for (size_t i = 0; i < hits.size(); ++i) {
+        ids[i] = hits[i].id;
+        scores[i] = hits[i].score;
+    }
+    env->SetIntArrayRegion(jIds, 0, (jsize)hits.size(), ids.data());
+    env->SetFloatArrayRegion(jScores, 0, (jsize)hits.size(), scores.data());
+    return (jint)hits.size();
+}
+
+// ---------------- JNI: VectorIndex.size / dim / hasGraph / quant ----------------
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_example_ollama_VectorIndex_size(JNIEnv *env, jobject thiz) {
+    VectorIndex* index = get_index(env, thiz);
+    return index ? (jint)index->size() : 0;
+}
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_example_ollama_VectorIndex_dim(JNIEnv *env, jobject thiz) {
+    VectorIndex* index = get_index(env, thiz);
+    return index ? (jint)index->dim() : 0;
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_com_example_ollama_VectorIndex_hasGraph(JNIEnv *env, jobject thiz) {
+    VectorIndex* index = get_index(env, thiz);
+    return index && index->has_graph() ? JNI_TRUE : JNI_FALSE;
+}
+
+extern "C"
+JNIEXPORT jstring JNICALL
+Java_com_example_ollama_VectorIndex_quant(JNIEnv *env, jobject thiz) {
+    VectorIndex* index = get_index(env, thiz);
+    if (!index || index->dim() == 0) return env->NewStringUTF("");
+    return env->NewStringUTF(index->quant() == VectorIndex::QUANT_INT8 ? "int8" : "binary");
+}
+
+// ---------------- JNI: VectorIndex.close ----------------
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_example_ollama_VectorIndex_close(JNIEnv *env, jobject thiz) {
+    VectorIndex* index = get_index(env, thiz);
+    if (index) {
+        delete index;
+        env->SetLongField(thiz, handle_field(env, thiz), 0);
+    }
+}
@@ -0,0 +1,202 @@
+#include "lookahead.h"
+
+#include <algorithm>
+
+#include "common.h"
+
+// llama-cparams.h の LLAMA_MAX_SEQ と同じ値
+static const int LOOKAHEAD_MAX_SEQ = 64;
+
+void LookaheadDecoder::clamp_params(int& W, int& N, int& G) {
+    // N = 2 だと窓が 1 段しかなく、次の段を予測する logits が取れない
+    N = std::max(3, std::min(8, N));
+    W = std::max(1, std::min(LOOKAHEAD_MAX_SEQ - 2, W));
+    G = std::max(1, std::min(LOOKAHEAD_MAX_SEQ - 1 - W, G));
+}
+
+LookaheadDecoder::LookaheadDecoder(int W, int N, int G, const llama_vocab* vocab)
+    : W_(W), N_(N), G_(G),
+      n_vocab_(llama_vocab_n_tokens(vocab)),
+      vocab_(vocab),
+      batch_(llama_batch_init(batch_size(W, N, G), 0, n_seq(W, G))),
+      seq_id_all_(n_seq(W, G)),
+      tokens_j_prev_(W),
+      tokens_j_(N - 1, std::vector<llama_token>(W)) {
+    for (int i = 0; i < n_seq(W, G); ++i) {
+        seq_id_all_[i] = i;
+    }
+    // examples/lookahead と同じく連番で初期化する。数ステップで Jacobi 反復の結果に置き換わる
+    for (int j = 0; j < N - 1; ++j) {
+        for (int i = 0; i < W; ++i) {
+            tokens_j_[j][i] = (100 + i) % n_vocab_;
+        }
+    }
+}
+
+LookaheadDecoder::~LookaheadDecoder() {
+    llama_batch_free(batch_);
+}
+
+void LookaheadDecoder::begin(llama_context* ctx) {
+    llama_memory_t mem = llama_get_memory(ctx);
+    for (int s = 1; s < n_seq(W_, G_); ++s) {
+        llama_memory_seq_cp(mem, 0, s, -1, -1);
+    }
+}
+
+// 窓トークンの更新は推測にすぎないので、サンプラーチェーン（penalty / DRY / 乱数）の状態を
+// 動かさないよう greedy で選ぶ。受理されるトークンは必ず本来のサンプラーを通る
+llama_token LookaheadDecoder::argmax(llama_context* ctx, int i) const {
+    const float* logits = llama_get_logits_ith(ctx, i);
+    return (llama_token)(std::max_element(logits, logits + n_vocab_) - logits);
+}
+
+void LookaheadDecoder::observe(llama_token first, const std::vector<llama_token>& ngram) {
+    NgramRing& ring = pool_[first];
+    if (ring.tokens.empty()) {
+        ring.tokens.resize((size_t)G_ * (N_ - 1));
+    }
+
+    // 同じ n-gram は重複して持たない
+    for (int k = 0; k < ring.cnt; ++k) {
+        if (std::equal(ngram.begin(), ngram.end(), ring.tokens.begin() + k * (N_ - 1))) {
+            return;
+        }
+    }
+
+    std::copy(ngram.begin(), ngram.end(), ring.tokens.begin() + ring.head * (N_ - 1));
+    ring.cnt  = std::min(G_, ring.cnt + 1);
+    ring.head = (ring.head + 1) % G_;
+}
+
+bool LookaheadDecoder::step(llama_context* ctx, llama_sampler* smpl, llama_token id_last, llama_pos n_past,
+                            int n_max, std::vector<llama_token>& out) {
+    out.clear();
+    last_candidates_ = 0;
+
+    // バッチの並びは examples/lookahead のコメント参照（I = 入力, V = 検証, L = 窓）:
+    //   [I] [V: g 個 × (N - 1)] [L: 段 0 の W - 1 個] [L: 段 1..N-2 の W 個ずつ]
+    common_batch_clear(batch_);
+
+    common_batch_add(batch_, id_last, n_past, seq_id_all_, true);
+
+    // 検証候補（KV の断片化を減らすため窓より先に積む）
+    {
+        auto it = pool_.find(id_last);
+        const int g_cur = it != pool_.end() ? it->second.cnt : 0;
+
+        cur_.resize(g_cur);
+        for (int g = 0; g < g_cur; ++g) {
+            cur_[g].active = true;
+            cur_[g].seq_id = W_ + 1 + g;
+            cur_[g].tokens.assign(N_, id_last);
+            cur_[g].i_batch.assign(N_, 0);
+        }
+        for (int j = 0; j < N_ - 1; ++j) {
+            for (int g = 0; g < g_cur; ++g) {
+                const llama_token t = it->second.tokens[g * (N_ - 1) + j];
+                cur_[g].tokens [j + 1] = t;
+                cur_[g].i_batch[j + 1] = batch_.n_tokens;
+                common_batch_add(batch_, t, n_past + j + 1, { W_ + 1 + g }, true);
+            }
+        }
+        last_candidates_ = g_cur * (N_ - 1);
+    }
+
+    // 段 0 の残り W - 1 個。位置 i のトークンは seq i+1..W から見える
+    for (int i = 1; i < W_; ++i) {
+        seq_id_look_.resize(W_ - i);
+        for (int j = 0; j < W_ - i; ++j) {
+            seq_id_look_[j] = i + j + 1;
+        }
+        common_batch_add(batch_, tokens_j_[0][i], n_past + i, seq_id_look_, false);
+    }
+
+    // 段 1..N-2。最後の段の logits が次の Jacobi 反復になる
+    int i_last_level = 0;
+    for (int j = 1; j < N_ - 1; ++j) {
+        if (j == N_ - 2) i_last_level = batch_.n_tokens;
+        for (int i = 0; i < W_; ++i) {
+            common_batch_add(batch_, tokens_j_[j][i], n_past + j + i, { i + 1 }, j == N_ - 2);
+        }
+    }
+
+    if (llama_decode(ctx, batch_) != 0) {
+        return false;
+    }
+
+    llama_seq_id seq_id_best = 0;
+
+    for (int v = 0; v < N_; ++v) {
+        int i_batch = 0;
+
+        // v > 0 では生き残っている候補の logits で続ける。候補が尽きたらこのステップは終わり
+        if (v > 0) {
+            for (const Candidate& c : cur_) {
+                if (c.active) {
+                    i_batch     = c.i_batch[v];
+                    seq_id_best = c.seq_id;
+                    break;
+                }
+            }
+            if (i_batch == 0) {
+                break;
+            }
+        }
+
+        // llama_sampler_sample は accept も行う
+        const llama_token id = llama_sampler_sample(smpl, ctx, i_batch);
+        out.push_back(id);
+
+        if (llama_vocab_is_eog(vocab_, id) || (int)out.size() >= n_max) {
+            // 生成はここで終わるので KV の後始末は不要
+            return true;
+        }
+
+        for (Candidate& c : cur_) {
+            if (c.active && (v == N_ - 1 || id != c.tokens[v + 1])) {
+                c.active = false;
+            }
+        }
+
+        // 窓を 1 段ずらす
+        tokens_j_prev_ = tokens_j_[0];
+        for (int j = 0; j < N_ - 2; ++j) {
+            tokens_j_[j] = tokens_j_[j + 1];
+        }
+        if (v == 0) {
+            for (int i = 0; i < W_; ++i) {
+                tokens_j_[N_ - 2][i] = argmax(ctx, i_last_level + i);
+            }
+        } else {
+            tokens_j_[N_ - 2] = tokens_j_[0];
+        }
+
+        // Jacobi 反復の各列を n-gram として pool に加える
+        // ref: https://github.com/hao-ai-lab/LookaheadDecoding/issues/14#issuecomment-1826198518
+        if (v == 0) {
+            std::vector<llama_token> ngram(N_ - 1);
+            for (int f = 0; f < W_; ++f) {
+                for (int j = 0; j < N_ - 1; ++j) {
+                    ngram[j] = tokens_j_[j][f];
+                }
+                observe(tokens_j_prev_[f], ngram);
+            }
+        }
+    }
+
+    // KV の後始末：受理位置より後ろは全 seq から消す。候補が当たったらその seq を seq 0 に昇格させる
+    llama_memory_t mem = llama_get_memory(ctx);
+    const llama_pos n_past_new = n_past + (llama_pos)out.size();
+    llama_memory_seq_rm(mem, -1, n_past_new, -1);
+
+    if (seq_id_best != 0) {
+        llama_memory_seq_keep(mem, seq_id_best);
+        llama_memory_seq_cp  (mem, seq_id_best, 0, -1, -1);
+        llama_memory_seq_rm  (mem, seq_id_best, -1, -1);
+        for (int s = 1; s < n_seq(W_, G_); ++s) {
+            llama_memory_seq_cp(mem, 0, s, -1, -1);
+        }
+    }
+    return true;
+}
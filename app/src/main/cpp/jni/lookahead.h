@@ -0,0 +1,73 @@
+#pragma once
+
+#include <unordered_map>
+#include <vector>
+
+#include "llama.h"
+
+// Lookahead（Jacobi）デコード。examples/lookahead と同じ手順で、1 回の decode に
+//   seq 0            : 直前にサンプルしたトークン（全 seq 共有）
+//   seq [1, W]       : 過去 N - 1 回の Jacobi 反復で得た窓トークン
+//   seq [W+1, W+G]   : n-gram pool から引いた検証候補
+// を詰め、target のサンプラーが候補と同じトークンを選ぶ限り受理する。
+// 2 つ目のモデルもプロンプト中の一致も不要で、一般的なチャットでも候補が育つ。
+// context は n_seq_max >= n_seq() かつ n_batch >= batch_size() で作ること。
+class LookaheadDecoder {
+public:
+    LookaheadDecoder(int W, int N, int G, const llama_vocab* vocab);
+    ~LookaheadDecoder();
+
+    // 上限に収めた W / N / G を返す（seq 数は LLAMA_MAX_SEQ 以下）
+    static void clamp_params(int& W, int& N, int& G);
+
+    static int n_seq(int W, int G) { return W + G + 1; }
+    static int batch_size(int W, int N, int G) { return 1 + G * (N - 1) + (W - 1) + W * (N - 2); }
+
+    int batch_size() const { return batch_size(W_, N_, G_); }
+
+    // prefill 直後に 1 回呼ぶ。seq 0 の KV を全 seq にコピーする
+    void begin(llama_context* ctx);
+
+    // id_last を n_past に置いて 1 ステップ進める。受理したトークン（1..N 個、最後の 1 個はまだ KV にない）を
+    // out に返す。n_max は今回受け取れる最大トークン数。decode 失敗時は false
+    bool step(llama_context* ctx, llama_sampler* smpl, llama_token id_last, llama_pos n_past,
+              int n_max, std::vector<llama_token>& out);
+
+    // 直前の step で検証に出した候補トークン数
+    int last_candidates() const { return last_candidates_; }
+
+private:
+    // 先頭トークンごとの n-gram リングバッファ（先頭トークン自体は key なので保持しない）
+    struct NgramRing {
+        int cnt  = 0;
+        int head = 0;
+        std::vector<llama_token> tokens;   // [G][N - 1]
+    };
+
+    struct Candidate {
+        bool active = false;
+        llama_seq_id seq_id = -1;
+        std::vector<int> i_batch;
+        std::vector<llama_token> tokens;
+    };
+
+    llama_token argmax(llama_context* ctx, int i) const;
+    void observe(llama_token first, const std::vector<llama_token>& ngram);
+
+    const int W_;
+    const int N_;
+    const int G_;
+    const int n_vocab_;
+    const llama_vocab* vocab_;
+
+    llama_batch batch_;
+    std::vector<llama_seq_id> seq_id_all_;
+    std::vector<llama_seq_id> seq_id_look_;
+
+    std::vector<Candidate> cur_;
+    std::vector<llama_token> tokens_j_prev_;
+    std::vector<std::vector<llama_token>> tokens_j_;   // [N - 1][W]
+    std::unordered_map<llama_token, NgramRing> pool_;
+
+    int last_candidates_ = 0;
+};
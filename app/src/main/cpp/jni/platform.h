@@ -0,0 +1,30 @@
+#pragma once
+
+// Android 固有の呼び出しをここに閉じ込め、ホスト（Linux x86_64）でも同じ JNI コードをビルドできるようにする
+
+#include <jni.h>
+
+#define LOG_TAG "LLAMA_JNI"
+
+#ifdef __ANDROID__
+
+#include <android/log.h>
+#define LOGI(...) __android_log_print(ANDROID_LOG_INFO,  LOG_TAG, __VA_ARGS__)
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
+
+#else
+
+#include <cstdio>
+#define LOGI(...) do { std::fprintf(stderr, "I/" LOG_TAG ": " __VA_ARGS__); std::fputc('\n', stderr); } while (0)
+#define LOGE(...) do { std::fprintf(stderr, "E/" LOG_TAG ": " __VA_ARGS__); std::fputc('\n', stderr); } while (0)
+
+#endif
+
+// NDK の jni.h は JNIEnv**、JDK の jni.h は void** を取る
+static inline jint platform_attach_current_thread(JavaVM* vm, JNIEnv** env) {
+#ifdef __ANDROID__
+    return vm->AttachCurrentThread(env, nullptr);
+#else
+    return vm->AttachCurrentThread(reinterpret_cast<void**>(env), nullptr);
+#endif
+}
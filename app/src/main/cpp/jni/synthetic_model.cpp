@@ -0,0 +1,183 @@
+#include "synthetic_model.h"
+
+#include <cstdio>
+#include <random>
+#include <set>
+#include <vector>
+
+#include "ggml.h"
+#include "gguf.h"
+
+// SentencePiece の空白記号 (U+2581)
+static const char* SPM_SPACE = "\xe2\x96\x81";
+
+static bool parse_weight_type(const std::string& name, ggml_type& out) {
+    if (name == "f32")  { out = GGML_TYPE_F32;  return true; }
+    if (name == "f16")  { out = GGML_TYPE_F16;  return true; }
+    if (name == "q8_0") { out = GGML_TYPE_Q8_0; return true; }
+    if (name == "q4_0") { out = GGML_TYPE_Q4_0; return true; }
+    return false;
+}
+
+// SPM vocab: <unk>, <s>, </s>, 256 byte-fallback tokens, then ASCII pieces and a few common bigrams
+static void build_vocab(std::vector<std::string>& tokens, std::vector<float>& scores, std::vector<int32_t>& types) {
+    auto add = [&](const std::string& text, int32_t type) {
+        scores.push_back(type == 1 ? -(float)tokens.size() * 0.01f : 0.0f);
+        tokens.push_back(text);
+        types.push_back(type);
+    };
+
+    add("<unk>", 2);   // LLAMA_TOKEN_TYPE_UNKNOWN
+    add("<s>",   3);   // LLAMA_TOKEN_TYPE_CONTROL
+    add("</s>",  3);
+    for (int b = 0; b < 256; ++b) {
+        char buf[8];
+        std::snprintf(buf, sizeof(buf), "<0x%02X>", b);
+        add(buf, 6);   // LLAMA_TOKEN_TYPE_BYTE
+    }
+
+    std::set<std::string> seen;
+    auto add_normal = [&](const std::string& text) {
+        if (seen.insert(text).second) add(text, 1);
+    };
+
+    add_normal(SPM_SPACE);
+    for (int c = 33; c < 127; ++c) {
+        add_normal(std::string(1, (char)c));
+    }
+    for (int c = 'a'; c <= 'z'; ++c) {
+        add_normal(std::string(SPM_SPACE) + (char)c);
+    }
+    static const char* bigrams[] = {
+        "th", "he", "in", "er", "an", "re", "on", "at", "en", "nd",
+        "ti", "es", "or", "te", "of", "ed", "is", "it", "al", "ar",
+    };
+    for (const char* bg : bigrams) {
+        add_normal(bg);
+        add_normal(std::string(SPM_SPACE) + bg);
+    }
+    for (const char* w : { "the", "and", "you", "that", "was", "for", "are", "with" }) {
+        add_normal(std::string(SPM_SPACE) + w);
+    }
+}
+
+std::string write_synthetic_model(const std::string& path, const SyntheticModelParams& p) {
+    ggml_type wtype;
+    if (!parse_weight_type(p.weight_type, wtype)) {
+        return "unknown weight type: " + p.weight_type;
+    }
+    if (p.n_embd < 32 || p.n_embd % 32 != 0 || p.n_layer < 1) {
+        return "n_embd must be a positive multiple of 32 and n_layer >= 1";
+    }
+
+    const int n_embd    = p.n_embd;
+    const int n_head    = n_embd / 16;
+    const int n_head_kv = n_head > 1 ? n_head / 2 : 1;
+    const int head_dim  = n_embd / n_head;
+    const int n_embd_kv = n_head_kv * head_dim;
+    const int n_ff      = n_embd * 4;
+
+    std::vector<std::string> tokens;
+    std::vector<float>       scores;
+    std::vector<int32_t>     types;
+    build_vocab(tokens, scores, types);
+    const int n_vocab = (int)tokens.size();
+
+    gguf_context* gctx = gguf_init_empty();
+
+    gguf_set_val_str(gctx, "general.architecture", "llama");
+    gguf_set_val_str(gctx, "general.name", "synthetic");
+    gguf_set_val_u32(gctx, "llama.context_length",             (uint32_t)p.n_ctx_train);
+    gguf_set_val_u32(gctx, "llama.embedding_length",           (uint32_t)n_embd);
+    gguf_set_val_u32(gctx, "llama.block_count",                (uint32_t)p.n_layer);
+    gguf_set_val_u32(gctx, "llama.feed_forward_length",        (uint32_t)n_ff);
+    gguf_set_val_u32(gctx, "llama.attention.head_count",       (uint32_t)n_head);
+    gguf_set_val_u32(gctx, "llama.attention.head_count_kv",    (uint32_t)n_head_kv);
+    gguf_set_val_u32(gctx, "llama.rope.dimension_count",       (uint32_t)head_dim);
+    gguf_set_val_f32(gctx, "llama.attention.layer_norm_rms_epsilon", 1e-5f);
+
+    std::vector<const char*> token_ptrs;
+    token_ptrs.reserve(tokens.size());
+    for (const auto& t : tokens) token_ptrs.push_back(t.c_str());
+
+    gguf_set_val_str (gctx, "tokenizer.ggml.model", "llama");
+    gguf_set_arr_str (gctx, "tokenizer.ggml.tokens", token_ptrs.data(), token_ptrs.size());
+    gguf_set_arr_data(gctx, "tokenizer.ggml.scores", GGUF_TYPE_FLOAT32, scores.data(), scores.size());
+    gguf_set_arr_data(gctx, "tokenizer.ggml.token_type", GGUF_TYPE_INT32, types.data(), types.size());
+    gguf_set_val_u32 (gctx, "tokenizer.ggml.unknown_token_id", 0);
+    gguf_set_val_u32 (gctx, "tokenizer.ggml.bos_token_id", 1);
+    gguf_set_val_u32 (gctx, "tokenizer.ggml.eos_token_id", 2);
+
+    struct TensorSpec {
+        std::string name;
+        int64_t ne0;
+        int64_t ne1;   // 0 = 1-D
+    };
+    std::vector<TensorSpec> specs;
+    specs.push_back({ "token_embd.weight",  n_embd, n_vocab });
+    specs.push_back({ "output_norm.weight", n_embd, 0 });
+    specs.push_back({ "output.weight",      n_embd, n_vocab });
+    for (int il = 0; il < p.n_layer; ++il) {
+        const std::string blk = "blk." + std::to_string(il) + ".";
+        specs.push_back({ blk + "attn_norm.weight",   n_embd, 0 });
+        specs.push_back({ blk + "attn_q.weight",      n_embd, n_embd });
+        specs.push_back({ blk + "attn_k.weight",      n_embd, n_embd_kv });
+        specs.push_back({ blk + "attn_v.weight",      n_embd, n_embd_kv });
+        specs.push_back({ blk + "attn_output.weight", n_embd, n_embd });
+        specs.push_back({ blk + "ffn_norm.weight",    n_embd, 0 });
+        specs.push_back({ blk + "ffn_gate.weight",    n_embd, n_ff });
+        specs.push_back({ blk + "ffn_up.weight",      n_embd, n_ff });
+        specs.push_back({ blk + "ffn_down.weight",    n_ff,   n_embd });
+    }
+
+    size_t data_size = 0;
+    for (const auto& s : specs) {
+        const ggml_type t = s.ne1 == 0 ? GGML_TYPE_F32 : wtype;
+        data_size += ggml_row_size(t, s.ne0) * (s.ne1 == 0 ? 1 : s.ne1) + GGML_MEM_ALIGN;
+    }
+
+    ggml_init_params iparams = {
+        /*.mem_size   =*/ data_size + specs.size() * ggml_tensor_overhead(),
+        /*.mem_buffer =*/ nullptr,
+        /*.no_alloc   =*/ false,
+    };
+    ggml_context* ctx = ggml_init(iparams);
+    if (!ctx) {
+        gguf_free(gctx);
+        return "ggml_init failed";
+    }
+
+    std::mt19937 rng(1234);
+    std::normal_distribution<float> dist(0.0f, 0.02f);
+    std::vector<float> f32;
+
+    for (const auto& s : specs) {
+        ggml_tensor* t;
+        if (s.ne1 == 0) {
+            // norm weights
+            t = ggml_new_tensor_1d(ctx, GGML_TYPE_F32, s.ne0);
+            float* d = (float*)t->data;
+            for (int64_t i = 0; i < s.ne0; ++i) d[i] = 1.0f;
+        } else {
+            t = ggml_new_tensor_2d(ctx, wtype, s.ne0, s.ne1);
+            f32.resize((size_t)(s.ne0 * s.ne1));
+            for (auto& v : f32) v = dist(rng);
+            if (wtype == GGML_TYPE_F32) {
+                std::copy(f32.begin(), f32.end(), (float*)t->data);
+            } else if (wtype == GGML_TYPE_F16) {
+                ggml_fp32_to_fp16_row(f32.data(), (ggml_fp16_t*)t->data, (int64_t)f32.size());
+            } else {
+                ggml_quantize_chunk(wtype, f32.data(), t->data, 0, s.ne1, s.ne0, nullptr);
+            }
+        }
+        ggml_set_name(t, s.name.c_str());
+        gguf_add_tensor(gctx, t);
+    }
+
+    const bool ok = gguf_write_to_file(gctx, path.c_str(), false);
+
+    gguf_free(gctx);
+    ggml_free(ctx);
+
+    return ok ? "" : "gguf_write_to_file failed: " + path;
+}
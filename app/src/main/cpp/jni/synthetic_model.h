@@ -0,0 +1,15 @@
+#pragma once
+
+#include <string>
+
+// Tiny randomly initialised llama-architecture GGUF used for offline benchmarks.
+// The weights carry no meaning; the model only exercises the real kernels.
+struct SyntheticModelParams {
+    int n_embd      = 64;     // must be a multiple of 32 for quantized weights
+    int n_layer     = 2;
+    int n_ctx_train = 4096;
+    std::string weight_type = "q4_0";   // f32, f16, q8_0 or q4_0
+};
+
+// Writes the model to `path`. Returns an empty string on success or an error message.
+std::string write_synthetic_model(const std::string& path, const SyntheticModelParams& params);
@@ -0,0 +1,569 @@
+#include "vector_index.h"
+
+#include <algorithm>
+#include <cerrno>
+#include <cmath>
+#include <cstring>
+#include <functional>
+#include <queue>
+#include <random>
+
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#if defined(__ARM_NEON)
+#include <arm_neon.h>
+#endif
+
+static const char     VIDX_MAGIC[4]   = { 'V', 'I', 'D', 'X' };
+static const uint32_t VIDX_VERSION    = 1;
+static const int      HNSW_MAX_LEVEL  = 16;
+static const size_t   ADD_CHUNK_BYTES = 1 << 20;
+// binary はハミング距離で k * この倍数の候補を取り、float のクエリで採点し直す
+static const int      BINARY_RERANK   = 8;
+
+static size_t round_up(size_t x, size_t n) { return (x + n - 1) / n * n; }
+
+// int8 行は dim を 16 の倍数に 0 埋めし、末尾にスケール（float）を置いて 16 byte に揃える
+static size_t int8_dim_pad(uint32_t dim) { return round_up(dim, 16); }
+
+static size_t row_bytes_for(uint32_t dim, uint32_t quant) {
+    return quant == VectorIndex::QUANT_INT8 ? int8_dim_pad(dim) + 16 : round_up(dim, 64) / 8;
+}
+
+static int32_t dot_i8(const int8_t* a, const int8_t* b, size_t n) {
+#if defined(__ARM_NEON) && defined(__aarch64__)
+    int32x4_t acc = vdupq_n_s32(0);
+    for (size_t i = 0; i < n; i += 16) {
+        const int8x16_t va = vld1q_s8(a + i);
+        const int8x16_t vb = vld1q_s8(b + i);
+#if defined(__ARM_FEATURE_DOTPROD)
+        acc = vdotq_s32(acc, va, vb);
+#else
+        // 値域は [-127, 127] なので 2 積の和は int16 に収まる
+        int16x8_t p = vmull_s8(vget_low_s8(va), vget_low_s8(vb));
+        p = vmlal_high_s8(p, va, vb);
+        acc = vpadalq_s16(acc, p);
+#endif
+    }
+    return vaddvq_s32(acc);
+#else
+    int32_t acc = 0;
+    for (size_t i = 0; i < n; ++i) {
+        acc += (int32_t)a[i] * (int32_t)b[i];
+    }
+    return acc;
+#endif
+}
+
+static uint32_t hamming(const uint64_t* a, const uint64_t* b, size_t n_words) {
+    uint32_t d = 0;
+    for (size_t i = 0; i < n_words; ++i) {
+        d += (uint32_t)__builtin_popcountll(a[i] ^ b[i]);
+    }
+    return d;
+}
+
+struct HitLess {
+    bool operator()(const VectorIndex::Hit& a, const VectorIndex::Hit& b) const { return a.score < b.score; }
+};
+struct HitGreater {
+    bool operator()(const VectorIndex::Hit& a, const VectorIndex::Hit& b) const { return a.score > b.score; }
+};
+
+VectorIndex::~VectorIndex() {
+    close();
+}
+
+std::string VectorIndex::create(const std::string& path, int dim, Quant quant) {
+    std::lock_guard<std::mutex> lock(mutex_);
+    if (dim <= 0) return "dim must be positive";
+    if (quant != QUANT_INT8 && quant != QUANT_BINARY) return "unknown quantization";
+
+    unmap();
+    if (fd_ >= 0) ::close(fd_);
+    fd_ = ::open(path.c_str(), O_RDWR | O_CREAT | O_TRUNC, 0644);
+    if (fd_ < 0) return "failed to create " + path + ": " + strerror(errno);
+    path_ = path;
+
+    hdr_ = Header();
+    memcpy(hdr_.magic, VIDX_MAGIC, 4);
+    hdr_.version   = VIDX_VERSION;
+    hdr_.dim       = (uint32_t)dim;
+    hdr_.quant     = quant;
+    hdr_.row_bytes = (uint32_t)row_bytes_for((uint32_t)dim, quant);
+    hdr_.entry     = -1;
+
+    std::string err = write_header();
+    if (err.empty()) err = remap();
+    return err;
+}
+
+std::string VectorIndex::open(const std::string& path) {
+    std::lock_guard<std::mutex> lock(mutex_);
+    unmap();
+    if (fd_ >= 0) ::close(fd_);
+    fd_ = ::open(path.c_str(), O_RDWR);
+    if (fd_ < 0) fd_ = ::open(path.c_str(), O_RDONLY);
+    if (fd_ < 0) return "failed to open " + path + ": " + strerror(errno);
+    path_ = path;
+
+    if (pread(fd_, &hdr_, sizeof(hdr_), 0) != (ssize_t)sizeof(hdr_)
+            || memcmp(hdr_.magic, VIDX_MAGIC, 4) != 0) {
+        hdr_ = Header();
+        return "not a vector index: " + path;
+    }
+    if (hdr_.version != VIDX_VERSION) {
+        std::string v = std::to_string(hdr_.version);
+        hdr_ = Header();
+        return "unsupported vector index version " + v;
+    }
+    // 壊れたファイルや別物を読んで範囲外に触らないように、ヘッダの値を全部確かめる
+    std::string err = check_header();
+    if (!err.empty()) {
+        hdr_ = Header();
+        return err + ": " + path;
+    }
+    return remap();
+}
+
+std::string VectorIndex::check_header() const {
+    if (hdr_.dim == 0 || hdr_.dim > (1u << 20)) return "bad vector index dim " + std::to_string(hdr_.dim);
+    if (hdr_.quant != QUANT_INT8 && hdr_.quant != QUANT_BINARY) return "bad vector index quantization";
+    if (hdr_.row_bytes != row_bytes_for(hdr_.dim, hdr_.quant)) return "vector index row size does not match dim";
+    if (hdr_.count > (uint64_t)INT32_MAX) return "vector index count out of range";
+    if (hdr_.hnsw_m == 0) return "";
+    if (hdr_.hnsw_m < 2 || hdr_.hnsw_m > 64) return "bad vector index graph degree";
+    if (hdr_.count == 0 || hdr_.entry < 0 || (uint64_t)hdr_.entry >= hdr_.count) return "vector index graph entry out of range";
+    if (hdr_.max_level < 0 || hdr_.max_level > HNSW_MAX_LEVEL) return "bad vector index graph level";
+    if (hdr_.upper_blocks > hdr_.count * HNSW_MAX_LEVEL) return "bad vector index graph size";
+    return "";
+}
+
+// マップしたグラフの層・件数・近傍 id がすべて範囲内か（検索は確かめずに辿る）
+std::string VectorIndex::check_graph() const {
+    const int32_t n = (int32_t)hdr_.count;
+    const Graph& g = graph_;
+    if (g.levels[hdr_.entry] < hdr_.max_level) return "vector index graph entry is not on the top level";
+    for (int32_t id = 0; id < n; ++id) {
+        const int l = g.levels[id];
+        if (l < 0 || l > hdr_.max_level) return "vector index graph level out of range";
+        if (l > 0 && (uint64_t)g.upper_idx[id] + (uint64_t)l > hdr_.upper_blocks) {
+            return "vector index graph block out of range";
+        }
+        for (int lc = 0; lc <= l; ++lc) {
+            const int32_t* links = g.links(id, lc);
+            const int32_t cap = lc == 0 ? 2 * g.m : g.m;
+            if (links[0] < 0 || links[0] > cap) return "vector index graph link count out of range";
+            for (int32_t j = 1; j <= links[0]; ++j) {
+                const int32_t nb = links[j];
+                // 層 lc の近傍は層 lc にもいなければならない（そこでの隣接リストを読むので）
+                if (nb < 0 || nb >= n || g.levels[nb] < lc) return "vector index graph link out of range";
+            }
+        }
+    }
+    return "";
+}
+
+void VectorIndex::close() {
+    std::lock_guard<std::mutex> lock(mutex_);
+    unmap();
+    if (fd_ >= 0) {
+        ::close(fd_);
+        fd_ = -1;
+    }
+    visited_.clear();
+    visited_.shrink_to_fit();
+}
+
+void VectorIndex::unmap() {
+    if (map_) {
+        munmap(map_, map_size_);
+        map_ = nullptr;
+        map_size_ = 0;
+    }
+    graph_ = Graph();
+}
+
+// グラフを切り詰める前に呼ぶ。先にヘッダからグラフを外すので、途中で落ちても行だけのインデックスとして開ける
+std::string VectorIndex::drop_graph_header() {
+    if (hdr_.hnsw_m == 0) return "";
+    hdr_.hnsw_m = 0;
+    hdr_.graph_offset = 0;
+    hdr_.upper_blocks = 0;
+    hdr_.entry = -1;
+    hdr_.max_level = 0;
+    return write_header();
+}
+
+std::string VectorIndex::write_header() {
+    if (pwrite(fd_, &hdr_, sizeof(hdr_), 0) != (ssize_t)sizeof(hdr_)) {
+        return std::string("failed to write header: ") + strerror(errno);
+    }
+    return "";
+}
+
+std::string VectorIndex::remap() {
+    unmap();
+
+    struct stat st;
+    if (fstat(fd_, &st) != 0) return std::string("fstat failed: ") + strerror(errno);
+    const uint64_t rows_end = sizeof(Header) + hdr_.count * hdr_.row_bytes;
+    if ((uint64_t)st.st_size < rows_end) return "vector index is truncated: " + path_;
+
+    map_size_ = (size_t)st.st_size;
+    void* p = mmap(nullptr, map_size_, PROT_READ, MAP_SHARED, fd_, 0);
+    if (p == MAP_FAILED) {
+        map_size_ = 0;
+        return std::string("mmap failed: ") + strerror(errno);
+    }
+    map_ = (uint8_t*)p;
+
+    if (hdr_.hnsw_m != 0) {
+        const size_t n = (size_t)hdr_.count;
+        const size_t m = hdr_.hnsw_m;
+        const size_t levels_bytes = round_up(n, 4);
+        const size_t graph_bytes = levels_bytes + n * 4 + n * (1 + 2 * m) * 4 + (size_t)hdr_.upper_blocks * (1 + m) * 4;
+        if (hdr_.graph_offset < rows_end || hdr_.graph_offset % 8 != 0 || hdr_.graph_offset + graph_bytes > map_size_) {
+            return "vector index graph is truncated: " + path_;
+        }
+        const uint8_t* g = map_ + hdr_.graph_offset;
+        graph_.m         = (int)m;
+        graph_.levels    = (const int8_t*)g;
+        graph_.upper_idx = (const uint32_t*)(g + levels_bytes);
+        graph_.level0    = (const int32_t*)(g + levels_bytes + n * 4);
+        graph_.upper     = graph_.level0 + n * (1 + 2 * m);
+        std::string err = check_graph();
+        if (!err.empty()) {
+            graph_ = Graph();
+            return err + ": " + path_;
+        }
+    }
+    return "";
+}
+
+VectorIndex::Code VectorIndex::encode(const float* v) const {
+    Code code(hdr_.row_bytes, 0);
+    const uint32_t dim = hdr_.dim;
+
+    if (hdr_.quant == QUANT_INT8) {
+        // 対称量子化（行ごとに max |x| を 127 に合わせる）
+        float amax = 0.0f;
+        for (uint32_t i = 0; i < dim; ++i) amax = std::max(amax, std::fabs(v[i]));
+        const float scale = amax > 0.0f ? amax / 127.0f : 1.0f;
+        int8_t* q = (int8_t*)code.data();
+        for (uint32_t i = 0; i < dim; ++i) {
+            q[i] = (int8_t)std::lround(std::max(-127.0f, std::min(127.0f, v[i] / scale)));
+        }
+        memcpy(code.data() + int8_dim_pad(dim), &scale, sizeof(float));
+    } else {
+        uint64_t* w = (uint64_t*)code.data();
+        for (uint32_t i = 0; i < dim; ++i) {
+            if (v[i] > 0.0f) w[i / 64] |= (uint64_t)1 << (i % 64);
+        }
+    }
+    return code;
+}
+
+float VectorIndex::score(const uint8_t* a, const uint8_t* b) const {
+    if (hdr_.quant == QUANT_INT8) {
+        const size_t n = int8_dim_pad(hdr_.dim);
+        float sa, sb;
+        memcpy(&sa, a + n, sizeof(float));
+        memcpy(&sb, b + n, sizeof(float));
+        return (float)dot_i8((const int8_t*)a, (const int8_t*)b, n) * sa * sb;
+    }
+    const uint32_t d = hamming((const uint64_t*)a, (const uint64_t*)b, hdr_.row_bytes / 8);
+    return 1.0f - 2.0f * (float)d / (float)hdr_.dim;
+}
+
+std::string VectorIndex::add(const float* vectors, size_t n) {
+    std::lock_guard<std::mutex> lock(mutex_);
+    if (fd_ < 0) return "vector index is not open";
+    if (n == 0) return "";
+
+    const size_t rows_end = sizeof(Header) + (size_t)hdr_.count * hdr_.row_bytes;
+    if (hdr_.hnsw_m != 0) {
+        // 行の後ろにあるグラフは捨てる。build_hnsw() で作り直す
+        unmap();
+        std::string err = drop_graph_header();
+        if (!err.empty()) return err;
+        if (ftruncate(fd_, (off_t)rows_end) != 0) return std::string("ftruncate failed: ") + strerror(errno);
+    }
+
+    // 行を書いてからヘッダの count を更新するので、途中で落ちても既存の行は壊れない
+    const size_t rows_per_chunk = std::max<size_t>(1, ADD_CHUNK_BYTES / hdr_.row_bytes);
+    std::vector<uint8_t> buf;
+    buf.reserve(rows_per_chunk * hdr_.row_bytes);
+    off_t off = (off_t)rows_end;
+    for (size_t i = 0; i < n; ) {
+        buf.clear();
+        const size_t end = std::min(n, i + rows_per_chunk);
+        for (; i < end; ++i) {
+            Code c = encode(vectors + i * hdr_.dim);
+            buf.insert(buf.end(), c.begin(), c.end());
+        }
+        if (pwrite(fd_, buf.data(), buf.size(), off) != (ssize_t)buf.size()) {
+            return std::string("failed to write vectors: ") + strerror(errno);
+        }
+        off += (off_t)buf.size();
+    }
+
+    hdr_.count += n;
+    std::string err = write_header();
+    if (err.empty()) err = remap();
+    return err;
+}
+
+std::vector<VectorIndex::Hit> VectorIndex::search_flat(const uint8_t* q, int k) const {
+    std::priority_queue<Hit, std::vector<Hit>, HitGreater> top;   // 最小が先頭
+    const int32_t n = (int32_t)hdr_.count;
+    for (int32_t i = 0; i < n; ++i) {
+        const float s = score(q, row(i));
+        if ((int)top.size() < k) {
+            top.push({ s, i });
+        } else if (s > top.top().score) {
+            top.pop();
+            top.push({ s, i });
+        }
+    }
+
+    std::vector<Hit> out(top.size());
+    for (size_t i = out.size(); i-- > 0; ) {
+        out[i] = top.top();
+        top.pop();
+    }
+    return out;
+}
+
+std::vector<VectorIndex::Hit> VectorIndex::search_layer(const Graph& g, const uint8_t* q,
+                                                        const std::vector<Hit>& ep, int ef, int level) const {
+    if (visited_.size() < hdr_.count) visited_.resize(hdr_.count, 0);
+    if (++visit_tag_ == 0) {
+        std::fill(visited_.begin(), visited_.end(), 0);
+        visit_tag_ = 1;
+    }
+
+    std::priority_queue<Hit, std::vector<Hit>, HitLess>    cand;   // 最良が先頭
+    std::priority_queue<Hit, std::vector<Hit>, HitGreater> res;    // 最悪が先頭
+    for (const Hit& h : ep) {
+        visited_[h.id] = visit_tag_;
+        cand.push(h);
+        res.push(h);
+    }
+    while ((int)res.size() > ef) res.pop();
+
+    while (!cand.empty()) {
+        const Hit c = cand.top();
+        if ((int)res.size() >= ef && c.score < res.top().score) break;
+        cand.pop();
+
+        const int32_t* links = g.links(c.id, level);
+        const int32_t cnt = links[0];
+        for (int32_t j = 1; j <= cnt; ++j) {
+            __builtin_prefetch(row(links[j]));
+        }
+        for (int32_t j = 1; j <= cnt; ++j) {
+            const int32_t nb = links[j];
+            if (visited_[nb] == visit_tag_) continue;
+            visited_[nb] = visit_tag_;
+
+            const float s = score(q, row(nb));
+            if ((int)res.size() < ef || s > res.top().score) {
+                cand.push({ s, nb });
+                res.push({ s, nb });
+                if ((int)res.size() > ef) res.pop();
+            }
+        }
+    }
+
+    std::vector<Hit> out(res.size());
+    for (size_t i = out.size(); i-- > 0; ) {
+        out[i] = res.top();
+        res.pop();
+    }
+    return out;
+}
+
+std::vector<VectorIndex::Hit> VectorIndex::search_hnsw(const uint8_t* q, int k, int ef) const {
+    const int32_t entry = hdr_.entry;
+    std::vector<Hit> ep = { { score(q, row(entry)), entry } };
+    for (int level = hdr_.max_level; level > 0; --level) {
+        ep = search_layer(graph_, q, ep, 1, level);
+    }
+    std::vector<Hit> out = search_layer(graph_, q, ep, std::max(ef, k), 0);
+    if ((int)out.size() > k) out.resize(k);
+    return out;
+}
+
+float VectorIndex::score_binary_asym(const float* query, const uint8_t* r) const {
+    // 符号ベクトル（±1 / sqrt(dim)）との内積。クエリ側を量子化しない分ハミング距離より正確
+    const uint64_t* w = (const uint64_t*)r;
+    float pos = 0.0f, sum = 0.0f;
+    for (uint32_t i = 0; i < hdr_.dim; ++i) {
+        sum += query[i];
+        if ((w[i / 64] >> (i % 64)) & 1) pos += query[i];
+    }
+    return (2.0f * pos - sum) / std::sqrt((float)hdr_.dim);
+}
+
+std::vector<VectorIndex::Hit> VectorIndex::search(const float* query, int k, int ef) const {
+    std::lock_guard<std::mutex> lock(mutex_);
+    if (!map_ || hdr_.count == 0 || k <= 0) return {};
+
+    const Code q = encode(query);
+    const bool use_graph = ef > 0 && hdr_.hnsw_m != 0;
+    if (hdr_.quant != QUANT_BINARY) {
+        return use_graph ? search_hnsw(q.data(), k, ef) : search_flat(q.data(), k);
+    }
+
+    const int n_cand = k * BINARY_RERANK;
+    std::vector<Hit> hits = use_graph ? search_hnsw(q.data(), n_cand, std::max(ef, n_cand))
+                                      : search_flat(q.data(), n_cand);
+    for (Hit& h : hits) {
+        h.score = score_binary_asym(query, row(h.id));
+    }
+    std::sort(hits.begin(), hits.end(), HitGreater());
+    if ((int)hits.size() > k) hits.resize(k);
+    return hits;
+}
+
+std::string VectorIndex::build_hnsw(int m, int ef_construction) {
+    std::lock_guard<std::mutex> lock(mutex_);
+    if (fd_ < 0) return "vector index is not open";
+    if (hdr_.count == 0) return "vector index is empty";
+    if (hdr_.count > (uint64_t)INT32_MAX) return "too many vectors for HNSW";
+    m = std::max(2, std::min(64, m));
+    ef_construction = std::max(m, ef_construction);
+
+    const size_t n = (size_t)hdr_.count;
+    const size_t rows_end = sizeof(Header) + n * hdr_.row_bytes;
+
+    // 層は -ln(U) / ln(m) で決める（乱数は固定シードなので同じ入力なら同じグラフ）
+    std::vector<int8_t> levels(round_up(n, 4), 0);
+    std::vector<uint32_t> upper_idx(n, 0);
+    std::mt19937 rng(42);
+    std::uniform_real_distribution<double> uni(0.0, 1.0);
+    const double ml = 1.0 / std::log((double)m);
+    uint32_t upper_blocks = 0;
+    for (size_t i = 0; i < n; ++i) {
+        const double u = std::max(uni(rng), 1e-12);
+        const int l = std::min(HNSW_MAX_LEVEL, (int)(-std::log(u) * ml));
+        levels[i] = (int8_t)l;
+        upper_idx[i] = upper_blocks;
+        upper_blocks += (uint32_t)l;
+    }
+
+    std::vector<int32_t> level0(n * (1 + 2 * (size_t)m), 0);
+    std::vector<int32_t> upper((size_t)upper_blocks * (1 + m), 0);
+
+    Graph g;
+    g.m         = m;
+    g.levels    = levels.data();
+    g.upper_idx = upper_idx.data();
+    g.level0    = level0.data();
+    g.upper     = upper.data();
+    auto links_mut = [&](int32_t id, int level) { return const_cast<int32_t*>(g.links(id, level)); };
+
+    // 近傍選択のヒューリスティック（HNSW 論文の Algorithm 4）：既に選んだ点より base に近い候補だけ残す
+    auto select = [&](const std::vector<Hit>& sorted, size_t max_n) {
+        std::vector<Hit> out;
+        for (const Hit& c : sorted) {
+            if (out.size() >= max_n) break;
+            bool good = true;
+            for (const Hit& r : out) {
+                if (score(row(c.id), row(r.id)) > c.score) {
+                    good = false;
+                    break;
+                }
+            }
+            if (good) out.push_back(c);
+        }
+        return out;
+    };
+
+    int32_t entry = 0;
+    int max_level = levels[0];
+    for (size_t i = 1; i < n; ++i) {
+        const int32_t id = (int32_t)i;
+        const uint8_t* q = row(id);
+        const int level = levels[i];
+
+        std::vector<Hit> ep = { { score(q, row(entry)), entry } };
+        for (int lc = max_level; lc > level; --lc) {
+            ep = search_layer(g, q, ep, 1, lc);
+        }
+
+        for (int lc = std::min(level, max_level); lc >= 0; --lc) {
+            ep = search_layer(g, q, ep, ef_construction, lc);
+            const size_t max_links = lc == 0 ? 2 * (size_t)m : (size_t)m;
+            const std::vector<Hit> nbs = select(ep, (size_t)m);
+
+            int32_t* mine = links_mut(id, lc);
+            mine[0] = (int32_t)nbs.size();
+            for (size_t j = 0; j < nbs.size(); ++j) mine[1 + j] = nbs[j].id;
+
+            for (const Hit& nb : nbs) {
+                int32_t* theirs = links_mut(nb.id, lc);
+                if ((size_t)theirs[0] < max_links) {
+                    theirs[1 + theirs[0]++] = id;
+                    continue;
+                }
+                // 溢れたら nb から見た候補を選び直す
+                std::vector<Hit> cands;
+                cands.reserve(max_links + 1);
+                const uint8_t* base = row(nb.id);
+                cands.push_back({ nb.score, id });
+                for (int32_t j = 1; j <= theirs[0]; ++j) {
+                    cands.push_back({ score(base, row(theirs[j])), theirs[j] });
+                }
+                std::sort(cands.begin(), cands.end(), HitGreater());
+                const std::vector<Hit> kept = select(cands, max_links);
+                theirs[0] = (int32_t)kept.size();
+                for (size_t j = 0; j < kept.size(); ++j) theirs[1 + j] = kept[j].id;
+            }
+        }
+
+        if (level > max_level) {
+            max_level = level;
+            entry = id;
+        }
+    }
+
+    // グラフを行の後ろ（8 byte 境界）に書き、ヘッダを更新する
+    const size_t graph_offset = round_up(rows_end, 8);
+    unmap();
+    std::string dropped = drop_graph_header();
+    if (!dropped.empty()) return dropped;
+    if (ftruncate(fd_, (off_t)graph_offset) != 0) return std::string("ftruncate failed: ") + strerror(errno);
+
+    off_t off = (off_t)graph_offset;
+    auto write_all = [&](const void* data, size_t bytes) {
+        const uint8_t* p = (const uint8_t*)data;
+        while (bytes > 0) {
+            const ssize_t w = pwrite(fd_, p, std::min(bytes, ADD_CHUNK_BYTES * 16), off);
+            if (w <= 0) return false;
+            p += w;
+            off += w;
+            bytes -= (size_t)w;
+        }
+        return true;
+    };
+    if (!write_all(levels.data(), levels.size())
+            || !write_all(upper_idx.data(), upper_idx.size() * 4)
+            || !write_all(level0.data(), level0.size() * 4)
+            || !write_all(upper.data(), upper.size() * 4)) {
+        return std::string("failed to write graph: ") + strerror(errno);
+    }
+
+    hdr_.hnsw_m       = (uint32_t)m;
+    hdr_.graph_offset = graph_offset;
+    hdr_.upper_blocks = upper_blocks;
+    hdr_.entry        = entry;
+    hdr_.max_level    = max_level;
+    std::string err = write_header();
+    if (err.empty()) err = remap();
+    return err;
+}
@@ -0,0 +1,109 @@
+#pragma once
+
+#include <cstddef>
+#include <cstdint>
+#include <mutex>
+#include <string>
+#include <utility>
+#include <vector>
+
+// 埋め込みベクトルの近傍探索インデックス。1 ファイルに
+//   [ヘッダ 64 byte] [量子化した行 × count] [HNSW グラフ（任意）]
+// を並べ、検索は mmap したファイルを直接読む（Java ヒープにも native ヒープにも展開しない）。
+// 行は int8（行ごとのスケール付き、16 byte 境界）か binary（符号ビット、64 bit 境界）。
+// スコアは内積（正規化済みベクトルなら cosine）。binary はハミング距離で候補を絞ってから、
+// float のクエリと符号ベクトルの cosine で採点し直す。
+class VectorIndex {
+public:
+    enum Quant : uint32_t { QUANT_INT8 = 0, QUANT_BINARY = 1 };
+
+    struct Hit {
+        float score;
+        int32_t id;
+    };
+
+    ~VectorIndex();
+
+    // 空のインデックスを作る（既存ファイルは上書き）。失敗時はエラーメッセージ、成功時は空文字列
+    std::string create(const std::string& path, int dim, Quant quant);
+    std::string open(const std::string& path);
+    void close();
+
+    // n 本の float ベクトル（dim 個ずつ連続）を量子化して末尾に追加する。グラフは無効になる
+    std::string add(const float* vectors, size_t n);
+
+    // 全行から HNSW グラフを作ってファイルに書く。m は上位層の次数（層 0 は 2m）
+    std::string build_hnsw(int m, int ef_construction);
+
+    // 上位 k 件をスコア降順で返す。ef > 0 かつグラフがあれば HNSW、それ以外は全件走査
+    std::vector<Hit> search(const float* query, int k, int ef) const;
+
+    int dim() const { return (int)hdr_.dim; }
+    size_t size() const { return (size_t)hdr_.count; }
+    Quant quant() const { return (Quant)hdr_.quant; }
+    bool has_graph() const { return hdr_.hnsw_m != 0; }
+
+private:
+    struct Header {
+        char     magic[4];       // "VIDX"
+        uint32_t version;
+        uint32_t dim;
+        uint32_t quant;
+        uint32_t row_bytes;
+        uint32_t hnsw_m;         // 0 = グラフなし
+        uint64_t count;
+        uint64_t graph_offset;
+        int32_t  entry;
+        int32_t  max_level;
+        uint64_t upper_blocks;   // 上位層の隣接リスト数
+        uint8_t  reserved[8];
+    };
+    static_assert(sizeof(Header) == 64, "VectorIndex header must be 64 bytes");
+
+    // グラフの配置。ビルド中は std::vector、検索時は mmap を指す
+    struct Graph {
+        const int8_t*   levels    = nullptr;   // [count]
+        const uint32_t* upper_idx = nullptr;   // [count] 層 1 のブロック番号（層 l は + l - 1）
+        const int32_t*  level0    = nullptr;   // [count][1 + 2m]（先頭は件数）
+        const int32_t*  upper     = nullptr;   // [upper_blocks][1 + m]
+        int m = 0;
+
+        const int32_t* links(int32_t id, int level) const {
+            return level == 0 ? level0 + (size_t)id * (1 + 2 * m)
+                              : upper + ((size_t)upper_idx[id] + level - 1) * (1 + m);
+        }
+    };
+
+    // 量子化済みのクエリ（int8 なら行と同じ形式、binary なら符号ビット）
+    typedef std::vector<uint8_t> Code;
+
+    Code encode(const float* v) const;
+    float score(const uint8_t* a, const uint8_t* b) const;
+    float score_binary_asym(const float* query, const uint8_t* r) const;
+    const uint8_t* row(int32_t id) const { return map_ + sizeof(Header) + (size_t)id * hdr_.row_bytes; }
+
+    std::vector<Hit> search_flat(const uint8_t* q, int k) const;
+    // 層 level を ep から ef 件で探索する（結果はスコア降順）
+    std::vector<Hit> search_layer(const Graph& g, const uint8_t* q, const std::vector<Hit>& ep, int ef, int level) const;
+    std::vector<Hit> search_hnsw(const uint8_t* q, int k, int ef) const;
+
+    std::string check_header() const;
+    std::string check_graph() const;
+    std::string drop_graph_header();
+    std::string write_header();
+    std::string remap();
+    void unmap();
+
+    std::string path_;
+    int fd_ = -1;
+    Header hdr_ = {};
+    Graph graph_;
+
+    uint8_t* map_ = nullptr;
+    size_t map_size_ = 0;
+
+    // search は const だが visited のタグ配列を共有するので排他する
+    mutable std::mutex mutex_;
+    mutable std::vector<uint32_t> visited_;
+    mutable uint32_t visit_tag_ = 0;
+};
@@ -0,0 +1,58 @@
+package com.example.ollama;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+/**
+ * InferenceGovernor.DeviceProbe backed by PowerManager (thermal status from API 29, thermal headroom
+ * from API 30, power saver) and the sticky ACTION_BATTERY_CHANGED broadcast. On older releases the
+ * thermal status stays THERMAL_NONE and only the battery state counts.
+ */
+public class AndroidDeviceProbe implements InferenceGovernor.DeviceProbe {
+
+    // getThermalHeadroom() returns NaN when called more often than about once a second; forecast 10 s ahead
+    private static final long HEADROOM_INTERVAL_MS = 10_000;
+    private static final int HEADROOM_FORECAST_S = 10;
+
+    private final Context context;
+    private final PowerManager power;
+    private long headroomReadAt;
+    private float headroom = Float.NaN;
+
+    public AndroidDeviceProbe(Context context) {
+        this.context = context.getApplicationContext();
+        this.power = (PowerManager) this.context.getSystemService(Context.POWER_SERVICE);
+    }
+
+    @Override
+    public InferenceGovernor.DeviceState read() {
+        InferenceGovernor.DeviceState s = new InferenceGovernor.DeviceState();
+        if (power != null) {
+            s.powerSave = power.isPowerSaveMode();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                s.thermalStatus = power.getCurrentThermalStatus();
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                long now = System.currentTimeMillis();
+                if (now - headroomReadAt >= HEADROOM_INTERVAL_MS) {
+                    headroomReadAt = now;
+                    headroom = power.getThermalHeadroom(HEADROOM_FORECAST_S);
+                }
+                s.thermalHeadroom = headroom;
+            }
+        }
+        // Sticky broadcast: registering without a receiver just returns the last battery state
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null) {
+            int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            if (level >= 0 && scale > 0) s.batteryPercent = level * 100 / scale;
+            s.charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        }
+        return s;
+    }
+}
@@ -0,0 +1,642 @@
+package com.example.ollama;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ollama and OpenAI compatible endpoints for ApiServer, answered by the loaded model:
+ * <pre>
+ *   GET  /                      "Ollama is running"
+ *   GET  /api/tags              the served model (Ollama)
+ *   POST /api/generate          completion of "prompt" (Ollama; NDJSON stream unless "stream": false)
+ *   POST /api/chat              reply to "messages" (Ollama; NDJSON stream unless "stream": false)
+ *   GET  /v1/models             the served model (OpenAI)
+ *   POST /v1/chat/completions   reply to "messages" (OpenAI; server-sent events with "stream": true)
+ * </pre>
+ * There is one model: whatever "model" a request names, the loaded one answers. Generation runs
+ * one request at a time on a single inference thread, or with Options.parallelSlots &gt; 1 that many
+ * at once in the native parallel slots (LlamaNative.submitParallel), decoded together; at most
+ * maxQueuedRequests wait behind them and further ones get 503 with Retry-After. Streamed output
+ * goes through Exchange.write(), so a slow client slows its request down and a client that
+ * disconnects stops it.
+ * <p>
+ * Each request sets temperature, top-p, top-k, output length, seed and output format from its
+ * own options (Options supplies the defaults); penalties and the decoding mode stay as the app
+ * configured them. These are global on the native side: they are set and the generate runs under
+ * LlamaNative.GENERATION_LOCK, which the app's prompt box and BatchJob hold for theirs too (a
+ * parallel request only holds it until submitParallel() has taken its copy). KV cache reuse is on
+ * and stays on between requests, so a conversation resent with one more turn only prefills the new
+ * part; the others set it for their own generates.
+ */
+public class ApiEndpoints implements ApiServer.Handler, Closeable {
+
+    private static final String TAG = "ApiEndpoints";
+    private static final String JSON = "application/json; charset=utf-8";
+    private static final String TEXT = "text/plain; charset=utf-8";
+
+    public static class Options {
+        public float temperature = 0.8f;
+        public float topP = 0.9f;
+        public int topK = 40;
+        // Output length when a request gives none; <= 0 = until the context is full
+        public int maxTokens = 0;
+        // Generation requests waiting behind the running one before 503
+        public int maxQueuedRequests = 8;
+        // Used when the model has no chat template or llama.cpp does not know it
+        public String fallbackTemplate = "chatml";
+        // Requests generated at once (1 = one after another in the app's context) and the context length
+        // of each parallel slot (0 = the app's context length; the KV cache holds parallelSlots of them)
+        public int parallelSlots = 1;
+        public int slotContextSize = 0;
+    }
+
+    private enum Kind { GENERATE, CHAT, OPENAI }
+
+    private interface TokenSink {
+        boolean accept(String text);
+    }
+
+    // Native state is global, so these instances drive the same model as the app's; each request has its
+    // own so that parallel requests get their own onToken
+    private static final class StreamingLlama extends LlamaNative {
+        TokenSink sink;
+
+        @Override
+        public boolean onToken(String text) {
+            TokenSink s = sink;
+            return s == null || s.accept(text);
+        }
+    }
+
+    private final StreamingLlama llama = new StreamingLlama();
+    private final Options options;
+    private final ThreadPoolExecutor inference;
+    private final ExecutorService control;
+    private final AtomicLong completionIds = new AtomicLong();
+    private volatile File modelFile;
+    private volatile boolean closed;
+
+    // Guarded by this: chat template of templateModel
+    private File templateModel;
+    private String chatTemplate;
+    // Guarded by LlamaNative.GENERATION_LOCK: setParallelSlots() was called (on the first request, as it waits for
+    // a running generate)
+    private boolean slotsConfigured;
+
+    // Control thread only: /api/tags details of detailsModel
+    private File detailsModel;
+    private long detailsModified;
+    private JSONObject details;
+
+    public ApiEndpoints(Options options) {
+        this.options = options;
+        int threads = Math.max(1, options.parallelSlots);
+        inference = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, options.maxQueuedRequests)),
+                r -> new Thread(r, "api-inference"));
+        control = Executors.newSingleThreadExecutor(r -> new Thread(r, "api-control"));
+    }
+
+    // The loaded model's file, or null while none is loaded (requests then get 503)
+    public void setModel(File model) {
+        modelFile = model;
+    }
+
+    // Stops queued requests and the running generation at its next token
+    @Override
+    public void close() {
+        closed = true;
+        inference.shutdownNow();
+        control.shutdownNow();
+        try {
+            inference.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void handle(ApiServer.Request request, ApiServer.Exchange exchange) {
+        String path = request.path;
+        boolean get = request.method.equals("GET") || request.method.equals("HEAD");
+        boolean post = request.method.equals("POST");
+        switch (path) {
+            case "/":
+                if (get) {
+                    exchange.send(200, TEXT, "Ollama is running");
+                    return;
+                }
+                break;
+            case "/api/tags":
+            case "/v1/models":
+                if (get) {
+                    boolean openai = path.startsWith("/v1/");
+                    try {
+                        control.execute(() -> sendModels(exchange, openai));
+                    } catch (RejectedExecutionException e) {
+                        sendError(exchange, openai, 503, "server is stopping");
+                    }
+                    return;
+                }
+                break;
+            case "/api/generate":
+                if (post) {
+                    submit(Kind.GENERATE, request, exchange);
+                    return;
+                }
+                break;
+            case "/api/chat":
+                if (post) {
+                    submit(Kind.CHAT, request, exchange);
+                    return;
+                }
+                break;
+            case "/v1/chat/completions":
+                if (post) {
+                    submit(Kind.OPENAI, request, exchange);
+                    return;
+                }
+                break;
+            default:
+                sendError(exchange, path.startsWith("/v1/"), 404, "not found: " + path);
+                return;
+        }
+        sendError(exchange, path.startsWith("/v1/"), 405, request.method + " not allowed on " + path);
+    }
+
+    private void submit(Kind kind, ApiServer.Request request, ApiServer.Exchange exchange) {
+        try {
+            inference.execute(() -> generate(kind, request, exchange));
+        } catch (RejectedExecutionException e) {
+            sendError(exchange, kind == Kind.OPENAI, 503,
+                    closed ? "server is stopping" : "server busy: too many queued requests", "Retry-After: 1");
+        }
+    }
+
+    // ---------------- generation (inference thread) ----------------
+
+    private void generate(Kind kind, ApiServer.Request request, ApiServer.Exchange exchange) {
+        boolean openai = kind == Kind.OPENAI;
+        if (!exchange.isOpen() || closed) return;   // client left while queued
+        File model = modelFile;
+        if (model == null) {
+            sendError(exchange, openai, 503, "no model loaded");
+            return;
+        }
+        try {
+            JSONObject body = new JSONObject(request.bodyText());
+            run(kind, body, model, exchange);
+        } catch (JSONException | IllegalArgumentException e) {
+            sendError(exchange, openai, 400, e.getMessage());
+        } catch (RuntimeException e) {
+            android.util.Log.e(TAG, "generate failed", e);
+            if (!exchange.isStarted()) sendError(exchange, openai, 500, String.valueOf(e.getMessage()));
+        }
+    }
+
+    private void run(Kind kind, JSONObject body, File model, ApiServer.Exchange exchange) throws JSONException {
+        final boolean openai = kind == Kind.OPENAI;
+        final String name = modelName(model);
+        JSONObject opts = openai ? body : body.optJSONObject("options");
+        if (opts == null) opts = new JSONObject();
+
+        // Prompt
+        String prompt;
+        if (kind == Kind.GENERATE) {
+            String user = body.optString("prompt", "");
+            if (user.isEmpty()) {
+                // Ollama answers an empty prompt with "load" once the model is ready
+                exchange.send(200, JSON, ollamaBase(name).put("response", "").put("done", true)
+                        .put("done_reason", "load").toString());
+                return;
+            }
+            if (body.optBoolean("raw", false)) {
+                prompt = user;
+            } else {
+                List<String[]> messages = new ArrayList<>();
+                String system = body.optString("system", "");
+                if (!system.isEmpty()) messages.add(new String[]{"system", system});
+                messages.add(new String[]{"user", user});
+                prompt = render(model, messages);
+            }
+        } else {
+            JSONArray messages = body.optJSONArray("messages");
+            if (messages == null || messages.length() == 0) {
+                if (openai) throw new IllegalArgumentException("\"messages\" is required");
+                exchange.send(200, JSON, ollamaBase(name).put("message", assistant(""))
+                        .put("done", true).put("done_reason", "load").toString());
+                return;
+            }
+            prompt = render(model, readMessages(messages));
+        }
+
+        // Sampling and output format
+        if (openai && body.optInt("n", 1) != 1) throw new IllegalArgumentException("only \"n\": 1 is supported");
+        int maxTokens = openai
+                ? body.optInt("max_completion_tokens", body.optInt("max_tokens", options.maxTokens))
+                : opts.optInt("num_predict", options.maxTokens);
+        if (maxTokens <= 0) maxTokens = llama.getContextSize();
+        String schema = openai ? responseFormatSchema(body.optJSONObject("response_format")) : formatSchema(body.opt("format"));
+
+        // Generate, streaming what is safe to send past the stop strings
+        final boolean stream = body.optBoolean("stream", !openai);
+        final boolean includeUsage = openai && body.optJSONObject("stream_options") != null
+                && body.optJSONObject("stream_options").optBoolean("include_usage", false);
+        final String id = "chatcmpl-" + Long.toHexString(System.currentTimeMillis()) + "-" + completionIds.incrementAndGet();
+        final long created = System.currentTimeMillis() / 1000;
+        final StopFilter stops = new StopFilter(readStops(openai ? body.opt("stop") : opts.opt("stop")));
+        final StringBuilder text = new StringBuilder();
+        final boolean[] failed = {false};
+        final StreamingLlama gen = new StreamingLlama();
+
+        gen.sink = piece -> {
+            if (closed) return false;
+            String out = stops.push(piece);
+            if (!out.isEmpty()) {
+                text.append(out);
+                if (stream && !writePiece(kind, exchange, name, id, created, out)) failed[0] = true;
+            }
+            return !failed[0] && !stops.stopped && exchange.isOpen();
+        };
+        // The settings are global: set them and generate, or let a parallel request take its copy, in one step
+        final boolean parallel = options.parallelSlots > 1;
+        long slotRequest = -1;
+        GenerationResult result = null;
+        synchronized (LlamaNative.GENERATION_LOCK) {
+            if (parallel && !slotsConfigured) {
+                slotsConfigured = true;
+                String res = llama.setParallelSlots(options.parallelSlots, options.slotContextSize);
+                if (!"ok".equals(res)) android.util.Log.w(TAG, "setParallelSlots: " + res);
+            }
+            llama.setSampling((float) opts.optDouble("temperature", options.temperature),
+                    (float) opts.optDouble("top_p", options.topP),
+                    opts.optInt("top_k", options.topK),
+                    maxTokens,
+                    opts.optInt("seed", -1));
+            String grammarResult = llama.setGrammar("", schema);
+            if (!"ok".equals(grammarResult)) throw new IllegalArgumentException("format: " + grammarResult);
+            if (parallel) {
+                slotRequest = gen.submitParallel(prompt);
+            } else {
+                llama.setPromptCacheReuse(true);
+                result = gen.generateStreaming(prompt);
+            }
+        }
+        if (parallel) result = gen.awaitParallel(slotRequest);
+        if (!exchange.isOpen() || failed[0] || closed) return;
+
+        if (result.isError()) {
+            if (!exchange.isStarted()) {
+                sendError(exchange, openai, 500, result.text);
+            } else {
+                exchange.write(openai ? "data: " + openAiError(result.text) + "\n\n"
+                        : new JSONObject().put("error", result.text) + "\n");
+                exchange.end();
+            }
+            return;
+        }
+        if (!stops.stopped) {
+            String tail = stops.flush();
+            if (!tail.isEmpty()) {
+                text.append(tail);
+                if (stream && !writePiece(kind, exchange, name, id, created, tail)) return;
+            }
+        }
+        String reason = stops.stopped || "eos".equals(result.stopReason) || "grammar".equals(result.stopReason)
+                ? "stop" : "length";
+        GenerationStats st = result.stats;
+
+        if (openai) {
+            JSONObject usage = new JSONObject()
+                    .put("prompt_tokens", st != null ? st.promptTokens : 0)
+                    .put("completion_tokens", st != null ? st.generatedTokens : 0)
+                    .put("total_tokens", st != null ? st.promptTokens + st.generatedTokens : 0);
+            if (stream) {
+                if (!exchange.isStarted()) beginStream(kind, exchange, name, id, created);
+                JSONObject last = openAiChunk(name, id, created, new JSONObject(), reason);
+                exchange.write("data: " + last + "\n\n");
+                if (includeUsage) {
+                    exchange.write("data: " + openAiChunk(name, id, created, null, null)
+                            .put("choices", new JSONArray()).put("usage", usage) + "\n\n");
+                }
+                exchange.write("data: [DONE]\n\n");
+                exchange.end();
+            } else {
+                JSONObject choice = new JSONObject().put("index", 0)
+                        .put("message", assistant(text.toString())).put("finish_reason", reason);
+                exchange.send(200, JSON, new JSONObject().put("id", id).put("object", "chat.completion")
+                        .put("created", created).put("model", name)
+                        .put("choices", new JSONArray().put(choice)).put("usage", usage).toString());
+            }
+            return;
+        }
+
+        JSONObject done = ollamaBase(name);
+        String full = stream ? "" : text.toString();
+        if (kind == Kind.CHAT) done.put("message", assistant(full));
+        else done.put("response", full);
+        done.put("done", true).put("done_reason", reason);
+        if (st != null) {
+            done.put("total_duration", (long) (st.totalMs * 1e6))
+                .put("load_duration", 0)
+                .put("prompt_eval_count", st.promptTokens)
+                .put("prompt_eval_duration", (long) (st.prefillMs * 1e6))
+                .put("eval_count", st.generatedTokens)
+                .put("eval_duration", (long) (st.decodeMs * 1e6));
+        }
+        if (stream) {
+            if (!exchange.isStarted()) beginStream(kind, exchange, name, id, created);
+            exchange.write(done + "\n");
+            exchange.end();
+        } else {
+            exchange.send(200, JSON, done.toString());
+        }
+    }
+
+    // Sends one piece of output in the kind's stream format, starting the response first if needed
+    private boolean writePiece(Kind kind, ApiServer.Exchange exchange, String name, String id, long created, String piece) {
+        try {
+            if (!exchange.isStarted() && !beginStream(kind, exchange, name, id, created)) return false;
+            switch (kind) {
+                case OPENAI:
+                    return exchange.write("data: " + openAiChunk(name, id, created,
+                            new JSONObject().put("content", piece), null) + "\n\n");
+                case CHAT:
+                    return exchange.write(ollamaBase(name).put("message", assistant(piece)).put("done", false) + "\n");
+                default:
+                    return exchange.write(ollamaBase(name).put("response", piece).put("done", false) + "\n");
+            }
+        } catch (JSONException e) {
+            return false;
+        }
+    }
+
+    private boolean beginStream(Kind kind, ApiServer.Exchange exchange, String name, String id, long created)
+            throws JSONException {
+        if (kind != Kind.OPENAI) return exchange.begin(200, "application/x-ndjson");
+        // The first chunk carries the role, as OpenAI's does
+        return exchange.begin(200, "text/event-stream")
+                && exchange.write("data: " + openAiChunk(name, id, created,
+                        new JSONObject().put("role", "assistant").put("content", ""), null) + "\n\n");
+    }
+
+    // Renders messages ({role, content}) with the model's chat template, or options.fallbackTemplate
+    private synchronized String render(File model, List<String[]> messages) {
+        if (templateModel != model) {
+            templateModel = model;
+            chatTemplate = llama.getChatTemplate();
+        }
+        String[] roles = new String[messages.size()];
+        String[] contents = new String[messages.size()];
+        for (int i = 0; i < roles.length; i++) {
+            roles[i] = messages.get(i)[0];
+            contents[i] = messages.get(i)[1];
+        }
+        String prompt = chatTemplate != null ? llama.applyChatMessages(chatTemplate, roles, contents) : null;
+        if (prompt == null) prompt = llama.applyChatMessages(options.fallbackTemplate, roles, contents);
+        if (prompt == null) throw new IllegalStateException("cannot render the chat template");
+        return prompt;
+    }
+
+    // {role, content} pairs; OpenAI content may be an array of parts, of which the text parts are used
+    private static List<String[]> readMessages(JSONArray messages) throws JSONException {
+        List<String[]> out = new ArrayList<>();
+        for (int i = 0; i < messages.length(); i++) {
+            JSONObject m = messages.optJSONObject(i);
+            if (m == null) throw new IllegalArgumentException("messages[" + i + "] is not an object");
+            String role = m.optString("role", "user");
+            if (role.equals("developer")) role = "system";
+            Object content = m.opt("content");
+            String text;
+            if (content instanceof JSONArray) {
+                StringBuilder sb = new StringBuilder();
+                JSONArray parts = (JSONArray) content;
+                for (int k = 0; k < parts.length(); k++) {
+                    JSONObject part = parts.optJSONObject(k);
+                    if (part != null && "text".equals(part.optString("type"))) sb.append(part.optString("text", ""));
+                }
+                text = sb.toString();
+            } else {
+                text = content == null || JSONObject.NULL.equals(content) ? "" : content.toString();
+            }
+            out.add(new String[]{role, text});
+        }
+        return out;
+    }
+
+    private static List<String> readStops(Object stop) {
+        List<String> stops = new ArrayList<>();
+        if (stop instanceof JSONArray) {
+            JSONArray a = (JSONArray) stop;
+            for (int i = 0; i < a.length(); i++) {
+                String s = a.optString(i);
+                if (!s.isEmpty()) stops.add(s);
+            }
+        } else if (stop instanceof String && !((String) stop).isEmpty()) {
+            stops.add((String) stop);
+        }
+        return stops;
+    }
+
+    // Ollama "format": "json" (any JSON value) or a JSON schema object
+    private static String formatSchema(Object format) {
+        if (format instanceof JSONObject) return format.toString();
+        if ("json".equals(format)) return "{}";
+        return "";
+    }
+
+    // OpenAI "response_format": {"type": "json_object"} or {"type": "json_schema", "json_schema": {"schema": ...}}
+    private static String responseFormatSchema(JSONObject format) {
+        if (format == null) return "";
+        switch (format.optString("type")) {
+            case "json_object":
+                return "{}";
+            case "json_schema":
+                JSONObject js = format.optJSONObject("json_schema");
+                JSONObject schema = js != null ? js.optJSONObject("schema") : null;
+                return schema != null ? schema.toString() : "{}";
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Holds back output that could be the start of a stop string. push() returns the text that is
+     * safe to send; once a stop string appears, the text before it is returned and stopped is set.
+     */
+    static final class StopFilter {
+        private final List<String> stops;
+        private final StringBuilder held = new StringBuilder();
+        boolean stopped;
+
+        StopFilter(List<String> stops) {
+            this.stops = stops;
+        }
+
+        String push(String text) {
+            if (stops.isEmpty()) return text;
+            held.append(text);
+            int cut = -1;
+            for (String s : stops) {
+                int at = held.indexOf(s);
+                if (at >= 0 && (cut < 0 || at < cut)) cut = at;
+            }
+            if (cut >= 0) {
+                stopped = true;
+                String out = held.substring(0, cut);
+                held.setLength(0);
+                return out;
+            }
+            String tail = held.toString();
+            int keep = 0;
+            for (String s : stops) {
+                for (int k = Math.min(s.length() - 1, tail.length()); k > keep; k--) {
+                    if (tail.regionMatches(tail.length() - k, s, 0, k)) {
+                        keep = k;
+                        break;
+                    }
+                }
+            }
+            held.delete(0, tail.length() - keep);
+            return tail.substring(0, tail.length() - keep);
+        }
+
+        String flush() {
+            String out = held.toString();
+            held.setLength(0);
+            return out;
+        }
+    }
+
+    // ---------------- responses ----------------
+
+    private static JSONObject ollamaBase(String name) throws JSONException {
+        return new JSONObject().put("model", name).put("created_at", timestamp(System.currentTimeMillis()));
+    }
+
+    private static JSONObject assistant(String content) throws JSONException {
+        return new JSONObject().put("role", "assistant").put("content", content);
+    }
+
+    private static JSONObject openAiChunk(String name, String id, long created, JSONObject delta, String finishReason)
+            throws JSONException {
+        JSONObject chunk = new JSONObject().put("id", id).put("object", "chat.completion.chunk")
+                .put("created", created).put("model", name);
+        if (delta != null) {
+            JSONObject choice = new JSONObject().put("index", 0).put("delta", delta)
+                    .put("finish_reason", finishReason != null ? finishReason : JSONObject.NULL);
+            chunk.put("choices", new JSONArray().put(choice));
+        }
+        return chunk;
+    }
+
+    private static String openAiError(String message) {
+        try {
+            return new JSONObject().put("error", new JSONObject().put("message", message)
+                    .put("type", "server_error")).toString();
+        } catch (JSONException e) {
+            return "{}";
+        }
+    }
+
+    // {"error": message} (Ollama) or {"error": {"message", "type"}} (OpenAI)
+    private static void sendError(ApiServer.Exchange exchange, boolean openai, int status, String message,
+                                  String... headers) {
+        try {
+            JSONObject doc = openai
+                    ? new JSONObject().put("error", new JSONObject().put("message", message)
+                            .put("type", status >= 500 ? "server_error" : "invalid_request_error"))
+                    : new JSONObject().put("error", message);
+            exchange.send(status, JSON, doc.toString(), headers);
+        } catch (JSONException e) {
+            exchange.send(status, TEXT, message, headers);
+        }
+    }
+
+    // ---------------- model list (control thread) ----------------
+
+    private void sendModels(ApiServer.Exchange exchange, boolean openai) {
+        File model = modelFile;
+        try {
+            JSONArray list = new JSONArray();
+            if (model != null) {
+                String name = modelName(model);
+                if (openai) {
+                    list.put(new JSONObject().put("id", name).put("object", "model")
+                            .put("created", model.lastModified() / 1000).put("owned_by", "local"));
+                } else {
+                    list.put(new JSONObject().put("name", name).put("model", name)
+                            .put("modified_at", timestamp(model.lastModified()))
+                            .put("size", model.length())
+                            .put("details", modelDetails(model)));
+                }
+            }
+            JSONObject doc = openai ? new JSONObject().put("object", "list").put("data", list)
+                    : new JSONObject().put("models", list);
+            exchange.send(200, JSON, doc.toString());
+        } catch (JSONException e) {
+            sendError(exchange, openai, 500, e.getMessage());
+        }
+    }
+
+    // Ollama "details" from the GGUF header, read once per model file
+    private JSONObject modelDetails(File model) throws JSONException {
+        if (details != null && model.equals(detailsModel) && model.lastModified() == detailsModified) return details;
+        String family = "";
+        String size = "";
+        String quant = "";
+        try {
+            GgufMetadata meta = GgufMetadata.read(model);
+            family = meta.getString("general.architecture", "");
+            size = meta.getString("general.size_label", "");
+            long fileType = meta.getLong("general.file_type", -1);
+            quant = fileType >= 0 && fileType < FILE_TYPES.length ? FILE_TYPES[(int) fileType] : "";
+        } catch (IOException e) {
+            android.util.Log.w(TAG, "cannot read " + model, e);
+        }
+        JSONArray families = new JSONArray();
+        if (!family.isEmpty()) families.put(family);
+        details = new JSONObject().put("format", "gguf").put("family", family).put("families", families)
+                .put("parameter_size", size).put("quantization_level", quant);
+        detailsModel = model;
+        detailsModified = model.lastModified();
+        return details;
+    }
+
+    // llama_ftype names by value ("" for removed types)
+    private static final String[] FILE_TYPES = {
+            "F32", "F16", "Q4_0", "Q4_1", "", "", "", "Q8_0", "Q5_0", "Q5_1",
+            "Q2_K", "Q3_K_S", "Q3_K_M", "Q3_K_L", "Q4_K_S", "Q4_K_M", "Q5_K_S", "Q5_K_M", "Q6_K", "IQ2_XXS",
+            "IQ2_XS", "Q2_K_S", "IQ3_XS", "IQ3_XXS", "IQ1_S", "IQ4_NL", "IQ3_S", "IQ3_M", "IQ2_S", "IQ2_M",
+            "IQ4_XS", "IQ1_M", "BF16", "", "", "", "TQ1_0", "TQ2_0",
+    };
+
+    static String modelName(File model) {
+        String name = model.getName();
+        return name.toLowerCase(Locale.ROOT).endsWith(".gguf") ? name.substring(0, name.length() - 5) : name;
+    }
+
+    private static String timestamp(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+}
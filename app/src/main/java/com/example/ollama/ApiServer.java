@@ -0,0 +1,581 @@
+package com.example.ollama;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Small HTTP/1.1 server on one non-blocking NIO event loop, bound to the loopback interface.
+ * The loop thread accepts connections, parses requests and writes responses; it never waits for
+ * a handler. A Handler gets each request on the loop thread and answers it through an Exchange
+ * from any thread, usually after handing the work to an executor:
+ * <ul>
+ *   <li>send() answers with a complete body (Content-Length);</li>
+ *   <li>begin() / write() / end() stream a chunked body. write() blocks while more than
+ *       maxBufferedBytes of the response wait for a slow client, and returns false once the
+ *       client has gone, so a producer slows down to the client's pace or stops. A client that
+ *       reads nothing for stallTimeoutMs is disconnected, so a writer never waits forever.</li>
+ * </ul>
+ * Connections are kept alive; their requests are answered one after another. Requests whose Host
+ * header is not a loopback name are refused, so web pages cannot reach the server through DNS
+ * rebinding, and no CORS headers are sent.
+ */
+public class ApiServer implements Closeable {
+
+    private static final String TAG = "ApiServer";
+
+    public interface Handler {
+        // Called on the event loop thread: must not block. Answer through exchange, now or later
+        void handle(Request request, Exchange exchange);
+    }
+
+    public static class Options {
+        public int maxConnections = 32;
+        public int maxHeaderBytes = 16 << 10;
+        public int maxBodyBytes = 8 << 20;
+        // Response bytes queued for one connection before Exchange.write() blocks
+        public int maxBufferedBytes = 256 << 10;
+        // A blocked Exchange.write() gives up and closes the connection when the client has taken
+        // none of the queued bytes for this long (the writer may hold the inference lock meanwhile)
+        public long stallTimeoutMs = 30_000;
+        // Idle keep-alive connections are closed after this long
+        public long idleTimeoutMs = 60_000;
+    }
+
+    public static final class Request {
+        public final String method;
+        public final String path;
+        // Part of the target after '?' ("" if none), not decoded
+        public final String query;
+        // Header names in lower case
+        public final Map<String, String> headers;
+        public final byte[] body;
+
+        Request(String method, String path, String query, Map<String, String> headers, byte[] body) {
+            this.method = method;
+            this.path = path;
+            this.query = query;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public String header(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        public String bodyText() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    /** The response to one request. Methods may be called from any thread, one thread at a time. */
+    public final class Exchange {
+        private final Connection conn;
+        private final boolean keepAlive;
+        private boolean started;
+        private boolean chunked;
+        private boolean finished;
+
+        Exchange(Connection conn, boolean keepAlive) {
+            this.conn = conn;
+            this.keepAlive = keepAlive;
+        }
+
+        // False once the client has closed the connection or it failed
+        public boolean isOpen() {
+            synchronized (conn) {
+                return !conn.closed;
+            }
+        }
+
+        public boolean isStarted() {
+            return started;
+        }
+
+        // Complete response. extraHeaders are "Name: value" lines
+        public void send(int status, String contentType, byte[] body, String... extraHeaders) {
+            if (started) throw new IllegalStateException("response already started");
+            started = true;
+            StringBuilder head = statusLine(status, contentType, extraHeaders);
+            head.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+            byte[] h = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+            ByteBuffer buf = ByteBuffer.allocate(h.length + body.length);
+            buf.put(h).put(body).flip();
+            conn.enqueue(buf, false);
+            finish();
+        }
+
+        public void send(int status, String contentType, String body, String... extraHeaders) {
+            send(status, contentType, body.getBytes(StandardCharsets.UTF_8), extraHeaders);
+        }
+
+        // Starts a streamed (chunked) response; returns false if the client has gone
+        public boolean begin(int status, String contentType, String... extraHeaders) {
+            if (started) throw new IllegalStateException("response already started");
+            started = true;
+            chunked = true;
+            StringBuilder head = statusLine(status, contentType, extraHeaders);
+            head.append("Cache-Control: no-cache\r\nTransfer-Encoding: chunked\r\n\r\n");
+            return conn.enqueue(ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1)), false);
+        }
+
+        /**
+         * Sends text as one chunk. Blocks while the connection has more than maxBufferedBytes queued;
+         * returns false if the client has gone, stopped reading for stallTimeoutMs (the connection is
+         * then closed) or the thread was interrupted.
+         */
+        public boolean write(String text) {
+            if (!chunked || finished) throw new IllegalStateException("begin() first");
+            byte[] data = text.getBytes(StandardCharsets.UTF_8);
+            if (data.length == 0) return isOpen();
+            byte[] size = (Integer.toHexString(data.length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            ByteBuffer buf = ByteBuffer.allocate(size.length + data.length + 2);
+            buf.put(size).put(data).put((byte) '\r').put((byte) '\n').flip();
+            return conn.enqueue(buf, true);
+        }
+
+        // Ends a streamed response
+        public void end() {
+            if (!chunked) throw new IllegalStateException("begin() first");
+            if (finished) return;
+            conn.enqueue(ByteBuffer.wrap("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)), false);
+            finish();
+        }
+
+        private StringBuilder statusLine(int status, String contentType, String[] extraHeaders) {
+            StringBuilder head = new StringBuilder(256);
+            head.append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+            head.append("Content-Type: ").append(contentType).append("\r\n");
+            head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+            for (String h : extraHeaders) head.append(h).append("\r\n");
+            return head;
+        }
+
+        private void finish() {
+            finished = true;
+            post(() -> exchangeDone(conn, this));
+        }
+    }
+
+    private final class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(4096);
+        // Request being answered (loop thread only)
+        Exchange current;
+        boolean continueSent;
+        boolean closeWhenFlushed;
+        long lastActive = System.currentTimeMillis();
+
+        // Guarded by this: queued response bytes, shared with writer threads
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        long buffered;
+        boolean closed;
+        boolean writeScheduled;
+        // When the client last took queued bytes
+        long drainedAt;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // Queues buf for the loop to write; with wait, first blocks while too much is queued
+        boolean enqueue(ByteBuffer buf, boolean wait) {
+            boolean schedule;
+            synchronized (this) {
+                try {
+                    long waitStart = System.currentTimeMillis();
+                    while (wait && !closed && buffered > options.maxBufferedBytes) {
+                        long left = Math.max(waitStart, drainedAt) + options.stallTimeoutMs - System.currentTimeMillis();
+                        if (left <= 0) {
+                            Log.w(TAG, "client stopped reading for " + options.stallTimeoutMs + " ms, closing");
+                            closed = true;
+                            out.clear();
+                            buffered = 0;
+                            post(() -> close(this));
+                            return false;
+                        }
+                        wait(left);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                if (closed) return false;
+                out.add(buf);
+                buffered += buf.remaining();
+                schedule = !writeScheduled;
+                writeScheduled = true;
+            }
+            if (schedule) post(() -> enableWrite(this));
+            return true;
+        }
+    }
+
+    private final int port;
+    private final Handler handler;
+    private final Options options;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final List<Connection> connections = new ArrayList<>();
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Thread loop;
+    private volatile boolean running;
+
+    // port 0 picks a free port (see getPort())
+    public ApiServer(int port, Handler handler, Options options) {
+        this.port = port;
+        this.handler = handler;
+        this.options = options;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) return;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try {
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            selector.close();
+            throw e;
+        }
+        running = true;
+        loop = new Thread(this::runLoop, "api-server");
+        loop.start();
+    }
+
+    public int getPort() {
+        ServerSocketChannel s = server;
+        return s != null ? s.socket().getLocalPort() : -1;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    // Stops the loop and closes every connection; streaming writers see write() return false
+    @Override
+    public synchronized void close() {
+        if (!running) return;
+        running = false;
+        selector.wakeup();
+        try {
+            loop.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runLoop() {
+        long lastSweep = System.currentTimeMillis();
+        try {
+            while (running) {
+                selector.select(1000);
+                Runnable task;
+                while ((task = tasks.poll()) != null) task.run();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection conn = (Connection) key.attachment();
+                    if (key.isWritable()) flush(conn);
+                    if (key.isValid() && key.isReadable()) read(conn);
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= 1000) {
+                    lastSweep = now;
+                    closeIdle(now);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "event loop failed", e);
+        } finally {
+            running = false;
+            for (Connection conn : new ArrayList<>(connections)) close(conn);
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void post(Runnable task) {
+        tasks.add(task);
+        Selector s = selector;
+        if (s != null) s.wakeup();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            if (connections.size() >= options.maxConnections) {
+                // Best effort: the socket buffer of a fresh connection takes this without blocking
+                channel.write(ByteBuffer.wrap(("HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\n"
+                        + "Retry-After: 1\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+                channel.close();
+                continue;
+            }
+            Connection conn = new Connection(channel);
+            conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+            connections.add(conn);
+        }
+    }
+
+    private void read(Connection conn) {
+        int n;
+        try {
+            if (!conn.in.hasRemaining()) {
+                int limit = options.maxHeaderBytes + options.maxBodyBytes;
+                if (conn.in.capacity() >= limit) {
+                    // Far more than one request; the parser has already answered or will close
+                    conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+                    return;
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(limit, conn.in.capacity() * 2));
+                conn.in.flip();
+                bigger.put(conn.in);
+                conn.in = bigger;
+            }
+            n = conn.channel.read(conn.in);
+        } catch (IOException e) {
+            close(conn);
+            return;
+        }
+        if (n < 0) {
+            // Client closed; a running handler sees isOpen() == false
+            close(conn);
+            return;
+        }
+        conn.lastActive = System.currentTimeMillis();
+        if (conn.current == null) parse(conn);
+    }
+
+    // Takes the next complete request out of conn.in and hands it to the handler
+    private void parse(Connection conn) {
+        ByteBuffer in = conn.in;
+        int len = in.position();
+        byte[] data = in.array();
+        int headerEnd = -1;
+        for (int i = 3; i < len; i++) {
+            if (data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n' && data[i - 3] == '\r') {
+                headerEnd = i + 1;
+                break;
+            }
+        }
+        if (headerEnd < 0) {
+            if (len > options.maxHeaderBytes) reject(conn, 431, "request header too large");
+            return;
+        }
+        if (headerEnd > options.maxHeaderBytes) {
+            reject(conn, 431, "request header too large");
+            return;
+        }
+
+        String[] lines = new String(data, 0, headerEnd - 4, StandardCharsets.ISO_8859_1).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            reject(conn, 400, "bad request line");
+            return;
+        }
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                reject(conn, 400, "bad header");
+                return;
+            }
+            headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+        }
+        if (headers.containsKey("transfer-encoding")) {
+            reject(conn, 411, "chunked request bodies are not supported; send Content-Length");
+            return;
+        }
+        long contentLength = 0;
+        try {
+            String cl = headers.get("content-length");
+            if (cl != null) contentLength = Long.parseLong(cl);
+        } catch (NumberFormatException e) {
+            reject(conn, 400, "bad Content-Length");
+            return;
+        }
+        if (contentLength < 0 || contentLength > options.maxBodyBytes) {
+            reject(conn, 413, "request body too large");
+            return;
+        }
+        if (len < headerEnd + contentLength) {
+            if (!conn.continueSent && "100-continue".equalsIgnoreCase(headers.get("expect"))) {
+                conn.continueSent = true;
+                conn.enqueue(ByteBuffer.wrap("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)), false);
+            }
+            return;
+        }
+
+        byte[] body = new byte[(int) contentLength];
+        System.arraycopy(data, headerEnd, body, 0, body.length);
+        int consumed = headerEnd + body.length;
+        in.flip();
+        in.position(consumed);
+        in.compact();
+        conn.continueSent = false;
+
+        String target = requestLine[1];
+        int q = target.indexOf('?');
+        Request request = new Request(requestLine[0], q >= 0 ? target.substring(0, q) : target,
+                q >= 0 ? target.substring(q + 1) : "", Collections.unmodifiableMap(headers), body);
+        String connection = headers.get("connection");
+        boolean keepAlive = requestLine[2].equals("HTTP/1.0")
+                ? "keep-alive".equalsIgnoreCase(connection) : !"close".equalsIgnoreCase(connection);
+        Exchange exchange = new Exchange(conn, keepAlive);
+        conn.current = exchange;
+
+        if (!isLoopbackHost(headers.get("host"))) {
+            exchange.send(403, "text/plain; charset=utf-8", "only localhost requests are served\n");
+            return;
+        }
+        try {
+            handler.handle(request, exchange);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "handler failed", e);
+            if (!exchange.started) exchange.send(500, "text/plain; charset=utf-8", "internal error\n");
+        }
+    }
+
+    private void reject(Connection conn, int status, String message) {
+        Exchange exchange = new Exchange(conn, false);
+        conn.current = exchange;
+        exchange.send(status, "text/plain; charset=utf-8", message + "\n");
+    }
+
+    // Loop thread: the response is fully queued; close after it or go on with the next request
+    private void exchangeDone(Connection conn, Exchange exchange) {
+        if (conn.current != exchange || !conn.key.isValid()) return;
+        conn.current = null;
+        conn.lastActive = System.currentTimeMillis();
+        if (!exchange.keepAlive) {
+            conn.closeWhenFlushed = true;
+            enableWrite(conn);
+            return;
+        }
+        if (conn.in.position() > 0) parse(conn);
+    }
+
+    private void enableWrite(Connection conn) {
+        if (conn.key.isValid()) conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    private void flush(Connection conn) {
+        boolean empty;
+        synchronized (conn) {
+            try {
+                while (!conn.out.isEmpty()) {
+                    ByteBuffer buf = conn.out.peek();
+                    int n = conn.channel.write(buf);
+                    conn.buffered -= n;
+                    if (n > 0) conn.drainedAt = System.currentTimeMillis();
+                    if (buf.hasRemaining()) break;
+                    conn.out.poll();
+                }
+            } catch (IOException e) {
+                conn.out.clear();
+                conn.buffered = 0;
+                conn.closed = true;
+            }
+            empty = conn.out.isEmpty();
+            if (empty) conn.writeScheduled = false;
+            conn.notifyAll();
+        }
+        conn.lastActive = System.currentTimeMillis();
+        if (conn.closed || (empty && conn.closeWhenFlushed)) {
+            close(conn);
+        } else if (empty && conn.key.isValid()) {
+            conn.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void closeIdle(long now) {
+        for (Connection conn : new ArrayList<>(connections)) {
+            boolean idle;
+            synchronized (conn) {
+                idle = conn.current == null && conn.out.isEmpty();
+            }
+            if (idle && now - conn.lastActive > options.idleTimeoutMs) close(conn);
+        }
+    }
+
+    private void close(Connection conn) {
+        synchronized (conn) {
+            conn.closed = true;
+            conn.out.clear();
+            conn.buffered = 0;
+            conn.notifyAll();
+        }
+        connections.remove(conn);
+        if (conn.key != null) conn.key.cancel();
+        try {
+            conn.channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    static boolean isLoopbackHost(String host) {
+        if (host == null) return true;   // HTTP/1.0 clients may leave it out
+        String h = host.trim().toLowerCase(Locale.ROOT);
+        if (h.startsWith("[")) {
+            int end = h.indexOf(']');
+            h = end > 0 ? h.substring(1, end) : h;
+        } else {
+            int colon = h.indexOf(':');
+            if (colon >= 0) h = h.substring(0, colon);
+        }
+        return h.equals("localhost") || h.equals("127.0.0.1") || h.equals("::1");
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 100: return "Continue";
+            case 200: return "OK";
+            case 400: return "Bad Request";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 411: return "Length Required";
+            case 413: return "Payload Too Large";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            default: return "Status";
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package com.example.ollama;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Runs the prompts of a JSONL file through generateWithStats() one line at a time and appends one
+ * JSON result per line to an output JSONL file as each finishes:
+ * <pre>
+ *   in:  {"id": "q1", "prompt": "...", "system": "...", "temperature": 0.2, "top_p": 0.9, "top_k": 40,
+ *         "max_tokens": 256, "seed": 7, "grammar": "...", "json_schema": {...}}   (only "prompt" is required)
+ *   out: {"id", "line", "text", "stop_reason", "prompt_tokens", "prompt_reused_tokens", "generated_tokens",
+ *         "ttft_ms", "prefill_ms", "decode_ms", "total_ms"}, or {"id", "line", "error"}
+ * </pre>
+ * Keys missing from a line take their value from Options; "line" is the 1-based line number in the input
+ * (blank lines are skipped) and also the id if the line has none. Prompts are rendered with the chat
+ * template; its system part is set as the prompt prefix and its KV cache is kept between lines
+ * (setPromptCacheReuse), so lines sharing a system prompt only tokenize and prefill their user part.
+ * Each line sets its settings and generates under LlamaNative.GENERATION_LOCK, so API requests and the
+ * app can generate between lines without mixing settings.
+ * <p>
+ * After each result {@code <output>.ckpt} is replaced with the input offset of the next line, the
+ * length of the output and the running totals. Running the job again on the same files cuts the output
+ * back to that length and continues at that line, so an interrupted job neither loses nor repeats
+ * results, and lines appended to the input later are picked up. A last line without a newline may still
+ * be being written, so it is left for a later run unless Options.finalRun is set. The summary covers all
+ * runs.
+ * <p>
+ * Leaves the sampling parameters, grammar and prompt prefix of the last line set; prompt cache reuse is
+ * turned off again. Not thread-safe; cancel() may be called from any thread.
+ */
+public class BatchJob {
+
+    private static final String USER_INPUT = "{USER_INPUT}";
+
+    public static class Options {
+        // Chat template rendered with each line's system prompt: null = the model's own, "" = none, else a Jinja
+        // template or a llama.cpp built-in name ("chatml", "llama3", ...)
+        public String chatTemplate;
+        // {USER_INPUT} template used when there is no chat template or it cannot be rendered; system prompts
+        // are not applied then (null = send the prompt as it is)
+        public String promptTemplate;
+        public String systemPrompt = "";
+        public float temperature = 0.0f;
+        public float topP = 0.9f;
+        public int topK = 40;
+        public int maxTokens = 256;
+        // -1 = random per request
+        public int seed = 0;
+        public String grammar = "";
+        public String jsonSchema = "";
+        // Keep the KV cache of the prompt prefix shared with the previous line
+        public boolean reusePromptCache = true;
+        // false: start over, discarding any earlier output and checkpoint
+        public boolean resume = true;
+        // The input is complete: also answer a last line that has no newline (otherwise the checkpoint stays
+        // before it and a later run answers it once it is terminated)
+        public boolean finalRun = false;
+    }
+
+    public interface ProgressListener {
+        // Called after each result has been written and checkpointed
+        void onResult(JSONObject result, Result totals);
+    }
+
+    public static class Result {
+        public int prompts;
+        public int errors;
+        // Of prompts, the ones answered by earlier runs of the job
+        public int resumed;
+        public long promptTokens;
+        public long reusedTokens;
+        public long generatedTokens;
+        public double prefillMs;
+        public double decodeMs;
+        // Wall-clock time of all runs
+        public double ms;
+
+        public String toSummary() {
+            double s = ms / 1000.0;
+            return String.format(Locale.US,
+                    "%d prompts (%d errors, %d from earlier runs) in %.2f s: %.2f prompts/s | "
+                    + "prompt %d tok (%d KV reused), prefill %.1f tok/s | gen %d tok, %.2f tok/s decode, %.2f tok/s overall",
+                    prompts, errors, resumed, s, s > 0 ? prompts / s : 0.0,
+                    promptTokens, reusedTokens,
+                    prefillMs > 0 ? (promptTokens - reusedTokens) * 1000.0 / prefillMs : 0.0,
+                    generatedTokens, decodeMs > 0 ? generatedTokens * 1000.0 / decodeMs : 0.0,
+                    s > 0 ? generatedTokens / s : 0.0);
+        }
+
+        JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("prompts", prompts);
+            json.put("errors", errors);
+            json.put("prompt_tokens", promptTokens);
+            json.put("reused_tokens", reusedTokens);
+            json.put("generated_tokens", generatedTokens);
+            json.put("prefill_ms", prefillMs);
+            json.put("decode_ms", decodeMs);
+            json.put("ms", ms);
+            return json;
+        }
+
+        static Result fromJSON(JSONObject json) {
+            Result r = new Result();
+            r.prompts = json.optInt("prompts");
+            r.errors = json.optInt("errors");
+            r.resumed = r.prompts;
+            r.promptTokens = json.optLong("prompt_tokens");
+            r.reusedTokens = json.optLong("reused_tokens");
+            r.generatedTokens = json.optLong("generated_tokens");
+            r.prefillMs = json.optDouble("prefill_ms", 0.0);
+            r.decodeMs = json.optDouble("decode_ms", 0.0);
+            r.ms = json.optDouble("ms", 0.0);
+            return r;
+        }
+    }
+
+    private final LlamaNative llama;
+    private final Options options;
+    private volatile boolean cancelled;
+
+    // {USER_INPUT} template per system prompt, rendered once
+    private final Map<String, String> templates = new HashMap<>();
+    private String modelTemplate;
+
+    public BatchJob(LlamaNative llama, Options options) {
+        this.llama = llama;
+        this.options = options;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public static File checkpointFile(File output) {
+        return new File(output.getPath() + ".ckpt");
+    }
+
+    /**
+     * Answers the lines of {@code input} not answered yet, appending the results to {@code output}.
+     * After cancel() it returns after the line being generated, with the totals so far.
+     */
+    public Result run(File input, File output, ProgressListener listener) throws IOException, JSONException {
+        File ckpt = checkpointFile(output);
+        long offset = 0;
+        int lineNo = 0;
+        long outputBytes = 0;
+        Result result = new Result();
+        if (options.resume && ckpt.isFile()) {
+            JSONObject state = new JSONObject(new String(readAll(ckpt), StandardCharsets.UTF_8));
+            offset = state.getLong("offset");
+            lineNo = state.getInt("line");
+            outputBytes = state.getLong("output_bytes");
+            result = Result.fromJSON(state.getJSONObject("totals"));
+            if (offset > input.length()) {
+                throw new IOException("Input is shorter than checkpoint " + ckpt + "; was it replaced?");
+            }
+            if (outputBytes > output.length()) {
+                throw new IOException("Output is shorter than checkpoint " + ckpt);
+            }
+        } else if (!options.resume) {
+            ckpt.delete();
+        } else if (output.length() > 0) {
+            throw new IOException(output + " exists without checkpoint " + ckpt);
+        }
+        // Drops a result written after the last checkpoint; its line runs again
+        try (RandomAccessFile raf = new RandomAccessFile(output, "rw")) {
+            raf.setLength(outputBytes);
+        }
+
+        modelTemplate = options.chatTemplate == null ? llama.getChatTemplate() : null;
+        long t0 = System.nanoTime();
+        double msBefore = result.ms;
+
+        try (FileInputStream fin = new FileInputStream(input);
+             FileOutputStream out = new FileOutputStream(output, true)) {
+            fin.getChannel().position(offset);
+            InputStream in = new BufferedInputStream(fin, 64 << 10);
+            ByteArrayOutputStream lineBuf = new ByteArrayOutputStream();
+            while (!cancelled) {
+                long lineBytes = readLine(in, lineBuf, options.finalRun);
+                if (lineBytes < 0) break;
+                offset += lineBytes;
+                lineNo++;
+                String text = new String(lineBuf.toByteArray(), StandardCharsets.UTF_8).trim();
+                if (text.isEmpty()) continue;
+
+                JSONObject res = runLine(text, lineNo, result);
+                byte[] bytes = (res.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+                out.write(bytes);
+                out.flush();
+                out.getFD().sync();
+                outputBytes += bytes.length;
+
+                result.ms = msBefore + (System.nanoTime() - t0) / 1e6;
+                writeCheckpoint(ckpt, offset, lineNo, outputBytes, result);
+                if (listener != null) listener.onResult(res, result);
+            }
+        } finally {
+            synchronized (LlamaNative.GENERATION_LOCK) {
+                llama.setPromptCacheReuse(false);
+            }
+        }
+        result.ms = msBefore + (System.nanoTime() - t0) / 1e6;
+        return result;
+    }
+
+    // Generates one input line and adds it to the totals; bad lines become error results
+    private JSONObject runLine(String text, int lineNo, Result totals) throws JSONException {
+        JSONObject res = new JSONObject();
+        totals.prompts++;
+        JSONObject line;
+        try {
+            line = new JSONObject(text);
+        } catch (JSONException e) {
+            res.put("id", lineNo);
+            res.put("line", lineNo);
+            res.put("error", "invalid JSON: " + e.getMessage());
+            totals.errors++;
+            return res;
+        }
+        res.put("id", line.has("id") ? line.get("id") : lineNo);
+        res.put("line", lineNo);
+        String prompt = line.optString("prompt", null);
+        if (prompt == null) {
+            res.put("error", "missing \"prompt\"");
+            totals.errors++;
+            return res;
+        }
+
+        String template = templateFor(line.optString("system", options.systemPrompt));
+        int at = template != null ? template.indexOf(USER_INPUT) : -1;
+        GenerationResult gen;
+        synchronized (LlamaNative.GENERATION_LOCK) {
+            String grammarError = applyLineParameters(line);
+            if (grammarError != null) {
+                res.put("error", "grammar: " + grammarError);
+                totals.errors++;
+                return res;
+            }
+            llama.setPromptPrefix(at >= 0 ? template.substring(0, at) : "");
+            llama.setPromptCacheReuse(options.reusePromptCache);
+            gen = llama.generateWithStats(at >= 0 ? template.replace(USER_INPUT, prompt) : prompt);
+        }
+
+        if (gen.isError()) {
+            res.put("error", gen.text);
+            totals.errors++;
+            return res;
+        }
+        GenerationStats st = gen.stats;
+        res.put("text", gen.text);
+        res.put("stop_reason", gen.stopReason);
+        if (st != null) {
+            res.put("prompt_tokens", st.promptTokens);
+            res.put("prompt_reused_tokens", st.promptReusedTokens);
+            res.put("generated_tokens", st.generatedTokens);
+            res.put("ttft_ms", round(st.ttftMs));
+            res.put("prefill_ms", round(st.prefillMs));
+            res.put("decode_ms", round(st.decodeMs));
+            res.put("total_ms", round(st.totalMs));
+            totals.promptTokens += st.promptTokens;
+            totals.reusedTokens += st.promptReusedTokens;
+            totals.generatedTokens += st.generatedTokens;
+            totals.prefillMs += st.prefillMs;
+            totals.decodeMs += st.decodeMs;
+        }
+        return res;
+    }
+
+    // Sampling and grammar for one line (under LlamaNative.GENERATION_LOCK); returns the grammar error, or null
+    private String applyLineParameters(JSONObject line) {
+        llama.setSampling(
+                (float) line.optDouble("temperature", options.temperature),
+                (float) line.optDouble("top_p", options.topP),
+                line.optInt("top_k", options.topK),
+                line.optInt("max_tokens", options.maxTokens),
+                line.optInt("seed", options.seed));
+
+        String grammar = line.optString("grammar", options.grammar);
+        Object schema = line.opt("json_schema");
+        String jsonSchema = schema == null || JSONObject.NULL.equals(schema) ? options.jsonSchema : schema.toString();
+        // Set again for every line, as others may have set theirs in between; the native grammar cache makes
+        // a repeated grammar cheap
+        String res = llama.setGrammar(grammar, grammar.isEmpty() ? jsonSchema : "");
+        return "ok".equals(res) ? null : res;
+    }
+
+    // {USER_INPUT} template with systemPrompt, or null to send the prompt as it is
+    private String templateFor(String systemPrompt) {
+        if (templates.containsKey(systemPrompt)) return templates.get(systemPrompt);
+        String chat = options.chatTemplate != null ? options.chatTemplate : modelTemplate;
+        String rendered = chat != null && !chat.isEmpty() ? llama.applyChatTemplate(chat, systemPrompt, USER_INPUT) : null;
+        if (rendered == null || !rendered.contains(USER_INPUT)) rendered = options.promptTemplate;
+        templates.put(systemPrompt, rendered);
+        return rendered;
+    }
+
+    // Replaces the checkpoint in one rename, so it always matches a complete output line
+    private static void writeCheckpoint(File ckpt, long offset, int lineNo, long outputBytes, Result totals)
+            throws IOException, JSONException {
+        JSONObject state = new JSONObject();
+        state.put("offset", offset);
+        state.put("line", lineNo);
+        state.put("output_bytes", outputBytes);
+        state.put("totals", totals.toJSON());
+        File tmp = new File(ckpt.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(state.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(ckpt)) {
+            tmp.delete();
+            throw new IOException("Cannot replace " + ckpt);
+        }
+    }
+
+    // Reads one line without its terminator into buf; returns the bytes consumed, or -1 at the end of input.
+    // An unterminated last line counts as the end of input unless unterminated is true.
+    private static long readLine(InputStream in, ByteArrayOutputStream buf, boolean unterminated) throws IOException {
+        buf.reset();
+        long n = 0;
+        int c;
+        while ((c = in.read()) >= 0) {
+            n++;
+            if (c == '\n') return n;
+            buf.write(c);
+        }
+        return n > 0 && unterminated ? n : -1;
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+            return out.toByteArray();
+        }
+    }
+
+    private static double round(double ms) {
+        return Math.round(ms * 100.0) / 100.0;
+    }
+}
@@ -8,21 +8,131 @@ import org.json.JSONObject;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
 
 public class ConfigurationManager {
     private static final String TAG = "ConfigurationManager";
     private static final String CONFIG_DIR = "configs";
     private static final String DEFAULT_CONFIG_NAME = "default";
     
+    // Parsed configurations and directory listings shared by every ConfigurationManager in the process
+    // (MainActivity and SettingsActivity each create one). An entry is used only while the file's
+    // modification time and size are unchanged, so edits from outside the app are still picked up
+    private static final Map<String, CachedConfiguration> configCache = new HashMap<>();
+    private static final Map<String, CachedListing> listingCache = new HashMap<>();
+    
+    private static final class CachedConfiguration {
+        final long lastModified;
+        final long length;
+        final Configuration config;
+        
+        CachedConfiguration(long lastModified, long length, Configuration config) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.config = config;
+        }
+    }
+    
+    private static final class CachedListing {
+        final long lastModified;
+        final List<String> names;
+        
+        CachedListing(long lastModified, List<String> names) {
+            this.lastModified = lastModified;
+            this.names = names;
+        }
+    }
+    
     private final Context context;
     private final File configDir;
     
-    public static class Configuration {
+    /**
+     * What has to be redone to apply a changed setting, from cheapest to most expensive.
+     * PROMPT: re-resolve the prompt template. SAMPLER: nothing native, the sampling, decoding, context overflow
+     * and grammar settings are pushed before every generate. CONTEXT: applyContextParameters() and init() again.
+     * MODEL: a different model has to be downloaded / loaded.
+     */
+    public enum ChangeScope {
+        NONE, PROMPT, SAMPLER, CONTEXT, MODEL
+    }
+    
+    /**
+     * Fields that differ between two configurations (ignoring the name), each with its ChangeScope.
+     */
+    public static class ConfigurationDiff {
+        private final Map<String, ChangeScope> changes;
+        
+        ConfigurationDiff(Map<String, ChangeScope> changes) {
+            this.changes = Collections.unmodifiableMap(changes);
+        }
+        
+        // Changed field names (as in toJSON()) with their scope, sorted by name
+        public Map<String, ChangeScope> getChanges() {
+            return changes;
+        }
+        
+        public boolean isEmpty() {
+            return changes.isEmpty();
+        }
+        
+        // Most expensive scope among the changes (NONE if nothing changed)
+        public ChangeScope getScope() {
+            ChangeScope scope = ChangeScope.NONE;
+            for (ChangeScope s : changes.values()) {
+                if (s.compareTo(scope) > 0) scope = s;
+            }
+            return scope;
+        }
+        
+        public boolean has(ChangeScope scope) {
+            return changes.containsValue(scope);
+        }
+        
+        // The loaded model and context can stay as they are
+        public boolean isSamplerOnly() {
+            return getScope().compareTo(ChangeScope.SAMPLER) <= 0;
+        }
+        
+        // The context has to be re-created with init(), but the same model file is used
+        public boolean isContextOnly() {
+            return getScope() == ChangeScope.CONTEXT;
+        }
+        
+        @Override
+        public String toString() {
+            if (changes.isEmpty()) return "no changes";
+            StringBuilder sb = new StringBuilder();
+            for (ChangeScope scope : ChangeScope.values()) {
+                StringBuilder fields = new StringBuilder();
+                for (Map.Entry<String, ChangeScope> e : changes.entrySet()) {
+                    if (e.getValue() != scope) continue;
+                    if (fields.length() > 0) fields.append(", ");
+                    fields.append(e.getKey());
+                }
+                if (fields.length() == 0) continue;
+                if (sb.length() > 0) sb.append("; ");
+                sb.append(scope.name().toLowerCase()).append(": ").append(fields);
+            }
+            return sb.toString();
+        }
+    }
+    
+    public static class Configuration implements Cloneable {
         // Default constant for DRY sequence breakers (must match C++ DEFAULT_DRY_SEQUENCE_BREAKERS)
         public static final String DEFAULT_DRY_SEQUENCE_BREAKERS = "\\n,:,\",*";
         
@@ -31,9 +141,30 @@ public class ConfigurationManager {
         public int nCtx;
         public int nThreads;
         public int nBatch;
+        
+        // KV cache element types (KV_F16, KV_Q8_0, KV_Q4_0) and flash attention. q8_0 halves and q4_0 roughly
+        // quarters the cache of f16, so the same RAM holds a longer context; a quantized V cache needs flash attention
+        public static final String KV_F16 = "f16";
+        public static final String KV_Q8_0 = "q8_0";
+        public static final String KV_Q4_0 = "q4_0";
+        public String kvCacheTypeK;
+        public String kvCacheTypeV;
+        public boolean flashAttn;
+        
         public double temp;
         public double topP;
         public int topK;
+        
+        // Prompt format: CHAT_TEMPLATE_MODEL renders the chat template embedded in the GGUF with systemPrompt,
+        // CHAT_TEMPLATE_CUSTOM uses promptTemplate, and any other value names a llama.cpp built-in template
+        // ("chatml", "llama3", "gemma", ...). promptTemplate is also the fallback when a template cannot be rendered
+        public static final String CHAT_TEMPLATE_MODEL = "model";
+        public static final String CHAT_TEMPLATE_CUSTOM = "custom";
+        public static final String USER_INPUT = "{USER_INPUT}";
+        public static final String DEFAULT_PROMPT_TEMPLATE =
+                "<|system|>\nYou are a helpful assistant.\n<|user|>\n{USER_INPUT}\n<|assistant|>\n";
+        public String chatTemplate;
+        public String systemPrompt;
         public String promptTemplate;
         
         // Penalty parameters
@@ -63,6 +194,43 @@ public class ConfigurationManager {
         public int dryPenaltyLastN;
         public String drySequenceBreakers;
         
+        // Decoding mode: DECODING_PLAIN, DECODING_DRAFT (speculative decoding with a draft model)
+        // DECODING_LOOKUP (speculative decoding with drafts from prompt/output n-grams)
+        // or DECODING_LOOKAHEAD (Jacobi lookahead decoding)
+        public static final String DECODING_PLAIN = "plain";
+        public static final String DECODING_DRAFT = "draft";
+        public static final String DECODING_LOOKUP = "lookup";
+        public static final String DECODING_LOOKAHEAD = "lookahead";
+        public String decodingMode;
+        
+        // Speculative decoding parameters (draft mode)
+        public String draftModelPath;
+        public int draftMax;
+        public int draftMin;
+        public double draftPMin;
+        
+        // Prompt-lookup decoding parameters (lookup mode)
+        public int lookupNgramSize;
+        public int lookupDraftMax;
+        
+        // Lookahead decoding parameters (lookahead mode): window W, n-gram size N, candidates G
+        public int lookaheadWindow;
+        public int lookaheadNgramSize;
+        public int lookaheadCandidates;
+        
+        // What happens when prompt + output fill the context: CONTEXT_STOP ends generation with "ctx_limit",
+        // CONTEXT_SHIFT keeps the first contextKeep tokens (-1 = whole prompt) and drops the next
+        // contextDiscard (0 = half of the rest) so generation can continue
+        public static final String CONTEXT_STOP = "stop";
+        public static final String CONTEXT_SHIFT = "shift";
+        public String contextOverflow;
+        public int contextKeep;
+        public int contextDiscard;
+        
+        // Output constraint: a GBNF grammar or a JSON schema (at most one; empty means unconstrained)
+        public String grammar;
+        public String jsonSchema;
+        
         public Configuration() {
             // Default values
             name = DEFAULT_CONFIG_NAME;
@@ -70,10 +238,15 @@ public class ConfigurationManager {
             nCtx = 2048;
             nThreads = 2;
             nBatch = 16;
+            kvCacheTypeK = KV_F16;
+            kvCacheTypeV = KV_F16;
+            flashAttn = false;
             temp = 0.7;
             topP = 0.9;
             topK = 40;
-            promptTemplate = "<|system|>\nYou are a helpful assistant.\n<|user|>\n{USER_INPUT}\n<|assistant|>\n";
+            chatTemplate = CHAT_TEMPLATE_MODEL;
+            systemPrompt = "You are a helpful assistant.";
+            promptTemplate = DEFAULT_PROMPT_TEMPLATE;
             
             // Penalty parameters defaults
             penaltyLastN = 64;
@@ -101,6 +274,25 @@ public class ConfigurationManager {
             dryAllowedLength = 2;
             dryPenaltyLastN = -1;
             drySequenceBreakers = DEFAULT_DRY_SEQUENCE_BREAKERS;
+            
+            // Decoding defaults
+            decodingMode = DECODING_PLAIN;
+            draftModelPath = "";
+            draftMax = 16;
+            draftMin = 0;
+            draftPMin = 0.75;
+            lookupNgramSize = 3;
+            lookupDraftMax = 10;
+            lookaheadWindow = 8;
+            lookaheadNgramSize = 4;
+            lookaheadCandidates = 8;
+            contextOverflow = CONTEXT_STOP;
+            contextKeep = -1;
+            contextDiscard = 0;
+            
+            // Output constraint defaults
+            grammar = "";
+            jsonSchema = "";
         }
         
         public Configuration(String name) {
@@ -115,9 +307,14 @@ public class ConfigurationManager {
             json.put("nCtx", nCtx);
             json.put("nThreads", nThreads);
             json.put("nBatch", nBatch);
+            json.put("kvCacheTypeK", kvCacheTypeK);
+            json.put("kvCacheTypeV", kvCacheTypeV);
+            json.put("flashAttn", flashAttn);
             json.put("temp", temp);
             json.put("topP", topP);
             json.put("topK", topK);
+            json.put("chatTemplate", chatTemplate);
+            json.put("systemPrompt", systemPrompt);
             json.put("promptTemplate", promptTemplate);
             
             // Penalty parameters
@@ -147,6 +344,25 @@ public class ConfigurationManager {
             json.put("dryPenaltyLastN", dryPenaltyLastN);
             json.put("drySequenceBreakers", drySequenceBreakers);
             
+            // Decoding parameters
+            json.put("decodingMode", decodingMode);
+            json.put("draftModelPath", draftModelPath);
+            json.put("draftMax", draftMax);
+            json.put("draftMin", draftMin);
+            json.put("draftPMin", draftPMin);
+            json.put("lookupNgramSize", lookupNgramSize);
+            json.put("lookupDraftMax", lookupDraftMax);
+            json.put("lookaheadWindow", lookaheadWindow);
+            json.put("lookaheadNgramSize", lookaheadNgramSize);
+            json.put("lookaheadCandidates", lookaheadCandidates);
+            json.put("contextOverflow", contextOverflow);
+            json.put("contextKeep", contextKeep);
+            json.put("contextDiscard", contextDiscard);
+            
+            // Output constraint
+            json.put("grammar", grammar);
+            json.put("jsonSchema", jsonSchema);
+            
             return json;
         }
         
@@ -157,10 +373,17 @@ public class ConfigurationManager {
             config.nCtx = json.getInt("nCtx");
             config.nThreads = json.getInt("nThreads");
             config.nBatch = json.getInt("nBatch");
+            config.kvCacheTypeK = json.optString("kvCacheTypeK", KV_F16);
+            config.kvCacheTypeV = json.optString("kvCacheTypeV", KV_F16);
+            config.flashAttn = json.optBoolean("flashAttn", false);
             config.temp = json.getDouble("temp");
             config.topP = json.getDouble("topP");
             config.topK = json.getInt("topK");
             config.promptTemplate = json.getString("promptTemplate");
+            // Older profiles only had promptTemplate: keep a hand-edited one, move the stock TinyLlama one to the model's template
+            config.chatTemplate = json.optString("chatTemplate",
+                    DEFAULT_PROMPT_TEMPLATE.equals(config.promptTemplate) ? CHAT_TEMPLATE_MODEL : CHAT_TEMPLATE_CUSTOM);
+            config.systemPrompt = json.optString("systemPrompt", "You are a helpful assistant.");
             
             // Penalty parameters (with defaults for backward compatibility)
             config.penaltyLastN = json.optInt("penaltyLastN", 64);
@@ -189,8 +412,117 @@ public class ConfigurationManager {
             config.dryPenaltyLastN = json.optInt("dryPenaltyLastN", -1);
             config.drySequenceBreakers = json.optString("drySequenceBreakers", DEFAULT_DRY_SEQUENCE_BREAKERS);
             
+            // Decoding parameters (with defaults for backward compatibility)
+            config.decodingMode = json.optString("decodingMode", DECODING_PLAIN);
+            config.draftModelPath = json.optString("draftModelPath", "");
+            config.draftMax = json.optInt("draftMax", 16);
+            config.draftMin = json.optInt("draftMin", 0);
+            config.draftPMin = json.optDouble("draftPMin", 0.75);
+            config.lookupNgramSize = json.optInt("lookupNgramSize", 3);
+            config.lookupDraftMax = json.optInt("lookupDraftMax", 10);
+            config.lookaheadWindow = json.optInt("lookaheadWindow", 8);
+            config.lookaheadNgramSize = json.optInt("lookaheadNgramSize", 4);
+            config.lookaheadCandidates = json.optInt("lookaheadCandidates", 8);
+            config.contextOverflow = json.optString("contextOverflow", CONTEXT_STOP);
+            config.contextKeep = json.optInt("contextKeep", -1);
+            config.contextDiscard = json.optInt("contextDiscard", 0);
+            
+            // Output constraint (with defaults for backward compatibility)
+            config.grammar = json.optString("grammar", "");
+            config.jsonSchema = json.optString("jsonSchema", "");
+            
             return config;
         }
+        
+        // Independent copy; every field is a primitive or an immutable String
+        public Configuration copy() {
+            try {
+                return (Configuration) super.clone();
+            } catch (CloneNotSupportedException e) {
+                throw new AssertionError(e);
+            }
+        }
+        
+        // What has to be redone when a field of this name changes (see ChangeScope)
+        static ChangeScope scopeOf(String field) {
+            switch (field) {
+                case "name":
+                    return ChangeScope.NONE;
+                case "modelUrl":
+                    return ChangeScope.MODEL;
+                case "nCtx":
+                case "nThreads":
+                case "nBatch":
+                case "kvCacheTypeK":
+                case "kvCacheTypeV":
+                case "flashAttn":
+                    return ChangeScope.CONTEXT;
+                case "chatTemplate":
+                case "systemPrompt":
+                case "promptTemplate":
+                    return ChangeScope.PROMPT;
+                default:
+                    return ChangeScope.SAMPLER;
+            }
+        }
+        
+        /**
+         * Prompt template with a {USER_INPUT} placeholder for this configuration. The chat template is rendered once
+         * with the placeholder as the user message. modelTemplate is LlamaNative.getChatTemplate() of the loaded
+         * model, or GgufTokenizer.getChatTemplate() before it is loaded (null if the model has none).
+         * Returns promptTemplate for CHAT_TEMPLATE_CUSTOM or when llama.cpp does not know the template.
+         */
+        public String resolvePromptTemplate(LlamaNative llama, String modelTemplate) {
+            if (chatTemplate != null && !chatTemplate.isEmpty() && !CHAT_TEMPLATE_CUSTOM.equals(chatTemplate)) {
+                String tmpl = CHAT_TEMPLATE_MODEL.equals(chatTemplate) ? modelTemplate : chatTemplate;
+                if (tmpl != null && !tmpl.isEmpty()) {
+                    String rendered = llama.applyChatTemplate(tmpl, systemPrompt, USER_INPUT);
+                    if (rendered != null && rendered.contains(USER_INPUT)) {
+                        return rendered;
+                    }
+                }
+            }
+            return promptTemplate;
+        }
+        
+        /**
+         * Pushes the context size, threads, batch size, KV cache types and flash attention to the native side.
+         * They take effect on the next LlamaNative.init(), so call this before it.
+         * Returns "ok" or the native error message.
+         */
+        public String applyContextParameters(LlamaNative llama) {
+            return llama.setContextParameters(nCtx, nThreads, nBatch, kvCacheTypeK, kvCacheTypeV, flashAttn);
+        }
+        
+        /**
+         * Pushes temperature, top-p and top-k to the native side; max tokens and the seed are not
+         * configurable and stay at their defaults (random seed per request).
+         */
+        public void applySampling(LlamaNative llama) {
+            llama.setSampling((float) temp, (float) topP, topK, LlamaNative.DEFAULT_MAX_TOKENS, -1);
+        }
+
+        /**
+         * Pushes the decoding mode and its parameters, and the context overflow policy, to the native side.
+         * Call alongside LlamaNative.setParameters() before generating.
+         */
+        public void applyDecodingParameters(LlamaNative llama) {
+            llama.setDraftModel(draftModelPath, draftMax, draftMin, (float) draftPMin);
+            llama.setLookupParameters(lookupNgramSize, lookupDraftMax);
+            llama.setLookaheadParameters(lookaheadWindow, lookaheadNgramSize, lookaheadCandidates);
+            llama.setDecodingMode(decodingMode);
+            llama.setContextShift(CONTEXT_SHIFT.equals(contextOverflow), contextKeep, contextDiscard);
+        }
+        
+        /**
+         * Pushes the output constraint to the native side; a grammar takes precedence over a JSON schema.
+         * Returns "ok" or the native error message, e.g. when the grammar does not parse.
+         */
+        public String applyGrammar(LlamaNative llama) {
+            String g = grammar != null ? grammar : "";
+            String schema = jsonSchema != null ? jsonSchema : "";
+            return llama.setGrammar(g, g.isEmpty() ? schema : "");
+        }
     }
     
     public ConfigurationManager(Context context) {
@@ -214,26 +546,80 @@ public class ConfigurationManager {
         }
     }
     
+    /**
+     * Fields that differ from before to after, with what each change needs. A null before (nothing applied yet)
+     * counts as a model-level change.
+     */
+    public static ConfigurationDiff diff(Configuration before, Configuration after) {
+        Map<String, ChangeScope> changes = new TreeMap<>();
+        for (Field field : Configuration.class.getFields()) {
+            if (Modifier.isStatic(field.getModifiers())) continue;
+            ChangeScope scope = Configuration.scopeOf(field.getName());
+            if (scope == ChangeScope.NONE) continue;
+            try {
+                if (before == null || !Objects.equals(field.get(before), field.get(after))) {
+                    changes.put(field.getName(), before == null ? ChangeScope.MODEL : scope);
+                }
+            } catch (IllegalAccessException e) {
+                throw new AssertionError(e);
+            }
+        }
+        return new ConfigurationDiff(changes);
+    }
+    
+    /**
+     * Writes the configuration to a temporary file, syncs it and renames it over the old one, so a crash
+     * leaves either the previous or the new profile on disk, never a partial one.
+     */
     public void saveConfiguration(Configuration config) throws IOException, JSONException {
         if (config.name == null || config.name.trim().isEmpty()) {
             throw new IllegalArgumentException("Configuration name cannot be empty");
         }
         
         File configFile = new File(configDir, config.name + ".json");
-        try (FileWriter writer = new FileWriter(configFile)) {
-            writer.write(config.toJSON().toString(2)); // Pretty print with indent of 2
+        File tmpFile = new File(configDir, config.name + ".json.tmp");
+        String text = config.toJSON().toString(2); // Pretty print with indent of 2
+        try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            writer.write(text);
+            writer.flush();
+            out.getFD().sync();
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw e;
+        }
+        synchronized (configCache) {
+            configCache.remove(configFile.getPath());
+            listingCache.remove(configDir.getPath());
+            if (!tmpFile.renameTo(configFile)) {
+                tmpFile.delete();
+                throw new IOException("Cannot replace " + configFile);
+            }
         }
         Log.d(TAG, "Saved configuration: " + config.name);
     }
     
+    /**
+     * Returns a copy of the named configuration, parsed again only if the file changed since the last load.
+     */
     public Configuration loadConfiguration(String name) throws IOException, JSONException {
         File configFile = new File(configDir, name + ".json");
         if (!configFile.exists()) {
             throw new IOException("Configuration not found: " + name);
         }
         
+        long lastModified = configFile.lastModified();
+        long length = configFile.length();
+        synchronized (configCache) {
+            CachedConfiguration cached = configCache.get(configFile.getPath());
+            if (cached != null && cached.lastModified == lastModified && cached.length == length) {
+                return cached.config.copy();
+            }
+        }
+        
         StringBuilder sb = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new FileReader(configFile))) {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(configFile), StandardCharsets.UTF_8))) {
             String line;
             while ((line = reader.readLine()) != null) {
                 sb.append(line);
@@ -242,11 +628,22 @@ public class ConfigurationManager {
         
         JSONObject json = new JSONObject(sb.toString());
         Configuration config = Configuration.fromJSON(json);
+        synchronized (configCache) {
+            configCache.put(configFile.getPath(), new CachedConfiguration(lastModified, length, config.copy()));
+        }
         Log.d(TAG, "Loaded configuration: " + name);
         return config;
     }
     
     public List<String> listConfigurations() {
+        long lastModified = configDir.lastModified();
+        synchronized (configCache) {
+            CachedListing cached = listingCache.get(configDir.getPath());
+            if (cached != null && cached.lastModified == lastModified) {
+                return new ArrayList<>(cached.names);
+            }
+        }
+        
         List<String> configs = new ArrayList<>();
         File[] files = configDir.listFiles((dir, name) -> name.endsWith(".json"));
         if (files != null) {
@@ -256,6 +653,9 @@ public class ConfigurationManager {
                 configs.add(name.substring(0, name.length() - 5));
             }
         }
+        synchronized (configCache) {
+            listingCache.put(configDir.getPath(), new CachedListing(lastModified, new ArrayList<>(configs)));
+        }
         return configs;
     }
     
@@ -266,7 +666,12 @@ public class ConfigurationManager {
         }
         
         File configFile = new File(configDir, name + ".json");
-        boolean deleted = configFile.delete();
+        boolean deleted;
+        synchronized (configCache) {
+            configCache.remove(configFile.getPath());
+            listingCache.remove(configDir.getPath());
+            deleted = configFile.delete();
+        }
         if (deleted) {
             Log.d(TAG, "Deleted configuration: " + name);
         }
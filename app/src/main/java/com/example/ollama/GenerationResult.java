@@ -0,0 +1,23 @@
+package com.example.ollama;
+
+/**
+ * Result of a native generate call: the generated text together with its
+ * performance statistics. Constructed from JNI.
+ */
+public class GenerationResult {
+    public final String text;
+    public final GenerationStats stats;
+    // Why generation ended: "eos", "max_tokens", "ctx_limit", "grammar" (constrained output complete),
+    // "cancelled" (LlamaNative.onToken returned false) or "error"
+    public final String stopReason;
+
+    public GenerationResult(String text, GenerationStats stats, String stopReason) {
+        this.text = text;
+        this.stats = stats;
+        this.stopReason = stopReason;
+    }
+
+    public boolean isError() {
+        return "error".equals(stopReason);
+    }
+}
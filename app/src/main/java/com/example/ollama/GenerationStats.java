@@ -0,0 +1,108 @@
+package com.example.ollama;
+
+import java.util.Locale;
+
+/**
+ * Per-request performance statistics collected by the native generate path.
+ * Fields are populated directly from JNI, so names must match jni_llama.cpp.
+ */
+public class GenerationStats {
+    // Time spent waiting for the native inference lock, or for a free slot in awaitParallel()
+    public double queueWaitMs;
+    // Prompt tokenization
+    public double tokenizeMs;
+    // Prompt processing (prefill), fed to the model in prefillBatches chunks of at most n_batch tokens
+    public int promptTokens;
+    // Prompt tokens taken from the cached prompt prefix instead of being tokenized (LlamaNative.setPromptPrefix)
+    public int promptCachedTokens;
+    // Prompt tokens whose KV cache was kept from the previous request instead of being prefilled
+    // (LlamaNative.setPromptCacheReuse); prefillTokensPerSec counts only the prefilled rest
+    public int promptReusedTokens;
+    public double prefillMs;
+    public int prefillBatches;
+    public double prefillTokensPerSec;
+    // Time from the call entering native code to the first sampled token
+    public double ttftMs;
+    // Token generation (decode)
+    public int generatedTokens;
+    public double decodeMs;
+    public double decodeTokensPerSec;
+    // Sampler chain time as reported by llama_perf_sampler
+    public double samplerMs;
+    public int sampledTokens;
+    // Wall-clock time of the whole call, including queue wait
+    public double totalMs;
+    // Decoding mode ("plain", "draft", "lookup", "lookahead") and target-model decode calls during generation
+    public String decodingMode = "plain";
+    public int decodeSteps;
+    // Speculative decoding: drafted vs accepted tokens and time spent drafting
+    public int draftedTokens;
+    public int acceptedTokens;
+    public double acceptRate;
+    public double draftMs;
+    // Decode throughput relative to the measured plain single-token step time (0 if unknown)
+    public double speedup;
+    // Output constraint ("none", "gbnf", "json_schema"), time to get its sampler and whether the parse was cached
+    public String grammar = "none";
+    public double grammarMs;
+    public boolean grammarCached;
+    // Context shifts during generation and the tokens they dropped from the KV cache
+    public int contextShifts;
+    public int discardedTokens;
+    // Parallel slots (LlamaNative.awaitParallel): the slot that served the request (-1 otherwise) and the mean
+    // number of sequences decoded together in the steps that produced its tokens
+    public int slot = -1;
+    public double batchedSequences;
+    // Runtime limits (LlamaNative.setRuntimeLimits): time spent pacing tokens and the threads of the last decode step
+    public double pacingMs;
+    public int threads;
+
+    public String toSummary() {
+        return String.format(Locale.US,
+                "queue %.1f ms | tokenize %.1f ms | prompt %d tok, prefill %.1f ms (%.1f tok/s) | "
+                + "TTFT %.1f ms | gen %d tok, decode %.1f ms (%.2f tok/s) | sampler %.1f ms | total %.1f ms",
+                queueWaitMs, tokenizeMs, promptTokens, prefillMs, prefillTokensPerSec,
+                ttftMs, generatedTokens, decodeMs, decodeTokensPerSec, samplerMs, totalMs)
+                + promptReuseSummary() + speculativeSummary() + grammarSummary() + contextShiftSummary()
+                + slotSummary() + pacingSummary();
+    }
+
+    private String pacingSummary() {
+        if (pacingMs <= 0) return "";
+        return String.format(Locale.US, " | paced %.1f ms, %d threads", pacingMs, threads);
+    }
+
+    private String slotSummary() {
+        if (slot < 0) return "";
+        return String.format(Locale.US, " | slot %d, %.1f seq/decode", slot, batchedSequences);
+    }
+
+    private String promptReuseSummary() {
+        if (promptReusedTokens == 0) return "";
+        return String.format(Locale.US, " | KV reused %d/%d prompt tok", promptReusedTokens, promptTokens);
+    }
+
+    private String contextShiftSummary() {
+        if (contextShifts == 0) return "";
+        return String.format(Locale.US, " | ctx shift %dx (%d tok dropped)", contextShifts, discardedTokens);
+    }
+
+    private String grammarSummary() {
+        if (grammar == null || "none".equals(grammar)) return "";
+        return String.format(Locale.US, " | %s %.1f ms%s", grammar, grammarMs, grammarCached ? " (cached)" : "");
+    }
+
+    private String speculativeSummary() {
+        if (decodingMode == null || "plain".equals(decodingMode)) return "";
+        return String.format(Locale.US,
+                " | %s: accepted %d/%d (%.0f%%), %.2f tok/step, draft %.1f ms, speedup %s",
+                decodingMode, acceptedTokens, draftedTokens, acceptRate * 100.0,
+                decodeSteps > 0 ? (double) generatedTokens / decodeSteps : 0.0, draftMs,
+                speedup > 0 ? String.format(Locale.US, "%.2fx", speedup) : "n/a");
+    }
+
+    @Override
+    public String toString() {
+        return toSummary();
+    }
+}
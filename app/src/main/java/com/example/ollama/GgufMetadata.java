@@ -0,0 +1,315 @@
+package com.example.ollama;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Key/value metadata of a GGUF file, read through a memory-mapped window over the start of
+ * the file. Only the metadata section is mapped (it grows on demand), never the tensor data,
+ * so reading the vocabulary of a multi-GB model touches a few MB.
+ * Values are decoded lazily; string arrays come back as one byte pool with offsets.
+ */
+public class GgufMetadata {
+
+    // gguf_type
+    public static final int TYPE_UINT8 = 0;
+    public static final int TYPE_INT8 = 1;
+    public static final int TYPE_UINT16 = 2;
+    public static final int TYPE_INT16 = 3;
+    public static final int TYPE_UINT32 = 4;
+    public static final int TYPE_INT32 = 5;
+    public static final int TYPE_FLOAT32 = 6;
+    public static final int TYPE_BOOL = 7;
+    public static final int TYPE_STRING = 8;
+    public static final int TYPE_ARRAY = 9;
+    public static final int TYPE_UINT64 = 10;
+    public static final int TYPE_INT64 = 11;
+    public static final int TYPE_FLOAT64 = 12;
+
+    private static final int MAGIC = 0x46554747; // "GGUF" little-endian
+    private static final int INITIAL_WINDOW = 4 << 20;
+
+    /** UTF-8 strings packed back to back: string i is data[offsets[i], offsets[i + 1]). */
+    public static class StringArray {
+        public final byte[] data;
+        public final int[] offsets;
+
+        StringArray(byte[] data, int[] offsets) {
+            this.data = data;
+            this.offsets = offsets;
+        }
+
+        public int size() {
+            return offsets.length - 1;
+        }
+
+        public int length(int i) {
+            return offsets[i + 1] - offsets[i];
+        }
+
+        public String get(int i) {
+            return new String(data, offsets[i], length(i), StandardCharsets.UTF_8);
+        }
+    }
+
+    // Where a value starts in the file; arrays also record element type and count
+    private static class Entry {
+        int type;
+        long offset;
+        int elemType;
+        long count;
+    }
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private MappedByteBuffer map;
+
+    private int version;
+    private long tensorCount;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private GgufMetadata(FileChannel channel, long fileSize) {
+        this.channel = channel;
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * Parses the header and indexes every key. The file is closed before returning;
+     * the mapping stays valid and values are copied out of it when requested.
+     * Not thread-safe.
+     */
+    public static GgufMetadata read(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            GgufMetadata meta = new GgufMetadata(raf.getChannel(), raf.length());
+            meta.parse();
+            return meta;
+        }
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public long getTensorCount() {
+        return tensorCount;
+    }
+
+    public boolean has(String key) {
+        return entries.containsKey(key);
+    }
+
+    /** gguf_type of the value, or -1 if the key is missing. */
+    public int getType(String key) {
+        Entry e = entries.get(key);
+        return e != null ? e.type : -1;
+    }
+
+    public String getString(String key, String def) throws IOException {
+        Entry e = entries.get(key);
+        if (e == null || e.type != TYPE_STRING) return def;
+        long len = readLong(e.offset);
+        return new String(readBytes(e.offset + 8, checkedLength(len)), StandardCharsets.UTF_8);
+    }
+
+    /** Any integer type (or bool) widened to long. */
+    public long getLong(String key, long def) throws IOException {
+        Entry e = entries.get(key);
+        if (e == null) return def;
+        switch (e.type) {
+            case TYPE_UINT8:  return readByte(e.offset) & 0xFF;
+            case TYPE_INT8:   return readByte(e.offset);
+            case TYPE_UINT16: return readShort(e.offset) & 0xFFFF;
+            case TYPE_INT16:  return readShort(e.offset);
+            case TYPE_UINT32: return readInt(e.offset) & 0xFFFFFFFFL;
+            case TYPE_INT32:  return readInt(e.offset);
+            case TYPE_UINT64:
+            case TYPE_INT64:  return readLong(e.offset);
+            case TYPE_BOOL:   return readByte(e.offset) != 0 ? 1 : 0;
+            default:          return def;
+        }
+    }
+
+    public boolean getBool(String key, boolean def) throws IOException {
+        Entry e = entries.get(key);
+        if (e == null || e.type != TYPE_BOOL) return def;
+        return readByte(e.offset) != 0;
+    }
+
+    public double getDouble(String key, double def) throws IOException {
+        Entry e = entries.get(key);
+        if (e == null) return def;
+        if (e.type == TYPE_FLOAT32) return Float.intBitsToFloat(readInt(e.offset));
+        if (e.type == TYPE_FLOAT64) return Double.longBitsToDouble(readLong(e.offset));
+        return getLong(key, (long) def);
+    }
+
+    /** Element count of an array value, or -1 if the key is missing or not an array. */
+    public long getArrayLength(String key) {
+        Entry e = entries.get(key);
+        return e != null && e.type == TYPE_ARRAY ? e.count : -1;
+    }
+
+    public StringArray getStringArray(String key) throws IOException {
+        Entry e = array(key, TYPE_STRING);
+        if (e == null) return null;
+        int n = checkedLength(e.count);
+        int[] offsets = new int[n + 1];
+        // first pass sizes the pool, second copies
+        long pos = e.offset;
+        long total = 0;
+        for (int i = 0; i < n; i++) {
+            long len = readLong(pos);
+            total += len;
+            pos += 8 + len;
+        }
+        byte[] data = new byte[checkedLength(total)];
+        pos = e.offset;
+        int at = 0;
+        for (int i = 0; i < n; i++) {
+            int len = (int) readLong(pos);
+            ensure(pos + 8, len);
+            map.position((int) (pos + 8));
+            map.get(data, at, len);
+            offsets[i] = at;
+            at += len;
+            pos += 8 + len;
+        }
+        offsets[n] = at;
+        return new StringArray(data, offsets);
+    }
+
+    public float[] getFloatArray(String key) throws IOException {
+        Entry e = array(key, TYPE_FLOAT32);
+        if (e == null) return null;
+        int n = checkedLength(e.count);
+        ensure(e.offset, (long) n * 4);
+        float[] out = new float[n];
+        map.position((int) e.offset);
+        map.asFloatBuffer().get(out);
+        return out;
+    }
+
+    /** INT32 or UINT32 array. */
+    public int[] getIntArray(String key) throws IOException {
+        Entry e = entries.get(key);
+        if (e == null || e.type != TYPE_ARRAY || (e.elemType != TYPE_INT32 && e.elemType != TYPE_UINT32)) return null;
+        int n = checkedLength(e.count);
+        ensure(e.offset, (long) n * 4);
+        int[] out = new int[n];
+        map.position((int) e.offset);
+        map.asIntBuffer().get(out);
+        return out;
+    }
+
+    private Entry array(String key, int elemType) {
+        Entry e = entries.get(key);
+        return e != null && e.type == TYPE_ARRAY && e.elemType == elemType ? e : null;
+    }
+
+    private void parse() throws IOException {
+        if (readInt(0) != MAGIC) throw new IOException("not a GGUF file");
+        version = readInt(4);
+        if (version < 2) throw new IOException("unsupported GGUF version " + version);
+        tensorCount = readLong(8);
+        long kvCount = readLong(16);
+        long pos = 24;
+        for (long i = 0; i < kvCount; i++) {
+            long keyLen = readLong(pos);
+            String key = new String(readBytes(pos + 8, checkedLength(keyLen)), StandardCharsets.UTF_8);
+            pos += 8 + keyLen;
+            Entry e = new Entry();
+            e.type = readInt(pos);
+            pos += 4;
+            if (e.type == TYPE_ARRAY) {
+                e.elemType = readInt(pos);
+                e.count = readLong(pos + 4);
+                pos += 12;
+                e.offset = pos;
+                pos = skipArray(pos, e.elemType, e.count);
+            } else {
+                e.offset = pos;
+                pos = skipValue(pos, e.type);
+            }
+            entries.put(key, e);
+        }
+        // keep the whole metadata section mapped so values can be read after the file is closed
+        ensure(0, pos);
+    }
+
+    private long skipValue(long pos, int type) throws IOException {
+        if (type == TYPE_STRING) return pos + 8 + readLong(pos);
+        return pos + scalarSize(type);
+    }
+
+    private long skipArray(long pos, int elemType, long count) throws IOException {
+        if (elemType == TYPE_STRING) {
+            for (long i = 0; i < count; i++) pos += 8 + readLong(pos);
+            return pos;
+        }
+        if (elemType == TYPE_ARRAY) throw new IOException("nested GGUF arrays are not supported");
+        return pos + count * scalarSize(elemType);
+    }
+
+    private static int scalarSize(int type) throws IOException {
+        switch (type) {
+            case TYPE_UINT8: case TYPE_INT8: case TYPE_BOOL: return 1;
+            case TYPE_UINT16: case TYPE_INT16: return 2;
+            case TYPE_UINT32: case TYPE_INT32: case TYPE_FLOAT32: return 4;
+            case TYPE_UINT64: case TYPE_INT64: case TYPE_FLOAT64: return 8;
+            default: throw new IOException("bad GGUF value type " + type);
+        }
+    }
+
+    private static int checkedLength(long len) throws IOException {
+        if (len < 0 || len > Integer.MAX_VALUE - 8) throw new IOException("GGUF value too large: " + len);
+        return (int) len;
+    }
+
+    // Maps [0, pos + len) if not mapped yet. The window doubles so that walking a large
+    // vocabulary remaps O(log n) times
+    private void ensure(long pos, long len) throws IOException {
+        long end = pos + len;
+        if (map != null && end <= map.capacity()) return;
+        if (end > fileSize) throw new IOException("truncated GGUF file");
+        if (end > Integer.MAX_VALUE) throw new IOException("GGUF metadata larger than 2 GB");
+        long size = Math.max(INITIAL_WINDOW, map != null ? (long) map.capacity() * 2 : 0);
+        size = Math.min(Math.max(size, end), Math.min(fileSize, Integer.MAX_VALUE));
+        map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        map.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private byte readByte(long pos) throws IOException {
+        ensure(pos, 1);
+        return map.get((int) pos);
+    }
+
+    private short readShort(long pos) throws IOException {
+        ensure(pos, 2);
+        return map.getShort((int) pos);
+    }
+
+    private int readInt(long pos) throws IOException {
+        ensure(pos, 4);
+        return map.getInt((int) pos);
+    }
+
+    private long readLong(long pos) throws IOException {
+        ensure(pos, 8);
+        return map.getLong((int) pos);
+    }
+
+    private byte[] readBytes(long pos, int len) throws IOException {
+        ensure(pos, len);
+        byte[] out = new byte[len];
+        map.position((int) pos);
+        map.get(out);
+        return out;
+    }
+}
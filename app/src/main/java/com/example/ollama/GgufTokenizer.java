@@ -0,0 +1,1401 @@
+package com.example.ollama;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Pure-Java port of the llama.cpp tokenizer for SPM ("llama") and BPE ("gpt2") vocabularies.
+ * Only the vocabulary, scores, token types and merges are read from the GGUF metadata
+ * (see GgufMetadata), so prompts can be counted while the model is not loaded or still loading.
+ * For the same flags it returns the same ids as llama_tokenize(); run
+ * {@code HeadlessDriver --tokenizer-check} against a model to verify.
+ *
+ * Token lookups use open-addressing tables over one byte pool (no per-token objects),
+ * and merging uses a primitive binary heap. Instances are immutable and thread-safe.
+ */
+public class GgufTokenizer {
+
+    public static final String MODEL_SPM = "llama";
+    public static final String MODEL_BPE = "gpt2";
+
+    // llama_token_type as stored in tokenizer.ggml.token_type
+    private static final int TYPE_NORMAL = 1;
+    private static final int TYPE_UNKNOWN = 2;
+    private static final int TYPE_CONTROL = 3;
+    private static final int TYPE_USER_DEFINED = 4;
+    private static final int TYPE_UNUSED = 5;
+    private static final int TYPE_BYTE = 6;
+
+    // llama_token_attr
+    private static final int ATTR_UNKNOWN = 1 << 0;
+    private static final int ATTR_UNUSED = 1 << 1;
+    private static final int ATTR_NORMAL = 1 << 2;
+    private static final int ATTR_CONTROL = 1 << 3;
+    private static final int ATTR_USER_DEFINED = 1 << 4;
+    private static final int ATTR_BYTE = 1 << 5;
+    private static final int ATTR_LSTRIP = 1 << 7;
+    private static final int ATTR_RSTRIP = 1 << 8;
+
+    // unicode_cpt_flags (categories follow java.lang.Character, whitespace the llama.cpp set)
+    private static final int F_UNDEFINED = 0x0001;
+    private static final int F_NUMBER = 0x0002;
+    private static final int F_LETTER = 0x0004;
+    private static final int F_SEPARATOR = 0x0008;
+    private static final int F_ACCENT_MARK = 0x0010;
+    private static final int F_PUNCTUATION = 0x0020;
+    private static final int F_SYMBOL = 0x0040;
+    private static final int F_CONTROL = 0x0080;
+    private static final int F_WHITESPACE = 0x0100;
+
+    // Pre-tokenizer regexes, copied from llm_tokenizer_bpe. The GPT-2 and LLaMA 3 ones have
+    // hand-written splitters there (and here); the rest run through java.util.regex
+    private static final String RE_GPT2 =
+            "'s|'t|'re|'ve|'m|'ll|'d| ?\\p{L}+| ?\\p{N}+| ?[^\\s\\p{L}\\p{N}]+|\\s+(?!\\S)";
+    private static final String RE_LLAMA3 =
+            "(?:'[sS]|'[tT]|'[rR][eE]|'[vV][eE]|'[mM]|'[lL][lL]|'[dD])|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+    private static final String RE_QWEN2 =
+            "(?:'[sS]|'[tT]|'[rR][eE]|'[vV][eE]|'[mM]|'[lL][lL]|'[dD])|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+    private static final String RE_PORO = " ?[^(\\s|.,!?…。，、।۔،)]+";
+
+    private static final String[] PRE_DEFAULT = {
+            "[\\p{P}\\$\\+<=>\\^~\\|]+",
+            RE_GPT2,
+            "\\p{N}+",
+            "[0-9][0-9][0-9]",
+    };
+    private static final String[] PRE_LLAMA3 = {RE_LLAMA3};
+    private static final String[] PRE_DEEPSEEK_LLM = {
+            "[\r\n]",
+            "\\s?[A-Za-zµÀ-ÖØ-öø-ƺƼ-ƿǄ-ʓʕ-ʯͰ-ͳͶͷͻ-ͽͿΆΈ-ΊΌΎ-ΡΣ-ϵϷ-ҁҊ-ԯԱ-ՖႠ-ჅᎠ-Ᏽᏸ-ᏽᲐ-ᲺᲽ-Ჿᴀ-ᴫᵫ-ᵷᵹ-ᶚḀ-ἕἘ-Ἕἠ-ὅὈ-Ὅὐ-ὗὙὛὝὟ-ώᾀ-ᾴᾶ-ᾼιῂ-ῄῆ-ῌῐ-ΐῖ-Ίῠ-Ῥῲ-ῴῶ-ῼℂℇℊ-ℓℕℙ-ℝℤΩℨK-ℭℯ-ℴℹℼ-ℿⅅ-ⅉⅎↃↄⰀ-ⱻⱾ-ⳤⳫ-ⳮⳲⳳꙀ-ꙭꚀ-ꚛꜢ-ꝯꝱ-ꞇꞋ-ꞎꭰ-ꮿﬀ-ﬆﬓ-ﬗＡ-Ｚａ-ｚ𐐀-𐑏𐒰-𐓓𐓘-𐓻𐲀-𐲲𐳀-𐳲𑢠-𑣟𞤀-𞥃]+",
+            "\\s?[!-/:-~！-／：-～‘-‟　-。]+",
+            "\\s+$",
+            "[一-龥ࠀ-一가-퟿]+",
+            "\\p{N}+",
+    };
+    private static final String[] PRE_DEEPSEEK3_LLM = {
+            "\\p{N}{1,3}",
+            "[一-龥぀-ゟ゠-ヿ]+",
+            "[!\"#$%&'()*+,\\-./:;<=>?@\\[\\\\\\]^_`{|}~][A-Za-z]+|[^\r\n\\p{L}\\p{P}\\p{S}]?[\\p{L}\\p{M}]+| ?[\\p{P}\\p{S}]+[\r\n]*|\\s*[\r\n]+|\\s+(?!\\S)|\\s+",
+    };
+    private static final String[] PRE_DEEPSEEK_CODER = {
+            "[\r\n]",
+            "\\s?\\p{L}+",
+            "\\s?\\p{P}+",
+            "[一-龥ࠀ-一가-퟿]+",
+            "\\p{N}",
+    };
+    private static final String[] PRE_FALCON = {
+            "[\\p{P}\\$\\+<=>\\^~\\|`]+",
+            RE_GPT2,
+            "[0-9][0-9][0-9]",
+    };
+    private static final String[] PRE_STARCODER = {"\\p{N}", RE_GPT2};
+    private static final String[] PRE_GPT2 = {RE_GPT2};
+    private static final String[] PRE_QWEN2 = {RE_QWEN2};
+    private static final String[] PRE_PORO = {RE_PORO};
+    private static final String[] PRE_VIKING = {RE_PORO, "\\p{N}"};
+    private static final String[] PRE_TEKKEN = {
+            "[^\\r\\n\\p{L}\\p{N}]?((?=[\\p{L}])([^a-z]))*((?=[\\p{L}])([^A-Z]))+|[^\\r\\n\\p{L}\\p{N}]?((?=[\\p{L}])([^a-z]))+((?=[\\p{L}])([^A-Z]))*|\\p{N}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n/]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+",
+    };
+    private static final String[] PRE_CHAMELEON = {
+            "<sentinel:[0-9]+>",
+            "(IMGIMG)((A|B|C|D|E|F|G|H|I){1,4})Z",
+            "([\\t\\n]|    |  )",
+            "\\p{N}",
+            "[\\p{P}!-/:-@\\[-`{-~]",
+            RE_GPT2,
+    };
+    private static final String[] PRE_GPT4O = {
+            "[^\\r\\n\\p{L}\\p{N}]?((?=[\\p{L}])([^a-z]))*((?=[\\p{L}])([^A-Z]))+(?:'[sS]|'[tT]|'[rR][eE]|'[vV][eE]|'[mM]|'[lL][lL]|'[dD])?|[^\\r\\n\\p{L}\\p{N}]?((?=[\\p{L}])([^a-z]))+((?=[\\p{L}])([^A-Z]))*(?:'[sS]|'[tT]|'[rR][eE]|'[vV][eE]|'[mM]|'[lL][lL]|'[dD])?|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n/]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+",
+    };
+    private static final String[] PRE_SUPERBPE = {"\\p{N}+", "(?=(\\d{3})+(?!\\d))"};
+    private static final String[] PRE_BAILINGMOE = {
+            "'(?:[sSdDmMtT]|[lL][lL]|[vV][eE]|[rR][eE])|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]|\\s+(?!\\S)|\\s+",
+    };
+    private static final String[] PRE_SEED_CODER = {
+            "(?:'[sS]|'[tT]|'[rR][eE]|'[vV][eE]|'[mM]|'[lL][lL]|'[dD])|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1}| ?[^\\s\\p{L}\\p{N}\\r\\n]+|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+",
+    };
+
+    // Tokens that llama.cpp forces to CONTROL by their text. The first entry of each group is the
+    // metadata key that disables the detection for it (null: end-of-generation, always applied)
+    private static final String[][] CONTROL_LOOKING = {
+            {"tokenizer.ggml.eot_token_id", "<|eot_id|>", "<|im_end|>", "<|end|>", "<end_of_turn>",
+                    "<|endoftext|>", "<EOT>", "_<EOT>", "<｜end▁of▁sentence｜>"},
+            {"tokenizer.ggml.eom_token_id", "<|eom_id|>"},
+            {"tokenizer.ggml.fim_pre_token_id", "<|fim_prefix|>", "<fim-prefix>", "<fim_prefix>", "<｜fim▁begin｜>", "<PRE>", "▁<PRE>"},
+            {"tokenizer.ggml.fim_suf_token_id", "<|fim_suffix|>", "<fim-suffix>", "<fim_suffix>", "<｜fim▁hole｜>", "<SUF>", "▁<SUF>"},
+            {"tokenizer.ggml.fim_mid_token_id", "<|fim_middle|>", "<fim-middle>", "<fim_middle>", "<｜fim▁end｜>", "<MID>", "▁<MID>"},
+            {"tokenizer.ggml.fim_pad_token_id", "<|fim_pad|>", "<fim-pad>", "<fim_pad>", "<PAD>"},
+            {"tokenizer.ggml.fim_rep_token_id", "<|fim_repo|>", "<|repo_name|>", "<fim-repo>", "<REPO>", "<reponame>"},
+            {"tokenizer.ggml.fim_sep_token_id", "<|file_sep|>"},
+            {null, "<|eot_id|>", "<|im_end|>", "<|end|>", "<end_of_turn>", "<|endoftext|>", "<|eom_id|>",
+                    "<EOT>", "_<EOT>", "<|end_of_text|>"},
+    };
+
+    // GPT-2 byte-level encoding: byte -> UTF-8 of its printable stand-in code point
+    private static final byte[][] BYTE_ENCODED = new byte[256][];
+
+    static {
+        boolean[] direct = new boolean[256];
+        for (int b = 0x21; b <= 0x7E; b++) direct[b] = true;
+        for (int b = 0xA1; b <= 0xAC; b++) direct[b] = true;
+        for (int b = 0xAE; b <= 0xFF; b++) direct[b] = true;
+        int n = 0;
+        for (int b = 0; b < 256; b++) {
+            int cp = direct[b] ? b : 256 + n++;
+            BYTE_ENCODED[b] = new String(Character.toChars(cp)).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final int OUT_OF_RANGE = -1;
+
+    private final String model;
+    private final String pre;
+    private final String chatTemplate;
+    private final boolean spm;
+
+    // Token i is tokenBytes[tokenOffsets[i], tokenOffsets[i + 1])
+    private final int nTokens;
+    private final byte[] tokenBytes;
+    private final int[] tokenOffsets;
+    private final float[] scores;
+    private final int[] attrs;
+
+    // text -> id, open addressing, stores id + 1 (0 = empty)
+    private final int[] table;
+    private final int tableMask;
+
+    // BPE merges: (left id << 32 | right id) -> rank, open addressing, key -1 = empty
+    private long[] mergeKeys;
+    private int[] mergeRanks;
+    private int mergeMask;
+
+    private int bos;
+    private int eos;
+    private int unk;
+    private boolean addBos;
+    private boolean addEos;
+    private boolean addSpacePrefix;
+    private boolean ignoreMerges;
+
+    private String[] regexes;
+    private Pattern[] patterns;
+    private boolean[] collapsed;
+
+    // Special tokens matched in the raw text before tokenizing, longest first
+    private final int[] specialIds;
+    // SPM byte fallback ids ("<0xXX>")
+    private final int[] byteTokens = new int[256];
+
+    /** Reads the tokenizer from a GGUF file's metadata (tensor data is never touched). */
+    public static GgufTokenizer load(File file) throws IOException {
+        return new GgufTokenizer(GgufMetadata.read(file));
+    }
+
+    private GgufTokenizer(GgufMetadata meta) throws IOException {
+        model = meta.getString("tokenizer.ggml.model", null);
+        pre = meta.getString("tokenizer.ggml.pre", "");
+        chatTemplate = meta.getString("tokenizer.chat_template", null);
+        if (MODEL_SPM.equals(model)) {
+            spm = true;
+            bos = 1;
+            eos = 2;
+            unk = 0;
+            addBos = true;
+            addSpacePrefix = true;
+        } else if (MODEL_BPE.equals(model)) {
+            spm = false;
+            bos = 11;
+            eos = 11;
+            unk = -1;
+            configurePreTokenizer(pre);
+        } else {
+            throw new IOException("unsupported tokenizer model: " + model);
+        }
+        addSpacePrefix = meta.getBool("tokenizer.ggml.add_space_prefix", addSpacePrefix);
+
+        GgufMetadata.StringArray tokens = meta.getStringArray("tokenizer.ggml.tokens");
+        if (tokens == null) throw new IOException("cannot find tokenizer vocab in model file");
+        nTokens = tokens.size();
+
+        // empty tokens are renamed like llama.cpp does, everything else is used as is
+        int emptyBytes = 0;
+        for (int i = 0; i < nTokens; i++) {
+            if (tokens.length(i) == 0) emptyBytes += ("[EMPTY_" + i + "]").length();
+        }
+        if (emptyBytes == 0) {
+            tokenBytes = tokens.data;
+            tokenOffsets = tokens.offsets;
+        } else {
+            tokenBytes = new byte[tokens.data.length + emptyBytes];
+            tokenOffsets = new int[nTokens + 1];
+            int at = 0;
+            for (int i = 0; i < nTokens; i++) {
+                tokenOffsets[i] = at;
+                byte[] src = tokens.length(i) > 0 ? null : ("[EMPTY_" + i + "]").getBytes(StandardCharsets.UTF_8);
+                if (src == null) {
+                    System.arraycopy(tokens.data, tokens.offsets[i], tokenBytes, at, tokens.length(i));
+                    at += tokens.length(i);
+                } else {
+                    System.arraycopy(src, 0, tokenBytes, at, src.length);
+                    at += src.length;
+                }
+            }
+            tokenOffsets[nTokens] = at;
+        }
+
+        float[] s = meta.getFloatArray("tokenizer.ggml.scores");
+        scores = s != null && s.length == nTokens ? s : new float[nTokens];
+
+        int[] types = meta.getIntArray("tokenizer.ggml.token_type");
+        attrs = new int[nTokens];
+        for (int i = 0; i < nTokens; i++) {
+            attrs[i] = types != null && i < types.length ? attrFromType(types[i]) : ATTR_NORMAL;
+        }
+
+        // later duplicates win, as with token_to_id[word] = i
+        int cap = Integer.highestOneBit(Math.max(16, nTokens * 2 - 1)) << 1;
+        table = new int[cap];
+        tableMask = cap - 1;
+        for (int i = 0; i < nTokens; i++) insertToken(i);
+
+        if (!spm) loadMerges(meta);
+
+        bos = specialId(meta, "tokenizer.ggml.bos_token_id", bos);
+        eos = specialId(meta, "tokenizer.ggml.eos_token_id", eos);
+        unk = specialId(meta, "tokenizer.ggml.unknown_token_id", unk);
+        addBos = meta.getBool("tokenizer.ggml.add_bos_token", addBos);
+        addEos = meta.getBool("tokenizer.ggml.add_eos_token", addEos);
+
+        for (String[] group : CONTROL_LOOKING) {
+            if (group[0] != null && meta.has(group[0])) continue;
+            for (int i = 1; i < group.length; i++) {
+                byte[] b = group[i].getBytes(StandardCharsets.UTF_8);
+                int id = find(b, 0, b.length);
+                if (id >= 0 && (attrs[id] & ATTR_CONTROL) == 0) attrs[id] = ATTR_CONTROL;
+            }
+        }
+
+        specialIds = buildSpecialCache();
+        applyModelAttributes(meta);
+
+        for (int b = 0; b < 256; b++) {
+            byte[] hex = String.format("<0x%02X>", b).getBytes(StandardCharsets.US_ASCII);
+            int id = find(hex, 0, hex.length);
+            if (id < 0) id = find(new byte[]{(byte) b}, 0, 1);
+            byteTokens[b] = id >= 0 ? id : unk;
+        }
+    }
+
+    /** "llama" (SPM) or "gpt2" (BPE). */
+    public String getModelType() {
+        return model;
+    }
+
+    /** tokenizer.ggml.pre, e.g. "llama-bpe" or "qwen2" ("" for SPM). */
+    public String getPreTokenizer() {
+        return pre;
+    }
+
+    /** tokenizer.chat_template (for LlamaNative.applyChatTemplate), or null if the file has none. */
+    public String getChatTemplate() {
+        return chatTemplate;
+    }
+
+    public int getVocabSize() {
+        return nTokens;
+    }
+
+    public int getBosToken() {
+        return bos;
+    }
+
+    public int getEosToken() {
+        return eos;
+    }
+
+    /** Raw vocabulary entry of a token (SPM spaces appear as U+2581, BPE bytes in GPT-2 encoding). */
+    public String getTokenText(int id) {
+        return new String(tokenBytes, tokenOffsets[id], tokenOffsets[id + 1] - tokenOffsets[id], StandardCharsets.UTF_8);
+    }
+
+    /** Number of tokens in text, without BOS/EOS and treating special-token markup as plain text. */
+    public int countTokens(String text) {
+        return countTokens(text, false, false);
+    }
+
+    public int countTokens(String text, boolean addSpecial, boolean parseSpecial) {
+        return tokenize(text, addSpecial, parseSpecial).length;
+    }
+
+    /**
+     * Token ids of text. addSpecial adds BOS/EOS as the model expects; parseSpecial matches
+     * control tokens such as "<|im_start|>" in the text (user-defined tokens always match).
+     */
+    public int[] tokenize(String text, boolean addSpecial, boolean parseSpecial) {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        IntList out = new IntList(utf8.length / 3 + 8);
+        IntList frags = partition(utf8, parseSpecial);
+
+        if (addSpecial && addBos && bos >= 0) out.add(bos);
+
+        Session session = new Session();
+        boolean prevSpecial = true;
+        for (int f = 0; f < frags.size; f += 3) {
+            int token = frags.data[f + 2];
+            if (token >= 0) {
+                out.add(token);
+                prevSpecial = true;
+                continue;
+            }
+            int start = frags.data[f];
+            int len = frags.data[f + 1];
+            if (spm) {
+                session.spm(utf8, start, len, addSpacePrefix && prevSpecial, out);
+            } else {
+                session.bpe(utf8, start, len, out);
+            }
+            prevSpecial = false;
+        }
+
+        if (addSpecial && addEos && eos >= 0) out.add(eos);
+        return out.toArray();
+    }
+
+    // ---------------- vocabulary ----------------
+
+    private static int attrFromType(int type) {
+        switch (type) {
+            case TYPE_UNKNOWN:      return ATTR_UNKNOWN;
+            case TYPE_UNUSED:       return ATTR_UNUSED;
+            case TYPE_NORMAL:       return ATTR_NORMAL;
+            case TYPE_CONTROL:      return ATTR_CONTROL;
+            case TYPE_USER_DEFINED: return ATTR_USER_DEFINED;
+            case TYPE_BYTE:         return ATTR_BYTE;
+            default:                return 0;
+        }
+    }
+
+    private int specialId(GgufMetadata meta, String key, int def) throws IOException {
+        long id = meta.getLong(key, -1);
+        return id >= 0 && id < nTokens ? (int) id : def;
+    }
+
+    private static int hash(byte[] b, int off, int len) {
+        int h = 0x811C9DC5;
+        for (int i = off, end = off + len; i < end; i++) {
+            h = (h ^ (b[i] & 0xFF)) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private boolean tokenEquals(int id, byte[] b, int off, int len) {
+        int ts = tokenOffsets[id];
+        if (tokenOffsets[id + 1] - ts != len) return false;
+        for (int i = 0; i < len; i++) {
+            if (tokenBytes[ts + i] != b[off + i]) return false;
+        }
+        return true;
+    }
+
+    private void insertToken(int id) {
+        int off = tokenOffsets[id];
+        int len = tokenOffsets[id + 1] - off;
+        int h = hash(tokenBytes, off, len) & tableMask;
+        while (table[h] != 0) {
+            if (tokenEquals(table[h] - 1, tokenBytes, off, len)) break;
+            h = (h + 1) & tableMask;
+        }
+        table[h] = id + 1;
+    }
+
+    /** Id of the token whose text is b[off, off + len), or -1. */
+    private int find(byte[] b, int off, int len) {
+        int h = hash(b, off, len) & tableMask;
+        while (true) {
+            int v = table[h];
+            if (v == 0) return -1;
+            if (tokenEquals(v - 1, b, off, len)) return v - 1;
+            h = (h + 1) & tableMask;
+        }
+    }
+
+    private void loadMerges(GgufMetadata meta) throws IOException {
+        GgufMetadata.StringArray merges = meta.getStringArray("tokenizer.ggml.merges");
+        if (merges == null) throw new IOException("cannot find tokenizer merges in model file");
+        int n = merges.size();
+        int cap = Integer.highestOneBit(Math.max(16, n * 2 - 1)) << 1;
+        mergeKeys = new long[cap];
+        mergeRanks = new int[cap];
+        mergeMask = cap - 1;
+        java.util.Arrays.fill(mergeKeys, -1L);
+        byte[] d = merges.data;
+        for (int i = 0; i < n; i++) {
+            int off = merges.offsets[i];
+            int len = merges.length(i);
+            // "first second", split at the first space after the first byte
+            int sp = -1;
+            for (int j = 1; j < len; j++) {
+                if (d[off + j] == ' ') {
+                    sp = j;
+                    break;
+                }
+            }
+            if (sp < 0) continue;
+            int left = find(d, off, sp);
+            int right = find(d, off + sp + 1, len - sp - 1);
+            // a half that is not a token can never be a symbol during merging
+            if (left < 0 || right < 0) continue;
+            long key = ((long) left << 32) | right;
+            int h = mix(key) & mergeMask;
+            while (mergeKeys[h] != -1L && mergeKeys[h] != key) h = (h + 1) & mergeMask;
+            // the first rank wins, as with bpe_ranks.emplace()
+            if (mergeKeys[h] == -1L) {
+                mergeKeys[h] = key;
+                mergeRanks[h] = i;
+            }
+        }
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int mergeRank(int left, int right) {
+        long key = ((long) left << 32) | right;
+        int h = mix(key) & mergeMask;
+        while (true) {
+            long k = mergeKeys[h];
+            if (k == -1L) return -1;
+            if (k == key) return mergeRanks[h];
+            h = (h + 1) & mergeMask;
+        }
+    }
+
+    private int[] buildSpecialCache() {
+        IntList ids = new IntList(64);
+        for (int i = 0; i < nTokens; i++) {
+            if ((attrs[i] & (ATTR_CONTROL | ATTR_USER_DEFINED | ATTR_UNKNOWN)) != 0) ids.add(i);
+        }
+        int[] out = ids.toArray();
+        // longest text first (insertion sort keeps equal lengths in id order; the cache is small)
+        for (int i = 1; i < out.length; i++) {
+            int id = out[i];
+            int len = tokenOffsets[id + 1] - tokenOffsets[id];
+            int j = i - 1;
+            while (j >= 0 && tokenOffsets[out[j] + 1] - tokenOffsets[out[j]] < len) {
+                out[j + 1] = out[j];
+                j--;
+            }
+            out[j + 1] = id;
+        }
+        return out;
+    }
+
+    // Per-model lstrip/rstrip attributes that llama.cpp sets by name
+    private void applyModelAttributes(GgufMetadata meta) throws IOException {
+        String name = meta.getString("general.name", "").toLowerCase(java.util.Locale.ROOT);
+        if (pre.contains("jina-v2-de") || pre.contains("jina-v2-es") || pre.contains("jina-v2-code")) {
+            setAttr("<mask>", ATTR_LSTRIP, true);
+        } else if (name.contains("phi-3") || name.contains("phi3")) {
+            for (int id : specialIds) attrs[id] |= ATTR_RSTRIP;
+            setAttr("</s>", ATTR_RSTRIP, true);
+            for (String t : new String[]{"<unk>", "<s>", "<|endoftext|>"}) setAttr(t, ATTR_RSTRIP, false);
+        }
+    }
+
+    private void setAttr(String text, int attr, boolean value) {
+        byte[] b = text.getBytes(StandardCharsets.UTF_8);
+        int id = find(b, 0, b.length);
+        if (id < 0) return;
+        attrs[id] = value ? attrs[id] | attr : attrs[id] & ~attr;
+    }
+
+    private void configurePreTokenizer(String pre) throws IOException {
+        switch (pre) {
+            case "":
+            case "default":
+                regexes = PRE_DEFAULT;
+                break;
+            case "llama3":
+            case "llama-v3":
+            case "llama-bpe":
+            case "falcon3":
+            case "pixtral":
+                regexes = PRE_LLAMA3;
+                ignoreMerges = true;
+                addBos = true;
+                break;
+            case "deepseek-llm":
+                regexes = PRE_DEEPSEEK_LLM;
+                break;
+            case "deepseek-coder":
+                regexes = PRE_DEEPSEEK_CODER;
+                break;
+            case "deepseek-v3":
+                regexes = PRE_DEEPSEEK3_LLM;
+                break;
+            case "falcon":
+                regexes = PRE_FALCON;
+                break;
+            case "starcoder":
+            case "refact":
+            case "command-r":
+            case "smollm":
+            case "codeshell":
+            case "exaone":
+            case "minerva-7b":
+                regexes = PRE_STARCODER;
+                break;
+            case "mpt":
+            case "gpt-2":
+            case "phi-2":
+            case "jina-es":
+            case "jina-de":
+            case "gigachat":
+            case "jina-v1-en":
+            case "jina-v2-es":
+            case "jina-v2-de":
+            case "jina-v2-code":
+            case "roberta-bpe":
+            case "olmo":
+            case "jais":
+            case "trillion":
+                regexes = PRE_GPT2;
+                break;
+            case "qwen2":
+            case "deepseek-r1-qwen":
+            case "stablelm2":
+            case "megrez":
+                regexes = PRE_QWEN2;
+                break;
+            case "dbrx":
+            case "smaug-bpe":
+                regexes = PRE_LLAMA3;
+                break;
+            case "glm4":
+            case "chatglm-bpe":
+                regexes = PRE_LLAMA3;
+                bos = -1;
+                break;
+            case "poro-chat":
+            case "bloom":
+            case "gpt3-finnish":
+                regexes = PRE_PORO;
+                break;
+            case "viking":
+                regexes = PRE_VIKING;
+                break;
+            case "tekken":
+                regexes = PRE_TEKKEN;
+                ignoreMerges = true;
+                addBos = true;
+                break;
+            case "chameleon":
+                regexes = PRE_CHAMELEON;
+                addBos = true;
+                break;
+            case "gpt-4o":
+            case "llama4":
+                regexes = PRE_GPT4O;
+                break;
+            case "superbpe":
+                regexes = PRE_SUPERBPE;
+                break;
+            case "bailingmoe":
+                regexes = PRE_BAILINGMOE;
+                break;
+            case "seed-coder":
+                regexes = PRE_SEED_CODER;
+                break;
+            default:
+                throw new IOException("unknown pre-tokenizer type: '" + pre + "'");
+        }
+
+        patterns = new Pattern[regexes.length];
+        collapsed = new boolean[regexes.length];
+        for (int i = 0; i < regexes.length; i++) {
+            String re = regexes[i];
+            if (re.equals(RE_GPT2) || re.equals(RE_LLAMA3)) continue;
+            collapsed[i] = usesCategories(re);
+            patterns[i] = Pattern.compile(collapsed[i] ? collapseRegex(re) : re);
+        }
+    }
+
+    // ---------------- special token partition ----------------
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || (b >= '\t' && b <= '\r');
+    }
+
+    private static int indexOf(byte[] hay, int from, int to, byte[] needle, int nOff, int nLen) {
+        byte first = needle[nOff];
+        for (int i = from, last = to - nLen; i <= last; i++) {
+            if (hay[i] != first) continue;
+            int j = 1;
+            while (j < nLen && hay[i + j] == needle[nOff + j]) j++;
+            if (j == nLen) return i;
+        }
+        return -1;
+    }
+
+    // Splits the text around special tokens (tokenizer_st_partition). Returns triples
+    // (start, length, -1) for raw text and (0, 0, id) for special tokens
+    private IntList partition(byte[] text, boolean parseSpecial) {
+        IntList frags = new IntList(12);
+        if (text.length == 0) return frags;
+        frags.add(0);
+        frags.add(text.length);
+        frags.add(-1);
+
+        for (int special : specialIds) {
+            int attr = attrs[special];
+            if (!parseSpecial && (attr & (ATTR_CONTROL | ATTR_UNKNOWN)) != 0) continue;
+            int sOff = tokenOffsets[special];
+            int sLen = tokenOffsets[special + 1] - sOff;
+            if (sLen == 0) continue;
+
+            IntList next = new IntList(frags.size + 6);
+            for (int f = 0; f < frags.size; f += 3) {
+                int base = frags.data[f];
+                int baseLen = frags.data[f + 1];
+                int token = frags.data[f + 2];
+                if (token >= 0) {
+                    next.add(0);
+                    next.add(0);
+                    next.add(token);
+                    continue;
+                }
+                while (true) {
+                    int match = indexOf(text, base, base + baseLen, tokenBytes, sOff, sLen);
+                    if (match < 0) {
+                        if (baseLen > 0) {
+                            next.add(base);
+                            next.add(baseLen);
+                            next.add(-1);
+                        }
+                        break;
+                    }
+                    int leftLen = match - base;
+                    if ((attr & ATTR_LSTRIP) != 0) {
+                        while (leftLen > 0 && isSpace(text[base + leftLen - 1])) leftLen--;
+                    }
+                    if (leftLen > 0) {
+                        next.add(base);
+                        next.add(leftLen);
+                        next.add(-1);
+                    }
+                    next.add(0);
+                    next.add(0);
+                    next.add(special);
+
+                    int rightOff = match + sLen;
+                    int rightLen = base + baseLen - rightOff;
+                    if (rightLen <= 0) break;
+                    if ((attr & ATTR_RSTRIP) != 0) {
+                        while (rightLen > 0 && isSpace(text[rightOff])) {
+                            rightOff++;
+                            rightLen--;
+                        }
+                    }
+                    base = rightOff;
+                    baseLen = rightLen;
+                }
+            }
+            frags = next;
+        }
+        return frags;
+    }
+
+    // ---------------- BPE pre-tokenizer ----------------
+
+    static int cptFlags(int cp) {
+        int f;
+        switch (Character.getType(cp)) {
+            case Character.UPPERCASE_LETTER:
+            case Character.LOWERCASE_LETTER:
+            case Character.TITLECASE_LETTER:
+            case Character.MODIFIER_LETTER:
+            case Character.OTHER_LETTER:
+                f = F_LETTER;
+                break;
+            case Character.DECIMAL_DIGIT_NUMBER:
+            case Character.LETTER_NUMBER:
+            case Character.OTHER_NUMBER:
+                f = F_NUMBER;
+                break;
+            case Character.SPACE_SEPARATOR:
+            case Character.LINE_SEPARATOR:
+            case Character.PARAGRAPH_SEPARATOR:
+                f = F_SEPARATOR;
+                break;
+            case Character.NON_SPACING_MARK:
+            case Character.ENCLOSING_MARK:
+            case Character.COMBINING_SPACING_MARK:
+                f = F_ACCENT_MARK;
+                break;
+            case Character.CONNECTOR_PUNCTUATION:
+            case Character.DASH_PUNCTUATION:
+            case Character.START_PUNCTUATION:
+            case Character.END_PUNCTUATION:
+            case Character.INITIAL_QUOTE_PUNCTUATION:
+            case Character.FINAL_QUOTE_PUNCTUATION:
+            case Character.OTHER_PUNCTUATION:
+                f = F_PUNCTUATION;
+                break;
+            case Character.MATH_SYMBOL:
+            case Character.CURRENCY_SYMBOL:
+            case Character.MODIFIER_SYMBOL:
+            case Character.OTHER_SYMBOL:
+                f = F_SYMBOL;
+                break;
+            case Character.CONTROL:
+            case Character.FORMAT:
+            case Character.SURROGATE:
+            case Character.PRIVATE_USE:
+                f = F_CONTROL;
+                break;
+            default:
+                f = F_UNDEFINED;
+                break;
+        }
+        if (isWhitespace(cp)) f |= F_WHITESPACE;
+        return f;
+    }
+
+    // unicode_set_whitespace
+    private static boolean isWhitespace(int cp) {
+        if (cp <= 0x20) return cp == 0x20 || (cp >= 0x09 && cp <= 0x0D);
+        switch (cp) {
+            case 0x85: case 0xA0: case 0x1680: case 0x2028: case 0x2029: case 0x202F: case 0x205F: case 0x3000:
+                return true;
+            default:
+                return cp >= 0x2000 && cp <= 0x200A;
+        }
+    }
+
+    private static boolean usesCategories(String re) {
+        return re.contains("\\p{N}") || re.contains("\\p{L}") || re.contains("\\p{P}")
+                || re.contains("\\p{M}") || re.contains("\\p{S}");
+    }
+
+    // Stand-in characters of the collapsed text for each category, plus the ASCII members
+    private static String categoryClass(char c) {
+        switch (c) {
+            case 'N': return "\u00D10-9";
+            case 'L': return "\u00D2A-Za-z";
+            case 'P': return "\u00D3!-#%-*,-/:-;?-@\\[-\\]_\\{\\}";
+            case 'M': return "\u00D4";
+            case 'S': return "\u00D5\\$\\+<->\\^`\\|";
+            default:  return null;
+        }
+    }
+
+    // Rewrites \p{X} into the collapsed stand-ins, as unicode_regex_split() does for std::regex
+    private static String collapseRegex(String re) {
+        StringBuilder sb = new StringBuilder(re.length() + 32);
+        boolean inside = false;
+        for (int i = 0; i < re.length(); i++) {
+            char c = re.charAt(i);
+            if (c == '[' && (i == 0 || re.charAt(i - 1) != '\\')) {
+                sb.append('[');
+                inside = true;
+                continue;
+            }
+            if (inside && c == ']' && re.charAt(i - 1) != '\\') {
+                sb.append(']');
+                inside = false;
+                continue;
+            }
+            if (c == '\\' && i + 4 < re.length() && re.charAt(i + 1) == 'p' && re.charAt(i + 2) == '{'
+                    && re.charAt(i + 4) == '}') {
+                String cls = categoryClass(re.charAt(i + 3));
+                if (cls != null) {
+                    if (!inside) sb.append('[');
+                    sb.append(cls);
+                    if (!inside) sb.append(']');
+                    i += 4;
+                    continue;
+                }
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    // Word lengths (in code points) after running every pre-tokenizer regex (unicode_regex_split)
+    private IntList split(int[] cpts) {
+        IntList offsets = new IntList(4);
+        offsets.add(cpts.length);
+        String collapsedText = null;
+        String plainText = null;
+        int[] cpToChar = null;
+
+        for (int r = 0; r < regexes.length; r++) {
+            String re = regexes[r];
+            if (re.equals(RE_GPT2)) {
+                offsets = new Splitter(cpts).gpt2(offsets);
+            } else if (re.equals(RE_LLAMA3)) {
+                offsets = new Splitter(cpts).llama3(offsets);
+            } else if (collapsed[r]) {
+                if (collapsedText == null) collapsedText = collapse(cpts);
+                offsets = splitRegex(collapsedText, null, patterns[r], offsets);
+            } else {
+                if (plainText == null) {
+                    // non-ASCII whitespace becomes \v so that \s matches it
+                    StringBuilder sb = new StringBuilder(cpts.length + 8);
+                    cpToChar = new int[cpts.length + 1];
+                    for (int i = 0; i < cpts.length; i++) {
+                        cpToChar[i] = sb.length();
+                        int cp = cpts[i];
+                        sb.appendCodePoint(cp > 0x7F && isWhitespace(cp) ? 0x0B : cp);
+                    }
+                    cpToChar[cpts.length] = sb.length();
+                    plainText = sb.toString();
+                }
+                offsets = splitRegex(plainText, cpToChar, patterns[r], offsets);
+            }
+        }
+        return offsets;
+    }
+
+    private static String collapse(int[] cpts) {
+        char[] out = new char[cpts.length];
+        for (int i = 0; i < cpts.length; i++) {
+            int cp = cpts[i];
+            if (cp < 128) {
+                out[i] = (char) cp;
+                continue;
+            }
+            int f = cptFlags(cp);
+            if ((f & F_WHITESPACE) != 0) {
+                out[i] = 0x0B;
+            } else if ((f & F_NUMBER) != 0) {
+                out[i] = 0xD1;
+            } else if ((f & F_LETTER) != 0) {
+                out[i] = 0xD2;
+            } else if ((f & F_PUNCTUATION) != 0) {
+                out[i] = 0xD3;
+            } else if ((f & F_ACCENT_MARK) != 0) {
+                out[i] = 0xD4;
+            } else if ((f & F_SYMBOL) != 0) {
+                out[i] = 0xD5;
+            } else {
+                out[i] = 0xD0;
+            }
+        }
+        return new String(out);
+    }
+
+    // Splits every range at the regex matches; text between matches becomes its own word
+    // (unicode_regex_split_stl). cpToChar maps code point to char index, null for one char each
+    private static IntList splitRegex(String text, int[] cpToChar, Pattern pattern, IntList offsets) {
+        IntList out = new IntList(offsets.size * 2 + 8);
+        Matcher m = pattern.matcher(text);
+        int start = 0;
+        for (int k = 0; k < offsets.size; k++) {
+            int len = offsets.data[k];
+            int cs = cpToChar != null ? cpToChar[start] : start;
+            int ce = cpToChar != null ? cpToChar[start + len] : start + len;
+            m.region(cs, ce);
+            int prev = cs;
+            while (m.find()) {
+                if (m.start() > prev) out.add(cpCount(text, cpToChar, prev, m.start()));
+                out.add(cpCount(text, cpToChar, m.start(), m.end()));
+                prev = m.end();
+            }
+            if (prev < ce) out.add(cpCount(text, cpToChar, prev, ce));
+            start += len;
+        }
+        return out;
+    }
+
+    private static int cpCount(String text, int[] cpToChar, int from, int to) {
+        return cpToChar != null ? text.codePointCount(from, to) : to - from;
+    }
+
+    // Ports of unicode_regex_split_custom_gpt2 / _llama3
+    private static final class Splitter {
+        private final int[] cpts;
+        private int ini;
+        private int end;
+        private int prevEnd;
+        private IntList out;
+
+        Splitter(int[] cpts) {
+            this.cpts = cpts;
+        }
+
+        private int cpt(int pos) {
+            return pos >= ini && pos < end ? cpts[pos] : OUT_OF_RANGE;
+        }
+
+        private int flags(int pos) {
+            return pos >= ini && pos < end ? cptFlags(cpts[pos]) : 0;
+        }
+
+        private int addToken(int pos) {
+            int len = pos - prevEnd;
+            if (len > 0) out.add(len);
+            prevEnd = pos;
+            return len;
+        }
+
+        IntList gpt2(IntList offsets) {
+            out = new IntList(offsets.size * 4 + 8);
+            int start = 0;
+            for (int k = 0; k < offsets.size; k++) {
+                ini = start;
+                end = start + offsets.data[k];
+                start = end;
+                prevEnd = ini;
+                for (int pos = ini; pos < end; ) {
+                    int cpt = cpt(pos);
+                    int flags = flags(pos);
+
+                    // 's|'t|'re|'ve|'m|'ll|'d
+                    if (cpt == '\'' && pos + 1 < end) {
+                        int next = cpt(pos + 1);
+                        if (next == 's' || next == 't' || next == 'm' || next == 'd') {
+                            pos += addToken(pos + 2);
+                            continue;
+                        }
+                        if (pos + 2 < end) {
+                            int next2 = cpt(pos + 2);
+                            if ((next == 'r' && next2 == 'e') || (next == 'v' && next2 == 'e') || (next == 'l' && next2 == 'l')) {
+                                pos += addToken(pos + 3);
+                                continue;
+                            }
+                        }
+                    }
+
+                    int flags2 = cpt == ' ' ? flags(pos + 1) : flags;
+                    // <space>?\p{L}+
+                    if ((flags2 & F_LETTER) != 0) {
+                        if (cpt == ' ') pos++;
+                        while ((flags2 & F_LETTER) != 0) flags2 = flags(++pos);
+                        addToken(pos);
+                        continue;
+                    }
+                    // <space>?\p{N}+
+                    if ((flags2 & F_NUMBER) != 0) {
+                        if (cpt == ' ') pos++;
+                        while ((flags2 & F_NUMBER) != 0) flags2 = flags(++pos);
+                        addToken(pos);
+                        continue;
+                    }
+                    // <space>?[^\s\p{L}\p{N}]+
+                    if ((flags2 & (F_WHITESPACE | F_LETTER | F_NUMBER)) == 0 && flags2 != 0) {
+                        if (cpt == ' ') pos++;
+                        while ((flags2 & (F_WHITESPACE | F_LETTER | F_NUMBER)) == 0 && flags2 != 0) flags2 = flags(++pos);
+                        addToken(pos);
+                        continue;
+                    }
+
+                    int nws = 0;
+                    while ((flags(pos + nws) & F_WHITESPACE) != 0) nws++;
+                    // \s+(?!\S)
+                    if (nws > 1 && cpt(pos + nws) != OUT_OF_RANGE) {
+                        pos += nws - 1;
+                        addToken(pos);
+                        continue;
+                    }
+                    // \s+
+                    if (nws > 0) {
+                        pos += nws;
+                        addToken(pos);
+                        continue;
+                    }
+                    addToken(++pos);
+                }
+            }
+            return out;
+        }
+
+        IntList llama3(IntList offsets) {
+            out = new IntList(offsets.size * 4 + 8);
+            int start = 0;
+            for (int k = 0; k < offsets.size; k++) {
+                ini = start;
+                end = start + offsets.data[k];
+                start = end;
+                prevEnd = ini;
+                for (int pos = ini; pos < end; ) {
+                    int cpt = cpt(pos);
+                    int flags = flags(pos);
+
+                    // (?i:'s|'t|'re|'ve|'m|'ll|'d)
+                    if (cpt == '\'' && pos + 1 < end) {
+                        int next = Character.toLowerCase(cpt(pos + 1));
+                        if (next == 's' || next == 't' || next == 'm' || next == 'd') {
+                            pos += addToken(pos + 2);
+                            continue;
+                        }
+                        if (pos + 2 < end) {
+                            int next2 = Character.toLowerCase(cpt(pos + 2));
+                            if ((next == 'r' && next2 == 'e') || (next == 'v' && next2 == 'e') || (next == 'l' && next2 == 'l')) {
+                                pos += addToken(pos + 3);
+                                continue;
+                            }
+                        }
+                    }
+
+                    // [^\r\n\p{L}\p{N}]?\p{L}+
+                    if (!(cpt == '\r' || cpt == '\n' || (flags & F_NUMBER) != 0)) {
+                        if ((flags & F_LETTER) != 0 || (flags(pos + 1) & F_LETTER) != 0) {
+                            pos++;
+                            while ((flags(pos) & F_LETTER) != 0) pos++;
+                            addToken(pos);
+                            continue;
+                        }
+                    }
+
+                    // \p{N}{1,3}
+                    if ((flags & F_NUMBER) != 0) {
+                        int from = pos;
+                        while ((flags(pos) & F_NUMBER) != 0) {
+                            if (++pos - from >= 3) {
+                                addToken(pos);
+                                from = pos;
+                            }
+                        }
+                        addToken(pos);
+                        continue;
+                    }
+
+                    // <space>?[^\s\p{L}\p{N}]+[\r\n]*
+                    int flags2 = cpt == ' ' ? flags(pos + 1) : flags;
+                    if ((flags2 & (F_WHITESPACE | F_LETTER | F_NUMBER)) == 0 && flags != 0) {
+                        if (cpt == ' ') pos++;
+                        while ((flags2 & (F_WHITESPACE | F_LETTER | F_NUMBER)) == 0 && flags2 != 0) flags2 = flags(++pos);
+                        int cpt2 = cpt(pos);
+                        while (cpt2 == '\r' || cpt2 == '\n') cpt2 = cpt(++pos);
+                        addToken(pos);
+                        continue;
+                    }
+
+                    int nws = 0;
+                    int lastEndRN = 0;
+                    while ((flags(pos + nws) & F_WHITESPACE) != 0) {
+                        int cpt2 = cpt(pos + nws);
+                        if (cpt2 == '\r' || cpt2 == '\n') lastEndRN = pos + nws + 1;
+                        nws++;
+                    }
+                    // \s*[\r\n]+
+                    if (lastEndRN > 0) {
+                        pos = lastEndRN;
+                        addToken(pos);
+                        continue;
+                    }
+                    // \s+(?!\S)
+                    if (nws > 1 && cpt(pos + nws) != OUT_OF_RANGE) {
+                        pos += nws - 1;
+                        addToken(pos);
+                        continue;
+                    }
+                    // \s+
+                    if (nws > 0) {
+                        pos += nws;
+                        addToken(pos);
+                        continue;
+                    }
+                    addToken(++pos);
+                }
+            }
+            return out;
+        }
+    }
+
+    // ---------------- merging ----------------
+
+    // Symbols and bigram queue of one tokenize() call, reused across fragments
+    private final class Session {
+        // symbol i covers buf[start[i], start[i] + n[i]); merged-away symbols have n = 0
+        private int[] start = new int[64];
+        private int[] n = new int[64];
+        private int[] prev = new int[64];
+        private int[] next = new int[64];
+        private int count;
+        private byte[] buf = new byte[256];
+        private final BigramHeap heap = new BigramHeap();
+
+        private void reserveSymbols(int cap) {
+            if (start.length >= cap) return;
+            int c = Math.max(cap, start.length * 2);
+            start = java.util.Arrays.copyOf(start, c);
+            n = java.util.Arrays.copyOf(n, c);
+            prev = java.util.Arrays.copyOf(prev, c);
+            next = java.util.Arrays.copyOf(next, c);
+        }
+
+        private void reserveBuf(int cap) {
+            if (buf.length < cap) buf = java.util.Arrays.copyOf(buf, Math.max(cap, buf.length * 2));
+        }
+
+        // One symbol per UTF-8 character of buf[0, len) (lengths from the lead byte, clipped)
+        private void splitChars(int len) {
+            reserveSymbols(len);
+            count = 0;
+            int offs = 0;
+            while (offs < len) {
+                int b = buf[offs] & 0xFF;
+                int cl = b < 0xC0 ? 1 : b < 0xE0 ? 2 : b < 0xF0 ? 3 : 4;
+                cl = Math.min(cl, len - offs);
+                start[count] = offs;
+                n[count] = cl;
+                prev[count] = count - 1;
+                offs += cl;
+                next[count] = offs == len ? -1 : count + 1;
+                count++;
+            }
+        }
+
+        private void merge(int left, int right) {
+            n[left] += n[right];
+            n[right] = 0;
+            next[left] = next[right];
+            if (next[right] >= 0) prev[next[right]] = left;
+        }
+
+        // llm_tokenizer_spm_session
+        void spm(byte[] text, int off, int len, boolean spacePrefix, IntList out) {
+            // escape spaces as U+2581 (3 bytes)
+            reserveBuf(len * 3 + 3);
+            int blen = 0;
+            if (spacePrefix) {
+                buf[blen++] = (byte) 0xE2;
+                buf[blen++] = (byte) 0x96;
+                buf[blen++] = (byte) 0x81;
+            }
+            for (int i = off; i < off + len; i++) {
+                byte b = text[i];
+                if (b == ' ') {
+                    buf[blen++] = (byte) 0xE2;
+                    buf[blen++] = (byte) 0x96;
+                    buf[blen++] = (byte) 0x81;
+                } else {
+                    buf[blen++] = b;
+                }
+            }
+            if (blen == 0) return;
+            splitChars(blen);
+
+            heap.clear();
+            for (int i = 1; i < count; i++) spmBigram(i - 1, i);
+            while (heap.size > 0) {
+                heap.pop();
+                int l = heap.topLeft;
+                int r = heap.topRight;
+                if (n[l] == 0 || n[r] == 0 || n[l] + n[r] != heap.topSize) continue;
+                merge(l, r);
+                spmBigram(prev[l], l);
+                spmBigram(l, next[l]);
+            }
+
+            for (int i = 0; i != -1; i = next[i]) {
+                int id = find(buf, start[i], n[i]);
+                if (id >= 0) {
+                    out.add(id);
+                } else {
+                    // bytes of a symbol that did not form a token
+                    for (int j = 0; j < n[i]; j++) {
+                        int bt = byteTokens[buf[start[i] + j] & 0xFF];
+                        if (bt >= 0) out.add(bt);
+                    }
+                }
+            }
+        }
+
+        private void spmBigram(int left, int right) {
+            if (left == -1 || right == -1) return;
+            int size = n[left] + n[right];
+            int id = find(buf, start[left], size);
+            if (id < 0) return;
+            heap.push(scores[id], left, right, size);
+        }
+
+        // llm_tokenizer_bpe_session
+        void bpe(byte[] text, int off, int len, IntList out) {
+            int[] cpts = new String(text, off, len, StandardCharsets.UTF_8).codePoints().toArray();
+            IntList words = split(cpts);
+            byte[] cu = new byte[4];
+            int cp0 = 0;
+            for (int w = 0; w < words.size; w++) {
+                int wlen = words.data[w];
+                // UTF-8 of the word, each byte replaced by its GPT-2 stand-in
+                reserveBuf(wlen * 8);
+                int blen = 0;
+                for (int c = cp0; c < cp0 + wlen; c++) {
+                    int nb = utf8(cpts[c], cu);
+                    for (int j = 0; j < nb; j++) {
+                        byte[] enc = BYTE_ENCODED[cu[j] & 0xFF];
+                        for (byte e : enc) buf[blen++] = e;
+                    }
+                }
+                cp0 += wlen;
+                if (blen == 0) continue;
+
+                if (ignoreMerges) {
+                    int id = find(buf, 0, blen);
+                    if (id >= 0) {
+                        out.add(id);
+                        continue;
+                    }
+                }
+                splitChars(blen);
+
+                heap.clear();
+                for (int i = 1; i < count; i++) bpeBigram(i - 1, i);
+                while (heap.size > 0) {
+                    heap.pop();
+                    int l = heap.topLeft;
+                    int r = heap.topRight;
+                    if (n[l] == 0 || n[r] == 0 || n[l] + n[r] != heap.topSize) continue;
+                    merge(l, r);
+                    bpeBigram(prev[l], l);
+                    bpeBigram(l, next[l]);
+                }
+
+                for (int i = 0; i != -1; i = next[i]) {
+                    int id = find(buf, start[i], n[i]);
+                    if (id >= 0) {
+                        out.add(id);
+                    } else {
+                        for (int j = 0; j < n[i]; j++) {
+                            int bt = find(buf, start[i] + j, 1);
+                            if (bt >= 0) out.add(bt);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void bpeBigram(int left, int right) {
+            if (left == -1 || right == -1) return;
+            int l = find(buf, start[left], n[left]);
+            if (l < 0) return;
+            int r = find(buf, start[right], n[right]);
+            if (r < 0) return;
+            int rank = mergeRank(l, r);
+            if (rank < 0) return;
+            // lowest rank first: negate so the max-heap pops it
+            heap.push(-(float) rank, left, right, n[left] + n[right]);
+        }
+    }
+
+    private static int utf8(int cp, byte[] out) {
+        if (cp < 0x80) {
+            out[0] = (byte) cp;
+            return 1;
+        }
+        if (cp < 0x800) {
+            out[0] = (byte) (0xC0 | (cp >> 6));
+            out[1] = (byte) (0x80 | (cp & 0x3F));
+            return 2;
+        }
+        if (cp < 0x10000) {
+            out[0] = (byte) (0xE0 | (cp >> 12));
+            out[1] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            out[2] = (byte) (0x80 | (cp & 0x3F));
+            return 3;
+        }
+        out[0] = (byte) (0xF0 | (cp >> 18));
+        out[1] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+        out[2] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+        out[3] = (byte) (0x80 | (cp & 0x3F));
+        return 4;
+    }
+
+    // Max-heap of bigrams on (key, then lower left first), in parallel primitive arrays
+    private static final class BigramHeap {
+        private float[] key = new float[64];
+        private int[] left = new int[64];
+        private int[] right = new int[64];
+        private int[] sizes = new int[64];
+        int size;
+        int topLeft;
+        int topRight;
+        int topSize;
+
+        void clear() {
+            size = 0;
+        }
+
+        private boolean above(int a, int b) {
+            return key[a] > key[b] || (key[a] == key[b] && left[a] < left[b]);
+        }
+
+        private void swap(int a, int b) {
+            float k = key[a]; key[a] = key[b]; key[b] = k;
+            int t = left[a]; left[a] = left[b]; left[b] = t;
+            t = right[a]; right[a] = right[b]; right[b] = t;
+            t = sizes[a]; sizes[a] = sizes[b]; sizes[b] = t;
+        }
+
+        void push(float k, int l, int r, int s) {
+            if (size == key.length) {
+                int c = size * 2;
+                key = java.util.Arrays.copyOf(key, c);
+                left = java.util.Arrays.copyOf(left, c);
+                right = java.util.Arrays.copyOf(right, c);
+                sizes = java.util.Arrays.copyOf(sizes, c);
+            }
+            int i = size++;
+            key[i] = k;
+            left[i] = l;
+            right[i] = r;
+            sizes[i] = s;
+            while (i > 0) {
+                int p = (i - 1) >> 1;
+                if (!above(i, p)) break;
+                swap(i, p);
+                i = p;
+            }
+        }
+
+        // Removes the top entry into topLeft/topRight/topSize
+        void pop() {
+            topLeft = left[0];
+            topRight = right[0];
+            topSize = sizes[0];
+            size--;
+            if (size == 0) return;
+            key[0] = key[size];
+            left[0] = left[size];
+            right[0] = right[size];
+            sizes[0] = sizes[size];
+            int i = 0;
+            while (true) {
+                int c = 2 * i + 1;
+                if (c >= size) break;
+                if (c + 1 < size && above(c + 1, c)) c++;
+                if (!above(c, i)) break;
+                swap(i, c);
+                i = c;
+            }
+        }
+    }
+
+    // Growable int array
+    private static final class IntList {
+        int[] data;
+        int size;
+
+        IntList(int cap) {
+            data = new int[Math.max(4, cap)];
+        }
+
+        void add(int v) {
+            if (size == data.length) data = java.util.Arrays.copyOf(data, size * 2);
+            data[size++] = v;
+        }
+
+        int[] toArray() {
+            return java.util.Arrays.copyOf(data, size);
+        }
+    }
+}
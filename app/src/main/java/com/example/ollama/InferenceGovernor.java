@@ -0,0 +1,276 @@
+package com.example.ollama;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps sustained generation steady as the device heats up or its battery runs low. Every pollMs it
+ * reads the device state from a DeviceProbe, picks a level and hands the level's limits to
+ * LlamaNative.setRuntimeLimits(), which applies them between decode steps of the running generation:
+ * <pre>
+ *   level  when                                                    threads  prefill chunk  token rate
+ *   0      thermal none                                            all      n_batch        unpaced
+ *   1      thermal light, or headroom >= 0.75                      all      n_batch        0.9 x cool
+ *   2      thermal moderate, headroom >= 0.9, low battery / saver  3/4      1/2            0.75 x cool
+ *   3      thermal severe, or headroom >= 1                        1/2      1/4            0.6 x cool
+ *   4      thermal critical and above                              1/4      1/8            0.4 x cool
+ * </pre>
+ * "cool" is the decode rate measured while at level 0; the token rate is held there with a minimum
+ * time per token (pacing), so output slows down a little early instead of running at full speed until
+ * the SoC throttles and then collapsing. Fewer threads also keep work off cores that are being
+ * clocked down. A hotter state is applied at the next poll; going back down takes recoverPolls cooler
+ * polls per level, so the limits do not flap around a threshold.
+ * <p>
+ * The limits are global on the native side and also apply to parallel slots. close() lifts them.
+ */
+public class InferenceGovernor implements Closeable {
+
+    private static final String TAG = "InferenceGovernor";
+
+    // Thermal status, the same values as android.os.PowerManager.THERMAL_STATUS_*
+    public static final int THERMAL_NONE = 0;
+    public static final int THERMAL_LIGHT = 1;
+    public static final int THERMAL_MODERATE = 2;
+    public static final int THERMAL_SEVERE = 3;
+    public static final int THERMAL_CRITICAL = 4;
+    public static final int THERMAL_EMERGENCY = 5;
+    public static final int THERMAL_SHUTDOWN = 6;
+
+    public static final int MAX_LEVEL = 4;
+
+    private static final float[] THREAD_FACTORS = {1f, 1f, 0.75f, 0.5f, 0.25f};
+    private static final float[] BATCH_FACTORS = {1f, 1f, 0.5f, 0.25f, 0.125f};
+    private static final float[] RATE_FACTORS = {0f, 0.9f, 0.75f, 0.6f, 0.4f};
+
+    public static class DeviceState {
+        public int thermalStatus = THERMAL_NONE;
+        // PowerManager.getThermalHeadroom(): 1.0 = severe throttling is reached, NaN = unknown
+        public float thermalHeadroom = Float.NaN;
+        // 0-100, -1 = unknown
+        public int batteryPercent = -1;
+        public boolean charging;
+        public boolean powerSave;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "thermal %d, headroom %s, battery %s%s%s", thermalStatus,
+                    Float.isNaN(thermalHeadroom) ? "n/a" : String.format(Locale.US, "%.2f", thermalHeadroom),
+                    batteryPercent < 0 ? "n/a" : batteryPercent + "%",
+                    charging ? " charging" : "", powerSave ? ", power saver" : "");
+        }
+    }
+
+    public interface DeviceProbe {
+        // Called on the governor thread
+        DeviceState read();
+    }
+
+    // Probe whose state is set by hand, for hosts without thermal or battery APIs
+    public static class FakeProbe implements DeviceProbe {
+        private final DeviceState state = new DeviceState();
+
+        public synchronized void set(int thermalStatus, float thermalHeadroom, int batteryPercent, boolean charging) {
+            state.thermalStatus = thermalStatus;
+            state.thermalHeadroom = thermalHeadroom;
+            state.batteryPercent = batteryPercent;
+            state.charging = charging;
+        }
+
+        public synchronized void setThermalStatus(int thermalStatus) {
+            state.thermalStatus = thermalStatus;
+        }
+
+        public synchronized void setPowerSave(boolean powerSave) {
+            state.powerSave = powerSave;
+        }
+
+        @Override
+        public synchronized DeviceState read() {
+            DeviceState copy = new DeviceState();
+            copy.thermalStatus = state.thermalStatus;
+            copy.thermalHeadroom = state.thermalHeadroom;
+            copy.batteryPercent = state.batteryPercent;
+            copy.charging = state.charging;
+            copy.powerSave = state.powerSave;
+            return copy;
+        }
+    }
+
+    public static class Options {
+        public long pollMs = 2000;
+        // Cooler polls in a row before going down one level
+        public int recoverPolls = 3;
+        // Battery percentage below which a discharging device is treated as level 2
+        public int lowBatteryPercent = 20;
+        // Configured thread count and n_batch (setContextParameters) that the factors scale
+        public int threads = 4;
+        public int batch = 512;
+    }
+
+    public static final class Limits {
+        public final int level;
+        public final int threads;
+        public final int batch;
+        // Minimum time per generated token, 0 = unpaced
+        public final float minTokenMs;
+
+        Limits(int level, int threads, int batch, float minTokenMs) {
+            this.level = level;
+            this.threads = threads;
+            this.batch = batch;
+            this.minTokenMs = minTokenMs;
+        }
+
+        boolean sameAs(Limits o) {
+            return o != null && level == o.level && threads == o.threads && batch == o.batch
+                    && Math.abs(minTokenMs - o.minTokenMs) < 0.05f * Math.max(1f, minTokenMs);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "level %d: %d threads, batch %d, %s", level, threads, batch,
+                    minTokenMs > 0 ? String.format(Locale.US, "<= %.1f tok/s", 1000f / minTokenMs) : "unpaced");
+        }
+    }
+
+    public interface Listener {
+        // Called on the governor thread when the limits change
+        void onLimitsChanged(Limits limits, DeviceState state);
+    }
+
+    private final LlamaNative llama;
+    private final DeviceProbe probe;
+    private final Options options;
+    private volatile Listener listener;
+    private ScheduledExecutorService executor;
+
+    // Guarded by this
+    private int level;
+    private int coolerPolls;
+    private double coolTokenMs;
+    private Limits applied;
+    private DeviceState lastState;
+
+    public InferenceGovernor(LlamaNative llama, DeviceProbe probe, Options options) {
+        this.llama = llama;
+        this.probe = probe;
+        this.options = options;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Polls every options.pollMs on a daemon thread until close()
+    public synchronized void start() {
+        if (executor != null) return;
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "inference-governor");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                poll();
+            } catch (RuntimeException e) {
+                android.util.Log.w(TAG, "poll failed", e);
+            }
+        }, 0, Math.max(100, options.pollMs), TimeUnit.MILLISECONDS);
+    }
+
+    // New configured thread count / n_batch after setContextParameters(); applied at the next poll
+    public synchronized void setConfigured(int threads, int batch) {
+        options.threads = threads;
+        options.batch = batch;
+    }
+
+    // Reads the device state once and applies the resulting limits. start() calls this periodically
+    public Limits poll() {
+        DeviceState state = probe.read();
+        Limits limits;
+        boolean changed;
+        synchronized (this) {
+            lastState = state;
+            int target = levelFor(state);
+            if (target >= level) {
+                level = target;
+                coolerPolls = 0;
+            } else if (++coolerPolls >= Math.max(1, options.recoverPolls)) {
+                level--;
+                coolerPolls = 0;
+            }
+            // The cool decode rate is learnt while nothing is limited (pacing waits are not part of token_ms)
+            double tokenMs = readTokenMs();
+            if (level == 0 && tokenMs > 0) coolTokenMs = tokenMs;
+            limits = limitsFor(level);
+            changed = !limits.sameAs(applied);
+            if (changed) {
+                applied = limits;
+                llama.setRuntimeLimits(level == 0 ? 0 : limits.threads, level == 0 ? 0 : limits.batch,
+                        limits.minTokenMs);
+            }
+        }
+        Listener l = listener;
+        if (changed && l != null) l.onLimitsChanged(limits, state);
+        return limits;
+    }
+
+    public synchronized Limits getLimits() {
+        return applied != null ? applied : limitsFor(level);
+    }
+
+    public synchronized DeviceState getLastState() {
+        return lastState;
+    }
+
+    // Stops polling and lifts the limits
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (executor != null) executor.shutdownNow();
+            executor = null;
+            level = 0;
+            applied = null;
+        }
+        llama.setRuntimeLimits(0, 0, 0f);
+    }
+
+    int levelFor(DeviceState s) {
+        int lvl;
+        if (s.thermalStatus >= THERMAL_CRITICAL) lvl = 4;
+        else if (s.thermalStatus >= THERMAL_SEVERE) lvl = 3;
+        else if (s.thermalStatus >= THERMAL_MODERATE) lvl = 2;
+        else if (s.thermalStatus >= THERMAL_LIGHT) lvl = 1;
+        else lvl = 0;
+        // Headroom forecasts throttling before the status changes
+        if (!Float.isNaN(s.thermalHeadroom)) {
+            if (s.thermalHeadroom >= 1.0f) lvl = Math.max(lvl, 3);
+            else if (s.thermalHeadroom >= 0.9f) lvl = Math.max(lvl, 2);
+            else if (s.thermalHeadroom >= 0.75f) lvl = Math.max(lvl, 1);
+        }
+        boolean lowBattery = !s.charging && s.batteryPercent >= 0 && s.batteryPercent < options.lowBatteryPercent;
+        if (lowBattery || s.powerSave) lvl = Math.max(lvl, 2);
+        return Math.min(lvl, MAX_LEVEL);
+    }
+
+    private Limits limitsFor(int lvl) {
+        int threads = Math.max(1, Math.round(options.threads * THREAD_FACTORS[lvl]));
+        int batch = Math.max(1, Math.round(options.batch * BATCH_FACTORS[lvl]));
+        float minTokenMs = lvl > 0 && coolTokenMs > 0 ? (float) (coolTokenMs / RATE_FACTORS[lvl]) : 0f;
+        return new Limits(lvl, threads, batch, minTokenMs);
+    }
+
+    private double readTokenMs() {
+        try {
+            return new JSONObject(llama.getRuntimeLimits()).optDouble("token_ms", 0);
+        } catch (JSONException e) {
+            return 0;
+        }
+    }
+}
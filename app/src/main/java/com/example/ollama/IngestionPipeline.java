@@ -0,0 +1,419 @@
+package com.example.ollama;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams a UTF-8 text file into a VectorIndex as token-bounded chunks:
+ * <pre>
+ *   reader (calling thread)  -- segments -->  tokenizer threads (countTokens, in parallel)
+ *     -- in order -->  embedding thread (packs chunks, embedInto() per batch, index.add())
+ * </pre>
+ * The reader cuts the text at paragraph and sentence boundaries into small segments, the
+ * tokenizers count their tokens (splitting any segment that is too long on its own), and the
+ * single embedding thread packs consecutive segments into chunks of at most maxChunkTokens
+ * and embeds them embedBatch at a time. At most maxInFlight segments exist between the reader
+ * and the embedding thread, so the reader blocks when embedding falls behind and memory stays
+ * flat however large the file is. Chunk texts can be written to a JSONL file
+ * ({"id", "offset", "tokens", "text"} per line, id = index row, offset = UTF-8 byte offset of the
+ * chunk's first non-blank character in the file, exact for valid UTF-8).
+ */
+public class IngestionPipeline {
+
+    public static class Options {
+        // Upper bound on tokens per chunk; chunks end at segment boundaries below it
+        public int maxChunkTokens = 256;
+        public int tokenizeThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+        // Chunks per embedInto() call
+        public int embedBatch = 16;
+        // Segments between the reader and the embedding thread
+        public int maxInFlight = 256;
+        // A segment ends at a sentence end once it has minSegmentChars, or at whitespace after maxSegmentChars
+        public int minSegmentChars = 200;
+        public int maxSegmentChars = 2000;
+    }
+
+    public interface ProgressListener {
+        void onProgress(long bytesRead, long bytesTotal, int chunksIndexed);
+    }
+
+    public static class Result {
+        public int chunks;
+        public long tokens;
+        public long bytes;
+        public double ms;
+
+        public String toSummary() {
+            return String.format(Locale.US, "%d chunks, %d tokens from %.1f KB in %.2f s (%.1f chunks/s)",
+                    chunks, tokens, bytes / 1024.0, ms / 1000.0, ms > 0 ? chunks * 1000.0 / ms : 0.0);
+        }
+    }
+
+    private static final class Segment {
+        final long seq;
+        // UTF-8 byte offset of text (after trimming) in the file
+        final long offset;
+        final String text;
+        // Set by the tokenizer: text split so that each piece fits in a chunk, and each piece's UTF-8 byte offset
+        List<String> pieces;
+        int[] tokens;
+        long[] offsets;
+
+        Segment(long seq, long offset, String text) {
+            this.seq = seq;
+            this.offset = offset;
+            this.text = text;
+        }
+    }
+
+    private static final Segment END = new Segment(-1, 0, null);
+    private static final long POLL_MS = 100;
+
+    private final LlamaNative llama;
+    private final VectorIndex index;
+    private final Options options;
+
+    private volatile boolean cancelled;
+    private volatile Throwable failure;
+    private volatile long bytesRead;
+    // Number of segments the reader produced; -1 until the end of the input
+    private volatile long totalSegments = -1;
+
+    private BlockingQueue<Segment> segments;
+    private Semaphore inFlight;
+    private final Map<Long, Segment> ready = new HashMap<>();
+
+    public IngestionPipeline(LlamaNative llama, VectorIndex index, Options options) {
+        this.llama = llama;
+        this.index = index;
+        this.options = options;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Ingests {@code input} into the index and returns once every chunk has been added.
+     * {@code chunksOut} (may be null) receives one JSON line per chunk. Call
+     * VectorIndex.buildHnsw() afterwards if the index should be searched through a graph.
+     * After cancel() it returns early with the chunks added so far.
+     */
+    public Result run(File input, File chunksOut, ProgressListener listener)
+            throws IOException, InterruptedException {
+        int dim = llama.getEmbeddingSize();
+        if (dim <= 0) throw new IllegalStateException("not initialized");
+        if (dim != index.dim()) {
+            throw new IllegalArgumentException("index dim " + index.dim() + " != embedding size " + dim);
+        }
+
+        segments = new ArrayBlockingQueue<>(options.maxInFlight);
+        inFlight = new Semaphore(options.maxInFlight);
+        long t0 = System.nanoTime();
+        long bytesTotal = input.length();
+        Result result = new Result();
+
+        List<Thread> tokenizers = new ArrayList<>();
+        for (int i = 0; i < options.tokenizeThreads; i++) {
+            Thread t = new Thread(this::tokenizeLoop, "ingest-tokenize-" + i);
+            tokenizers.add(t);
+            t.start();
+        }
+
+        Writer chunkWriter = chunksOut != null
+                ? new BufferedWriter(new OutputStreamWriter(new FileOutputStream(chunksOut), StandardCharsets.UTF_8))
+                : null;
+        Thread embedder = new Thread(() -> {
+            try {
+                embedLoop(dim, chunkWriter, result, bytesTotal, listener);
+            } catch (Throwable t) {
+                fail(t);
+            }
+        }, "ingest-embed");
+        embedder.start();
+
+        try {
+            try (Reader reader = new InputStreamReader(new CountingInputStream(new FileInputStream(input)),
+                    StandardCharsets.UTF_8)) {
+                readSegments(reader);
+            } catch (Throwable t) {
+                fail(t);
+            }
+            for (int i = 0; i < tokenizers.size(); i++) {
+                while (!segments.offer(END, POLL_MS, TimeUnit.MILLISECONDS)) {
+                    if (cancelled) break;
+                }
+            }
+            for (Thread t : tokenizers) t.join();
+            embedder.join();
+        } finally {
+            if (chunkWriter != null) chunkWriter.close();
+        }
+
+        if (failure != null) {
+            throw failure instanceof IOException ? (IOException) failure : new IOException(failure.getMessage(), failure);
+        }
+        result.bytes = bytesRead;
+        result.ms = (System.nanoTime() - t0) / 1e6;
+        return result;
+    }
+
+    private void fail(Throwable t) {
+        if (failure == null) failure = t;
+        cancelled = true;
+        synchronized (ready) {
+            ready.notifyAll();
+        }
+    }
+
+    // ---------------- reader ----------------
+
+    private void readSegments(Reader reader) throws IOException, InterruptedException {
+        char[] buf = new char[8192];
+        StringBuilder cur = new StringBuilder();
+        long seq = 0;
+        // UTF-8 bytes before c, and of the first character of cur that trim() keeps (-1 = none yet)
+        long pos = 0;
+        long start = -1;
+        char prev = 0;
+        int n;
+        while (!cancelled && (n = reader.read(buf)) > 0) {
+            for (int i = 0; i < n; i++) {
+                char c = buf[i];
+                cur.append(c);
+                if (start < 0 && c > ' ') start = pos;
+                pos += utf8Length(c);
+                int len = cur.length();
+                // The hard cut waits for the low half of a surrogate pair
+                boolean cut = (c == '\n' && prev == '\n')
+                        || (len >= options.minSegmentChars && isSentenceEnd(c))
+                        || (len >= options.maxSegmentChars && Character.isWhitespace(c))
+                        || (len >= options.maxSegmentChars * 2 && !Character.isHighSurrogate(c));
+                prev = c;
+                if (!cut) continue;
+                if (emit(seq, start, cur)) seq++;
+                cur.setLength(0);
+                start = -1;
+            }
+        }
+        if (emit(seq, start, cur)) seq++;
+
+        totalSegments = seq;
+        synchronized (ready) {
+            ready.notifyAll();
+        }
+    }
+
+    // Bytes of c in UTF-8; each half of a surrogate pair counts 2 of the pair's 4
+    private static int utf8Length(char c) {
+        if (c < 0x80) return 1;
+        if (c < 0x800 || Character.isSurrogate(c)) return 2;
+        return 3;
+    }
+
+    private static boolean isSentenceEnd(char c) {
+        return c == '.' || c == '!' || c == '?' || c == '。' || c == '！' || c == '？';
+    }
+
+    // Queues a non-blank segment, blocking while maxInFlight segments are waiting for the embedder
+    private boolean emit(long seq, long offset, StringBuilder text) throws InterruptedException {
+        String s = text.toString().trim();
+        if (s.isEmpty() || cancelled) return false;
+        while (!inFlight.tryAcquire(POLL_MS, TimeUnit.MILLISECONDS)) {
+            if (cancelled) return false;
+        }
+        segments.put(new Segment(seq, offset, s));
+        return true;
+    }
+
+    // ---------------- tokenizers ----------------
+
+    private void tokenizeLoop() {
+        try {
+            while (true) {
+                Segment s = segments.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                if (s == END || cancelled) return;
+                if (s == null) continue;
+                List<String> pieces = new ArrayList<>();
+                List<Integer> counts = new ArrayList<>();
+                List<Integer> starts = new ArrayList<>();
+                split(s.text, 0, s.text.length(), pieces, counts, starts);
+                s.pieces = pieces;
+                s.tokens = new int[counts.size()];
+                s.offsets = new long[counts.size()];
+                long offset = s.offset;
+                int at = 0;
+                for (int i = 0; i < s.tokens.length; i++) {
+                    s.tokens[i] = counts.get(i);
+                    for (; at < starts.get(i); at++) offset += utf8Length(s.text.charAt(at));
+                    s.offsets[i] = offset;
+                }
+                synchronized (ready) {
+                    ready.put(s.seq, s);
+                    ready.notifyAll();
+                }
+            }
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    // Halves segment[begin, end) at the whitespace nearest the middle until every (trimmed) piece fits in
+    // maxChunkTokens; starts gets the index of each piece in segment
+    private void split(String segment, int begin, int end, List<String> pieces, List<Integer> counts,
+                       List<Integer> starts) {
+        while (begin < end && segment.charAt(begin) <= ' ') begin++;
+        while (end > begin && segment.charAt(end - 1) <= ' ') end--;
+        if (begin == end) return;
+        String text = segment.substring(begin, end);
+        int n = llama.countTokens(text);
+        if (n < 0) throw new IllegalStateException("not initialized");
+        if (n <= options.maxChunkTokens || text.length() < 2) {
+            pieces.add(text);
+            counts.add(n);
+            starts.add(begin);
+            return;
+        }
+        int mid = text.length() / 2;
+        int cut = -1;
+        for (int d = 0; d < mid && cut < 0; d++) {
+            if (Character.isWhitespace(text.charAt(mid + d))) cut = mid + d;
+            else if (Character.isWhitespace(text.charAt(mid - d))) cut = mid - d;
+        }
+        if (cut <= 0) cut = mid;
+        if (Character.isHighSurrogate(text.charAt(cut - 1))) cut++;
+        split(segment, begin, begin + cut, pieces, counts, starts);
+        split(segment, begin + cut, end, pieces, counts, starts);
+    }
+
+    // ---------------- embedder ----------------
+
+    private void embedLoop(int dim, Writer chunkWriter, Result result, long bytesTotal, ProgressListener listener)
+            throws IOException, InterruptedException, JSONException {
+        ByteBuffer buf = ByteBuffer.allocateDirect(options.embedBatch * dim * 4).order(ByteOrder.nativeOrder());
+        List<String> batchTexts = new ArrayList<>(options.embedBatch);
+        List<long[]> batchMeta = new ArrayList<>(options.embedBatch);   // {offset, tokens}
+        int baseId = index.size();
+
+        StringBuilder chunk = new StringBuilder();
+        long chunkOffset = 0;
+        int chunkTokens = 0;
+
+        for (long next = 0; ; next++) {
+            Segment s;
+            synchronized (ready) {
+                while ((s = ready.remove(next)) == null) {
+                    if (cancelled || (totalSegments >= 0 && next >= totalSegments)) break;
+                    ready.wait(POLL_MS);
+                }
+            }
+            if (s == null) break;
+            inFlight.release();
+
+            for (int i = 0; i < s.pieces.size(); i++) {
+                int t = s.tokens[i];
+                if (chunkTokens > 0 && chunkTokens + t > options.maxChunkTokens) {
+                    batchTexts.add(chunk.toString());
+                    batchMeta.add(new long[]{chunkOffset, chunkTokens});
+                    chunk.setLength(0);
+                    chunkTokens = 0;
+                    if (batchTexts.size() == options.embedBatch) {
+                        flush(buf, dim, batchTexts, batchMeta, baseId, chunkWriter, result, bytesTotal, listener);
+                    }
+                }
+                if (chunk.length() == 0) {
+                    chunkOffset = s.offsets[i];
+                } else {
+                    chunk.append(i == 0 ? "\n" : " ");
+                }
+                chunk.append(s.pieces.get(i));
+                chunkTokens += t;
+            }
+        }
+        if (cancelled) return;
+
+        if (chunkTokens > 0) {
+            batchTexts.add(chunk.toString());
+            batchMeta.add(new long[]{chunkOffset, chunkTokens});
+        }
+        if (!batchTexts.isEmpty()) {
+            flush(buf, dim, batchTexts, batchMeta, baseId, chunkWriter, result, bytesTotal, listener);
+        }
+    }
+
+    private void flush(ByteBuffer buf, int dim, List<String> texts, List<long[]> meta, int baseId,
+                       Writer chunkWriter, Result result, long bytesTotal, ProgressListener listener)
+            throws IOException, JSONException {
+        int n = texts.size();
+        String res = llama.embedInto(texts.toArray(new String[n]), buf);
+        if (!"ok".equals(res)) throw new IOException("embed failed: " + res);
+
+        FloatBuffer vectors = buf.asFloatBuffer();
+        vectors.limit(n * dim);
+        index.add(vectors);
+
+        for (int i = 0; i < n; i++) {
+            if (chunkWriter != null) {
+                JSONObject line = new JSONObject();
+                line.put("id", baseId + result.chunks + i);
+                line.put("offset", meta.get(i)[0]);
+                line.put("tokens", meta.get(i)[1]);
+                line.put("text", texts.get(i));
+                chunkWriter.write(line.toString());
+                chunkWriter.write('\n');
+            }
+            result.tokens += meta.get(i)[1];
+        }
+        result.chunks += n;
+        texts.clear();
+        meta.clear();
+
+        if (listener != null) listener.onProgress(bytesRead, bytesTotal, result.chunks);
+    }
+
+    // Counts the bytes the decoder has consumed for progress reporting
+    private final class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) bytesRead++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) bytesRead += n;
+            return n;
+        }
+    }
+}
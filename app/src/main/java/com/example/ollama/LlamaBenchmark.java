@@ -0,0 +1,322 @@
+package com.example.ollama;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+/**
+ * llama-bench style prompt-processing (pp) and text-generation (tg) benchmark.
+ * Runs every combination of the configured matrix through LlamaNative.benchModel()
+ * and writes the results as JSON. A second "decode" section generates real text
+ * through LlamaNative.benchDecoding() once per decoding mode and compares each
+ * mode's tokens/s against plain decoding. An "embed" section measures
+ * LlamaNative.embedInto() throughput in texts/s for each embedding batch size.
+ */
+public class LlamaBenchmark {
+
+    public static class Spec {
+        public int[] promptLengths = {64, 256};
+        public int[] genLengths = {32};
+        public int[] batchSizes = {16, 64};
+        public int[] threadCounts = {2, 4};
+        public int[] parallelSequences = {1};
+        public int repetitions = 3;
+
+        // Decoding-mode comparison; "plain" is the baseline for the vs_plain ratio
+        public String[] decodingModes = {"plain", "lookahead"};
+        public String decodingPrompt =
+                "Write a short story about a robot who learns to paint. Describe the colors it discovers.";
+        public int decodingGenLength = 128;
+
+        // Embedding throughput: embedTexts short sentences split into calls of each batch size
+        public int[] embedBatchSizes = {1, 16, 64};
+        public int embedTexts = 64;
+    }
+
+    public interface ProgressListener {
+        void onProgress(int done, int total, String description);
+    }
+
+    private final LlamaNative llama;
+
+    public LlamaBenchmark(LlamaNative llama) {
+        this.llama = llama;
+    }
+
+    /**
+     * Writes a tiny random-weight llama GGUF to {@code file} so the benchmark can run offline.
+     */
+    public static String createSyntheticModel(LlamaNative llama, File file) {
+        return llama.createSyntheticModel(file.getAbsolutePath(), 64, 2, "q4_0");
+    }
+
+    /**
+     * Runs the matrix against the currently loaded model and writes JSON to {@code output}.
+     * Returns the JSON document that was written.
+     */
+    public JSONObject run(Spec spec, File output, ProgressListener listener) throws IOException, JSONException {
+        JSONArray results = new JSONArray();
+
+        int total = spec.batchSizes.length * spec.threadCounts.length * spec.parallelSequences.length
+                * (spec.promptLengths.length + spec.genLengths.length) + spec.decodingModes.length
+                + spec.embedBatchSizes.length;
+        int done = 0;
+
+        for (int nBatch : spec.batchSizes) {
+            for (int nThreads : spec.threadCounts) {
+                for (int nParallel : spec.parallelSequences) {
+                    for (int nPrompt : spec.promptLengths) {
+                        String desc = "pp" + nPrompt + " b" + nBatch + " t" + nThreads + " pl" + nParallel;
+                        if (listener != null) listener.onProgress(done, total, desc);
+                        double[] samples = llama.benchModel(nPrompt, 0, nParallel, nBatch, nThreads, spec.repetitions);
+                        results.put(toResult("pp", nPrompt, 0, nBatch, nThreads, nParallel,
+                                samples, 0, spec.repetitions, nPrompt));
+                        done++;
+                    }
+                    for (int nGen : spec.genLengths) {
+                        String desc = "tg" + nGen + " b" + nBatch + " t" + nThreads + " pl" + nParallel;
+                        if (listener != null) listener.onProgress(done, total, desc);
+                        double[] samples = llama.benchModel(0, nGen, nParallel, nBatch, nThreads, spec.repetitions);
+                        results.put(toResult("tg", 0, nGen, nBatch, nThreads, nParallel,
+                                samples, spec.repetitions, spec.repetitions, nGen * nParallel));
+                        done++;
+                    }
+                }
+            }
+        }
+
+        double plainTs = 0.0;
+        JSONArray decodeResults = new JSONArray();
+        for (String mode : spec.decodingModes) {
+            if (listener != null) listener.onProgress(done, total, "decode " + mode + " g" + spec.decodingGenLength);
+            double[] samples = llama.benchDecoding(spec.decodingPrompt, mode, spec.decodingGenLength, spec.repetitions);
+            JSONObject r = toDecodeResult(mode, spec.decodingGenLength, samples, spec.repetitions);
+            if ("plain".equals(mode) && r.has("avg_ts")) plainTs = r.getDouble("avg_ts");
+            decodeResults.put(r);
+            done++;
+        }
+        for (int i = 0; i < decodeResults.length(); i++) {
+            JSONObject r = decodeResults.getJSONObject(i);
+            if (plainTs > 0 && r.has("avg_ts")) r.put("vs_plain", r.getDouble("avg_ts") / plainTs);
+            results.put(r);
+        }
+
+        for (int batch : spec.embedBatchSizes) {
+            if (listener != null) listener.onProgress(done, total, "embed b" + batch);
+            results.put(toEmbedResult(batch, spec.embedTexts, runEmbed(batch, spec.embedTexts, spec.repetitions)));
+            done++;
+        }
+        if (listener != null) listener.onProgress(done, total, "done");
+
+        JSONObject doc = new JSONObject();
+        doc.put("model", new JSONObject(llama.getModelInfo()));
+        doc.put("repetitions", spec.repetitions);
+        doc.put("results", results);
+
+        try (FileWriter writer = new FileWriter(output)) {
+            writer.write(doc.toString(2));
+        }
+        return doc;
+    }
+
+    private static JSONObject toResult(String test, int nPrompt, int nGen, int nBatch, int nThreads,
+                                       int nParallel, double[] samples, int offset, int count,
+                                       int tokensPerSample) throws JSONException {
+        JSONObject r = new JSONObject();
+        r.put("test", test);
+        r.put("n_prompt", nPrompt);
+        r.put("n_gen", nGen);
+        r.put("n_batch", nBatch);
+        r.put("n_threads", nThreads);
+        r.put("n_parallel", nParallel);
+
+        if (samples == null) {
+            r.put("error", "benchModel failed");
+            return r;
+        }
+
+        JSONArray samplesNs = new JSONArray();
+        JSONArray samplesTs = new JSONArray();
+        double[] ns = new double[count];
+        double[] ts = new double[count];
+        for (int i = 0; i < count; i++) {
+            double ms = samples[offset + i];
+            ns[i] = ms * 1e6;
+            ts[i] = ms > 0 ? tokensPerSample * 1000.0 / ms : 0.0;
+            samplesNs.put((long) ns[i]);
+            samplesTs.put(ts[i]);
+        }
+
+        r.put("avg_ns", (long) mean(ns));
+        r.put("stddev_ns", (long) stddev(ns));
+        r.put("avg_ts", mean(ts));
+        r.put("stddev_ts", stddev(ts));
+        r.put("samples_ns", samplesNs);
+        r.put("samples_ts", samplesTs);
+        return r;
+    }
+
+    // samples holds {decode ms, generated tokens, decode steps} per repetition
+    private static JSONObject toDecodeResult(String mode, int nGen, double[] samples, int count)
+            throws JSONException {
+        JSONObject r = new JSONObject();
+        r.put("test", "decode");
+        r.put("mode", mode);
+        r.put("n_gen", nGen);
+
+        if (samples == null) {
+            r.put("error", "benchDecoding failed");
+            return r;
+        }
+
+        JSONArray samplesTs = new JSONArray();
+        double[] ts = new double[count];
+        double tokens = 0.0;
+        double steps = 0.0;
+        for (int i = 0; i < count; i++) {
+            double ms = samples[i * 3];
+            ts[i] = ms > 0 ? samples[i * 3 + 1] * 1000.0 / ms : 0.0;
+            tokens += samples[i * 3 + 1];
+            steps += samples[i * 3 + 2];
+            samplesTs.put(ts[i]);
+        }
+
+        r.put("avg_ts", mean(ts));
+        r.put("stddev_ts", stddev(ts));
+        r.put("tokens_per_step", steps > 0 ? tokens / steps : 0.0);
+        r.put("samples_ts", samplesTs);
+        return r;
+    }
+
+    // Embeds nTexts texts in calls of batch texts, nReps times after one warmup call.
+    // Returns the wall time in ms of each repetition, or null on failure
+    private double[] runEmbed(int batch, int nTexts, int nReps) {
+        int dim = llama.getEmbeddingSize();
+        if (dim <= 0 || batch <= 0) return null;
+
+        String[] texts = new String[nTexts];
+        for (int i = 0; i < nTexts; i++) {
+            texts[i] = "Sentence number " + i + " about painting robots and the colors they discover.";
+        }
+        ByteBuffer out = ByteBuffer.allocateDirect(batch * dim * 4)
+                .order(ByteOrder.nativeOrder());
+
+        String[] chunk = new String[batch];
+        System.arraycopy(texts, 0, chunk, 0, Math.min(batch, nTexts));
+        if (!"ok".equals(llama.embedInto(chunk, out))) return null;
+
+        double[] ms = new double[nReps];
+        for (int rep = 0; rep < nReps; rep++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < nTexts; i += batch) {
+                int n = Math.min(batch, nTexts - i);
+                if (chunk.length != n) chunk = new String[n];
+                System.arraycopy(texts, i, chunk, 0, n);
+                if (!"ok".equals(llama.embedInto(chunk, out))) return null;
+            }
+            ms[rep] = (System.nanoTime() - t0) / 1e6;
+        }
+        return ms;
+    }
+
+    private static JSONObject toEmbedResult(int batch, int nTexts, double[] samples) throws JSONException {
+        JSONObject r = new JSONObject();
+        r.put("test", "embed");
+        r.put("n_batch", batch);
+        r.put("n_texts", nTexts);
+
+        if (samples == null) {
+            r.put("error", "embed failed");
+            return r;
+        }
+
+        JSONArray samplesTs = new JSONArray();
+        double[] ts = new double[samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            ts[i] = samples[i] > 0 ? nTexts * 1000.0 / samples[i] : 0.0;
+            samplesTs.put(ts[i]);
+        }
+        r.put("avg_texts_s", mean(ts));
+        r.put("stddev_texts_s", stddev(ts));
+        r.put("samples_texts_s", samplesTs);
+        return r;
+    }
+
+    static double mean(double[] v) {
+        if (v.length == 0) return 0.0;
+        double sum = 0.0;
+        for (double x : v) sum += x;
+        return sum / v.length;
+    }
+
+    // Sample standard deviation, as reported by llama-bench
+    static double stddev(double[] v) {
+        if (v.length <= 1) return 0.0;
+        double m = mean(v);
+        double sq = 0.0;
+        for (double x : v) sq += (x - m) * (x - m);
+        return Math.sqrt(sq / (v.length - 1));
+    }
+
+    /**
+     * One line per result, e.g. "pp256 b64 t4 pl1: 123.45 ± 1.20 t/s"
+     * or "decode lookahead g128: 14.20 ± 0.30 t/s, 1.85 tok/step, 1.32x vs plain"
+     * or "embed b16 x64: 210.50 ± 3.10 texts/s".
+     */
+    public static String summarize(JSONObject doc) throws JSONException {
+        StringBuilder sb = new StringBuilder();
+        JSONArray results = doc.getJSONArray("results");
+        for (int i = 0; i < results.length(); i++) {
+            JSONObject r = results.getJSONObject(i);
+            String test = r.getString("test");
+            if ("decode".equals(test)) {
+                sb.append("decode ").append(r.getString("mode"))
+                  .append(" g").append(r.getInt("n_gen")).append(": ");
+                if (r.has("error")) {
+                    sb.append(r.getString("error"));
+                } else {
+                    sb.append(String.format(Locale.US, "%.2f ± %.2f t/s, %.2f tok/step",
+                            r.getDouble("avg_ts"), r.getDouble("stddev_ts"), r.getDouble("tokens_per_step")));
+                    if (r.has("vs_plain")) {
+                        sb.append(String.format(Locale.US, ", %.2fx vs plain", r.getDouble("vs_plain")));
+                    }
+                }
+                sb.append('\n');
+                continue;
+            }
+            if ("embed".equals(test)) {
+                sb.append("embed b").append(r.getInt("n_batch"))
+                  .append(" x").append(r.getInt("n_texts")).append(": ");
+                if (r.has("error")) {
+                    sb.append(r.getString("error"));
+                } else {
+                    sb.append(String.format(Locale.US, "%.2f ± %.2f texts/s",
+                            r.getDouble("avg_texts_s"), r.getDouble("stddev_texts_s")));
+                }
+                sb.append('\n');
+                continue;
+            }
+            int n = "pp".equals(test) ? r.getInt("n_prompt") : r.getInt("n_gen");
+            sb.append(test).append(n)
+              .append(" b").append(r.getInt("n_batch"))
+              .append(" t").append(r.getInt("n_threads"))
+              .append(" pl").append(r.getInt("n_parallel"))
+              .append(": ");
+            if (r.has("error")) {
+                sb.append(r.getString("error"));
+            } else {
+                sb.append(String.format(Locale.US, "%.2f ± %.2f t/s",
+                        r.getDouble("avg_ts"), r.getDouble("stddev_ts")));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
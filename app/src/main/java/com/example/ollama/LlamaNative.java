@@ -2,6 +2,11 @@ package com.example.ollama;
 
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
 public class LlamaNative {
 
     private static final String TAG = "LlamaNative";
@@ -10,14 +15,212 @@ public class LlamaNative {
         System.loadLibrary("llama_jni");
     }
 
+    // Sampling, grammar, prompt prefix and prompt cache reuse are global on the native side. Whoever sets them for
+    // a generate holds this from the first setter until the generate returns (or submitParallel() has taken its
+    // copy) and sets every one it relies on, so the app, BatchJob and ApiEndpoints never generate with each other's
+    // settings (ApiEndpoints leaves prompt cache reuse on between its requests)
+    public static final Object GENERATION_LOCK = new Object();
+
     public native String download(String url, String path);
     public native String init(String modelPath);
+    // Context length, threads, batch size, KV cache types for K and V ("f16", "q8_0", "q4_0") and flash attention,
+    // applied by the next init(). A quantized V cache needs flash attention. Returns "ok" or an error message
+    public native String setContextParameters(int nCtx, int nThreads, int nBatch, String typeK, String typeV,
+                                              boolean flashAttn);
     public native String generate(String prompt);
+    // Same as generate() but also returns per-request performance statistics
+    public native GenerationResult generateWithStats(String prompt);
+    // Same as generateWithStats() but hands the output to onToken() while it is generated
+    public native GenerationResult generateStreaming(String prompt);
     public native void free();
 
     // 新しく追加したネイティブ: JNI 側のログファイルパスを設定する
     public native void setLogPath(String path);
+
+    // Rotates the log once it reaches maxBytes: path -> path.1 -> ... -> path.keepFiles, the oldest is deleted.
+    // maxBytes <= 0 lets the log grow without limit (defaults: 4 MiB, 3 files)
+    public native void setLogRotation(long maxBytes, int keepFiles);
     
+    // llama-bench style run on the loaded model.
+    // Returns per-repetition wall times in ms: [pp x nReps, tg x nReps], or null on failure
+    public native double[] benchModel(int nPrompt, int nGen, int nParallel, int nBatch, int nThreads, int nReps);
+
+    // Generates up to nGen tokens for prompt nReps times with the given decoding mode (after one warmup run)
+    // and returns {decode ms, generated tokens, decode steps} per repetition, or null on failure.
+    // The configured decoding mode is restored afterwards
+    public native double[] benchDecoding(String prompt, String mode, int nGen, int nReps);
+
+    // Summary of the loaded model as a JSON string ("{}" if none)
+    public native String getModelInfo();
+
+    // CPU backend chosen during init() as a JSON string:
+    // {"variant", "dynamic", "rejected", "features" (compiled-in ISA), "hwcaps" (detected on this device)}
+    public native String getCpuBackendInfo();
+
+    // Persistent thread pools that init() attaches to the context, one for prefill (batches of 2+ tokens) and one
+    // for decode. CPUs are "" (the performance cores: the fastest clusters by cpu_capacity / max frequency that
+    // cover the thread count), "all" or a list such as "4-7". priority: -1 low, 0 unchanged, 1 above normal,
+    // 2 high (thread nice 10 / - / -5 / -10); poll: how long idle workers spin before sleeping, 0-100.
+    // Applied by the next init() (parallel slots: their next context); enabled = false uses llama.cpp's default
+    // threading. Returns "ok" or an error message
+    public native String setThreadPoolParameters(boolean enabled, String decodeCpus, String prefillCpus,
+                                                 int priority, int decodePoll, int prefillPoll);
+
+    // Detected CPUs and the current thread pools as JSON: {"enabled", "priority", "threads",
+    // "cores": [{"cpu", "capacity"}], "performance": [...], "decode"/"prefill": {"active", "cpus" ([] = any), "poll"},
+    // "parallel": {"decode", "prefill"}}
+    public native String getThreadPoolInfo();
+
+    // Frees memory for onTrimMemory (see MemoryShedder), each stage including the ones below it:
+    // 1 caches (prompt prefix tokens, grammar, KV reuse, embedding context, idle parallel slots), 2 draft model and
+    // the context recreated at half its length (>= 512), 3 the context (recreated by the next generate), 4 the model.
+    // Waits for a running generate. Returns JSON: {"stage", "released": [...], "freed_bytes", "n_ctx", "model_loaded"}
+    public native String shedMemory(int stage);
+
+    // Writes a tiny random-weight llama GGUF (weightType: f32, f16, q8_0, q4_0)
+    public native String createSyntheticModel(String path, int nEmbd, int nLayer, String weightType);
+
+    // Decoding mode for generate(): "plain", "draft" (speculative decoding with a draft model)
+    // "lookup" (speculative decoding with drafts copied from n-grams of the prompt and output)
+    // or "lookahead" (Jacobi lookahead decoding with an n-gram pool, no draft model)
+    public native void setDecodingMode(String mode);
+
+    // Draft model for "draft" mode; loaded lazily on the next draft-mode generate.
+    // nDraftMax/nDraftMin bound the draft length, pMin is the draft model's minimum token probability
+    public native void setDraftModel(String path, int nDraftMax, int nDraftMin, float pMin);
+
+    // "lookup" mode: longest n-gram matched against the history (1-4) and maximum draft length per step
+    public native void setLookupParameters(int ngramSize, int nDraftMax);
+
+    // "lookahead" mode: Jacobi window W, n-gram size N (3-8) and verification candidates per step G.
+    // Clamped so that W + G + 1 <= 64; the context is recreated with W + G + 1 sequences on the next generate
+    public native void setLookaheadParameters(int window, int ngramSize, int maxCandidates);
+
+    // What generate() does when the KV cache fills: stop with stopReason "ctx_limit" (enabled = false), or
+    // keep the first nKeep tokens (-1 = the whole prompt), drop the next nDiscard (0 = half of the rest)
+    // and slide the remainder down, so generation continues at constant memory until max tokens / EOS
+    public native void setContextShift(boolean enabled, int nKeep, int nDiscard);
+
+    // Constrains generate() output with a GBNF grammar or a JSON schema (pass "" for the other; both "" clears).
+    // Returns "ok" or an error message; generation stops with stopReason "grammar" once the structure is complete
+    public native String setGrammar(String grammar, String jsonSchema);
+
+    // Chat template embedded in the loaded model (tokenizer.chat_template), or null if none / not loaded
+    public native String getChatTemplate();
+
+    // Renders a system message (omitted if empty) and a user message with a chat template, ending with the
+    // assistant prefix. template is a Jinja template as returned by getChatTemplate() or the name of a llama.cpp
+    // built-in template ("chatml", "llama3", ...). Needs no model; returns null if llama.cpp does not know the template
+    public native String applyChatTemplate(String template, String systemPrompt, String userInput);
+
+    // Renders a whole conversation (roles[i] is "system", "user" or "assistant", contents[i] its text) like
+    // applyChatTemplate(), ending with the assistant prefix. Returns null if the template is not known
+    public native String applyChatMessages(String template, String[] roles, String[] contents);
+
+    // Start of the prompt that is the same for every generate() (e.g. the system part of the chat template).
+    // Its token ids are cached up to its last special token, so prompts starting with it only tokenize the rest
+    public native void setPromptPrefix(String prefix);
+
+    // Tokenizer calls below only read the vocabulary: they do not wait for a running generate()/embed(),
+    // so several threads can tokenize in parallel. addSpecial adds BOS/EOS as the model expects;
+    // parseSpecial reads special-token markup such as "<|im_start|>" as one token (generate() uses
+    // addSpecial = false, parseSpecial = true on the templated prompt)
+
+    // Number of tokens in text (-1 if no model)
+    public native int countTokens(String text, boolean addSpecial, boolean parseSpecial);
+
+    // Number of tokens in text, without BOS/EOS and treating special-token markup as plain text (-1 if no model)
+    public int countTokens(String text) {
+        return countTokens(text, false, false);
+    }
+
+    // Writes token ids into out (a direct IntBuffer in native byte order, from index 0 regardless of position)
+    // and returns how many were written; if out is too small nothing is written and -(needed) is returned.
+    // Throws RuntimeException if no model is loaded
+    public native int tokenize(String text, boolean addSpecial, boolean parseSpecial, IntBuffer out);
+
+    // Text of the first count ids in tokens (a direct IntBuffer); unparseSpecial renders special tokens as text.
+    // A multi-byte character cut at either end becomes U+FFFD
+    public native String detokenize(IntBuffer tokens, int count, boolean unparseSpecial);
+
+    // Context length of the current model context in tokens (prompt + output of one generate())
+    public native int getContextSize();
+
+    // Direct IntBuffer for tokenize()/detokenize()
+    public static IntBuffer allocateTokens(int capacity) {
+        return ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    // Token ids of text as a direct IntBuffer with limit = token count
+    public IntBuffer tokenize(String text, boolean addSpecial, boolean parseSpecial) {
+        IntBuffer out = allocateTokens(Math.max(16, text.length() / 2));
+        int n = tokenize(text, addSpecial, parseSpecial, out);
+        if (n < 0) {
+            out = allocateTokens(-n);
+            n = tokenize(text, addSpecial, parseSpecial, out);
+        }
+        out.limit(n);
+        return out;
+    }
+
+    // Embedding pooling ("auto" uses the model's pooling, or mean if it has none; "mean", "cls", "last")
+    // and the maximum tokens packed into one decode (also the per-text truncation length)
+    public native void setEmbeddingParameters(String pooling, int nBatch);
+
+    // Embedding dimension of the loaded model (0 if none)
+    public native int getEmbeddingSize();
+
+    // Writes L2-normalized embeddings of texts into out, a direct buffer in native byte order holding
+    // texts.length * getEmbeddingSize() floats (row i = texts[i]). Returns "ok" or an error message
+    public native String embedInto(String[] texts, ByteBuffer out);
+
+    // Batched embeddings as one direct FloatBuffer of texts.length rows of getEmbeddingSize() floats
+    public FloatBuffer embed(String[] texts) {
+        int dim = getEmbeddingSize();
+        if (dim <= 0) {
+            throw new IllegalStateException("not initialized");
+        }
+        ByteBuffer out = ByteBuffer.allocateDirect(texts.length * dim * 4).order(ByteOrder.nativeOrder());
+        String res = embedInto(texts, out);
+        if (!"ok".equals(res)) {
+            throw new IllegalStateException(res);
+        }
+        return out.asFloatBuffer();
+    }
+
+    // Default for setSampling()'s maxTokens
+    public static final int DEFAULT_MAX_TOKENS = 1024;
+
+    // Temperature, top-p, top-k, the most tokens one generate() produces and the sampler seed (-1 = random)
+    public native void setSampling(float temp, float topP, int topK, int maxTokens, int seed);
+
+    // When enabled, generate() keeps the KV cache of the leading tokens it shares with the previous prompt
+    // and prefills only the rest (stats.promptReusedTokens). Off by default; not used in lookahead mode
+    public native void setPromptCacheReuse(boolean enabled);
+
+    // Parallel slots: several submitParallel() requests decoded together, each in its own sequence of a separate
+    // context of nSlots * nCtxPerSlot tokens (nCtxPerSlot <= 0 = the context length). Every decode step
+    // carries the next token of each generating request plus prompt chunks of newly admitted ones.
+    // Returns "ok", or an error while parallel requests are running
+    public native String setParallelSlots(int nSlots, int nCtxPerSlot);
+
+    // Queues prompt for a parallel slot with the current setSampling()/setParameters()/setGrammar() settings
+    // and returns its id at once. Every id must be passed to awaitParallel()
+    public native long submitParallel(String prompt);
+
+    // Waits for a submitParallel() request, handing its output to onToken() on this thread as it is generated,
+    // and returns its result (stats.slot, stats.batchedSequences). Other requests keep decoding meanwhile
+    public native GenerationResult awaitParallel(long id);
+
+    // Runtime limits for thermal / battery governing (see InferenceGovernor), read between decode steps so they
+    // also change a running generate or parallel slots: at most nThreads threads, prompt chunks of at most
+    // nBatch tokens and at least minTokenMs per generated token. 0 = no limit (the setContextParameters values)
+    public native void setRuntimeLimits(int nThreads, int nBatch, float minTokenMs);
+
+    // Current limits and measurements as JSON: {"threads", "batch", "min_token_ms", "token_ms" (recent decode time
+    // per generated token, without pacing), "paced_ms" (total time spent pacing)}
+    public native String getRuntimeLimits();
+
     // Set sampling parameters
     public native void setParameters(
         int penaltyLastN, float penaltyRepeat, float penaltyFreq, float penaltyPresent,
@@ -30,6 +233,19 @@ public class LlamaNative {
         String drySequenceBreakers
     );
 
+    // Called from native code on the generate()/generateWithStats() thread after each prefill batch:
+    // done of total prompt tokens processed. Runs while the inference lock is held, so it must not call
+    // back into generate(); post to the UI thread instead. Does nothing unless overridden
+    public void onPrefillProgress(int done, int total) {
+    }
+
+    // Called from native code on the generateStreaming() / awaitParallel() thread with the next piece of output,
+    // always whole UTF-8 characters. Return false to stop generation with stopReason "cancelled". During
+    // generateStreaming() it runs while the inference lock is held, like onPrefillProgress()
+    public boolean onToken(String text) {
+        return true;
+    }
+
     // Called from native code to deliver download progress (0-100)
     // Implement UI dispatching here if needed (e.g. post to main thread)
     public void onDownloadProgress(int percent) {
@@ -0,0 +1,141 @@
+package com.example.ollama;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pages backwards through a log and its rotated generations (log, log.1, log.2, ...), newest text first.
+ * Each page maps only its own window of the file, so showing the tail of a large log costs the same as
+ * showing a small one. Pages start on a line boundary when the window holds one.
+ * The files are opened up front, so a rotation while paging does not skip or repeat text; lines written
+ * after open() are not included. Not thread-safe.
+ */
+public class LogPager implements Closeable {
+
+    public static final int DEFAULT_PAGE_BYTES = 64 << 10;
+
+    /** Text of [start, end) in file. */
+    public static class Page {
+        public final File file;
+        public final long start;
+        public final long end;
+        public final String text;
+
+        Page(File file, long start, long end, String text) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+            this.text = text;
+        }
+    }
+
+    private final List<File> files = new ArrayList<>();
+    private final List<RandomAccessFile> handles = new ArrayList<>();
+    private final List<Long> sizes = new ArrayList<>();
+    private final int pageBytes;
+
+    // File being paged (index into files, newest first) and where the last returned page started in it
+    private int current;
+    private long position;
+
+    private LogPager(int pageBytes) {
+        this.pageBytes = pageBytes;
+    }
+
+    /**
+     * Opens log and up to keepFiles rotated generations next to it that exist. Missing files are skipped.
+     */
+    public static LogPager open(File log, int keepFiles, int pageBytes) throws IOException {
+        LogPager pager = new LogPager(Math.max(256, pageBytes));
+        try {
+            for (int i = 0; i <= keepFiles; i++) {
+                File f = i == 0 ? log : new File(log.getPath() + "." + i);
+                if (!f.isFile()) continue;
+                RandomAccessFile raf = new RandomAccessFile(f, "r");
+                pager.files.add(f);
+                pager.handles.add(raf);
+                pager.sizes.add(raf.length());
+            }
+        } catch (IOException e) {
+            pager.close();
+            throw e;
+        }
+        pager.current = 0;
+        pager.position = pager.sizes.isEmpty() ? 0 : pager.sizes.get(0);
+        return pager;
+    }
+
+    public static LogPager open(File log, int keepFiles) throws IOException {
+        return open(log, keepFiles, DEFAULT_PAGE_BYTES);
+    }
+
+    // Bytes in all opened files
+    public long totalBytes() {
+        long total = 0;
+        for (long size : sizes) total += size;
+        return total;
+    }
+
+    public boolean hasPrevious() {
+        skipExhausted();
+        return current < files.size();
+    }
+
+    /**
+     * The page just before the previous one (the tail of the newest file on the first call),
+     * or null at the start of the oldest file.
+     */
+    public Page previous() throws IOException {
+        if (!hasPrevious()) return null;
+
+        long end = position;
+        long start = Math.max(0, end - pageBytes);
+        FileChannel channel = handles.get(current).getChannel();
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        int len = (int) (end - start);
+
+        int skip = 0;
+        if (start > 0) {
+            // Start after the first newline; a window inside one long line only skips a cut UTF-8 sequence
+            while (skip < len && map.get(skip) != '\n') skip++;
+            if (skip + 1 < len) {
+                skip++;
+            } else {
+                skip = 0;
+                while (skip < len && (map.get(skip) & 0xC0) == 0x80) skip++;
+            }
+        }
+        byte[] bytes = new byte[len - skip];
+        map.position(skip);
+        map.get(bytes);
+
+        position = start + skip;
+        return new Page(files.get(current), position, end, new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    // Moves on to the next older file once the current one has been read back to its start
+    private void skipExhausted() {
+        while (current < files.size() && position <= 0) {
+            current++;
+            if (current < files.size()) position = sizes.get(current);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (RandomAccessFile raf : handles) {
+            try {
+                raf.close();
+            } catch (IOException ignored) {
+            }
+        }
+        handles.clear();
+    }
+}
@@ -1,17 +1,21 @@
 package com.example.ollama;
 
 import android.app.Activity;
+import android.app.ActivityManager;
+import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.Toast;
 import android.view.Gravity;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -19,26 +23,62 @@ import java.io.StringWriter;
 import android.widget.EditText;
 import android.widget.Button;
 
+import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MainActivity extends Activity {
 
     private static final String TAG = "MainActivity";
     private static final int REQUEST_SETTINGS = 1;
+
+    // Tokens kept free for the response when checking the prompt budget. generate() itself stops
+    // with "ctx_limit" once prompt + output reach the context size minus CONTEXT_MARGIN_TOKENS
+    static final int RESPONSE_RESERVE_TOKENS = 256;
+    static final int CONTEXT_MARGIN_TOKENS = 32;
+    private static final long TOKEN_COUNT_DELAY_MS = 150;
+
+    // ollama.log is rotated at LOG_MAX_BYTES into LOG_KEEP_FILES older generations. The viewer shows
+    // LogPager pages and keeps at most LOG_VIEW_MAX_PAGES of them in the TextView
+    private static final String LOG_FILE_NAME = "ollama.log";
+    private static final long LOG_MAX_BYTES = 4L << 20;
+    private static final int LOG_KEEP_FILES = 3;
+    private static final int LOG_VIEW_MAX_PAGES = 4;
+
+    // Batch job files in the external files dir (see BatchJob for the formats)
+    private static final String BATCH_INPUT_NAME = "batch.jsonl";
+    private static final String BATCH_OUTPUT_NAME = "batch-results.jsonl";
+
+    // Ollama's default port, so existing clients find the API server without configuration
+    private static final int API_SERVER_PORT = 11434;
+    // Requests the API server generates at once in parallel slots of API_SERVER_SLOT_CTX tokens each
+    private static final int API_SERVER_SLOTS = 2;
+    private static final int API_SERVER_SLOT_CTX = 2048;
     
     private TextView logView;           // log view (append-only)
     private ScrollView logScrollView;
     private TextView outputView;
     private ScrollView outputScrollView;
+    private TextView statsView;
 
     private EditText promptInput;
+    private TextView tokenCountView;
     private Button sendButton;
     private Button settingsButton;
     private Button initModelButton;
     private Button viewLogButton;
     private Button clearLogButton;
+    private Button benchButton;
+    private Button batchButton;
+    private Button serverButton;
 
     // Llama native instance (field so callbacks can update UI)
     private LlamaNative llama;
@@ -47,9 +87,39 @@ public class MainActivity extends Activity {
     private ConfigurationManager configManager;
     private ConfigurationManager.Configuration currentConfig;
 
+    // Log viewer: pager over ollama.log and its generations while outputView shows the log (UI thread only)
+    private LogPager logPager;
+    private boolean logPageLoading;
+    private final ArrayDeque<Integer> logPageLengths = new ArrayDeque<>();
+
+    // Running batch job (null if none); the Batch button cancels it
+    private volatile BatchJob batchJob;
+
+    // Local API server (null if stopped); the Server button starts and stops it
+    private ApiServer apiServer;
+    private ApiEndpoints apiEndpoints;
+
+    // Adapts threads, prompt chunks and token pacing to the thermal and battery state while the activity exists
+    private InferenceGovernor governor;
+    // Frees caches, context and finally the model when the system asks to trim memory
+    private MemoryShedder memoryShedder;
+
     // Model tracking
     private volatile boolean modelLoaded = false;
     private String currentModelPath = null;
+    // {USER_INPUT} template for currentConfig and the loaded model's chat template (see refreshPromptTemplate)
+    private volatile String promptTemplate;
+
+    // Live token count: debounced on the UI thread, counted on a background thread
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService tokenCounter = Executors.newSingleThreadExecutor();
+    private final Runnable tokenCountTask = this::updateTokenCount;
+    private int tokenCountRequest = 0;
+    private int tokenCountDefaultColor;
+    // Java-side vocabulary of currentModelPath, used for counting while the model is freed or
+    // re-initializing. Only touched on the tokenCounter thread
+    private GgufTokenizer offlineTokenizer;
+    private String offlineTokenizerPath;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -72,33 +142,73 @@ public class MainActivity extends Activity {
         logScrollView = findViewById(R.id.logScrollView);
         outputView = findViewById(R.id.outputView);
         outputScrollView = findViewById(R.id.outputScrollView);
+        statsView = findViewById(R.id.statsView);
         promptInput = findViewById(R.id.promptInput);
+        tokenCountView = findViewById(R.id.tokenCountView);
+        tokenCountDefaultColor = tokenCountView.getCurrentTextColor();
         sendButton = findViewById(R.id.sendButton);
         settingsButton = findViewById(R.id.settingsButton);
         initModelButton = findViewById(R.id.initModelButton);
         viewLogButton = findViewById(R.id.viewLogButton);
         clearLogButton = findViewById(R.id.clearLogButton);
+        benchButton = findViewById(R.id.benchButton);
+        batchButton = findViewById(R.id.batchButton);
+        serverButton = findViewById(R.id.serverButton);
 
         appendMessage("UI ready.");
 
         // Instantiate LlamaNative
-        llama = new LlamaNative();
+        llama = new LlamaNative() {
+            @Override
+            public void onPrefillProgress(final int done, final int total) {
+                // Long prompts take several batches; show how far the prefill is before the first token
+                runOnUiThread(() -> statsView.setText("Prompt " + done + " / " + total + " tokens"));
+            }
+        };
 
         // Set JNI log path (external files dir)
-        File logFile = new File(getExternalFilesDir(null), "ollama.log");
+        File logFile = new File(getExternalFilesDir(null), LOG_FILE_NAME);
         final String logPath = logFile.getAbsolutePath();
         try {
+            llama.setLogRotation(LOG_MAX_BYTES, LOG_KEEP_FILES);
             llama.setLogPath(logPath);
             appendMessage("Set JNI log path: " + logPath);
         } catch (Throwable t) {
             appendMessage("Failed to call setLogPath(): " + t.getMessage());
         }
+        refreshPromptTemplate();
+        startGovernor();
+        startMemoryShedder();
 
         // Set up button listeners
         settingsButton.setOnClickListener(v -> openSettings());
         initModelButton.setOnClickListener(v -> reinitializeModel());
         viewLogButton.setOnClickListener(v -> viewLogFile());
         clearLogButton.setOnClickListener(v -> clearLogFile());
+        benchButton.setOnClickListener(v -> runBenchmark());
+        batchButton.setOnClickListener(v -> runBatchJob());
+        serverButton.setOnClickListener(v -> toggleApiServer());
+        outputScrollView.setOnScrollChangeListener((v, x, y, oldX, oldY) -> {
+            // Scrolled to the top of the log: load the page before it
+            if (y == 0 && logPager != null) {
+                loadPreviousLogPage();
+            }
+        });
+
+        promptInput.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                scheduleTokenCount();
+            }
+        });
 
         // Send button behavior
         sendButton.setOnClickListener(v -> {
@@ -112,49 +222,37 @@ public class MainActivity extends Activity {
                 return;
             }
 
-            // Set parameters before generating
-            if (currentConfig != null) {
-                try {
-                    llama.setParameters(
-                        currentConfig.penaltyLastN,
-                        (float)currentConfig.penaltyRepeat,
-                        (float)currentConfig.penaltyFreq,
-                        (float)currentConfig.penaltyPresent,
-                        currentConfig.mirostat,
-                        (float)currentConfig.mirostatTau,
-                        (float)currentConfig.mirostatEta,
-                        (float)currentConfig.minP,
-                        (float)currentConfig.typicalP,
-                        (float)currentConfig.dynatempRange,
-                        (float)currentConfig.dynatempExponent,
-                        (float)currentConfig.xtcProbability,
-                        (float)currentConfig.xtcThreshold,
-                        (float)currentConfig.topNSigma,
-                        (float)currentConfig.dryMultiplier,
-                        (float)currentConfig.dryBase,
-                        currentConfig.dryAllowedLength,
-                        currentConfig.dryPenaltyLastN,
-                        currentConfig.drySequenceBreakers
-                    );
-                } catch (Throwable t) {
-                    Log.e(TAG, "Failed to set parameters", t);
-                    appendMessage("Warning: Failed to set parameters: " + t.getMessage());
-                }
-            }
-
             // Apply prompt template
-            final String chatPrompt = applyPromptTemplate(userPrompt);
+            final String template = promptTemplate;
+            final String chatPrompt = applyPromptTemplate(template, userPrompt);
 
             appendMessage("Running generate...");
+            closeLogPager();
             outputView.setText("");
+            statsView.setText("");
             new Thread(() -> {
-                String gen = null;
                 try {
-                    gen = llama.generate(chatPrompt);
-                    final String finalGen = gen;
+                    final String fitted = fitPromptToBudget(userPrompt, chatPrompt);
+                    if (fitted == null) {
+                        return;
+                    }
+                    final GenerationResult result;
+                    // The API server and batch jobs set their own parameters in between, so set ours with the generate
+                    synchronized (LlamaNative.GENERATION_LOCK) {
+                        applyGenerationParameters();
+                        // The system part of the template is tokenized once and reused while it stays the same
+                        llama.setPromptPrefix(promptPrefix(template));
+                        // The API server turns KV reuse on for its conversations; the prompt box prefills in full
+                        llama.setPromptCacheReuse(false);
+                        result = llama.generateWithStats(fitted);
+                    }
                     runOnUiThread(() -> {
-                        appendMessage("generate() returned.");
-                        outputView.setText(finalGen);
+                        appendMessage("generate() returned (" + result.stopReason + ").");
+                        outputView.setText(result.text);
+                        if (result.stats != null) {
+                            statsView.setText(result.stats.toSummary());
+                            appendMessage("Stats: " + result.stats.toSummary());
+                        }
                     });
                 } catch (Throwable t) {
                     appendException("generate() threw", t);
@@ -164,6 +262,89 @@ public class MainActivity extends Activity {
         });
     }
     
+    // Pushes currentConfig's sampler, decoding mode and grammar settings to the native side; call with
+    // LlamaNative.GENERATION_LOCK held, on a worker thread (it waits for a running API generate)
+    private void applyGenerationParameters() {
+        if (currentConfig != null) {
+            try {
+                llama.setParameters(
+                    currentConfig.penaltyLastN,
+                    (float)currentConfig.penaltyRepeat,
+                    (float)currentConfig.penaltyFreq,
+                    (float)currentConfig.penaltyPresent,
+                    currentConfig.mirostat,
+                    (float)currentConfig.mirostatTau,
+                    (float)currentConfig.mirostatEta,
+                    (float)currentConfig.minP,
+                    (float)currentConfig.typicalP,
+                    (float)currentConfig.dynatempRange,
+                    (float)currentConfig.dynatempExponent,
+                    (float)currentConfig.xtcProbability,
+                    (float)currentConfig.xtcThreshold,
+                    (float)currentConfig.topNSigma,
+                    (float)currentConfig.dryMultiplier,
+                    (float)currentConfig.dryBase,
+                    currentConfig.dryAllowedLength,
+                    currentConfig.dryPenaltyLastN,
+                    currentConfig.drySequenceBreakers
+                );
+                currentConfig.applySampling(llama);
+                currentConfig.applyDecodingParameters(llama);
+                String grammarResult = currentConfig.applyGrammar(llama);
+                if (!"ok".equals(grammarResult)) {
+                    appendMessage("Warning: grammar ignored: " + grammarResult);
+                }
+            } catch (Throwable t) {
+                Log.e(TAG, "Failed to set parameters", t);
+                appendMessage("Warning: Failed to set parameters: " + t.getMessage());
+            }
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        uiHandler.removeCallbacks(tokenCountTask);
+        tokenCounter.shutdownNow();
+        stopApiServer();
+        if (governor != null) governor.close();
+        if (memoryShedder != null) memoryShedder.close();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (memoryShedder != null) memoryShedder.onTrimMemory(level);
+    }
+
+    private void startMemoryShedder() {
+        memoryShedder = new MemoryShedder(llama);
+        memoryShedder.setListener(result -> {
+            appendMessage("Memory: " + result);
+            if (!result.modelLoaded) {
+                runOnUiThread(() -> {
+                    if (!modelLoaded) return;
+                    modelLoaded = false;
+                    updateServedModel();
+                    sendButton.setEnabled(false);
+                    scheduleTokenCount();
+                    appendMessage("Model unloaded to free memory: press Re-init Model to load it again");
+                });
+            }
+        });
+    }
+
+    private void startGovernor() {
+        InferenceGovernor.Options options = new InferenceGovernor.Options();
+        if (currentConfig != null) {
+            options.threads = currentConfig.nThreads;
+            options.batch = currentConfig.nBatch;
+        }
+        governor = new InferenceGovernor(llama, new AndroidDeviceProbe(this), options);
+        governor.setListener((limits, state) -> appendMessage("Governor: " + limits + " (" + state + ")"));
+        governor.start();
+    }
+
     private void openSettings() {
         Intent intent = new Intent(this, SettingsActivity.class);
         if (currentConfig != null) {
@@ -177,10 +358,17 @@ public class MainActivity extends Activity {
         super.onActivityResult(requestCode, resultCode, data);
         if (requestCode == REQUEST_SETTINGS && resultCode == RESULT_OK && data != null) {
             String configName = data.getStringExtra(SettingsActivity.EXTRA_CONFIG_NAME);
+            ConfigurationManager.ConfigurationDiff diff = null;
             if (configName != null) {
                 try {
+                    ConfigurationManager.Configuration previous = currentConfig;
                     currentConfig = configManager.loadConfiguration(configName);
-                    appendMessage("Loaded configuration: " + configName);
+                    diff = ConfigurationManager.diff(previous, currentConfig);
+                    appendMessage("Loaded configuration: " + configName + " (" + diff + ")");
+                    if (governor != null) governor.setConfigured(currentConfig.nThreads, currentConfig.nBatch);
+                    if (diff.has(ConfigurationManager.ChangeScope.PROMPT)) {
+                        refreshPromptTemplate();
+                    }
                 } catch (IOException | JSONException e) {
                     Log.e(TAG, "Failed to load configuration", e);
                     appendMessage("Failed to load configuration: " + e.getMessage());
@@ -190,11 +378,26 @@ public class MainActivity extends Activity {
             // Check if a model was loaded in Settings
             String modelPath = data.getStringExtra(SettingsActivity.EXTRA_MODEL_PATH);
             boolean wasModelLoaded = data.getBooleanExtra(SettingsActivity.EXTRA_MODEL_LOADED, false);
+            if (!wasModelLoaded && modelLoaded && diff != null) {
+                // Sampler and prompt changes apply on the next send; only context-level changes need init() again
+                if (diff.isContextOnly()) {
+                    appendMessage("Context settings changed, re-initializing the model");
+                    reinitializeModel();
+                } else if (diff.getScope() == ConfigurationManager.ChangeScope.MODEL) {
+                    appendMessage("Model URL changed: load the new model in Settings");
+                }
+            }
             if (modelPath != null && wasModelLoaded) {
                 currentModelPath = modelPath;
                 modelLoaded = true;
+                updateServedModel();
+                refreshPromptTemplate();
                 sendButton.setEnabled(true);
+                scheduleTokenCount();
                 appendMessage("Model loaded from Settings: " + new File(modelPath).getName());
+                appendMessage("CPU backend: " + describeCpuBackend());
+                appendMessage("Thread pools: " + describeThreadPools());
+                appendMessage("KV cache: " + describeKvCache(llama));
             }
         }
     }
@@ -212,7 +415,10 @@ public class MainActivity extends Activity {
                 runOnUiThread(() -> {
                     appendMessage("Model freed.");
                     modelLoaded = false;
+                    updateServedModel();
+                    refreshPromptTemplate();
                     sendButton.setEnabled(false);
+                    scheduleTokenCount();
                 });
                 
                 // Small delay to ensure cleanup
@@ -220,14 +426,26 @@ public class MainActivity extends Activity {
                 
                 // Re-initialize
                 appendMessage("Re-initializing model...");
-                String initResult = llama.init(currentModelPath);
+                String initResult = checkMemory(MainActivity.this, currentModelPath, currentConfig);
+                if (initResult == null) {
+                    initResult = currentConfig.applyContextParameters(llama);
+                }
+                if ("ok".equals(initResult)) {
+                    initResult = llama.init(currentModelPath);
+                }
                 
                 final String finalInitResult = initResult;
                 runOnUiThread(() -> {
                     appendMessage("init() returned: " + finalInitResult);
                     if ("ok".equals(finalInitResult)) {
                         modelLoaded = true;
+                        updateServedModel();
+                        refreshPromptTemplate();
                         sendButton.setEnabled(true);
+                        scheduleTokenCount();
+                        appendMessage("CPU backend: " + describeCpuBackend());
+                        appendMessage("Thread pools: " + describeThreadPools());
+                        appendMessage("KV cache: " + describeKvCache(llama));
                         showToast("Model re-initialized successfully");
                     } else {
                         showToast("Model re-initialization failed: " + finalInitResult);
@@ -240,35 +458,267 @@ public class MainActivity extends Activity {
         }).start();
     }
     
+    private void runBenchmark() {
+        benchButton.setEnabled(false);
+        sendButton.setEnabled(false);
+        appendMessage("Running benchmark...");
+        new Thread(() -> {
+            // Without a loaded model, benchmark a tiny synthetic one so this works offline
+            final boolean useSynthetic = !modelLoaded;
+            try {
+                if (useSynthetic) {
+                    File synthetic = new File(getCacheDir(), "bench-synthetic.gguf");
+                    String created = LlamaBenchmark.createSyntheticModel(llama, synthetic);
+                    if (!"ok".equals(created)) {
+                        appendMessage("Synthetic model creation failed: " + created);
+                        return;
+                    }
+                    String initResult = llama.init(synthetic.getAbsolutePath());
+                    if (!"ok".equals(initResult)) {
+                        appendMessage("Synthetic model init failed: " + initResult);
+                        return;
+                    }
+                    appendMessage("Benchmarking synthetic model: " + synthetic.getName());
+                }
+
+                File out = new File(getExternalFilesDir(null), "bench.json");
+                LlamaBenchmark bench = new LlamaBenchmark(llama);
+                JSONObject doc = bench.run(new LlamaBenchmark.Spec(), out,
+                        (done, total, desc) -> appendMessage("bench " + done + "/" + total + ": " + desc));
+                appendMessage(LlamaBenchmark.summarize(doc));
+                appendMessage("Benchmark results written to " + out.getAbsolutePath());
+
+                File indexOut = new File(getExternalFilesDir(null), "index-bench.json");
+                JSONObject indexDoc = new VectorIndexBenchmark().run(new VectorIndexBenchmark.Spec(), getCacheDir(),
+                        indexOut, (done, total, desc) -> appendMessage("index bench " + done + "/" + total + ": " + desc));
+                appendMessage(VectorIndexBenchmark.summarize(indexDoc));
+                appendMessage("Index benchmark results written to " + indexOut.getAbsolutePath());
+            } catch (Throwable t) {
+                appendException("Benchmark error", t);
+            } finally {
+                if (useSynthetic) {
+                    llama.free();
+                }
+                runOnUiThread(() -> {
+                    benchButton.setEnabled(true);
+                    sendButton.setEnabled(modelLoaded);
+                });
+            }
+        }).start();
+    }
+
+    // Starts or stops the Ollama/OpenAI compatible API on 127.0.0.1:11434. It serves the loaded model while
+    // this activity exists and uses the current configuration's sampling as defaults
+    private void toggleApiServer() {
+        if (apiServer != null) {
+            stopApiServer();
+            serverButton.setText("Server");
+            appendMessage("API server stopped");
+            return;
+        }
+        ApiEndpoints.Options options = new ApiEndpoints.Options();
+        if (currentConfig != null) {
+            options.temperature = (float) currentConfig.temp;
+            options.topP = (float) currentConfig.topP;
+            options.topK = currentConfig.topK;
+        }
+        options.parallelSlots = API_SERVER_SLOTS;
+        options.slotContextSize = API_SERVER_SLOT_CTX;
+        final ApiEndpoints endpoints = new ApiEndpoints(options);
+        final ApiServer server = new ApiServer(API_SERVER_PORT, endpoints, new ApiServer.Options());
+        apiEndpoints = endpoints;
+        apiServer = server;
+        updateServedModel();
+        serverButton.setText("Stop Server");
+        new Thread(() -> {
+            try {
+                server.start();
+                appendMessage("API server listening on http://127.0.0.1:" + server.getPort()
+                        + (modelLoaded ? "" : " (no model loaded yet)"));
+            } catch (IOException e) {
+                appendMessage("API server failed to start: " + e.getMessage());
+                runOnUiThread(() -> {
+                    if (apiServer == server) {
+                        stopApiServer();
+                        serverButton.setText("Server");
+                    }
+                });
+            }
+        }).start();
+    }
+
+    private void stopApiServer() {
+        final ApiServer server = apiServer;
+        final ApiEndpoints endpoints = apiEndpoints;
+        apiServer = null;
+        apiEndpoints = null;
+        if (server == null) return;
+        // close() waits for the event loop and the running generation
+        new Thread(() -> {
+            server.close();
+            endpoints.close();
+        }).start();
+    }
+
+    private void updateServedModel() {
+        if (apiEndpoints != null) {
+            apiEndpoints.setModel(modelLoaded && currentModelPath != null ? new File(currentModelPath) : null);
+        }
+    }
+
+    // Answers batch.jsonl into batch-results.jsonl with the current configuration, continuing an
+    // interrupted run; pressing the button again stops after the prompt being generated
+    private void runBatchJob() {
+        BatchJob running = batchJob;
+        if (running != null) {
+            running.cancel();
+            appendMessage("Stopping batch job after the current prompt...");
+            return;
+        }
+        if (!modelLoaded) {
+            showToast("Model not loaded yet. Please load a model in Settings.");
+            return;
+        }
+        final File input = new File(getExternalFilesDir(null), BATCH_INPUT_NAME);
+        final File output = new File(getExternalFilesDir(null), BATCH_OUTPUT_NAME);
+        if (!input.isFile()) {
+            appendMessage("No batch input: put one {\"prompt\": ...} JSON object per line in " + input.getAbsolutePath());
+            return;
+        }
+
+        BatchJob.Options options = new BatchJob.Options();
+        // The file is put there before the button is pressed, so a missing final newline is not a partial line
+        options.finalRun = true;
+        if (currentConfig != null) {
+            String chat = currentConfig.chatTemplate;
+            options.chatTemplate = ConfigurationManager.Configuration.CHAT_TEMPLATE_MODEL.equals(chat) ? null
+                    : ConfigurationManager.Configuration.CHAT_TEMPLATE_CUSTOM.equals(chat) || chat == null ? "" : chat;
+            options.promptTemplate = currentConfig.promptTemplate;
+            options.systemPrompt = currentConfig.systemPrompt != null ? currentConfig.systemPrompt : "";
+            options.temperature = (float) currentConfig.temp;
+            options.topP = (float) currentConfig.topP;
+            options.topK = currentConfig.topK;
+            options.grammar = currentConfig.grammar != null ? currentConfig.grammar : "";
+            options.jsonSchema = currentConfig.jsonSchema != null ? currentConfig.jsonSchema : "";
+        }
+        final BatchJob job = new BatchJob(llama, options);
+        batchJob = job;
+        batchButton.setText("Stop");
+        sendButton.setEnabled(false);
+        benchButton.setEnabled(false);
+        appendMessage("Running batch job: " + input.getName() + " -> " + output.getName());
+        new Thread(() -> {
+            try {
+                // Penalties and decoding mode come from the configuration; BatchJob sets the rest per line
+                synchronized (LlamaNative.GENERATION_LOCK) {
+                    applyGenerationParameters();
+                }
+                BatchJob.Result result = job.run(input, output, (res, totals) -> appendMessage(
+                        "batch line " + res.optInt("line") + " (" + res.opt("id") + "): "
+                        + (res.has("error") ? "error: " + res.optString("error") : res.optString("stop_reason"))));
+                appendMessage("Batch job " + (result.prompts > 0 ? "done: " : "had no prompts: ") + result.toSummary());
+                appendMessage("Batch results written to " + output.getAbsolutePath());
+            } catch (Throwable t) {
+                appendException("Batch job error", t);
+            } finally {
+                batchJob = null;
+                runOnUiThread(() -> {
+                    batchButton.setText("Batch");
+                    sendButton.setEnabled(modelLoaded);
+                    benchButton.setEnabled(true);
+                });
+            }
+        }).start();
+    }
+
+    // Shows the tail of the log; older pages are loaded as the output is scrolled to the top
     private void viewLogFile() {
-        File logFile = new File(getExternalFilesDir(null), "ollama.log");
+        File logFile = new File(getExternalFilesDir(null), LOG_FILE_NAME);
         if (!logFile.exists()) {
             showToast("Log file does not exist");
             return;
         }
+        if (logPageLoading) {
+            return;
+        }
+        closeLogPager();
+        logPageLoading = true;
         
         new Thread(() -> {
-            StringBuilder sb = new StringBuilder();
-            try (BufferedReader reader = new BufferedReader(new FileReader(logFile))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    sb.append(line).append("\n");
-                }
-                
-                final String logContent = sb.toString();
+            try {
+                final LogPager pager = LogPager.open(logFile, LOG_KEEP_FILES);
+                final LogPager.Page page = pager.previous();
                 runOnUiThread(() -> {
-                    outputView.setText(logContent);
-                    showToast("Displaying log file content");
+                    logPageLoading = false;
+                    logPager = pager;
+                    logPageLengths.clear();
+                    String text = page != null ? page.text : "";
+                    logPageLengths.addFirst(text.length());
+                    outputView.setText(text);
+                    outputScrollView.post(() -> outputScrollView.fullScroll(ScrollView.FOCUS_DOWN));
+                    showToast(String.format(Locale.US, "Log tail (%.1f MB in total), scroll up for older lines",
+                            pager.totalBytes() / (1024.0 * 1024.0)));
                 });
             } catch (IOException e) {
                 Log.e(TAG, "Failed to read log file", e);
+                runOnUiThread(() -> logPageLoading = false);
                 showToast("Failed to read log file: " + e.getMessage());
             }
         }).start();
     }
     
+    // Prepends the page before the shown text and keeps the view on the line that was at the top.
+    // The newest pages are dropped beyond LOG_VIEW_MAX_PAGES so the TextView stays small
+    private void loadPreviousLogPage() {
+        final LogPager pager = logPager;
+        if (logPageLoading || pager == null || !pager.hasPrevious()) {
+            return;
+        }
+        logPageLoading = true;
+        new Thread(() -> {
+            LogPager.Page page;
+            try {
+                page = pager.previous();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read log page", e);
+                page = null;
+            }
+            final LogPager.Page result = page;
+            runOnUiThread(() -> {
+                logPageLoading = false;
+                if (result == null || logPager != pager) {
+                    return;
+                }
+                StringBuilder sb = new StringBuilder(result.text).append(outputView.getText());
+                logPageLengths.addFirst(result.text.length());
+                while (logPageLengths.size() > LOG_VIEW_MAX_PAGES) {
+                    sb.setLength(sb.length() - logPageLengths.removeLast());
+                }
+                outputView.setText(sb);
+                outputView.post(() -> {
+                    if (outputView.getLayout() == null) return;
+                    int line = outputView.getLayout().getLineForOffset(result.text.length());
+                    outputScrollView.scrollTo(0, outputView.getLayout().getLineTop(line));
+                });
+            });
+        }).start();
+    }
+    
+    private void closeLogPager() {
+        if (logPager != null) {
+            logPager.close();
+            logPager = null;
+        }
+        logPageLengths.clear();
+    }
+    
     private void clearLogFile() {
-        File logFile = new File(getExternalFilesDir(null), "ollama.log");
+        closeLogPager();
+        File logFile = new File(getExternalFilesDir(null), LOG_FILE_NAME);
+        // Rotated generations go too; the native logger keeps appending to the emptied file
+        for (int i = 1; i <= LOG_KEEP_FILES; i++) {
+            new File(logFile.getPath() + "." + i).delete();
+        }
         try (FileWriter writer = new FileWriter(logFile, false)) {
             writer.write(""); // Clear the file
             appendMessage("Log file cleared.");
@@ -281,7 +731,24 @@ public class MainActivity extends Activity {
     }
     
     private String applyPromptTemplate(String userInput) {
-        if (currentConfig == null || currentConfig.promptTemplate == null || currentConfig.promptTemplate.isEmpty()) {
+        return applyPromptTemplate(promptTemplate, userInput);
+    }
+
+    // Resolves the template once per configuration / model change, so sending and counting do not re-render it
+    private void refreshPromptTemplate() {
+        String modelTemplate = modelLoaded ? llama.getChatTemplate() : null;
+        promptTemplate = currentConfig != null ? currentConfig.resolvePromptTemplate(llama, modelTemplate) : null;
+    }
+
+    // Part of a {USER_INPUT} template in front of the user input, the same for every request ("" if none)
+    static String promptPrefix(String promptTemplate) {
+        if (promptTemplate == null) return "";
+        int at = promptTemplate.indexOf(ConfigurationManager.Configuration.USER_INPUT);
+        return at >= 0 ? promptTemplate.substring(0, at) : "";
+    }
+
+    static String applyPromptTemplate(String promptTemplate, String userInput) {
+        if (promptTemplate == null || promptTemplate.isEmpty()) {
             // Fallback to default template
             return "<|system|>\n"
                  + "You are a helpful assistant.\n"
@@ -289,7 +756,184 @@ public class MainActivity extends Activity {
                  + userInput + "\n"
                  + "<|assistant|>\n";
         }
-        return currentConfig.promptTemplate.replace("{USER_INPUT}", userInput);
+        return promptTemplate.replace(ConfigurationManager.Configuration.USER_INPUT, userInput);
+    }
+
+    // Prompt tokens allowed so that at least RESPONSE_RESERVE_TOKENS remain for the response
+    private int promptTokenBudget() {
+        return llama.getContextSize() - CONTEXT_MARGIN_TOKENS - RESPONSE_RESERVE_TOKENS;
+    }
+
+    private void scheduleTokenCount() {
+        uiHandler.removeCallbacks(tokenCountTask);
+        uiHandler.postDelayed(tokenCountTask, TOKEN_COUNT_DELAY_MS);
+    }
+
+    // Shows "N / budget tokens" for the templated prompt, counted the way generate() tokenizes it
+    private void updateTokenCount() {
+        final int request = ++tokenCountRequest;
+        final String userPrompt = promptInput.getText().toString();
+        final boolean loaded = modelLoaded;
+        final String modelPath = currentModelPath;
+        if (userPrompt.isEmpty() || (!loaded && modelPath == null)) {
+            tokenCountView.setText("");
+            return;
+        }
+        final String chatPrompt = applyPromptTemplate(userPrompt);
+        final ConfigurationManager.Configuration config = currentConfig;
+        tokenCounter.execute(() -> {
+            final int n = loaded ? llama.countTokens(chatPrompt, false, true) : countTokensOffline(modelPath, config, userPrompt);
+            final int budget = promptTokenBudget();
+            runOnUiThread(() -> {
+                // A newer edit already scheduled its own count
+                if (request != tokenCountRequest) return;
+                if (n < 0) {
+                    tokenCountView.setText("");
+                    return;
+                }
+                tokenCountView.setText(String.format(Locale.US, "%d / %d tokens", n, budget));
+                tokenCountView.setTextColor(n > budget ? 0xFFCC0000 : tokenCountDefaultColor);
+            });
+        });
+    }
+
+    // Same count as llama.countTokens(text, false, true) for the templated prompt, from the GGUF vocabulary
+    // and chat template alone; -1 if the file's tokenizer cannot be read. Runs on tokenCounter
+    private int countTokensOffline(String modelPath, ConfigurationManager.Configuration config, String userPrompt) {
+        if (!modelPath.equals(offlineTokenizerPath)) {
+            offlineTokenizerPath = modelPath;
+            offlineTokenizer = null;
+            try {
+                offlineTokenizer = GgufTokenizer.load(new File(modelPath));
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Cannot read tokenizer of " + modelPath, e);
+            }
+        }
+        if (offlineTokenizer == null) return -1;
+        String template = config != null ? config.resolvePromptTemplate(llama, offlineTokenizer.getChatTemplate()) : null;
+        return offlineTokenizer.countTokens(applyPromptTemplate(template, userPrompt), false, true);
+    }
+
+    /**
+     * Returns chatPrompt if it fits promptTokenBudget(), otherwise the template applied to the tail
+     * of userPrompt that fits (dropping the oldest text first), or null if even the bare template
+     * is over budget. Runs on the generation thread.
+     */
+    private String fitPromptToBudget(String userPrompt, String chatPrompt) {
+        final int budget = promptTokenBudget();
+        final int total = llama.countTokens(chatPrompt, false, true);
+        if (total <= budget) {
+            return chatPrompt;
+        }
+
+        IntBuffer tokens = llama.tokenize(userPrompt, false, true);
+        int keep = tokens.limit() - (total - budget);
+        // Token boundaries can merge differently after the cut, so re-count and shrink until it fits
+        for (int attempt = 0; attempt < 4 && keep > 0; attempt++) {
+            tokens.position(tokens.limit() - keep);
+            IntBuffer tail = tokens.slice();
+            String trimmed = llama.detokenize(tail, keep, false);
+            // drop a multi-byte character cut in half at the start
+            while (trimmed.startsWith("\uFFFD")) trimmed = trimmed.substring(1);
+            String candidate = applyPromptTemplate(trimmed);
+            int n = llama.countTokens(candidate, false, true);
+            if (n <= budget) {
+                final String msg = String.format(Locale.US,
+                        "Prompt trimmed from %d to %d tokens (budget %d); the beginning was dropped", total, n, budget);
+                appendMessage(msg);
+                return candidate;
+            }
+            keep -= n - budget;
+        }
+
+        final String msg = String.format(Locale.US,
+                "Prompt rejected: %d tokens does not fit the budget of %d (context %d)", total, budget, llama.getContextSize());
+        appendMessage(msg);
+        showToast(msg);
+        return null;
+    }
+
+    // e.g. "android_armv8.2_2 [NEON ARM_FMA FP16_VA DOTPROD]"
+    private String describeCpuBackend() {
+        try {
+            JSONObject info = new JSONObject(llama.getCpuBackendInfo());
+            StringBuilder sb = new StringBuilder(info.optString("variant", "?"));
+            JSONObject features = info.optJSONObject("features");
+            if (features != null && features.length() > 0) {
+                sb.append(" [");
+                Iterator<String> keys = features.keys();
+                while (keys.hasNext()) {
+                    sb.append(keys.next());
+                    if (keys.hasNext()) sb.append(' ');
+                }
+                sb.append(']');
+            }
+            return sb.toString();
+        } catch (JSONException e) {
+            return "unknown";
+        }
+    }
+
+    // e.g. "4 threads, decode on cpu 4,5,6,7 (poll 50), prefill on cpu 4,5,6,7 (poll 50)"
+    private String describeThreadPools() {
+        try {
+            JSONObject info = new JSONObject(llama.getThreadPoolInfo());
+            JSONObject decode = info.getJSONObject("decode");
+            JSONObject prefill = info.getJSONObject("prefill");
+            if (!decode.optBoolean("active")) return "llama.cpp default threading";
+            return info.optInt("threads") + " threads, decode " + describePool(decode)
+                    + ", prefill " + describePool(prefill);
+        } catch (JSONException e) {
+            return "unknown";
+        }
+    }
+
+    private static String describePool(JSONObject pool) {
+        JSONArray cpus = pool.optJSONArray("cpus");
+        StringBuilder sb = new StringBuilder(cpus == null || cpus.length() == 0 ? "on any cpu" : "on cpu ");
+        for (int i = 0; cpus != null && i < cpus.length(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append(cpus.optInt(i));
+        }
+        return sb.append(" (poll ").append(pool.optInt("poll")).append(')').toString();
+    }
+
+    // e.g. "64.0 MiB for 2048 tokens (q8_0/q8_0, flash attention)"
+    static String describeKvCache(LlamaNative llama) {
+        try {
+            JSONObject info = new JSONObject(llama.getModelInfo());
+            return String.format(Locale.US, "%.1f MiB for %d tokens (%s/%s%s)",
+                    info.optLong("kv_bytes") / (1024.0 * 1024.0), info.optInt("n_ctx"),
+                    info.optString("kv_type_k", "?"), info.optString("kv_type_v", "?"),
+                    info.optBoolean("flash_attn") ? ", flash attention" : "");
+        } catch (JSONException e) {
+            return "unknown";
+        }
+    }
+
+    // Memory the app can still take before the low-memory killer steps in (-1 if unknown)
+    static long availableMemory(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am == null) return MemoryPlanner.readMemAvailable();
+        ActivityManager.MemoryInfo info = new ActivityManager.MemoryInfo();
+        am.getMemoryInfo(info);
+        return Math.max(0, info.availMem - info.threshold);
+    }
+
+    // Estimates the memory init() would need for config; returns why loading should not be tried, or null.
+    // Models whose metadata cannot be read are left for init() to reject
+    static String checkMemory(Context context, String modelPath, ConfigurationManager.Configuration config) {
+        MemoryPlanner.Settings settings = new MemoryPlanner.Settings(config.nCtx, config.nBatch,
+                config.kvCacheTypeK, config.kvCacheTypeV, config.flashAttn);
+        try {
+            MemoryPlanner.Plan plan = new MemoryPlanner(new MemoryPlanner.Options())
+                    .plan(new File(modelPath), settings, availableMemory(context));
+            Log.i(TAG, "Memory plan: " + plan);
+            return plan.describeFailure();
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Memory plan unavailable for " + modelPath, e);
+            return null;
+        }
     }
 
     private void appendMessage(final String msg) {
@@ -0,0 +1,230 @@
+package com.example.ollama;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Estimates the RAM a model needs before LlamaNative.init() loads it, so a model that does not fit fails
+ * with a message instead of getting the process low-memory-killed halfway through loading:
+ * <pre>
+ *   weights   the GGUF file size (the model is memory-mapped and every page is touched while generating)
+ *   KV cache  n_layer x nCtx x n_head_kv x (key_length x size(typeK) + value_length x size(typeV))
+ *   compute   4 bytes x n_ubatch x (n_vocab + 2 n_ff + 6 n_embd), plus the n_head x nCtx attention scores
+ *             per token when flash attention is off
+ *   overhead  a fixed allowance for the JNI side, thread stacks and the ggml graph (Options.overheadBytes)
+ * </pre>
+ * The shapes come from the GGUF metadata (GgufMetadata only reads the header, not the weights). Only
+ * usableFraction of the available memory is planned for, the rest absorbs the error of the estimate.
+ * Plan.suggestedCtx is the largest context, in steps of CTX_STEP up to the training context, that fits.
+ */
+public class MemoryPlanner {
+
+    public static final int CTX_STEP = 256;
+
+    private static final long MIB = 1024L * 1024L;
+
+    public static class Options {
+        // Share of the available memory the model may take
+        public double usableFraction = 0.9;
+        public long overheadBytes = 64 * MIB;
+    }
+
+    // Context settings as passed to setContextParameters(), with the same defaults as the native side
+    public static class Settings {
+        public int nCtx = 2048;
+        public int nBatch = 16;
+        public String typeK = "f16";
+        public String typeV = "f16";
+        public boolean flashAttn;
+
+        public Settings() {
+        }
+
+        public Settings(int nCtx, int nBatch, String typeK, String typeV, boolean flashAttn) {
+            this.nCtx = nCtx;
+            this.nBatch = nBatch;
+            this.typeK = typeK;
+            this.typeV = typeV;
+            this.flashAttn = flashAttn;
+        }
+    }
+
+    /** Model dimensions read from GGUF metadata. */
+    public static class ModelShape {
+        public String arch = "";
+        public long fileBytes;
+        public int nLayer;
+        public int nEmbd;
+        public int nHead;
+        public int nFf;
+        public int nVocab;
+        public int nCtxTrain;
+        public int headK;
+        public int headV;
+        // Sum of n_head_kv over the layers (layers without attention count 0)
+        public long kvHeads;
+
+        public static ModelShape read(File gguf) throws IOException {
+            GgufMetadata meta = GgufMetadata.read(gguf);
+            ModelShape s = new ModelShape();
+            s.fileBytes = gguf.length();
+            s.arch = meta.getString("general.architecture", "llama");
+            String p = s.arch + ".";
+            s.nLayer = (int) meta.getLong(p + "block_count", 0);
+            s.nEmbd = (int) meta.getLong(p + "embedding_length", 0);
+            s.nHead = perLayerMax(meta, p + "attention.head_count");
+            s.nFf = perLayerMax(meta, p + "feed_forward_length");
+            s.nCtxTrain = (int) meta.getLong(p + "context_length", 0);
+            long vocab = meta.getArrayLength("tokenizer.ggml.tokens");
+            s.nVocab = (int) (vocab > 0 ? vocab : meta.getLong(p + "vocab_size", 0));
+            int defaultHead = s.nHead > 0 ? s.nEmbd / s.nHead : 0;
+            s.headK = (int) meta.getLong(p + "attention.key_length", defaultHead);
+            s.headV = (int) meta.getLong(p + "attention.value_length", defaultHead);
+            // head_count_kv is a scalar or one value per layer; missing means no GQA
+            int[] perLayer = meta.getIntArray(p + "attention.head_count_kv");
+            if (perLayer != null) {
+                for (int n : perLayer) s.kvHeads += n;
+            } else {
+                s.kvHeads = (long) s.nLayer * meta.getLong(p + "attention.head_count_kv", s.nHead);
+            }
+            return s;
+        }
+
+        private static int perLayerMax(GgufMetadata meta, String key) throws IOException {
+            int[] perLayer = meta.getIntArray(key);
+            if (perLayer == null) return (int) meta.getLong(key, 0);
+            int max = 0;
+            for (int n : perLayer) max = Math.max(max, n);
+            return max;
+        }
+    }
+
+    public static final class Plan {
+        public final long weightsBytes;
+        public final long kvBytes;
+        public final long computeBytes;
+        public final long overheadBytes;
+        // Memory reported available and the part of it planned for (-1 = unknown, every plan fits)
+        public final long availableBytes;
+        public final long budgetBytes;
+        public final int nCtx;
+        // Largest context that fits the budget (0 = not even CTX_STEP tokens fit)
+        public final int suggestedCtx;
+
+        Plan(long weightsBytes, long kvBytes, long computeBytes, long overheadBytes, long availableBytes,
+             long budgetBytes, int nCtx, int suggestedCtx) {
+            this.weightsBytes = weightsBytes;
+            this.kvBytes = kvBytes;
+            this.computeBytes = computeBytes;
+            this.overheadBytes = overheadBytes;
+            this.availableBytes = availableBytes;
+            this.budgetBytes = budgetBytes;
+            this.nCtx = nCtx;
+            this.suggestedCtx = suggestedCtx;
+        }
+
+        public long totalBytes() {
+            return weightsBytes + kvBytes + computeBytes + overheadBytes;
+        }
+
+        public boolean fits() {
+            return availableBytes < 0 || totalBytes() <= budgetBytes;
+        }
+
+        // Why init() should not be called, or null if the plan fits
+        public String describeFailure() {
+            if (fits()) return null;
+            String need = String.format(Locale.US, "Not enough memory: needs %s, %s usable", size(totalBytes()),
+                    size(budgetBytes));
+            if (suggestedCtx > 0) {
+                return need + String.format(Locale.US, "; the largest context that fits is %d tokens", suggestedCtx);
+            }
+            return need + " (the model does not fit at any context length)";
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "weights %s + KV %s (%d tok) + compute %s + overhead %s = %s, %s",
+                    size(weightsBytes), size(kvBytes), nCtx, size(computeBytes), size(overheadBytes),
+                    size(totalBytes()), availableBytes < 0 ? "available memory unknown"
+                            : size(budgetBytes) + " usable, largest safe context " + suggestedCtx);
+        }
+    }
+
+    private final Options options;
+
+    public MemoryPlanner(Options options) {
+        this.options = options;
+    }
+
+    public Plan plan(File gguf, Settings settings, long availableBytes) throws IOException {
+        return plan(ModelShape.read(gguf), settings, availableBytes);
+    }
+
+    public Plan plan(ModelShape shape, Settings settings, long availableBytes) {
+        long budget = availableBytes < 0 ? -1 : (long) (availableBytes * options.usableFraction);
+        long fixed = shape.fileBytes + options.overheadBytes + computeFixedBytes(shape, settings);
+        long perToken = kvBytesPerToken(shape, settings) + computeBytesPerToken(shape, settings);
+
+        int maxCtx = shape.nCtxTrain > 0 ? shape.nCtxTrain : Math.max(settings.nCtx, CTX_STEP);
+        int suggested = maxCtx;
+        if (budget >= 0) {
+            long fitting = perToken > 0 ? (budget - fixed) / perToken : (budget >= fixed ? maxCtx : 0);
+            suggested = (int) Math.min(maxCtx, Math.max(0, fitting / CTX_STEP * CTX_STEP));
+        }
+        return new Plan(shape.fileBytes, kvBytesPerToken(shape, settings) * settings.nCtx,
+                computeFixedBytes(shape, settings) + computeBytesPerToken(shape, settings) * settings.nCtx,
+                options.overheadBytes, availableBytes, budget, settings.nCtx, suggested);
+    }
+
+    // MemAvailable from /proc/meminfo in bytes, -1 if unreadable. On Android prefer ActivityManager.MemoryInfo,
+    // which also knows the low-memory-killer threshold
+    public static long readMemAvailable() {
+        try (BufferedReader r = new BufferedReader(new FileReader("/proc/meminfo"))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.startsWith("MemAvailable:")) {
+                    String[] parts = line.trim().split("\\s+");
+                    return Long.parseLong(parts[1]) * 1024L;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // fall through
+        }
+        return -1;
+    }
+
+    // One K and one V row of every layer; block types are sized over the whole row, as heads can be shorter than a block
+    static long kvBytesPerToken(ModelShape s, Settings settings) {
+        return rowBytes(settings.typeK, s.kvHeads * s.headK) + rowBytes(settings.typeV, s.kvHeads * s.headV);
+    }
+
+    // llama.cpp splits a batch into micro-batches of at most 512 tokens (n_ubatch)
+    private static long computeFixedBytes(ModelShape s, Settings settings) {
+        long ubatch = Math.min(Math.max(1, settings.nBatch), 512);
+        return 4L * ubatch * (s.nVocab + 2L * s.nFf + 6L * s.nEmbd);
+    }
+
+    private static long computeBytesPerToken(ModelShape s, Settings settings) {
+        if (settings.flashAttn) return 0;
+        return 4L * Math.min(Math.max(1, settings.nBatch), 512) * s.nHead;
+    }
+
+    // Bytes of n elements of a KV cache type; block types store 32 elements per block
+    private static long rowBytes(String type, long n) {
+        switch (type == null ? "f16" : type) {
+            case "f32":  return 4 * n;
+            case "q8_0": return (n + 31) / 32 * 34;
+            case "q4_0": return (n + 31) / 32 * 18;
+            default:     return 2 * n;
+        }
+    }
+
+    static String size(long bytes) {
+        if (bytes >= 1024 * MIB) return String.format(Locale.US, "%.2f GiB", bytes / (1024.0 * MIB));
+        return String.format(Locale.US, "%.1f MiB", bytes / (double) MIB);
+    }
+}
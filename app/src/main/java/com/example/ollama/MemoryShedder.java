@@ -0,0 +1,156 @@
+package com.example.ollama;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Frees native memory in stages when Android asks the app to trim (ComponentCallbacks2.onTrimMemory), so
+ * the process gives up caches, then context, then the model, instead of being low-memory-killed as a whole:
+ * <pre>
+ *   stage  onTrimMemory level               releases (and everything of the stages above)
+ *   1      RUNNING_MODERATE, UI_HIDDEN      prompt prefix tokens, grammar cache, KV reuse, embedding context,
+ *                                           idle parallel slots
+ *   2      RUNNING_LOW, BACKGROUND          draft model; the context is recreated at half its length (>= 512)
+ *   3      RUNNING_CRITICAL, MODERATE       the context (recreated at the next generate)
+ *   4      COMPLETE                         the model (init() is needed again)
+ * </pre>
+ * Everything below stage 4 is rebuilt on demand, so later requests only get slower. The shrunk context
+ * stays until the next init(). onTrimMemory() returns at once; the native call waits on a background
+ * thread for a running generate to finish.
+ */
+public class MemoryShedder implements Closeable {
+
+    private static final String TAG = "MemoryShedder";
+
+    // The same values as android.content.ComponentCallbacks2.TRIM_MEMORY_*
+    public static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+    public static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    public static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+    public static final int TRIM_MEMORY_UI_HIDDEN = 20;
+    public static final int TRIM_MEMORY_BACKGROUND = 40;
+    public static final int TRIM_MEMORY_MODERATE = 60;
+    public static final int TRIM_MEMORY_COMPLETE = 80;
+
+    public static final int STAGE_NONE = 0;
+    public static final int STAGE_CACHES = 1;
+    public static final int STAGE_SHRINK_CONTEXT = 2;
+    public static final int STAGE_FREE_CONTEXT = 3;
+    public static final int STAGE_FREE_MODEL = 4;
+
+    public static final class Result {
+        public final int level;
+        public final int stage;
+        // What the native side let go of: "prompt_prefix", "grammar_cache", "kv_reuse", "embedding_context",
+        // "parallel_context", "draft_model", "context_shrunk", "context", "model"
+        public final List<String> released;
+        // KV caches and model weights given back (approximate, compute buffers not counted)
+        public final long freedBytes;
+        // Context length afterwards (0 = no context until the next generate)
+        public final int nCtx;
+        public final boolean modelLoaded;
+
+        Result(int level, int stage, List<String> released, long freedBytes, int nCtx, boolean modelLoaded) {
+            this.level = level;
+            this.stage = stage;
+            this.released = released;
+            this.freedBytes = freedBytes;
+            this.nCtx = nCtx;
+            this.modelLoaded = modelLoaded;
+        }
+
+        static Result parse(int level, String json) throws JSONException {
+            JSONObject o = new JSONObject(json);
+            JSONArray arr = o.getJSONArray("released");
+            List<String> released = new ArrayList<>();
+            for (int i = 0; i < arr.length(); i++) released.add(arr.getString(i));
+            return new Result(level, o.getInt("stage"), released, o.optLong("freed_bytes"), o.optInt("n_ctx"),
+                    o.optBoolean("model_loaded"));
+        }
+
+        @Override
+        public String toString() {
+            // String.join needs API 26 (minSdk is 24) and the host build has no TextUtils
+            StringBuilder names = new StringBuilder();
+            for (String name : released) {
+                if (names.length() > 0) names.append(", ");
+                names.append(name);
+            }
+            return String.format(Locale.US, "trim level %d -> stage %d: %s, %s freed, context %s%s", level, stage,
+                    released.isEmpty() ? "nothing to release" : names,
+                    MemoryPlanner.size(freedBytes), nCtx > 0 ? nCtx + " tok" : "none",
+                    modelLoaded ? "" : ", model unloaded");
+        }
+    }
+
+    public interface Listener {
+        // Called on the shedder thread after each stage
+        void onShed(Result result);
+    }
+
+    private final LlamaNative llama;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "memory-shedder");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile Listener listener;
+
+    public MemoryShedder(LlamaNative llama) {
+        this.llama = llama;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Forward Activity.onTrimMemory() here; returns immediately
+    public void onTrimMemory(int level) {
+        final int stage = stageFor(level);
+        if (stage == STAGE_NONE) return;
+        executor.execute(() -> {
+            try {
+                shed(level, stage);
+            } catch (RuntimeException e) {
+                android.util.Log.w(TAG, "shed failed", e);
+            }
+        });
+    }
+
+    // Releases everything up to stage on the calling thread (blocks while a generate is running)
+    public Result shed(int level, int stage) {
+        Result result;
+        try {
+            result = Result.parse(level, llama.shedMemory(stage));
+        } catch (JSONException e) {
+            throw new IllegalStateException("bad shedMemory result", e);
+        }
+        android.util.Log.i(TAG, result.toString());
+        Listener l = listener;
+        if (l != null) l.onShed(result);
+        return result;
+    }
+
+    public static int stageFor(int level) {
+        if (level >= TRIM_MEMORY_COMPLETE) return STAGE_FREE_MODEL;
+        if (level >= TRIM_MEMORY_MODERATE) return STAGE_FREE_CONTEXT;
+        if (level >= TRIM_MEMORY_BACKGROUND) return STAGE_SHRINK_CONTEXT;
+        if (level >= TRIM_MEMORY_UI_HIDDEN) return STAGE_CACHES;
+        if (level >= TRIM_MEMORY_RUNNING_CRITICAL) return STAGE_FREE_CONTEXT;
+        if (level >= TRIM_MEMORY_RUNNING_LOW) return STAGE_SHRINK_CONTEXT;
+        if (level >= TRIM_MEMORY_RUNNING_MODERATE) return STAGE_CACHES;
+        return STAGE_NONE;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
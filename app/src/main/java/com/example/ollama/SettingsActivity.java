@@ -18,6 +18,7 @@ import org.json.JSONException;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Locale;
 
 import static com.example.ollama.ConfigurationManager.Configuration.DEFAULT_DRY_SEQUENCE_BREAKERS;
 
@@ -38,9 +39,14 @@ public class SettingsActivity extends Activity {
     private EditText nCtxInput;
     private EditText nThreadsInput;
     private EditText nBatchInput;
+    private EditText kvCacheTypeKInput;
+    private EditText kvCacheTypeVInput;
+    private EditText flashAttnInput;
     private EditText tempInput;
     private EditText topPInput;
     private EditText topKInput;
+    private EditText chatTemplateInput;
+    private EditText systemPromptInput;
     private EditText promptTemplateInput;
     private TextView modelFileInfo;
     private ProgressBar modelProgressBar;
@@ -73,6 +79,25 @@ public class SettingsActivity extends Activity {
     private EditText dryPenaltyLastNInput;
     private EditText drySequenceBreakersInput;
     
+    // Decoding parameter inputs
+    private EditText decodingModeInput;
+    private EditText draftModelPathInput;
+    private EditText draftMaxInput;
+    private EditText draftMinInput;
+    private EditText draftPMinInput;
+    private EditText lookupNgramSizeInput;
+    private EditText lookupDraftMaxInput;
+    private EditText lookaheadWindowInput;
+    private EditText lookaheadNgramSizeInput;
+    private EditText lookaheadCandidatesInput;
+    private EditText contextOverflowInput;
+    private EditText contextKeepInput;
+    private EditText contextDiscardInput;
+    
+    // Output constraint inputs
+    private EditText grammarInput;
+    private EditText jsonSchemaInput;
+    
     private ConfigurationManager.Configuration currentConfig;
     private ArrayAdapter<String> configAdapter;
     private String loadedModelPath = null;
@@ -121,9 +146,14 @@ public class SettingsActivity extends Activity {
         nCtxInput = findViewById(R.id.nCtxInput);
         nThreadsInput = findViewById(R.id.nThreadsInput);
         nBatchInput = findViewById(R.id.nBatchInput);
+        kvCacheTypeKInput = findViewById(R.id.kvCacheTypeKInput);
+        kvCacheTypeVInput = findViewById(R.id.kvCacheTypeVInput);
+        flashAttnInput = findViewById(R.id.flashAttnInput);
         tempInput = findViewById(R.id.tempInput);
         topPInput = findViewById(R.id.topPInput);
         topKInput = findViewById(R.id.topKInput);
+        chatTemplateInput = findViewById(R.id.chatTemplateInput);
+        systemPromptInput = findViewById(R.id.systemPromptInput);
         promptTemplateInput = findViewById(R.id.promptTemplateInput);
         modelFileInfo = findViewById(R.id.modelFileInfo);
         modelProgressBar = findViewById(R.id.modelProgressBar);
@@ -156,6 +186,25 @@ public class SettingsActivity extends Activity {
         dryPenaltyLastNInput = findViewById(R.id.dryPenaltyLastNInput);
         drySequenceBreakersInput = findViewById(R.id.drySequenceBreakersInput);
         
+        // Decoding parameter inputs
+        decodingModeInput = findViewById(R.id.decodingModeInput);
+        draftModelPathInput = findViewById(R.id.draftModelPathInput);
+        draftMaxInput = findViewById(R.id.draftMaxInput);
+        draftMinInput = findViewById(R.id.draftMinInput);
+        draftPMinInput = findViewById(R.id.draftPMinInput);
+        lookupNgramSizeInput = findViewById(R.id.lookupNgramSizeInput);
+        lookupDraftMaxInput = findViewById(R.id.lookupDraftMaxInput);
+        lookaheadWindowInput = findViewById(R.id.lookaheadWindowInput);
+        lookaheadNgramSizeInput = findViewById(R.id.lookaheadNgramSizeInput);
+        lookaheadCandidatesInput = findViewById(R.id.lookaheadCandidatesInput);
+        contextOverflowInput = findViewById(R.id.contextOverflowInput);
+        contextKeepInput = findViewById(R.id.contextKeepInput);
+        contextDiscardInput = findViewById(R.id.contextDiscardInput);
+        
+        // Output constraint inputs
+        grammarInput = findViewById(R.id.grammarInput);
+        jsonSchemaInput = findViewById(R.id.jsonSchemaInput);
+        
         Button saveConfigButton = findViewById(R.id.saveConfigButton);
         Button loadConfigButton = findViewById(R.id.loadConfigButton);
         Button deleteConfigButton = findViewById(R.id.deleteConfigButton);
@@ -195,9 +244,14 @@ public class SettingsActivity extends Activity {
         nCtxInput.setText(String.valueOf(config.nCtx));
         nThreadsInput.setText(String.valueOf(config.nThreads));
         nBatchInput.setText(String.valueOf(config.nBatch));
+        kvCacheTypeKInput.setText(config.kvCacheTypeK);
+        kvCacheTypeVInput.setText(config.kvCacheTypeV);
+        flashAttnInput.setText(config.flashAttn ? "on" : "off");
         tempInput.setText(String.valueOf(config.temp));
         topPInput.setText(String.valueOf(config.topP));
         topKInput.setText(String.valueOf(config.topK));
+        chatTemplateInput.setText(config.chatTemplate);
+        systemPromptInput.setText(config.systemPrompt);
         promptTemplateInput.setText(config.promptTemplate);
         
         // Penalty parameters
@@ -226,6 +280,25 @@ public class SettingsActivity extends Activity {
         dryAllowedLengthInput.setText(String.valueOf(config.dryAllowedLength));
         dryPenaltyLastNInput.setText(String.valueOf(config.dryPenaltyLastN));
         drySequenceBreakersInput.setText(config.drySequenceBreakers);
+        
+        // Decoding parameters
+        decodingModeInput.setText(config.decodingMode);
+        draftModelPathInput.setText(config.draftModelPath);
+        draftMaxInput.setText(String.valueOf(config.draftMax));
+        draftMinInput.setText(String.valueOf(config.draftMin));
+        draftPMinInput.setText(String.valueOf(config.draftPMin));
+        lookupNgramSizeInput.setText(String.valueOf(config.lookupNgramSize));
+        lookupDraftMaxInput.setText(String.valueOf(config.lookupDraftMax));
+        lookaheadWindowInput.setText(String.valueOf(config.lookaheadWindow));
+        lookaheadNgramSizeInput.setText(String.valueOf(config.lookaheadNgramSize));
+        lookaheadCandidatesInput.setText(String.valueOf(config.lookaheadCandidates));
+        contextOverflowInput.setText(config.contextOverflow);
+        contextKeepInput.setText(String.valueOf(config.contextKeep));
+        contextDiscardInput.setText(String.valueOf(config.contextDiscard));
+        
+        // Output constraint
+        grammarInput.setText(config.grammar);
+        jsonSchemaInput.setText(config.jsonSchema);
     }
     
     private ConfigurationManager.Configuration getConfigFromUI() {
@@ -256,6 +329,11 @@ public class SettingsActivity extends Activity {
             config.nBatch = 16;
         }
         
+        config.kvCacheTypeK = parseKvCacheType(kvCacheTypeKInput.getText().toString());
+        config.kvCacheTypeV = parseKvCacheType(kvCacheTypeVInput.getText().toString());
+        String flashAttn = flashAttnInput.getText().toString().trim();
+        config.flashAttn = "on".equalsIgnoreCase(flashAttn) || "true".equalsIgnoreCase(flashAttn);
+        
         try {
             config.temp = Double.parseDouble(tempInput.getText().toString());
         } catch (NumberFormatException e) {
@@ -274,9 +352,15 @@ public class SettingsActivity extends Activity {
             config.topK = 40;
         }
         
+        config.chatTemplate = chatTemplateInput.getText().toString().trim();
+        if (config.chatTemplate.isEmpty()) {
+            config.chatTemplate = ConfigurationManager.Configuration.CHAT_TEMPLATE_MODEL;
+        }
+        config.systemPrompt = systemPromptInput.getText().toString();
+        
         config.promptTemplate = promptTemplateInput.getText().toString();
         if (config.promptTemplate.isEmpty()) {
-            config.promptTemplate = "<|system|>\nYou are a helpful assistant.\n<|user|>\n{USER_INPUT}\n<|assistant|>\n";
+            config.promptTemplate = ConfigurationManager.Configuration.DEFAULT_PROMPT_TEMPLATE;
         }
         
         // Penalty parameters
@@ -396,6 +480,83 @@ public class SettingsActivity extends Activity {
             config.drySequenceBreakers = DEFAULT_DRY_SEQUENCE_BREAKERS;
         }
         
+        // Decoding parameters
+        config.decodingMode = decodingModeInput.getText().toString().trim();
+        if (config.decodingMode.isEmpty()) {
+            config.decodingMode = ConfigurationManager.Configuration.DECODING_PLAIN;
+        }
+        
+        config.draftModelPath = draftModelPathInput.getText().toString().trim();
+        
+        try {
+            config.draftMax = Integer.parseInt(draftMaxInput.getText().toString());
+        } catch (NumberFormatException e) {
+            config.draftMax = 16;
+        }
+        
+        try {
+            config.draftMin = Integer.parseInt(draftMinInput.getText().toString());
+        } catch (NumberFormatException e) {
+            config.draftMin = 0;
+        }
+        
+        try {
+            config.draftPMin = Double.parseDouble(draftPMinInput.getText().toString());
+        } catch (NumberFormatException e) {
+            config.draftPMin = 0.75;
+        }
+        
+        try {
+            config.lookupNgramSize = Integer.parseInt(lookupNgramSizeInput.getText().toString());
+        } catch (NumberFormatException e) {
+            config.lookupNgramSize = 3;
+        }
+        
+        try {
+            config.lookupDraftMax = Integer.parseInt(lookupDraftMaxInput.getText().toString());
+        } catch (NumberFormatException e) {
+            config.lookupDraftMax = 10;
+        }
+        
+        try {
+            config.lookaheadWindow = Integer.parseInt(lookaheadWindowInput.getText().toString());
+        } catch (NumberFormatException e) {
+            config.lookaheadWindow = 8;
+        }
+        
+        try {
+            config.lookaheadNgramSize = Integer.parseInt(lookaheadNgramSizeInput.getText().toString());
+        } catch (NumberFormatException e) {
+            config.lookaheadNgramSize = 4;
+        }
+        
+        try {
+            config.lookaheadCandidates = Integer.parseInt(lookaheadCandidatesInput.getText().toString());
+        } catch (NumberFormatException e) {
+            config.lookaheadCandidates = 8;
+        }
+        
+        String overflow = contextOverflowInput.getText().toString().trim();
+        config.contextOverflow = ConfigurationManager.Configuration.CONTEXT_SHIFT.equals(overflow)
+                ? ConfigurationManager.Configuration.CONTEXT_SHIFT
+                : ConfigurationManager.Configuration.CONTEXT_STOP;
+        
+        try {
+            config.contextKeep = Integer.parseInt(contextKeepInput.getText().toString());
+        } catch (NumberFormatException e) {
+            config.contextKeep = -1;
+        }
+        
+        try {
+            config.contextDiscard = Integer.parseInt(contextDiscardInput.getText().toString());
+        } catch (NumberFormatException e) {
+            config.contextDiscard = 0;
+        }
+        
+        // Output constraint
+        config.grammar = grammarInput.getText().toString().trim();
+        config.jsonSchema = jsonSchemaInput.getText().toString().trim();
+        
         return config;
     }
     
@@ -469,6 +630,7 @@ public class SettingsActivity extends Activity {
         
         final File destFile = new File(getFilesDir(), filename);
         final String modelPath = destFile.getAbsolutePath();
+        final ConfigurationManager.Configuration config = getConfigFromUI();
         
         modelFileInfo.setText("Model file: " + filename + " (checking...)");
         modelProgressBar.setProgress(0);
@@ -477,7 +639,7 @@ public class SettingsActivity extends Activity {
         if (destFile.exists() && destFile.length() > 0) {
             modelFileInfo.setText("Model file: " + filename + " (" + destFile.length() + " bytes, exists)");
             showToast("Model file already exists");
-            initModelInBackground(modelPath);
+            initModelInBackground(modelPath, config);
         } else {
             // Download then init
             new Thread(() -> {
@@ -499,12 +661,12 @@ public class SettingsActivity extends Activity {
                 runOnUiThread(() -> modelFileInfo.setText("Model file: " + filename + " (" + f.length() + " bytes, downloaded)"));
                 
                 // init model
-                initModelInBackground(modelPath);
+                initModelInBackground(modelPath, config);
             }).start();
         }
     }
     
-    private void initModelInBackground(final String modelPath) {
+    private void initModelInBackground(final String modelPath, final ConfigurationManager.Configuration config) {
         runOnUiThread(() -> {
             modelFileInfo.setText("Initializing model...");
             modelProgressBar.setProgress(0);
@@ -512,9 +674,24 @@ public class SettingsActivity extends Activity {
         });
         
         new Thread(() -> {
+            // The vocabulary is read in milliseconds, so the template's token cost is known
+            // long before the weights finish loading
+            final String tokenInfo = describeTemplateTokens(modelPath, config);
+            if (tokenInfo != null) {
+                runOnUiThread(() -> modelFileInfo.setText("Initializing model... " + tokenInfo));
+            }
+
             String initResult = null;
             try {
-                initResult = llama.init(modelPath);
+                // Refuse up front when the weights and KV cache would not fit, instead of being killed mid-load
+                initResult = MainActivity.checkMemory(SettingsActivity.this, modelPath, config);
+                // Context size and KV cache layout are fixed when init() creates the context
+                if (initResult == null) {
+                    initResult = config.applyContextParameters(llama);
+                }
+                if ("ok".equals(initResult)) {
+                    initResult = llama.init(modelPath);
+                }
             } catch (Throwable t) {
                 Log.e(TAG, "Model init error", t);
                 runOnUiThread(() -> {
@@ -539,13 +716,13 @@ public class SettingsActivity extends Activity {
             runOnUiThread(() -> {
                 loadedModelPath = modelPath;
                 modelLoadedSuccessfully = true;
-                modelFileInfo.setText("Model loaded: " + (new File(modelPath).getName()));
+                modelFileInfo.setText("Model loaded: " + (new File(modelPath).getName())
+                        + " (KV cache " + MainActivity.describeKvCache(llama) + ")");
                 loadModelButton.setEnabled(true);
                 modelProgressBar.setProgress(100);
                 showToast("Model initialized successfully");
                 
-                // Set parameters after successful model initialization
-                ConfigurationManager.Configuration config = getConfigFromUI();
+                // Set parameters after successful model initialization, from the settings init() was called with
                 try {
                     llama.setParameters(
                         config.penaltyLastN,
@@ -568,6 +745,11 @@ public class SettingsActivity extends Activity {
                         config.dryPenaltyLastN,
                         config.drySequenceBreakers
                     );
+                    config.applyDecodingParameters(llama);
+                    String grammarResult = config.applyGrammar(llama);
+                    if (!"ok".equals(grammarResult)) {
+                        showToast("Grammar error: " + grammarResult);
+                    }
                 } catch (Throwable t) {
                     Log.e(TAG, "Failed to set parameters", t);
                 }
@@ -575,6 +757,33 @@ public class SettingsActivity extends Activity {
         }).start();
     }
     
+    private static String parseKvCacheType(String text) {
+        String type = text.trim().toLowerCase(Locale.US);
+        if (ConfigurationManager.Configuration.KV_Q8_0.equals(type) || ConfigurationManager.Configuration.KV_Q4_0.equals(type)) {
+            return type;
+        }
+        return ConfigurationManager.Configuration.KV_F16;
+    }
+    
+    // e.g. "(model template 41 of 1760 prompt tokens, vocab 32000 llama)", or null if the GGUF has no
+    // tokenizer GgufTokenizer can read
+    private String describeTemplateTokens(String modelPath, ConfigurationManager.Configuration config) {
+        try {
+            GgufTokenizer tokenizer = GgufTokenizer.load(new File(modelPath));
+            String template = config.resolvePromptTemplate(llama, tokenizer.getChatTemplate());
+            int n = tokenizer.countTokens(MainActivity.applyPromptTemplate(template, ""), false, true);
+            int budget = llama.getContextSize() - MainActivity.CONTEXT_MARGIN_TOKENS - MainActivity.RESPONSE_RESERVE_TOKENS;
+            // resolvePromptTemplate falls back to the custom template when the chat template is missing or unknown
+            String kind = template == null || template.equals(config.promptTemplate)
+                    ? ConfigurationManager.Configuration.CHAT_TEMPLATE_CUSTOM : config.chatTemplate;
+            return String.format(Locale.US, "(%s template %d of %d prompt tokens, vocab %d %s)",
+                    kind, n, budget, tokenizer.getVocabSize(), tokenizer.getModelType());
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Cannot read tokenizer of " + modelPath, e);
+            return null;
+        }
+    }
+
     private String extractFilenameFromUrl(String url) {
         if (url == null) return null;
         int q = url.indexOf('?');
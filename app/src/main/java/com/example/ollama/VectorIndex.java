@@ -0,0 +1,93 @@
+package com.example.ollama;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+
+/**
+ * Nearest-neighbour index over embedding vectors, stored in one memory-mapped file.
+ * Vectors are quantized to int8 (per-vector scale) or binary (sign bits) when added,
+ * and queries read the mapped file directly, so the index never lives on the Java heap.
+ * Search is a flat scan, or an HNSW graph walk once buildHnsw() has been called.
+ * Scores are inner products (cosine similarity for normalized vectors); binary indexes
+ * approximate them as 1 - 2 * hamming / dim.
+ */
+public class VectorIndex implements Closeable {
+
+    public static final String QUANT_INT8 = "int8";
+    public static final String QUANT_BINARY = "binary";
+
+    static {
+        System.loadLibrary("llama_jni");
+    }
+
+    // Native VectorIndex*, 0 when closed. Read and written by jni_vector_index.cpp
+    private long handle;
+
+    private VectorIndex() {
+    }
+
+    private synchronized native String nativeCreate(String path, int dim, String quant);
+    private synchronized native String nativeOpen(String path);
+    private synchronized native String nativeAdd(FloatBuffer vectors, int offset, int count);
+    private synchronized native String nativeBuildHnsw(int m, int efConstruction);
+
+    // Writes the top k ids and scores (best first) and returns how many were found, or -1 on bad arguments.
+    // ef > 0 walks the HNSW graph with a candidate list of max(ef, k); ef <= 0 or no graph scans every vector
+    public synchronized native int search(float[] query, int k, int ef, int[] ids, float[] scores);
+
+    public synchronized native int size();
+    public synchronized native int dim();
+    public synchronized native boolean hasGraph();
+    // "int8" or "binary"
+    public synchronized native String quant();
+
+    @Override
+    public synchronized native void close();
+
+    /**
+     * Creates an empty index at {@code file}, replacing any existing file.
+     */
+    public static VectorIndex create(File file, int dim, String quant) throws IOException {
+        VectorIndex index = new VectorIndex();
+        check(index, index.nativeCreate(file.getAbsolutePath(), dim, quant));
+        return index;
+    }
+
+    public static VectorIndex open(File file) throws IOException {
+        VectorIndex index = new VectorIndex();
+        check(index, index.nativeOpen(file.getAbsolutePath()));
+        return index;
+    }
+
+    /**
+     * Quantizes and appends the vectors between position and limit of a direct buffer
+     * (e.g. the result of LlamaNative.embed()). Adding drops an existing HNSW graph;
+     * call buildHnsw() again afterwards.
+     */
+    public void add(FloatBuffer vectors) throws IOException {
+        int dim = dim();
+        if (!vectors.isDirect() || dim <= 0 || vectors.remaining() % dim != 0) {
+            throw new IllegalArgumentException("expected a direct buffer of whole " + dim + "-float vectors");
+        }
+        String res = nativeAdd(vectors, vectors.position(), vectors.remaining() / dim);
+        if (!"ok".equals(res)) throw new IOException(res);
+    }
+
+    /**
+     * Builds the HNSW graph over all vectors and appends it to the file.
+     * m is the out-degree of the upper layers (2m on layer 0); typical values are 16 and 100.
+     */
+    public void buildHnsw(int m, int efConstruction) throws IOException {
+        String res = nativeBuildHnsw(m, efConstruction);
+        if (!"ok".equals(res)) throw new IOException(res);
+    }
+
+    private static void check(VectorIndex index, String res) throws IOException {
+        if (!"ok".equals(res)) {
+            index.close();
+            throw new IOException(res);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.example.ollama;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Build and query latency benchmark for VectorIndex on synthetic clustered unit vectors
+ * (no model needed). For each quantization it times add() and buildHnsw(), then runs the
+ * same queries as a flat scan and through the graph at each efSearch, reporting latency
+ * percentiles and recall@k against an exact float scan.
+ */
+public class VectorIndexBenchmark {
+
+    public static class Spec {
+        public int nVectors = 50000;
+        public int dim = 384;
+        public int nClusters = 256;
+        public String[] quants = {VectorIndex.QUANT_INT8, VectorIndex.QUANT_BINARY};
+        public int hnswM = 16;
+        public int efConstruction = 100;
+        // 0 = flat scan
+        public int[] efSearch = {0, 32, 64, 128};
+        public int nQueries = 200;
+        public int k = 10;
+    }
+
+    private static final int ADD_CHUNK = 1024;
+    private static final long SEED = 1234;
+
+    /**
+     * Runs the benchmark with index files in {@code workDir} (deleted afterwards) and writes
+     * JSON to {@code output}. Returns the JSON document that was written.
+     */
+    public JSONObject run(Spec spec, File workDir, File output, LlamaBenchmark.ProgressListener listener)
+            throws IOException, JSONException {
+        float[][] centroids = new float[spec.nClusters][];
+        Random rng = new Random(SEED);
+        for (int c = 0; c < spec.nClusters; c++) {
+            centroids[c] = normalize(gaussian(rng, spec.dim, 1.0f));
+        }
+        float[][] queries = new float[spec.nQueries][];
+        for (int q = 0; q < spec.nQueries; q++) {
+            queries[q] = vector(centroids, spec.dim, -1 - q);
+        }
+
+        int total = 1 + spec.quants.length * (2 + spec.efSearch.length);
+        int done = 0;
+        if (listener != null) listener.onProgress(done, total, "exact top-" + spec.k);
+        int[][] truth = exactTopK(spec, centroids, queries);
+        done++;
+
+        JSONArray results = new JSONArray();
+        for (String quant : spec.quants) {
+            File file = new File(workDir, "bench-" + quant + ".vidx");
+            try (VectorIndex index = VectorIndex.create(file, spec.dim, quant)) {
+                if (listener != null) listener.onProgress(done, total, quant + " add n" + spec.nVectors);
+                long t0 = System.nanoTime();
+                FloatBuffer chunk = ByteBuffer.allocateDirect(ADD_CHUNK * spec.dim * 4)
+                        .order(ByteOrder.nativeOrder()).asFloatBuffer();
+                for (int i = 0; i < spec.nVectors; i += ADD_CHUNK) {
+                    int n = Math.min(ADD_CHUNK, spec.nVectors - i);
+                    chunk.clear();
+                    for (int j = 0; j < n; j++) chunk.put(vector(centroids, spec.dim, i + j));
+                    chunk.flip();
+                    index.add(chunk);
+                }
+                double addMs = (System.nanoTime() - t0) / 1e6;
+                done++;
+
+                if (listener != null) listener.onProgress(done, total, quant + " hnsw m" + spec.hnswM);
+                t0 = System.nanoTime();
+                index.buildHnsw(spec.hnswM, spec.efConstruction);
+                double hnswMs = (System.nanoTime() - t0) / 1e6;
+                done++;
+
+                JSONObject build = new JSONObject();
+                build.put("test", "build");
+                build.put("quant", quant);
+                build.put("n_vectors", spec.nVectors);
+                build.put("dim", spec.dim);
+                build.put("add_ms", addMs);
+                build.put("hnsw_ms", hnswMs);
+                build.put("hnsw_m", spec.hnswM);
+                build.put("ef_construction", spec.efConstruction);
+                build.put("file_bytes", file.length());
+                results.put(build);
+
+                for (int ef : spec.efSearch) {
+                    String mode = ef > 0 ? "hnsw" : "flat";
+                    if (listener != null) listener.onProgress(done, total, quant + " " + mode + " ef" + ef);
+                    results.put(runQueries(index, spec, queries, truth, quant, ef));
+                    done++;
+                }
+            } finally {
+                file.delete();
+            }
+        }
+        if (listener != null) listener.onProgress(done, total, "done");
+
+        JSONObject doc = new JSONObject();
+        doc.put("n_vectors", spec.nVectors);
+        doc.put("dim", spec.dim);
+        doc.put("n_queries", spec.nQueries);
+        doc.put("k", spec.k);
+        doc.put("results", results);
+
+        try (FileWriter writer = new FileWriter(output)) {
+            writer.write(doc.toString(2));
+        }
+        return doc;
+    }
+
+    private static JSONObject runQueries(VectorIndex index, Spec spec, float[][] queries, int[][] truth,
+                                         String quant, int ef) throws JSONException {
+        int[] ids = new int[spec.k];
+        float[] scores = new float[spec.k];
+
+        // warmup: fault in the mapped pages
+        for (int q = 0; q < Math.min(10, queries.length); q++) index.search(queries[q], spec.k, ef, ids, scores);
+
+        double[] ms = new double[queries.length];
+        int hits = 0;
+        for (int q = 0; q < queries.length; q++) {
+            long t0 = System.nanoTime();
+            int n = index.search(queries[q], spec.k, ef, ids, scores);
+            ms[q] = (System.nanoTime() - t0) / 1e6;
+            for (int i = 0; i < n; i++) {
+                for (int t : truth[q]) {
+                    if (ids[i] == t) {
+                        hits++;
+                        break;
+                    }
+                }
+            }
+        }
+
+        JSONObject r = new JSONObject();
+        r.put("test", "query");
+        r.put("quant", quant);
+        r.put("mode", ef > 0 ? "hnsw" : "flat");
+        r.put("ef", ef);
+        r.put("avg_ms", LlamaBenchmark.mean(ms));
+        double[] sorted = ms.clone();
+        Arrays.sort(sorted);
+        r.put("p50_ms", percentile(sorted, 0.50));
+        r.put("p99_ms", percentile(sorted, 0.99));
+        r.put("recall", queries.length > 0 ? (double) hits / (queries.length * spec.k) : 0.0);
+        return r;
+    }
+
+    // Exact float top-k for every query, regenerating the vectors row by row instead of keeping them
+    private static int[][] exactTopK(Spec spec, float[][] centroids, float[][] queries) {
+        int nq = queries.length;
+        float[][] best = new float[nq][spec.k];
+        int[][] ids = new int[nq][spec.k];
+        for (int q = 0; q < nq; q++) {
+            Arrays.fill(best[q], Float.NEGATIVE_INFINITY);
+            Arrays.fill(ids[q], -1);
+        }
+        for (int i = 0; i < spec.nVectors; i++) {
+            float[] v = vector(centroids, spec.dim, i);
+            for (int q = 0; q < nq; q++) {
+                float s = 0.0f;
+                float[] x = queries[q];
+                for (int d = 0; d < spec.dim; d++) s += x[d] * v[d];
+                // best[q] is kept sorted descending
+                if (s <= best[q][spec.k - 1]) continue;
+                int pos = spec.k - 1;
+                while (pos > 0 && best[q][pos - 1] < s) {
+                    best[q][pos] = best[q][pos - 1];
+                    ids[q][pos] = ids[q][pos - 1];
+                    pos--;
+                }
+                best[q][pos] = s;
+                ids[q][pos] = i;
+            }
+        }
+        return ids;
+    }
+
+    // Unit vector near a random centroid (noise of norm ~0.6); the same id always gives the same vector
+    private static float[] vector(float[][] centroids, int dim, int id) {
+        Random rng = new Random(SEED * 31 + id);
+        float[] c = centroids[rng.nextInt(centroids.length)];
+        float[] v = gaussian(rng, dim, 0.6f / (float) Math.sqrt(dim));
+        for (int d = 0; d < dim; d++) v[d] += c[d];
+        return normalize(v);
+    }
+
+    private static float[] gaussian(Random rng, int dim, float sigma) {
+        float[] v = new float[dim];
+        for (int d = 0; d < dim; d++) v[d] = (float) rng.nextGaussian() * sigma;
+        return v;
+    }
+
+    private static float[] normalize(float[] v) {
+        double sq = 0.0;
+        for (float x : v) sq += x * x;
+        float inv = sq > 0 ? (float) (1.0 / Math.sqrt(sq)) : 0.0f;
+        for (int d = 0; d < v.length; d++) v[d] *= inv;
+        return v;
+    }
+
+    private static double percentile(double[] sorted, double p) {
+        if (sorted.length == 0) return 0.0;
+        int idx = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, idx))];
+    }
+
+    /**
+     * One line per result, e.g. "index int8 build n50000: add 850.1 ms, hnsw 21000.4 ms, 21.3 MB"
+     * or "index int8 hnsw ef64 k10: p50 0.42 ms, p99 0.90 ms, recall 0.972".
+     */
+    public static String summarize(JSONObject doc) throws JSONException {
+        StringBuilder sb = new StringBuilder();
+        JSONArray results = doc.getJSONArray("results");
+        for (int i = 0; i < results.length(); i++) {
+            JSONObject r = results.getJSONObject(i);
+            if ("build".equals(r.getString("test"))) {
+                sb.append(String.format(Locale.US, "index %s build n%d: add %.1f ms, hnsw %.1f ms, %.1f MB",
+                        r.getString("quant"), r.getInt("n_vectors"), r.getDouble("add_ms"),
+                        r.getDouble("hnsw_ms"), r.getLong("file_bytes") / 1e6));
+            } else {
+                String mode = r.getString("mode");
+                sb.append(String.format(Locale.US, "index %s %s%s k%d: p50 %.2f ms, p99 %.2f ms, recall %.3f",
+                        r.getString("quant"), mode, "hnsw".equals(mode) ? " ef" + r.getInt("ef") : "",
+                        doc.getInt("k"), r.getDouble("p50_ms"), r.getDouble("p99_ms"), r.getDouble("recall")));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
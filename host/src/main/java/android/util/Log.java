@@ -0,0 +1,37 @@
+package android.util;
+
+/**
+ * Host shim for android.util.Log so shared app classes run on a plain JVM.
+ */
+public final class Log {
+    private Log() {}
+
+    public static int d(String tag, String msg) {
+        return println("D", tag, msg);
+    }
+
+    public static int i(String tag, String msg) {
+        return println("I", tag, msg);
+    }
+
+    public static int w(String tag, String msg) {
+        return println("W", tag, msg);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return println("W", tag, msg + ": " + tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return println("E", tag, msg);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return println("E", tag, msg + ": " + tr);
+    }
+
+    private static int println(String level, String tag, String msg) {
+        System.err.println(level + "/" + tag + ": " + msg);
+        return 0;
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.ollama.host;
+
+import com.example.ollama.ApiServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Self-checks of ApiServer's streaming backpressure. The handler writes while holding a lock, as
+ * ApiEndpoints does while generateStreaming() holds the native inference lock.
+ */
+public final class ApiServerCheck {
+
+    private static final int CHUNK_BYTES = 16 << 10;
+
+    public static void main(String[] args) throws Exception {
+        Checks checks = new Checks("ApiServerCheck");
+        readingClientGetsWholeStream(checks);
+        stalledClientReleasesLock(checks);
+        System.exit(checks.exitCode());
+    }
+
+    private interface Body {
+        void run(Socket client, long startNanos) throws Exception;
+    }
+
+    // Streams up to `chunks` chunks under `inference` and records whether the last write() succeeded
+    private static void withStreamingServer(ApiServer.Options options, int chunks, ReentrantLock inference,
+                                            AtomicBoolean lastWrite, CountDownLatch done, Body body) throws Exception {
+        char[] fill = new char[CHUNK_BYTES];
+        Arrays.fill(fill, 'x');
+        final String chunk = new String(fill);
+        ApiServer server = new ApiServer(0, (request, exchange) -> new Thread(() -> {
+            inference.lock();
+            try {
+                boolean ok = exchange.begin(200, "text/plain");
+                for (int i = 0; ok && i < chunks; i++) ok = exchange.write(chunk);
+                if (ok) exchange.end();
+                lastWrite.set(ok);
+            } finally {
+                inference.unlock();
+                done.countDown();
+            }
+        }, "check-writer").start(), options);
+        server.start();
+        try (Socket client = new Socket()) {
+            client.setReceiveBufferSize(4096);
+            client.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+            client.getOutputStream().write("GET /stream HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            body.run(client, System.nanoTime());
+        } finally {
+            server.close();
+        }
+    }
+
+    private static void readingClientGetsWholeStream(Checks c) throws Exception {
+        ApiServer.Options options = new ApiServer.Options();
+        options.maxBufferedBytes = 4 << 10;
+        options.stallTimeoutMs = 2_000;
+        final int chunks = 64;
+        ReentrantLock inference = new ReentrantLock();
+        AtomicBoolean lastWrite = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(1);
+        withStreamingServer(options, chunks, inference, lastWrite, done, (client, t0) -> {
+            client.setSoTimeout(30_000);
+            long total = drain(client.getInputStream());
+            c.expect(done.await(10, TimeUnit.SECONDS), "a reading client: the writer finishes");
+            c.expect(lastWrite.get(), "a reading client: every write() succeeds");
+            c.expect(total > (long) chunks * CHUNK_BYTES, "a reading client receives the whole stream (" + total + " bytes)");
+        });
+    }
+
+    private static void stalledClientReleasesLock(Checks c) throws Exception {
+        ApiServer.Options options = new ApiServer.Options();
+        options.maxBufferedBytes = 4 << 10;
+        options.stallTimeoutMs = 1_000;
+        ReentrantLock inference = new ReentrantLock();
+        AtomicBoolean lastWrite = new AtomicBoolean(true);
+        CountDownLatch done = new CountDownLatch(1);
+        // Far more than the socket buffers hold, so the writer has to block on the client
+        withStreamingServer(options, 1 << 16, inference, lastWrite, done, (client, t0) -> {
+            boolean released = done.await(options.stallTimeoutMs + 20_000, TimeUnit.MILLISECONDS);
+            long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+            c.expect(released, "a client that stops reading: the blocked writer returns (after " + waitedMs + " ms)");
+            c.expect(waitedMs >= options.stallTimeoutMs, "the writer waited at least stallTimeoutMs");
+            c.expect(!lastWrite.get(), "the blocked write() returns false, so generation stops");
+            boolean free = inference.tryLock(5, TimeUnit.SECONDS);
+            if (free) inference.unlock();
+            c.expect(free, "the lock held while writing is free again");
+
+            // The server closed the connection: the client reads the buffered part, then end of stream
+            client.setSoTimeout(10_000);
+            boolean closed;
+            try {
+                drain(client.getInputStream());
+                closed = true;
+            } catch (SocketTimeoutException e) {
+                closed = false;
+            } catch (IOException e) {
+                closed = true;   // reset instead of FIN
+            }
+            c.expect(closed, "the stalled connection is closed by the server");
+        });
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        byte[] buf = new byte[64 << 10];
+        long total = 0;
+        int n;
+        while ((n = in.read(buf)) >= 0) total += n;
+        return total;
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.ollama.host;
+
+/**
+ * Minimal assertion helper for the host self-checks (gradle :host:check). Each check prints one
+ * line; exitCode() is non-zero if any failed, so CI fails the step.
+ */
+final class Checks {
+
+    private final String suite;
+    private int passed;
+    private int failed;
+
+    Checks(String suite) {
+        this.suite = suite;
+    }
+
+    void expect(boolean ok, String what) {
+        if (ok) {
+            passed++;
+            System.out.println("ok    " + what);
+        } else {
+            failed++;
+            System.out.println("FAIL  " + what);
+        }
+    }
+
+    void expectEquals(Object expected, Object actual, String what) {
+        boolean ok = expected == null ? actual == null : expected.equals(actual);
+        expect(ok, ok ? what : what + ": expected " + expected + ", got " + actual);
+    }
+
+    int exitCode() {
+        System.out.println(suite + ": " + passed + " passed, " + failed + " failed");
+        return failed == 0 ? 0 : 1;
+    }
+}
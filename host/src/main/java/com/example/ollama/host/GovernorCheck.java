@@ -0,0 +1,180 @@
+package com.example.ollama.host;
+
+import com.example.ollama.InferenceGovernor;
+import com.example.ollama.LlamaNative;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Self-checks of InferenceGovernor: drives poll() with a FakeProbe and a LlamaNative whose runtime
+ * limit calls are recorded instead of reaching the native side, and checks the level picked for each
+ * device state, the limits of each level and the recoverPolls hysteresis.
+ */
+public final class GovernorCheck {
+
+    // Records setRuntimeLimits() and reports a fixed decode time per token
+    private static final class RecordingLlama extends LlamaNative {
+        final List<String> applied = new ArrayList<>();
+        double tokenMs;
+
+        @Override
+        public void setRuntimeLimits(int nThreads, int nBatch, float minTokenMs) {
+            applied.add(String.format(Locale.US, "%d/%d/%.1f", nThreads, nBatch, minTokenMs));
+        }
+
+        @Override
+        public String getRuntimeLimits() {
+            return String.format(Locale.US, "{\"token_ms\": %.3f}", tokenMs);
+        }
+    }
+
+    public static void main(String[] args) {
+        Checks checks = new Checks("GovernorCheck");
+        levels(checks);
+        limits(checks);
+        pacing(checks);
+        hysteresis(checks);
+        System.exit(checks.exitCode());
+    }
+
+    private static InferenceGovernor.Options options() {
+        InferenceGovernor.Options options = new InferenceGovernor.Options();
+        options.threads = 8;
+        options.batch = 512;
+        options.recoverPolls = 3;
+        options.lowBatteryPercent = 20;
+        return options;
+    }
+
+    // Level of the first poll of a fresh governor (a hotter level applies at once)
+    private static int levelOf(int thermal, float headroom, int battery, boolean charging, boolean powerSave) {
+        InferenceGovernor.FakeProbe probe = new InferenceGovernor.FakeProbe();
+        probe.set(thermal, headroom, battery, charging);
+        probe.setPowerSave(powerSave);
+        return new InferenceGovernor(new RecordingLlama(), probe, options()).poll().level;
+    }
+
+    private static void levels(Checks checks) {
+        checks.expectEquals(0, levelOf(InferenceGovernor.THERMAL_NONE, Float.NaN, -1, false, false), "cool device: level 0");
+        checks.expectEquals(1, levelOf(InferenceGovernor.THERMAL_LIGHT, Float.NaN, -1, false, false), "thermal light: level 1");
+        checks.expectEquals(2, levelOf(InferenceGovernor.THERMAL_MODERATE, Float.NaN, -1, false, false), "thermal moderate: level 2");
+        checks.expectEquals(3, levelOf(InferenceGovernor.THERMAL_SEVERE, Float.NaN, -1, false, false), "thermal severe: level 3");
+        checks.expectEquals(4, levelOf(InferenceGovernor.THERMAL_CRITICAL, Float.NaN, -1, false, false), "thermal critical: level 4");
+        checks.expectEquals(4, levelOf(InferenceGovernor.THERMAL_SHUTDOWN, Float.NaN, -1, false, false), "thermal shutdown: capped at level 4");
+        checks.expectEquals(0, levelOf(InferenceGovernor.THERMAL_NONE, 0.5f, -1, false, false), "headroom 0.5: level 0");
+        checks.expectEquals(1, levelOf(InferenceGovernor.THERMAL_NONE, 0.75f, -1, false, false), "headroom 0.75: level 1");
+        checks.expectEquals(2, levelOf(InferenceGovernor.THERMAL_NONE, 0.9f, -1, false, false), "headroom 0.9: level 2");
+        checks.expectEquals(3, levelOf(InferenceGovernor.THERMAL_LIGHT, 1.0f, -1, false, false), "headroom 1.0 raises thermal light to level 3");
+        checks.expectEquals(2, levelOf(InferenceGovernor.THERMAL_NONE, Float.NaN, 15, false, false), "low battery discharging: level 2");
+        checks.expectEquals(0, levelOf(InferenceGovernor.THERMAL_NONE, Float.NaN, 15, true, false), "low battery charging: level 0");
+        checks.expectEquals(0, levelOf(InferenceGovernor.THERMAL_NONE, Float.NaN, 20, false, false), "battery at the threshold: level 0");
+        checks.expectEquals(2, levelOf(InferenceGovernor.THERMAL_NONE, Float.NaN, 90, true, true), "power saver: level 2");
+        checks.expectEquals(3, levelOf(InferenceGovernor.THERMAL_SEVERE, Float.NaN, 15, false, true), "low battery does not lower severe");
+    }
+
+    private static void limits(Checks checks) {
+        int[][] expected = {
+                // level, threads, batch
+                {0, 8, 512},
+                {1, 8, 512},
+                {2, 6, 256},
+                {3, 4, 128},
+                {4, 2, 64},
+        };
+        int[] thermal = {InferenceGovernor.THERMAL_NONE, InferenceGovernor.THERMAL_LIGHT, InferenceGovernor.THERMAL_MODERATE,
+                InferenceGovernor.THERMAL_SEVERE, InferenceGovernor.THERMAL_CRITICAL};
+        for (int[] e : expected) {
+            InferenceGovernor.FakeProbe probe = new InferenceGovernor.FakeProbe();
+            probe.setThermalStatus(thermal[e[0]]);
+            RecordingLlama llama = new RecordingLlama();
+            InferenceGovernor.Limits l = new InferenceGovernor(llama, probe, options()).poll();
+            checks.expect(l.level == e[0] && l.threads == e[1] && l.batch == e[2],
+                    "level " + e[0] + " limits " + e[1] + " threads, batch " + e[2] + ": got " + l);
+            // Level 0 lifts the limits on the native side instead of pinning the configured values
+            String nativeLimits = e[0] == 0 ? "0/0/0.0" : e[1] + "/" + e[2] + "/0.0";
+            checks.expectEquals(nativeLimits, llama.applied.isEmpty() ? null : llama.applied.get(0),
+                    "level " + e[0] + " native limits");
+        }
+
+        InferenceGovernor.Options small = options();
+        small.threads = 1;
+        small.batch = 4;
+        InferenceGovernor.FakeProbe probe = new InferenceGovernor.FakeProbe();
+        probe.setThermalStatus(InferenceGovernor.THERMAL_CRITICAL);
+        InferenceGovernor.Limits l = new InferenceGovernor(new RecordingLlama(), probe, small).poll();
+        checks.expect(l.threads == 1 && l.batch == 1, "limits never drop below 1 thread and batch 1: got " + l);
+
+        InferenceGovernor.Options reconfigured = options();
+        probe = new InferenceGovernor.FakeProbe();
+        probe.setThermalStatus(InferenceGovernor.THERMAL_SEVERE);
+        InferenceGovernor governor = new InferenceGovernor(new RecordingLlama(), probe, reconfigured);
+        governor.poll();
+        governor.setConfigured(4, 256);
+        l = governor.poll();
+        checks.expect(l.threads == 2 && l.batch == 64, "setConfigured rescales at the next poll: got " + l);
+    }
+
+    private static void pacing(Checks checks) {
+        // No cool rate yet: a hot device gets fewer threads but no pacing
+        InferenceGovernor.FakeProbe probe = new InferenceGovernor.FakeProbe();
+        probe.setThermalStatus(InferenceGovernor.THERMAL_SEVERE);
+        RecordingLlama llama = new RecordingLlama();
+        llama.tokenMs = 40.0;
+        InferenceGovernor.Limits l = new InferenceGovernor(llama, probe, options()).poll();
+        checks.expectEquals(0f, l.minTokenMs, "no pacing before a cool rate was measured");
+
+        // The cool rate is learnt at level 0 and paces the hotter levels
+        probe = new InferenceGovernor.FakeProbe();
+        llama = new RecordingLlama();
+        llama.tokenMs = 50.0;
+        InferenceGovernor governor = new InferenceGovernor(llama, probe, options());
+        l = governor.poll();
+        checks.expectEquals(0f, l.minTokenMs, "level 0 is unpaced");
+        probe.setThermalStatus(InferenceGovernor.THERMAL_LIGHT);
+        llama.tokenMs = 80.0;
+        l = governor.poll();
+        checks.expect(Math.abs(l.minTokenMs - 50.0f / 0.9f) < 0.01f, "level 1 paces at 0.9 x cool rate: got " + l.minTokenMs);
+        probe.setThermalStatus(InferenceGovernor.THERMAL_SEVERE);
+        l = governor.poll();
+        checks.expect(Math.abs(l.minTokenMs - 50.0f / 0.6f) < 0.01f,
+                "level 3 paces at 0.6 x cool rate, not the throttled one: got " + l.minTokenMs);
+        checks.expectEquals("4/128/83.3", llama.applied.get(llama.applied.size() - 1), "level 3 native limits");
+
+        governor.close();
+        checks.expectEquals("0/0/0.0", llama.applied.get(llama.applied.size() - 1), "close() lifts the limits");
+    }
+
+    private static void hysteresis(Checks checks) {
+        InferenceGovernor.FakeProbe probe = new InferenceGovernor.FakeProbe();
+        probe.setThermalStatus(InferenceGovernor.THERMAL_SEVERE);
+        RecordingLlama llama = new RecordingLlama();
+        InferenceGovernor governor = new InferenceGovernor(llama, probe, options());
+        checks.expectEquals(3, governor.poll().level, "severe applies at once");
+
+        probe.setThermalStatus(InferenceGovernor.THERMAL_NONE);
+        StringBuilder levels = new StringBuilder();
+        for (int i = 0; i < 12; i++) levels.append(governor.poll().level);
+        checks.expectEquals("332221110000", levels.toString(), "cooling steps down one level per 3 cooler polls");
+
+        probe.setThermalStatus(InferenceGovernor.THERMAL_MODERATE);
+        checks.expectEquals(2, governor.poll().level, "heating up skips the wait");
+        probe.setThermalStatus(InferenceGovernor.THERMAL_NONE);
+        governor.poll();
+        governor.poll();
+        probe.setThermalStatus(InferenceGovernor.THERMAL_MODERATE);
+        governor.poll();
+        probe.setThermalStatus(InferenceGovernor.THERMAL_NONE);
+        levels.setLength(0);
+        for (int i = 0; i < 3; i++) levels.append(governor.poll().level);
+        checks.expectEquals("221", levels.toString(), "a hot poll restarts the cooler count");
+
+        // Unchanged limits are not sent again
+        int before = llama.applied.size();
+        probe.setThermalStatus(InferenceGovernor.THERMAL_LIGHT);
+        governor.poll();
+        governor.poll();
+        checks.expectEquals(before, llama.applied.size(), "same limits are not reapplied");
+    }
+}
@@ -0,0 +1,535 @@
+package com.example.ollama.host;
+
+import com.example.ollama.ApiEndpoints;
+import com.example.ollama.ApiServer;
+import com.example.ollama.BatchJob;
+import com.example.ollama.GenerationResult;
+import com.example.ollama.GenerationStats;
+import com.example.ollama.GgufTokenizer;
+import com.example.ollama.InferenceGovernor;
+import com.example.ollama.LlamaBenchmark;
+import com.example.ollama.LlamaNative;
+import com.example.ollama.MemoryPlanner;
+import com.example.ollama.MemoryShedder;
+import com.example.ollama.VectorIndexBenchmark;
+
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Command-line driver around LlamaNative for a Linux host.
+ * Replays a prompt file through the JNI generate path and reports throughput,
+ * or runs a JSONL batch job, or runs the pp/tg benchmark matrix, or the vector index benchmark,
+ * or checks GgufTokenizer against the native tokenizer, or serves the model over HTTP.
+ */
+public class HeadlessDriver {
+
+    private static final String USAGE =
+            "Usage: HeadlessDriver (--model <gguf> | --synthetic) [options]\n"
+            + "       HeadlessDriver --index-bench <out.json>\n"
+            + "  --model <path>       GGUF model to load\n"
+            + "  --synthetic          generate and load a tiny random-weight model\n"
+            + "  --prompts <file>     prompts to replay, one per line (\\n escapes allowed)\n"
+            + "  --repeat <n>         replay the prompt file n times (default 1)\n"
+            + "  --parallel <n>       replay / serve n concurrent requests in n parallel slots (default 1 = generate())\n"
+            + "  --batch <in.jsonl>   answer {\"prompt\": ...} lines as a resumable batch job (see BatchJob)\n"
+            + "  --batch-out <path>   batch results (default: <in>.results.jsonl, checkpoint <path>.ckpt)\n"
+            + "  --serve <port>       serve the Ollama/OpenAI API on 127.0.0.1:<port> until killed (see ApiEndpoints)\n"
+            + "  --bench <out.json>   run the default pp/tg benchmark matrix\n"
+            + "  --index-bench <out.json>  run the vector index build/query benchmark (no model needed)\n"
+            + "  --tokenizer-check <file>  compare GgufTokenizer with llama_tokenize on each text\n"
+            + "                       (split on __ggml_vocab_test__ lines if present, else one per line)\n"
+            + "  --ctx <n>            context length (default 2048)\n"
+            + "  --kv-type <type>     KV cache type for K and V: f16, q8_0, q4_0 (default f16)\n"
+            + "  --flash-attn         use flash attention (required for a quantized V cache)\n"
+            + "  --log <path>         JNI log file (default: headless.log)\n"
+            + "  --cpus <d>[/<p>]     CPUs of the decode / prefill thread pools: \"\" = performance cores (default),\n"
+            + "                       all, or a list such as 4-7 (one value sets both)\n"
+            + "  --poll <d>[/<p>]     thread pool polling level 0-100 for decode / prefill (default 50)\n"
+            + "  --prio <n>           thread pool priority: -1 low, 0 unchanged (default), 1 above normal, 2 high\n"
+            + "  --no-threadpool      use llama.cpp's default threading instead of persistent thread pools\n"
+            + "  --trim <levels>      after replaying --prompts, pass each onTrimMemory level (e.g. 20,40,60,80) to\n"
+            + "                       MemoryShedder and replay again while the model is still loaded\n"
+            + "  --thermal <schedule> run the InferenceGovernor on a fake thermal status that changes over time:\n"
+            + "                       <seconds>:<status>,... with status none, light, moderate, severe, critical\n"
+            + "                       or 0-6, e.g. 0:none,30:moderate,90:severe\n";
+
+    private String modelPath;
+    private boolean synthetic;
+    private String promptsPath;
+    private int repeat = 1;
+    private int parallel = 1;
+    private String batchPath;
+    private String batchOutPath;
+    private int servePort = -1;
+    private String benchOut;
+    private String indexBenchOut;
+    private String tokenizerCheckPath;
+    private int nCtx = 2048;
+    private String kvType = "f16";
+    private boolean flashAttn;
+    private String logPath = "headless.log";
+    private boolean threadPool = true;
+    private String decodeCpus = "";
+    private String prefillCpus = "";
+    private int decodePoll = 50;
+    private int prefillPoll = 50;
+    private int poolPriority;
+    private int[] trimLevels = new int[0];
+    private ThermalSchedule thermal;
+
+    public static void main(String[] args) throws Exception {
+        HeadlessDriver driver = new HeadlessDriver();
+        if (!driver.parseArgs(args)) {
+            System.err.print(USAGE);
+            System.exit(2);
+        }
+        System.exit(driver.run());
+    }
+
+    private boolean parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            boolean hasValue = i + 1 < args.length;
+            switch (a) {
+                case "--model":
+                    if (!hasValue) return false;
+                    modelPath = args[++i];
+                    break;
+                case "--synthetic":
+                    synthetic = true;
+                    break;
+                case "--prompts":
+                    if (!hasValue) return false;
+                    promptsPath = args[++i];
+                    break;
+                case "--repeat":
+                    if (!hasValue) return false;
+                    repeat = Integer.parseInt(args[++i]);
+                    break;
+                case "--parallel":
+                    if (!hasValue) return false;
+                    parallel = Math.max(1, Integer.parseInt(args[++i]));
+                    break;
+                case "--batch":
+                    if (!hasValue) return false;
+                    batchPath = args[++i];
+                    break;
+                case "--batch-out":
+                    if (!hasValue) return false;
+                    batchOutPath = args[++i];
+                    break;
+                case "--serve":
+                    if (!hasValue) return false;
+                    servePort = Integer.parseInt(args[++i]);
+                    break;
+                case "--bench":
+                    if (!hasValue) return false;
+                    benchOut = args[++i];
+                    break;
+                case "--index-bench":
+                    if (!hasValue) return false;
+                    indexBenchOut = args[++i];
+                    break;
+                case "--tokenizer-check":
+                    if (!hasValue) return false;
+                    tokenizerCheckPath = args[++i];
+                    break;
+                case "--ctx":
+                    if (!hasValue) return false;
+                    nCtx = Integer.parseInt(args[++i]);
+                    break;
+                case "--kv-type":
+                    if (!hasValue) return false;
+                    kvType = args[++i];
+                    break;
+                case "--flash-attn":
+                    flashAttn = true;
+                    break;
+                case "--log":
+                    if (!hasValue) return false;
+                    logPath = args[++i];
+                    break;
+                case "--cpus": {
+                    if (!hasValue) return false;
+                    String[] cpus = args[++i].split("/", -1);
+                    decodeCpus = cpus[0];
+                    prefillCpus = cpus.length > 1 ? cpus[1] : cpus[0];
+                    break;
+                }
+                case "--poll": {
+                    if (!hasValue) return false;
+                    String[] poll = args[++i].split("/", -1);
+                    decodePoll = Integer.parseInt(poll[0]);
+                    prefillPoll = poll.length > 1 ? Integer.parseInt(poll[1]) : decodePoll;
+                    break;
+                }
+                case "--prio":
+                    if (!hasValue) return false;
+                    poolPriority = Integer.parseInt(args[++i]);
+                    break;
+                case "--no-threadpool":
+                    threadPool = false;
+                    break;
+                case "--trim": {
+                    if (!hasValue) return false;
+                    String[] levels = args[++i].split(",");
+                    trimLevels = new int[levels.length];
+                    for (int j = 0; j < levels.length; j++) trimLevels[j] = Integer.parseInt(levels[j].trim());
+                    break;
+                }
+                case "--thermal":
+                    if (!hasValue) return false;
+                    try {
+                        thermal = ThermalSchedule.parse(args[++i]);
+                    } catch (IllegalArgumentException e) {
+                        System.err.println(e.getMessage());
+                        return false;
+                    }
+                    break;
+                default:
+                    System.err.println("Unknown argument: " + a);
+                    return false;
+            }
+        }
+        if (modelPath == null && !synthetic) {
+            return indexBenchOut != null && promptsPath == null && batchPath == null && benchOut == null
+                    && tokenizerCheckPath == null && servePort < 0;
+        }
+        return (modelPath != null) != synthetic
+                && (promptsPath != null || batchPath != null || benchOut != null || indexBenchOut != null
+                    || tokenizerCheckPath != null || servePort >= 0);
+    }
+
+    private int run() throws Exception {
+        if (indexBenchOut != null) {
+            File out = new File(indexBenchOut);
+            File workDir = out.getAbsoluteFile().getParentFile();
+            JSONObject doc = new VectorIndexBenchmark().run(new VectorIndexBenchmark.Spec(), workDir, out,
+                    (done, total, desc) -> System.out.println("index bench " + done + "/" + total + ": " + desc));
+            System.out.print(VectorIndexBenchmark.summarize(doc));
+            System.out.println("index bench results: " + indexBenchOut);
+            if (modelPath == null && !synthetic) return 0;
+        }
+
+        LlamaNative llama = new LlamaNative();
+        llama.setLogPath(new File(logPath).getAbsolutePath());
+
+        if (synthetic) {
+            File model = File.createTempFile("synthetic", ".gguf");
+            model.deleteOnExit();
+            String created = LlamaBenchmark.createSyntheticModel(llama, model);
+            if (!"ok".equals(created)) {
+                System.err.println("createSyntheticModel failed: " + created);
+                return 1;
+            }
+            modelPath = model.getAbsolutePath();
+        }
+
+        String ctxResult = llama.setContextParameters(nCtx, 2, 16, kvType, kvType, flashAttn);
+        if (!"ok".equals(ctxResult)) {
+            System.err.println("setContextParameters failed: " + ctxResult);
+            return 1;
+        }
+        String poolResult = llama.setThreadPoolParameters(threadPool, decodeCpus, prefillCpus, poolPriority,
+                decodePoll, prefillPoll);
+        if (!"ok".equals(poolResult)) {
+            System.err.println("setThreadPoolParameters failed: " + poolResult);
+            return 1;
+        }
+        MemoryPlanner.Plan plan = new MemoryPlanner(new MemoryPlanner.Options()).plan(new File(modelPath),
+                new MemoryPlanner.Settings(nCtx, 16, kvType, kvType, flashAttn), MemoryPlanner.readMemAvailable());
+        System.out.println("memory: " + plan);
+        if (!plan.fits()) {
+            System.err.println("init skipped: " + plan.describeFailure());
+            return 1;
+        }
+        String initResult = llama.init(modelPath);
+        if (!"ok".equals(initResult)) {
+            System.err.println("init failed: " + initResult);
+            return 1;
+        }
+        System.out.println("model: " + llama.getModelInfo());
+        System.out.println("threadpool: " + llama.getThreadPoolInfo());
+
+        InferenceGovernor governor = null;
+        if (thermal != null) {
+            InferenceGovernor.Options options = new InferenceGovernor.Options();
+            options.threads = 2;
+            options.batch = 16;
+            options.pollMs = 1000;
+            thermal.begin();
+            governor = new InferenceGovernor(llama, thermal, options);
+            governor.setListener((limits, state) -> System.out.println(String.format(Locale.US,
+                    "governor at %.1f s: %s (%s)", thermal.elapsedSeconds(), limits, state)));
+            governor.start();
+        }
+
+        int status = 0;
+        try {
+            if (tokenizerCheckPath != null && !checkTokenizer(llama, new File(tokenizerCheckPath))) {
+                status = 1;
+            }
+            if (promptsPath != null) {
+                if (parallel > 1) {
+                    String slots = llama.setParallelSlots(parallel, 0);
+                    if (!"ok".equals(slots)) {
+                        System.err.println("setParallelSlots failed: " + slots);
+                        return 1;
+                    }
+                }
+                List<String> prompts = readPrompts(new File(promptsPath));
+                replayPrompts(llama, prompts);
+                if (trimLevels.length > 0) trimAndReplay(llama, prompts);
+            }
+            if (batchPath != null) {
+                File out = new File(batchOutPath != null ? batchOutPath : batchPath + ".results.jsonl");
+                BatchJob.Options batchOptions = new BatchJob.Options();
+                batchOptions.finalRun = true;
+                BatchJob.Result result = new BatchJob(llama, batchOptions).run(new File(batchPath), out,
+                        (res, totals) -> System.out.println(String.format(Locale.US, "[line %d] %s: %s",
+                                res.optInt("line"), res.opt("id"),
+                                res.has("error") ? "error: " + res.optString("error")
+                                        : res.optString("stop_reason") + ", " + res.optInt("generated_tokens")
+                                          + " tok, " + res.optInt("prompt_reused_tokens") + " prompt tok reused")));
+                System.out.println("batch: " + result.toSummary());
+                System.out.println("batch results: " + out);
+                if (result.errors > 0) status = 1;
+            }
+            if (benchOut != null) {
+                JSONObject doc = new LlamaBenchmark(llama).run(new LlamaBenchmark.Spec(), new File(benchOut),
+                        (done, total, desc) -> System.out.println("bench " + done + "/" + total + ": " + desc));
+                System.out.print(LlamaBenchmark.summarize(doc));
+                System.out.println("bench results: " + benchOut);
+            }
+            if (servePort >= 0) {
+                serve(new File(modelPath));
+            }
+        } finally {
+            if (governor != null) governor.close();
+            llama.free();
+        }
+        return status;
+    }
+
+    // Fake device whose thermal status follows a schedule of (seconds since start, status) steps
+    private static final class ThermalSchedule implements InferenceGovernor.DeviceProbe {
+        private static final String[] NAMES = {"none", "light", "moderate", "severe", "critical", "emergency", "shutdown"};
+
+        private final double[] at;
+        private final int[] status;
+        private volatile long start = System.nanoTime();
+
+        private ThermalSchedule(double[] at, int[] status) {
+            this.at = at;
+            this.status = status;
+        }
+
+        static ThermalSchedule parse(String spec) {
+            String[] steps = spec.split(",");
+            double[] at = new double[steps.length];
+            int[] status = new int[steps.length];
+            for (int i = 0; i < steps.length; i++) {
+                String[] kv = steps[i].trim().split(":");
+                if (kv.length != 2) throw new IllegalArgumentException("bad --thermal step: " + steps[i]);
+                at[i] = Double.parseDouble(kv[0]);
+                int s = Arrays.asList(NAMES).indexOf(kv[1].toLowerCase(Locale.ROOT));
+                status[i] = s >= 0 ? s : Integer.parseInt(kv[1]);
+            }
+            return new ThermalSchedule(at, status);
+        }
+
+        // The schedule starts now (after the model has loaded)
+        void begin() {
+            start = System.nanoTime();
+        }
+
+        double elapsedSeconds() {
+            return (System.nanoTime() - start) / 1e9;
+        }
+
+        @Override
+        public InferenceGovernor.DeviceState read() {
+            double t = elapsedSeconds();
+            InferenceGovernor.DeviceState s = new InferenceGovernor.DeviceState();
+            for (int i = 0; i < at.length; i++) {
+                if (t >= at[i]) s.thermalStatus = status[i];
+            }
+            return s;
+        }
+    }
+
+    // Serves the loaded model until the process is killed
+    private void serve(File model) throws Exception {
+        ApiEndpoints.Options options = new ApiEndpoints.Options();
+        options.parallelSlots = parallel;
+        ApiEndpoints endpoints = new ApiEndpoints(options);
+        endpoints.setModel(model);
+        ApiServer server = new ApiServer(servePort, endpoints, new ApiServer.Options());
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            endpoints.close();
+        }));
+        System.out.println("serving " + model.getName() + " on http://127.0.0.1:" + server.getPort());
+        Thread.currentThread().join();
+    }
+
+    // Tokenizes every text with GgufTokenizer and with the loaded model for all four
+    // (addSpecial, parseSpecial) combinations; prints the first mismatches
+    private boolean checkTokenizer(LlamaNative llama, File textsFile) throws Exception {
+        long t0 = System.nanoTime();
+        GgufTokenizer tokenizer = GgufTokenizer.load(new File(modelPath));
+        double loadMs = (System.nanoTime() - t0) / 1e6;
+        System.out.println(String.format(Locale.US, "tokenizer: %s/%s, %d tokens, loaded in %.1f ms",
+                tokenizer.getModelType(), tokenizer.getPreTokenizer(), tokenizer.getVocabSize(), loadMs));
+
+        String all = new String(Files.readAllBytes(textsFile.toPath()), StandardCharsets.UTF_8);
+        List<String> texts = new ArrayList<>();
+        if (all.contains("\n__ggml_vocab_test__\n")) {
+            // llama.cpp's models/ggml-vocab-*.gguf.inp format
+            texts.addAll(Arrays.asList(all.split("\n__ggml_vocab_test__\n", -1)));
+        } else {
+            texts.addAll(readPrompts(textsFile));
+        }
+
+        int checks = 0;
+        int mismatches = 0;
+        double javaMs = 0.0;
+        for (String text : texts) {
+            for (int flags = 0; flags < 4; flags++) {
+                boolean addSpecial = (flags & 1) != 0;
+                boolean parseSpecial = (flags & 2) != 0;
+                long t1 = System.nanoTime();
+                int[] expected = tokenizer.tokenize(text, addSpecial, parseSpecial);
+                javaMs += (System.nanoTime() - t1) / 1e6;
+                IntBuffer actual = llama.tokenize(text, addSpecial, parseSpecial);
+                int[] nativeIds = new int[actual.remaining()];
+                actual.get(nativeIds);
+                checks++;
+                if (!Arrays.equals(expected, nativeIds)) {
+                    if (++mismatches <= 10) {
+                        System.out.println(String.format(Locale.US, "mismatch add_special=%b parse_special=%b: %s%n  native %s%n  java   %s",
+                                addSpecial, parseSpecial, JSONObject.quote(text), Arrays.toString(nativeIds), Arrays.toString(expected)));
+                    }
+                }
+            }
+        }
+        System.out.println(String.format(Locale.US, "tokenizer check: %d/%d match (%d texts, java %.1f ms total)",
+                checks - mismatches, checks, texts.size(), javaMs));
+        return mismatches == 0;
+    }
+
+    private static List<String> readPrompts(File file) throws Exception {
+        List<String> prompts = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) continue;
+                prompts.add(line.replace("\\n", "\n"));
+            }
+        }
+        return prompts;
+    }
+
+    // Sheds memory for each trim level in turn and checks that generation still works afterwards
+    private void trimAndReplay(LlamaNative llama, List<String> prompts) {
+        MemoryShedder shedder = new MemoryShedder(llama);
+        try {
+            for (int level : trimLevels) {
+                int stage = MemoryShedder.stageFor(level);
+                if (stage == MemoryShedder.STAGE_NONE) {
+                    System.out.println("trim level " + level + ": nothing to do");
+                    continue;
+                }
+                MemoryShedder.Result result = shedder.shed(level, stage);
+                System.out.println("memory: " + result);
+                if (!result.modelLoaded) break;
+                replayPrompts(llama, prompts);
+            }
+        } finally {
+            shedder.close();
+        }
+    }
+
+    private void replayPrompts(LlamaNative llama, List<String> prompts) {
+        int total = prompts.size() * repeat;
+        double[] ttft = new double[total];
+        long promptTokens = 0;
+        long genTokens = 0;
+        double decodeMs = 0.0;
+        double prefillMs = 0.0;
+        int errors = 0;
+
+        long t0 = System.nanoTime();
+        // With --parallel each worker waits for its own slot while the prompts share decode steps
+        ExecutorService pool = Executors.newFixedThreadPool(parallel);
+        List<Future<GenerationResult>> results = new ArrayList<>();
+        for (int r = 0; r < repeat; r++) {
+            for (String prompt : prompts) {
+                results.add(pool.submit(() -> parallel > 1
+                        ? llama.awaitParallel(llama.submitParallel(prompt))
+                        : llama.generateWithStats(prompt)));
+            }
+        }
+        pool.shutdown();
+        int n = 0;
+        for (Future<GenerationResult> future : results) {
+            GenerationResult result = getResult(future);
+            GenerationStats st = result.stats;
+            if (result.isError()) {
+                errors++;
+                System.out.println(String.format(Locale.US, "[%d/%d] error: %s", n + 1, total, result.text));
+            } else {
+                System.out.println(String.format(Locale.US, "[%d/%d] %s: %s", n + 1, total,
+                        result.stopReason, st.toSummary()));
+            }
+            ttft[n++] = st.ttftMs;
+            promptTokens += st.promptTokens;
+            genTokens += st.generatedTokens;
+            decodeMs += st.decodeMs;
+            prefillMs += st.prefillMs;
+        }
+        double wallSec = (System.nanoTime() - t0) / 1e9;
+
+        Arrays.sort(ttft);
+        System.out.println(String.format(Locale.US,
+                "requests=%d parallel=%d errors=%d wall=%.2f s | prompt %d tok (%.1f tok/s prefill) | "
+                + "generated %d tok (%.2f tok/s decode, %.2f tok/s end-to-end) | TTFT p50 %.1f ms p95 %.1f ms",
+                total, parallel, errors, wallSec,
+                promptTokens, prefillMs > 0 ? promptTokens * 1000.0 / prefillMs : 0.0,
+                genTokens, decodeMs > 0 ? genTokens * 1000.0 / decodeMs : 0.0,
+                wallSec > 0 ? genTokens / wallSec : 0.0,
+                percentile(ttft, 0.50), percentile(ttft, 0.95)));
+    }
+
+    private static GenerationResult getResult(Future<GenerationResult> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static double percentile(double[] sorted, double p) {
+        if (sorted.length == 0) return 0.0;
+        int idx = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, idx))];
+    }
+}
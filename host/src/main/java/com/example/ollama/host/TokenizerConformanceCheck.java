@@ -0,0 +1,102 @@
+package com.example.ollama.host;
+
+import com.example.ollama.GgufMetadata;
+import com.example.ollama.GgufTokenizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs GgufTokenizer over llama.cpp's vocabulary fixtures (models/ggml-vocab-*.gguf with their
+ * .gguf.inp texts and .gguf.out ids, as test-tokenizer-0 reads them: add_special and parse_special
+ * off). Vocabularies of a model type GgufTokenizer does not port (WPM, ...) are skipped.
+ * <p>
+ * Usage: TokenizerConformanceCheck [models dir] (default app/src/main/cpp/llama/models)
+ */
+public final class TokenizerConformanceCheck {
+
+    private static final String SEPARATOR = "\n__ggml_vocab_test__\n";
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args.length > 0 ? args[0] : "app/src/main/cpp/llama/models");
+        Checks checks = new Checks("TokenizerConformanceCheck");
+        File[] vocabs = dir.listFiles((d, name) -> name.startsWith("ggml-vocab-") && name.endsWith(".gguf"));
+        checks.expect(vocabs != null && vocabs.length > 0, "vocabulary fixtures in " + dir);
+        if (vocabs != null) {
+            Arrays.sort(vocabs);
+            for (File vocab : vocabs) {
+                File inp = new File(vocab.getPath() + ".inp");
+                File out = new File(vocab.getPath() + ".out");
+                if (inp.isFile() && out.isFile()) checkVocab(checks, vocab, inp, out);
+            }
+        }
+        System.exit(checks.exitCode());
+    }
+
+    private static void checkVocab(Checks checks, File vocab, File inp, File out) throws IOException {
+        String model = GgufMetadata.read(vocab).getString("tokenizer.ggml.model", null);
+        if (!GgufTokenizer.MODEL_SPM.equals(model) && !GgufTokenizer.MODEL_BPE.equals(model)) {
+            System.out.println("skip  " + vocab.getName() + ": tokenizer model " + model + " is not ported");
+            return;
+        }
+        GgufTokenizer tokenizer = GgufTokenizer.load(vocab);
+        List<String> texts = readTexts(inp);
+        List<int[]> expected = readIds(out);
+        String name = vocab.getName() + " (" + tokenizer.getModelType() + "/" + tokenizer.getPreTokenizer() + ")";
+        if (texts.size() != expected.size()) {
+            checks.expect(false, name + ": " + texts.size() + " texts but " + expected.size() + " id lines");
+            return;
+        }
+        int mismatches = 0;
+        String first = null;
+        for (int i = 0; i < texts.size(); i++) {
+            int[] actual = tokenizer.tokenize(texts.get(i), false, false);
+            if (!Arrays.equals(expected.get(i), actual)) {
+                if (mismatches++ == 0) {
+                    first = "text " + (i + 1) + ": expected " + Arrays.toString(expected.get(i))
+                            + ", got " + Arrays.toString(actual);
+                }
+            }
+        }
+        checks.expect(mismatches == 0, name + ": " + (texts.size() - mismatches) + "/" + texts.size() + " texts match"
+                + (first != null ? ", first mismatch " + first : ""));
+    }
+
+    // Split like test-tokenizer-0: a trailing separator does not start another (empty) text
+    private static List<String> readTexts(File inp) throws IOException {
+        String raw = new String(Files.readAllBytes(inp.toPath()), StandardCharsets.UTF_8);
+        List<String> texts = new ArrayList<>();
+        int pos = 0;
+        while (pos < raw.length()) {
+            int next = raw.indexOf(SEPARATOR, pos);
+            if (next < 0) {
+                texts.add(raw.substring(pos));
+                break;
+            }
+            texts.add(raw.substring(pos, next));
+            pos = next + SEPARATOR.length();
+        }
+        return texts;
+    }
+
+    private static List<int[]> readIds(File out) throws IOException {
+        List<int[]> ids = new ArrayList<>();
+        for (String line : Files.readAllLines(out.toPath(), StandardCharsets.UTF_8)) {
+            String s = line.trim();
+            if (s.isEmpty()) {
+                ids.add(new int[0]);
+                continue;
+            }
+            String[] parts = s.split(" ");
+            int[] row = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) row[i] = Integer.parseInt(parts[i]);
+            ids.add(row);
+        }
+        return ids;
+    }
+}